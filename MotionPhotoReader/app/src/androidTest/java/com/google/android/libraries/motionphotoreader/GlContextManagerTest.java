@@ -0,0 +1,112 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumented test for the GlContextManager class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GlContextManagerTest {
+
+    private static final String VERTEX_SHADER =
+            "#version 300 es\n" +
+            "in vec4 aPosition;\n" +
+            "void main() {\n" +
+            "  gl_Position = aPosition;\n" +
+            "}";
+    private static final String FRAGMENT_SHADER =
+            "#version 300 es\n" +
+            "precision mediump float;\n" +
+            "out vec4 FragColor;\n" +
+            "void main() {\n" +
+            "  FragColor = vec4(1.0);\n" +
+            "}";
+
+    private GlContextManager manager;
+    private HandlerThread firstThread;
+    private HandlerThread secondThread;
+
+    @Before
+    public void setUp() {
+        manager = new GlContextManager();
+        firstThread = new HandlerThread("firstRenderThread");
+        firstThread.start();
+        secondThread = new HandlerThread("secondRenderThread");
+        secondThread.start();
+    }
+
+    @After
+    public void tearDown() {
+        firstThread.quitSafely();
+        secondThread.quitSafely();
+    }
+
+    @Test
+    public void acquire_sameThread_sharesContextAndPrograms() throws InterruptedException {
+        runOn(firstThread, () -> {
+            GlContextManager.SharedContext first = manager.acquire();
+            GlContextManager.SharedContext second = manager.acquire();
+            assertSame(first, second);
+            assertEquals(1, manager.getContextCount());
+
+            int program = first.getProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+            assertTrue(program != 0);
+            assertEquals(program, second.getProgram(VERTEX_SHADER, FRAGMENT_SHADER));
+            assertEquals(1, first.getProgramCount());
+
+            manager.release(first);
+            assertEquals(1, manager.getContextCount());
+            manager.release(second);
+            assertEquals(0, manager.getContextCount());
+        });
+    }
+
+    @Test
+    public void acquire_otherThread_createsOwnContext() throws InterruptedException {
+        AtomicReference<GlContextManager.SharedContext> firstContext = new AtomicReference<>();
+        AtomicReference<GlContextManager.SharedContext> secondContext = new AtomicReference<>();
+        runOn(firstThread, () -> firstContext.set(manager.acquire()));
+        runOn(secondThread, () -> secondContext.set(manager.acquire()));
+        assertNotSame(firstContext.get(), secondContext.get());
+        assertEquals(2, manager.getContextCount());
+
+        runOn(firstThread, () -> manager.release(firstContext.get()));
+        runOn(secondThread, () -> manager.release(secondContext.get()));
+        assertEquals(0, manager.getContextCount());
+    }
+
+    private static void runOn(HandlerThread thread, Runnable task) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        new Handler(thread.getLooper()).post(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                failure.set(t);
+            } finally {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
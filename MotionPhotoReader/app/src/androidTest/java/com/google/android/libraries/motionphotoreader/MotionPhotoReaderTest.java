@@ -10,6 +10,7 @@ import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.rule.ActivityTestRule;
 
 import com.adobe.internal.xmp.XMPException;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.junit.After;
 import org.junit.Before;
@@ -17,9 +18,11 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -160,6 +163,103 @@ public class MotionPhotoReaderTest {
         }
     }
 
+    @Test
+    public void seekTo_presentedFrame_doesNotDecode() {
+        reader.seekTo(SEEK_AMOUNT_US, MediaExtractor.SEEK_TO_NEXT_SYNC);
+        int pollCount = fakeOutputBufferQueue.getPollCount();
+        long timestampUs = reader.getCurrentTimestampUs();
+
+        reader.seekTo(SEEK_AMOUNT_US, MediaExtractor.SEEK_TO_NEXT_SYNC);
+        assertEquals(pollCount, fakeOutputBufferQueue.getPollCount());
+        assertEquals(timestampUs, reader.getCurrentTimestampUs());
+    }
+
+    @Test
+    public void seekTo_exact_landsOnRequestedFrame() {
+        // Find a frame between two sync frames, and the frame after it
+        for (int i = 0; i < 5; i++) {
+            reader.nextFrame();
+        }
+        long targetTimestampUs = reader.getCurrentTimestampUs();
+        reader.nextFrame();
+        long nextTimestampUs = reader.getCurrentTimestampUs();
+
+        reader.seekTo(0L, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        reader.seekTo(targetTimestampUs, MotionPhotoReader.SEEK_TO_EXACT);
+        assertEquals(nextTimestampUs, reader.getCurrentTimestampUs());
+
+        // Seeking backwards restarts from a sync frame
+        reader.seekTo(targetTimestampUs - 1, MotionPhotoReader.SEEK_TO_EXACT);
+        assertEquals(targetTimestampUs, reader.getCurrentTimestampUs());
+    }
+
+    @Test
+    public void requestSeek_repeatedRequests_onlyLatestCompletes() throws Exception {
+        long durationUs = reader.getMotionPhotoInfo().getDurationUs();
+        List<ListenableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            futures.add(reader.requestSeek(i * durationUs / 20, /* previewSyncFrame = */ true));
+        }
+        ListenableFuture<Void> latest = futures.get(futures.size() - 1);
+        latest.get(5, TimeUnit.SECONDS);
+
+        // Earlier requests were either dropped or done before they were superseded
+        for (ListenableFuture<Void> future : futures.subList(0, futures.size() - 1)) {
+            assertTrue("Superseded seek is still pending", future.isDone());
+        }
+        assertTrue(reader.getCurrentTimestampUs() > durationUs / 2);
+    }
+
+    @Test
+    public void setLooping_startsOverAfterLastFrame() throws IOException, XMPException {
+        reader.setLooping(true);
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            reader.nextFrame();
+        }
+
+        // The first sample of the next iteration is queued while the last frame is presented
+        assertTrue("Looping video has no next frame", reader.hasNextFrame());
+        long afterLoopTimestampUs = reader.getCurrentTimestampUs();
+        assertTrue(afterLoopTimestampUs < reader.getMotionPhotoInfo().getDurationUs() / 2);
+
+        // The next iteration plays the same frames and ends in the same state
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            assertTrue("Looping video has no next frame", reader.hasNextFrame());
+            reader.nextFrame();
+        }
+        assertEquals(afterLoopTimestampUs, reader.getCurrentTimestampUs());
+    }
+
+    @Test
+    public void seekTo_exactWhileLoopStartQueued_landsOnTarget() throws Exception {
+        // Loop at double speed with late frames dropped, then seek right after a loop start has
+        // been queued to the decoder
+        reader.setLooping(true);
+        reader.setPlaybackRate(2.0f);
+        reader.setLateFramePolicy(MotionPhotoReader.LATE_FRAMES_DROP);
+        for (int i = 0; i < 2 * NUM_FRAMES; i++) {
+            assertTrue("Looping video has no next frame", reader.hasNextFrame());
+            reader.nextFrame();
+        }
+        assertTrue(reader.getDroppedFrameCount() <= reader.getLateFrameCount());
+
+        // The queued sample is dropped, and the seek decodes forward to the target frame
+        int targetIndex = NUM_FRAMES / 2;
+        SampleIndex sampleIndex = reader.getSampleIndex();
+        assertNotNull(sampleIndex);
+        reader.seekTo(sampleIndex.getTimestampUs(targetIndex), MotionPhotoReader.SEEK_TO_EXACT);
+        assertEquals(sampleIndex.getTimestampUs(targetIndex + 1), reader.getCurrentTimestampUs());
+
+        // Playback goes on from the target, and stops at the last frame once looping is off
+        reader.setLooping(false);
+        int frameCount = 0;
+        while (reader.hasNextFrame()) {
+            reader.nextFrame();
+            frameCount++;
+        }
+        assertEquals(NUM_FRAMES - targetIndex - 1, frameCount);
+    }
+
     @Test
     public void hasNextFrame_atBeginningOfVideo_returnsTrue() {
         assertTrue("No next frame", reader.hasNextFrame());
@@ -198,6 +298,229 @@ public class MotionPhotoReaderTest {
         cleanup.add(reader::close);
     }
 
+    @Test
+    public void prepareAsync_playsAllFrames() throws Exception {
+        MotionPhotoReader preparedReader = MotionPhotoReader.prepareAsync(
+                ResourceFetcher.fetchAssetFile(context, filename, "test_photo", ".jpg"),
+                /* enableStabilization = */ true,
+                /* enableCrop = */ true
+        ).get(5, TimeUnit.SECONDS);
+        cleanup.add(preparedReader::close);
+        preparedReader.setPriority(MotionPhotoReader.PRIORITY_VISIBLE);
+
+        // Frames can be played before the reader is bound to a surface
+        int frameCount = 0;
+        while (preparedReader.hasNextFrame()) {
+            preparedReader.nextFrame();
+            frameCount++;
+        }
+        assertEquals(NUM_FRAMES, frameCount);
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void prepareAsync_invalidFile_fails() throws Exception {
+        MotionPhotoReader.prepareAsync(
+                new File(context.getCacheDir(), "missing_photo.jpg"),
+                /* enableStabilization = */ true,
+                /* enableCrop = */ true
+        ).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void openForFrames_deliversAllFramesFromPool() throws Exception {
+        List<Long> timestamps = new ArrayList<>();
+        MotionPhotoReader frameReader = MotionPhotoReader.openForFrames(
+                ResourceFetcher.fetchAssetFile(context, filename, "test_photo", ".jpg"),
+                /* enableStabilization = */ true,
+                /* framePoolSize = */ 2,
+                frame -> {
+                    assertTrue(frame.getPlane(DecodedFrame.PLANE_Y).capacity()
+                            >= frame.getWidth() * frame.getHeight());
+                    timestamps.add(frame.getTimestampUs());
+                    frame.release();
+                }
+        );
+        cleanup.add(frameReader::close);
+
+        while (frameReader.hasNextFrame()) {
+            frameReader.nextFrame();
+        }
+        assertEquals(NUM_FRAMES, timestamps.size());
+    }
+
+    @Test
+    public void startFrameExport_exportsAllFramesWithoutSurface() throws Exception {
+        MotionPhotoReader preparedReader = MotionPhotoReader.prepareAsync(
+                ResourceFetcher.fetchAssetFile(context, filename, "test_photo", ".jpg"),
+                /* enableStabilization = */ true,
+                /* enableCrop = */ true
+        ).get(5, TimeUnit.SECONDS);
+        cleanup.add(preparedReader::close);
+        preparedReader.setPriority(MotionPhotoReader.PRIORITY_VISIBLE);
+
+        List<Long> timestamps = new ArrayList<>();
+        preparedReader.startFrameExport(/* framePoolSize = */ 2, frame -> {
+            assertEquals(frame.getRowStride() * frame.getHeight(), frame.getBuffer().capacity());
+            timestamps.add(frame.getTimestampUs());
+            frame.release();
+        });
+        while (preparedReader.hasNextFrame()) {
+            preparedReader.nextFrame();
+        }
+        preparedReader.stopFrameExport().get(5, TimeUnit.SECONDS);
+        assertEquals(NUM_FRAMES, timestamps.size());
+
+        // The last frame can still be grabbed once the export has stopped
+        Bitmap bitmap = preparedReader.grabFrame().get(5, TimeUnit.SECONDS);
+        MotionPhotoInfo info = preparedReader.getMotionPhotoInfo();
+        assertEquals(
+                info.getWidth() * info.getHeight(),
+                bitmap.getWidth() * bitmap.getHeight()
+        );
+    }
+
+    @Test
+    public void enableFrameCache_playsNextIterationWithoutDecoder() throws Exception {
+        MotionPhotoReader preparedReader = MotionPhotoReader.prepareAsync(
+                ResourceFetcher.fetchAssetFile(context, filename, "test_photo", ".jpg"),
+                /* enableStabilization = */ true,
+                /* enableCrop = */ true
+        ).get(5, TimeUnit.SECONDS);
+        cleanup.add(preparedReader::close);
+        preparedReader.setPriority(MotionPhotoReader.PRIORITY_VISIBLE);
+        preparedReader.enableFrameCache(/* downscaleFactor = */ 4);
+        preparedReader.setLooping(true);
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            preparedReader.nextFrame();
+        }
+        assertFalse(preparedReader.isPlayingFromFrameCache());
+
+        // Frames are cached on the render thread, which has caught up once a frame is grabbed
+        preparedReader.grabFrame().get(5, TimeUnit.SECONDS);
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            preparedReader.nextFrame();
+            assertTrue(preparedReader.isPlayingFromFrameCache());
+        }
+        assertFalse(preparedReader.isSuspended());
+
+        // Seeks are served from the cache as well
+        preparedReader.seekTo(0L, MotionPhotoReader.SEEK_TO_EXACT);
+        assertTrue(preparedReader.isPlayingFromFrameCache());
+    }
+
+    @Test
+    public void setPlaybackMode_reverseWithFrameCache_playsWithoutDecoder() throws Exception {
+        MotionPhotoReader preparedReader = MotionPhotoReader.prepareAsync(
+                ResourceFetcher.fetchAssetFile(context, filename, "test_photo", ".jpg"),
+                /* enableStabilization = */ true,
+                /* enableCrop = */ true
+        ).get(5, TimeUnit.SECONDS);
+        cleanup.add(preparedReader::close);
+        preparedReader.setPriority(MotionPhotoReader.PRIORITY_VISIBLE);
+        preparedReader.enableFrameCache(/* downscaleFactor = */ 4);
+        preparedReader.setLooping(true);
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            preparedReader.nextFrame();
+        }
+        preparedReader.grabFrame().get(5, TimeUnit.SECONDS);
+
+        // The first frame of the second iteration comes from the cache
+        preparedReader.nextFrame();
+        assertTrue(preparedReader.isPlayingFromFrameCache());
+
+        // A whole reversed iteration and the start of the next one are played from the cache,
+        // without frame windows or a decoder
+        preparedReader.setPlaybackMode(MotionPhotoReader.PLAYBACK_REVERSE);
+        for (int i = 0; i < NUM_FRAMES + 2; i++) {
+            assertTrue("Reverse playback ended early", preparedReader.hasNextFrame());
+            preparedReader.nextFrame();
+            assertTrue(preparedReader.isPlayingFromFrameCache());
+        }
+
+        // Without looping, playback stops at the first frame
+        preparedReader.setLooping(false);
+        int frameCount = 0;
+        while (preparedReader.hasNextFrame()) {
+            preparedReader.nextFrame();
+            frameCount++;
+        }
+        assertEquals(NUM_FRAMES - 2, frameCount);
+        assertFalse(preparedReader.isSuspended());
+    }
+
+    @Test
+    public void setPlaybackMode_reverse_playsBackToFirstFrame() throws Exception {
+        MotionPhotoReader preparedReader = MotionPhotoReader.prepareAsync(
+                ResourceFetcher.fetchAssetFile(context, filename, "test_photo", ".jpg"),
+                /* enableStabilization = */ true,
+                /* enableCrop = */ true
+        ).get(5, TimeUnit.SECONDS);
+        cleanup.add(preparedReader::close);
+        preparedReader.setPriority(MotionPhotoReader.PRIORITY_VISIBLE);
+        while (preparedReader.hasNextFrame()) {
+            preparedReader.nextFrame();
+        }
+
+        // Every frame but the last one is played again, backwards
+        preparedReader.setPlaybackMode(MotionPhotoReader.PLAYBACK_REVERSE);
+        for (int i = 0; i < NUM_FRAMES - 1; i++) {
+            assertTrue("Reverse playback ended early", preparedReader.hasNextFrame());
+            preparedReader.nextFrame();
+        }
+        assertFalse(preparedReader.hasNextFrame());
+    }
+
+    @Test
+    public void setPlaybackMode_pingPong_turnsAroundAtLastFrame() throws Exception {
+        MotionPhotoReader preparedReader = MotionPhotoReader.prepareAsync(
+                ResourceFetcher.fetchAssetFile(context, filename, "test_photo", ".jpg"),
+                /* enableStabilization = */ true,
+                /* enableCrop = */ true
+        ).get(5, TimeUnit.SECONDS);
+        cleanup.add(preparedReader::close);
+        preparedReader.setPriority(MotionPhotoReader.PRIORITY_VISIBLE);
+        preparedReader.setPlaybackMode(MotionPhotoReader.PLAYBACK_PING_PONG);
+
+        int frameCount = 0;
+        while (preparedReader.hasNextFrame()) {
+            preparedReader.nextFrame();
+            frameCount++;
+        }
+        assertEquals(2 * NUM_FRAMES - 1, frameCount);
+    }
+
+    @Test
+    public void seekTo_duringPingPongReverse_continuesBackwardsFromTarget() throws Exception {
+        MotionPhotoReader preparedReader = MotionPhotoReader.prepareAsync(
+                ResourceFetcher.fetchAssetFile(context, filename, "test_photo", ".jpg"),
+                /* enableStabilization = */ true,
+                /* enableCrop = */ true
+        ).get(5, TimeUnit.SECONDS);
+        cleanup.add(preparedReader::close);
+        preparedReader.setPriority(MotionPhotoReader.PRIORITY_VISIBLE);
+        preparedReader.setPlaybackMode(MotionPhotoReader.PLAYBACK_PING_PONG);
+
+        // Play forwards to the last frame, then a few frames backwards from a frame window
+        for (int i = 0; i < NUM_FRAMES + 4; i++) {
+            preparedReader.nextFrame();
+        }
+
+        // The seek drops the frame windows, and playback goes on backwards from the target
+        int targetIndex = NUM_FRAMES / 2;
+        SampleIndex sampleIndex = preparedReader.getSampleIndex();
+        assertNotNull(sampleIndex);
+        preparedReader.seekTo(
+                sampleIndex.getTimestampUs(targetIndex),
+                MotionPhotoReader.SEEK_TO_EXACT
+        );
+        int frameCount = 0;
+        while (preparedReader.hasNextFrame()) {
+            preparedReader.nextFrame();
+            frameCount++;
+        }
+        assertEquals(targetIndex, frameCount);
+    }
+
     private static boolean assertGreaterOrEqual(int expected, int actual) {
         return actual >= expected;
     }
@@ -2,6 +2,7 @@ package com.google.android.libraries.motionphotoreader;
 
 import android.content.Context;
 import android.content.res.AssetManager;
+import android.graphics.SurfaceTexture;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.view.Surface;
@@ -22,7 +23,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 
 /**
  * Instrumented test for MotionPhotoReader class.
@@ -109,6 +112,52 @@ public class OutputSurfaceTest {
         cleanup.add(outputSurface::release);
     }
 
+    @Test
+    public void setSurface_resizeAndDetach_keepsDecodeSurface() throws InterruptedException {
+        OutputSurface outputSurface = new OutputSurface(renderHandler, motionPhotoInfo);
+        cleanup.add(outputSurface::release);
+        Surface decodeSurface = outputSurface.getDecodeSurface();
+        outputSurface.setSurface(surface, 1080, 1920);
+
+        // Resizing and detaching the display surface must not recreate the decode surface
+        outputSurface.setSurface(surface, 1920, 1080);
+        outputSurface.setSurface(/* surface = */ null, 0, 0);
+        outputSurface.setSurface(surface, 1080, 1920);
+        Thread.sleep(500);
+        assertSame(decodeSurface, outputSurface.getDecodeSurface());
+    }
+
+    @Test
+    public void addRenderTarget_drawsToEverySurface() {
+        OutputSurface outputSurface = new OutputSurface(renderHandler, motionPhotoInfo);
+        cleanup.add(outputSurface::release);
+        SurfaceTexture tileTexture = new SurfaceTexture(/* singleBufferMode = */ false);
+        tileTexture.setDefaultBufferSize(320, 240);
+        Surface tileSurface = new Surface(tileTexture);
+        cleanup.add(tileTexture::release);
+
+        outputSurface.setSurface(surface, 1080, 1920);
+        outputSurface.addRenderTarget(
+                tileSurface,
+                /* surfaceWidth = */ 320,
+                /* surfaceHeight = */ 240,
+                /* scaleFactor = */ 1.0f,
+                /* xTranslate = */ 0.0f,
+                /* yTranslate = */ 0.0f,
+                /* enableStabilization = */ false
+        );
+        assertEquals(2, outputSurface.getRenderTargetCount());
+
+        // Adding the same surface again only updates it
+        outputSurface.addRenderTarget(tileSurface, 160, 120, 1.0f, 0.0f, 0.0f, true);
+        assertEquals(2, outputSurface.getRenderTargetCount());
+
+        outputSurface.removeRenderTarget(tileSurface);
+        assertEquals(1, outputSurface.getRenderTargetCount());
+        outputSurface.setSurface(/* surface = */ null, 0, 0);
+        assertEquals(0, outputSurface.getRenderTargetCount());
+    }
+
     @Test
     public void getRenderSurface_isNotNull() throws InterruptedException {
         OutputSurface outputSurface = new OutputSurface(renderHandler, motionPhotoInfo);
@@ -0,0 +1,91 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.media.MediaExtractor;
+
+import static com.google.android.libraries.motionphotoreader.MotionPhotoReader.SEEK_TO_EXACT;
+
+/**
+ * Moves a reader through the frames of its frame cache (see MotionPhotoReader.enableFrameCache())
+ * while its decoder is released.
+ *
+ * No sample is read or decoded while frames are played from the cache. The extractor only keeps
+ * track of the position of the reader, so that decoding can resume from there if the cache is
+ * evicted, and so that the rest of the reader (e.g. hasNextFrame()) sees the same position as
+ * with a decoder. Exact seeks move the extractor to the target sample without decoding anything,
+ * so they cost no more than sync seeks. Frames are only played under the decoder lock of the
+ * reader.
+ */
+class CachedFramePlayback {
+
+    private final MediaExtractor extractor;
+    private final SampleIndex sampleIndex;
+
+    /**
+     * @param extractor The extractor of the reader, with the video track selected.
+     * @param sampleIndex The index of the samples of the video track.
+     */
+    CachedFramePlayback(MediaExtractor extractor, SampleIndex sampleIndex) {
+        this.extractor = extractor;
+        this.sampleIndex = sampleIndex;
+    }
+
+    /**
+     * Moves past the frame at the position of the extractor.
+     * @return the timestamp of the frame, or -1 if all frames have been played.
+     */
+    long nextFrame() {
+        long timestampUs = extractor.getSampleTime();
+        if (timestampUs >= 0) {
+            extractor.advance();
+        }
+        return timestampUs;
+    }
+
+    /**
+     * Moves to the frame on which a seek lands, and past it.
+     * @param seekTimestampUs The desired timestamp of the video.
+     * @param mode The sync mode of the extractor (e.g. MediaExtractor.SEEK_TO_PREVIOUS_SYNC), or
+     * SEEK_TO_EXACT for the last frame at or before the timestamp.
+     * @return the timestamp of the frame, or -1 if there is none.
+     */
+    long seekTo(long seekTimestampUs, int mode) {
+        if (mode == SEEK_TO_EXACT) {
+            int targetIndex = sampleIndex.getFrameIndex(seekTimestampUs);
+            if (targetIndex < 0) {
+                return -1L;
+            }
+            moveToFrame(targetIndex);
+        } else {
+            extractor.seekTo(seekTimestampUs, mode);
+        }
+        return nextFrame();
+    }
+
+    /**
+     * Moves to the frame after a presented one, from which forward playback goes on, or past the
+     * last frame if the presented frame is the last one.
+     * @param frameIndex The index of the presented frame.
+     */
+    void moveToFrameAfter(int frameIndex) {
+        moveToFrame(frameIndex + 1);
+    }
+
+    /**
+     * Positions the extractor on a sample, or past the last sample if the index is the sample
+     * count. The extractor can only seek to sync samples, so it is advanced from there.
+     */
+    private void moveToFrame(int index) {
+        int sampleCount = sampleIndex.getSampleCount();
+        long targetTimestampUs = index < sampleCount
+                ? sampleIndex.getTimestampUs(index)
+                : Long.MAX_VALUE;
+        extractor.seekTo(
+                sampleIndex.getTimestampUs(Math.min(index, sampleCount - 1)),
+                MediaExtractor.SEEK_TO_PREVIOUS_SYNC
+        );
+        while (extractor.getSampleTime() >= 0
+                && extractor.getSampleTime() < targetTimestampUs) {
+            extractor.advance();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A codec factory which keeps decoders alive after they are released, so that they can be reused
+ * by the next reader that plays a compatible video.
+ *
+ * Pooled decoders are keyed by MIME type and by the maximum resolution they have been configured
+ * for. A released decoder is stopped, which keeps the underlying codec component but drops its
+ * configuration, and the borrower then configures it again for its own video. This skips codec
+ * creation, which is one of the slowest steps before the first frame can be shown. Idle decoders
+ * are released once they have not been borrowed for a while.
+ */
+@RequiresApi(api = 23)
+class CodecPool implements DecoderBudgetManager.CodecFactory {
+
+    private static final String TAG = "CodecPool";
+
+    private final DecoderBudgetManager.CodecFactory codecFactory;
+    private final long idleTimeoutMs;
+
+    /** Idle decoders, from least to most recently released. */
+    private final List<PooledCodec> idleCodecs = new ArrayList<>();
+
+    /** The keys of the decoders which are currently borrowed. */
+    private final Map<MediaCodec, CodecKey> borrowedCodecs = new HashMap<>();
+
+    private ScheduledThreadPoolExecutor evictionExecutor;
+    private ScheduledFuture<?> evictionTask;
+
+    /**
+     * Creates a codec pool.
+     * @param codecFactory The factory which creates and destroys the actual decoders.
+     * @param idleTimeoutMs The time after which an idle decoder is released, in milliseconds.
+     */
+    CodecPool(DecoderBudgetManager.CodecFactory codecFactory, long idleTimeoutMs) {
+        this.codecFactory = codecFactory;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Borrows an idle decoder for the given format if a compatible one exists, otherwise creates a
+     * new decoder. The maximum resolution of the decoder is written to the format, so that the
+     * decoder can be reused for any video up to that resolution. The maximum resolution is square,
+     * so that a decoder can be reused for videos of either orientation.
+     *
+     * A reused decoder was stopped when it was released, which discards both its configuration and
+     * its asynchronous callback. The caller must therefore call setCallback() and then configure()
+     * on every decoder returned by this method, and not rely on the state set by a previous
+     * borrower.
+     */
+    @Override
+    public MediaCodec createDecoder(MediaFormat format) throws IOException {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+
+        MediaCodec codec = null;
+        CodecKey key;
+        synchronized (this) {
+            PooledCodec pooledCodec = findIdleCodec(mime, width, height);
+            if (pooledCodec != null) {
+                idleCodecs.remove(pooledCodec);
+                codec = pooledCodec.codec;
+                key = pooledCodec.key;
+            } else {
+                key = new CodecKey(mime, Math.max(width, height));
+            }
+        }
+
+        if (codec == null) {
+            codec = codecFactory.createDecoder(format);
+        }
+        format.setInteger(MediaFormat.KEY_MAX_WIDTH, key.maxSize);
+        format.setInteger(MediaFormat.KEY_MAX_HEIGHT, key.maxSize);
+        synchronized (this) {
+            borrowedCodecs.put(codec, key);
+        }
+        return codec;
+    }
+
+    /**
+     * Returns a decoder to the pool. The decoder is stopped so that it can be configured again by
+     * the next borrower. Decoders which cannot be stopped are destroyed instead.
+     */
+    @Override
+    public void releaseDecoder(MediaCodec codec) {
+        CodecKey key;
+        synchronized (this) {
+            key = borrowedCodecs.remove(codec);
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("Decoder was not borrowed from this pool");
+        }
+
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Unable to stop decoder, destroying it", e);
+            codecFactory.releaseDecoder(codec);
+            return;
+        }
+
+        synchronized (this) {
+            idleCodecs.add(new PooledCodec(codec, key, nowMs()));
+            scheduleEviction();
+        }
+    }
+
+    /**
+     * Destroys the least recently released idle decoders until at most the given number remain.
+     */
+    @Override
+    public void trimIdleDecoders(int maxIdleDecoders) {
+        List<MediaCodec> evictedCodecs = new ArrayList<>();
+        synchronized (this) {
+            while (idleCodecs.size() > Math.max(0, maxIdleDecoders)) {
+                evictedCodecs.add(idleCodecs.remove(0).codec);
+            }
+        }
+        for (MediaCodec codec : evictedCodecs) {
+            codecFactory.releaseDecoder(codec);
+        }
+    }
+
+    /**
+     * Returns the number of decoders waiting in the pool.
+     */
+    public synchronized int getIdleDecoderCount() {
+        return idleCodecs.size();
+    }
+
+    /**
+     * Destroys the decoders which have been idle for longer than the idle timeout.
+     * @param nowMs The current time, in milliseconds.
+     */
+    @VisibleForTesting
+    void evictIdleDecoders(long nowMs) {
+        List<MediaCodec> evictedCodecs = new ArrayList<>();
+        synchronized (this) {
+            Iterator<PooledCodec> iterator = idleCodecs.iterator();
+            while (iterator.hasNext()) {
+                PooledCodec pooledCodec = iterator.next();
+                if (nowMs - pooledCodec.releaseTimeMs >= idleTimeoutMs) {
+                    evictedCodecs.add(pooledCodec.codec);
+                    iterator.remove();
+                }
+            }
+            evictionTask = null;
+            scheduleEviction();
+        }
+        for (MediaCodec codec : evictedCodecs) {
+            codecFactory.releaseDecoder(codec);
+        }
+    }
+
+    /**
+     * Finds the idle decoder with the smallest maximum resolution that can decode a video with the
+     * given MIME type and resolution.
+     */
+    @Nullable
+    private PooledCodec findIdleCodec(String mime, int width, int height) {
+        PooledCodec bestCodec = null;
+        for (PooledCodec pooledCodec : idleCodecs) {
+            CodecKey key = pooledCodec.key;
+            if (key.canDecode(mime, width, height)
+                    && (bestCodec == null || key.area() < bestCodec.key.area())) {
+                bestCodec = pooledCodec;
+            }
+        }
+        return bestCodec;
+    }
+
+    /**
+     * Schedules the eviction of the oldest idle decoder, if there is one and no eviction is
+     * scheduled yet. Must be called with the pool lock held.
+     */
+    private void scheduleEviction() {
+        if (evictionTask != null || idleCodecs.isEmpty()) {
+            return;
+        }
+        if (evictionExecutor == null) {
+            evictionExecutor = new ScheduledThreadPoolExecutor(/* corePoolSize = */ 1, runnable -> {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        long delayMs = Math.max(0L, idleCodecs.get(0).releaseTimeMs + idleTimeoutMs - nowMs());
+        evictionTask = evictionExecutor.schedule(
+                () -> evictIdleDecoders(nowMs()),
+                delayMs,
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    private static long nowMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Identifies the decoders that can be shared: decoders of the same MIME type which have been
+     * configured for at least the required resolution. Decoders are configured with the same
+     * maximum width and height (the larger dimension of the video), since the same photo may be
+     * stored in landscape or portrait.
+     */
+    private static class CodecKey {
+        final String mime;
+        final int maxSize;
+
+        CodecKey(String mime, int maxSize) {
+            this.mime = mime;
+            this.maxSize = maxSize;
+        }
+
+        boolean canDecode(String mime, int width, int height) {
+            return this.mime.equals(mime) && Math.max(width, height) <= maxSize;
+        }
+
+        long area() {
+            return (long) maxSize * maxSize;
+        }
+    }
+
+    /**
+     * An idle decoder along with the time at which it was returned to the pool.
+     */
+    private static class PooledCodec {
+        final MediaCodec codec;
+        final CodecKey key;
+        final long releaseTimeMs;
+
+        PooledCodec(MediaCodec codec, CodecKey key, long releaseTimeMs) {
+            this.codec = codec;
+            this.key = key;
+            this.releaseTimeMs = releaseTimeMs;
+        }
+    }
+}
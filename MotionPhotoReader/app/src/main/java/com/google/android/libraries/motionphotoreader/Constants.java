@@ -10,6 +10,12 @@ class Constants {
      */
     public static final long TIMEOUT_MS = 1000L;
 
+    /**
+     * Time after which a decoded frame which has not reached the decode surface is skipped, in
+     * milliseconds (see OutputSurface.awaitNewImage()).
+     */
+    public static final long IMAGE_TIMEOUT_MS = 500L;
+
     /**
      * Conversion factor from microseconds to nanoseconds.
      */
@@ -21,6 +27,58 @@ class Constants {
      */
     public static final long FALLBACK_FRAME_DELTA_NS = 1_000_000_000L / 30;
 
+    /**
+     * Frames which are later than this are not dropped even if late frames should be dropped
+     * (see FramePacer): playback starts over from the current time instead, e.g. after it was
+     * paused.
+     */
+    public static final long MAX_DROPPED_FRAME_LATENESS_NS = 250_000_000L;
+
+    /**
+     * Default maximum number of video decoders that may exist at the same time across all motion
+     * photo readers (see DecoderBudgetManager).
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_DECODERS = 8;
+
+    /**
+     * Time after which a released decoder kept for reuse by the CodecPool is destroyed, in
+     * milliseconds.
+     */
+    public static final long CODEC_POOL_IDLE_TIMEOUT_MS = 10_000L;
+
+    /**
+     * Default amount of memory that the decoded frame caches of all motion photo readers may use
+     * together, in bytes (see FrameCacheBudget).
+     */
+    public static final long DEFAULT_FRAME_CACHE_BUDGET_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Amount of memory that each of the two frame windows of reverse playback may use, in bytes.
+     * This bounds the number of full-size frames which are decoded ahead of the displayed one.
+     */
+    public static final long FRAME_WINDOW_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * Default amount of memory used by the posters cached by the PosterLoader, in bytes.
+     */
+    public static final long DEFAULT_POSTER_CACHE_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * Amount of memory used by the released posters which the PosterLoader keeps for reuse, in
+     * bytes.
+     */
+    public static final long POSTER_POOL_BYTES = 8L * 1024 * 1024;
+
+    /**
+     * Default width and height of the tiles decoded by the StillTileDecoder, in pixels.
+     */
+    public static final int DEFAULT_STILL_TILE_SIZE = 512;
+
+    /**
+     * Default amount of memory used by the tiles cached by a StillTileDecoder, in bytes.
+     */
+    public static final long DEFAULT_TILE_CACHE_BYTES = 32L * 1024 * 1024;
+
     /**
      * The number of strips that each frame is divided into for stabilization. A separate
      * stabilization homography is applied to each strip. The default number of strips is 12, but
@@ -28,6 +86,12 @@ class Constants {
      */
     public static final int NUM_OF_STRIPS = 12;
 
+    /**
+     * Default distance, in video pixels, by which the corners of a strip may move when adjacent
+     * strips with nearly identical homographies are merged and drawn as one region.
+     */
+    public static final float DEFAULT_STRIP_MERGE_TOLERANCE_PIXELS = 0.5f;
+
     /**
      * Float array for the identity matrix.
      */
@@ -72,8 +136,11 @@ class Constants {
      * Offsets and constants for OpenGL rendering.
      */
     public static final int FLOAT_SIZE_BYTES = 4;
+    public static final int STRIP_VERTEX_SIZE = 4;
+    public static final int VERTICES_PER_STRIP = 6;
     public static final int TRIANGLE_VERTICES_DATA_POS_OFFSET = 0;
-    public static final int TRIANGLE_VERTICES_DATA_STRIDE_BYTES = 3 * FLOAT_SIZE_BYTES;
+    public static final int TRIANGLE_VERTICES_DATA_STRIDE_BYTES =
+            STRIP_VERTEX_SIZE * FLOAT_SIZE_BYTES;
 
     /**
      * Strings demarcating start and end of XMP metadata tag.
@@ -0,0 +1,208 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.graphics.Rect;
+import android.media.Image;
+
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A decoded video frame in 8-bit planar YUV 4:2:0 (I420), handed out by a MotionPhotoReader opened
+ * with openForFrames().
+ *
+ * Frames come from a fixed pool which is allocated when the reader is opened, so decoding does not
+ * allocate any memory. Each frame must be released once it is no longer needed, after which its
+ * buffers are reused for a later frame and must not be accessed anymore. The reader waits for a
+ * frame to be released when all frames of the pool are in use.
+ *
+ * The planes are tightly packed: the row stride of the Y plane is the width of the frame, the row
+ * stride of the U and V planes is half of it (rounded up), and the pixel stride of every plane
+ * is 1.
+ */
+@RequiresApi(api = 28)
+public class DecodedFrame {
+
+    /** Indices of the planes of a frame. */
+    public static final int PLANE_Y = 0;
+    public static final int PLANE_U = 1;
+    public static final int PLANE_V = 2;
+
+    private final FramePool pool;
+    private final int width;
+    private final int height;
+    private final ByteBuffer[] planes = new ByteBuffer[3];
+    private final int[] rowStrides = new int[3];
+    private final float[] stripMatrices = new float[StabilizationTimeline.FRAME_DATA_SIZE];
+    private long timestampUs;
+    private boolean inUse;
+
+    DecodedFrame(FramePool pool, int width, int height) {
+        this.pool = pool;
+        this.width = width;
+        this.height = height;
+
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        rowStrides[PLANE_Y] = width;
+        rowStrides[PLANE_U] = chromaWidth;
+        rowStrides[PLANE_V] = chromaWidth;
+
+        // Allocate all planes in one buffer, in I420 order
+        ByteBuffer data = ByteBuffer
+                .allocateDirect(width * height + 2 * chromaWidth * chromaHeight)
+                .order(ByteOrder.nativeOrder());
+        int offset = 0;
+        for (int plane = PLANE_Y; plane <= PLANE_V; plane++) {
+            int planeSize = rowStrides[plane] * (plane == PLANE_Y ? height : chromaHeight);
+            data.limit(offset + planeSize).position(offset);
+            planes[plane] = data.slice();
+            offset += planeSize;
+        }
+    }
+
+    /**
+     * Returns the width of the frame, in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the frame, in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the presentation timestamp of the frame, in microseconds.
+     */
+    public long getTimestampUs() {
+        return timestampUs;
+    }
+
+    /**
+     * Returns the data of one plane of the frame. The buffer is shared with later frames once this
+     * frame has been released, and its position and limit may be changed freely until then.
+     * @param plane PLANE_Y, PLANE_U or PLANE_V.
+     */
+    public ByteBuffer getPlane(int plane) {
+        return planes[plane];
+    }
+
+    /**
+     * Returns the distance between the starts of two consecutive rows of a plane, in bytes.
+     * @param plane PLANE_Y, PLANE_U or PLANE_V.
+     */
+    public int getRowStride(int plane) {
+        return rowStrides[plane];
+    }
+
+    /**
+     * Returns the distance between two consecutive pixels of a row of a plane, in bytes. This is
+     * always 1, since the planes are not interleaved.
+     * @param plane PLANE_Y, PLANE_U or PLANE_V.
+     */
+    public int getPixelStride(int plane) {
+        return 1;
+    }
+
+    /**
+     * Returns the stabilization transform of the frame: the inverse stabilization homography of
+     * each strip of the frame, in the OpenGL frame coordinate system ([-1, 1] x [-1, 1], with the
+     * y-axis pointing up) and in column-major order. Strip 0 is at the bottom of the frame. The
+     * identity is returned for every strip if the video is not stabilized.
+     */
+    public float[] getStripMatrices() {
+        return stripMatrices;
+    }
+
+    /**
+     * Returns the frame to its pool, so that its buffers can be reused for a later frame.
+     * @throws IllegalStateException if the frame has already been released.
+     */
+    public void release() {
+        pool.release(this);
+    }
+
+    /**
+     * Marks the frame as in use or available. Called by the pool only.
+     * @return false if the frame was already in the requested state.
+     */
+    synchronized boolean setInUse(boolean inUse) {
+        if (this.inUse == inUse) {
+            return false;
+        }
+        this.inUse = inUse;
+        return true;
+    }
+
+    /**
+     * Copies a decoded image into this frame, converting it to tightly packed planes.
+     * @param image The decoded image, in a YUV 4:2:0 format.
+     * @param timestampUs The presentation timestamp of the image, in microseconds.
+     * @param stripMatrices The stabilization data of the image (see StabilizationTimeline).
+     */
+    void set(Image image, long timestampUs, float[] stripMatrices) {
+        Rect cropRect = image.getCropRect();
+        Image.Plane[] imagePlanes = image.getPlanes();
+        for (int plane = PLANE_Y; plane <= PLANE_V; plane++) {
+            int subsampling = plane == PLANE_Y ? 1 : 2;
+            copyPlane(
+                    imagePlanes[plane].getBuffer(),
+                    imagePlanes[plane].getRowStride(),
+                    imagePlanes[plane].getPixelStride(),
+                    cropRect.left / subsampling,
+                    cropRect.top / subsampling,
+                    plane
+            );
+        }
+        set(timestampUs, stripMatrices);
+    }
+
+    /**
+     * Sets the timestamp and the stabilization data of the frame.
+     */
+    void set(long timestampUs, float[] stripMatrices) {
+        this.timestampUs = timestampUs;
+        System.arraycopy(stripMatrices, 0, this.stripMatrices, 0, this.stripMatrices.length);
+    }
+
+    /**
+     * Copies a plane of an image into a plane of this frame, starting at the given pixel of the
+     * image plane.
+     * @param src The data of the image plane.
+     * @param srcRowStride The row stride of the image plane, in bytes.
+     * @param srcPixelStride The pixel stride of the image plane, in bytes.
+     * @param left The first column to copy.
+     * @param top The first row to copy.
+     * @param plane The plane of this frame to copy into.
+     */
+    void copyPlane(ByteBuffer src, int srcRowStride, int srcPixelStride, int left, int top,
+                   int plane) {
+        ByteBuffer dst = planes[plane];
+        int dstRowStride = rowStrides[plane];
+        int rows = dst.capacity() / dstRowStride;
+        int srcPosition = src.position();
+        int srcLimit = src.limit();
+        dst.clear();
+        for (int row = 0; row < rows; row++) {
+            int srcOffset = srcPosition + (top + row) * srcRowStride + left * srcPixelStride;
+            if (srcPixelStride == 1) {
+                // Copy the whole row at once
+                src.limit(srcOffset + dstRowStride);
+                src.position(srcOffset);
+                dst.put(src);
+            } else {
+                for (int column = 0; column < dstRowStride; column++) {
+                    dst.put(src.get(srcOffset + column * srcPixelStride));
+                }
+            }
+        }
+        src.limit(srcLimit);
+        src.position(srcPosition);
+        dst.clear();
+    }
+}
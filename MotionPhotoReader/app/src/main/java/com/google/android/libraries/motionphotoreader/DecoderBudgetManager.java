@@ -0,0 +1,393 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.android.libraries.motionphotoreader.Constants.CODEC_POOL_IDLE_TIMEOUT_MS;
+import static com.google.android.libraries.motionphotoreader.Constants.DEFAULT_MAX_CONCURRENT_DECODERS;
+
+/**
+ * Keeps track of the video decoders used by all motion photo readers in the process, and caps the
+ * number of decoders that exist at the same time.
+ *
+ * Every reader is a client of the manager with a priority (off-screen, visible or focused). When
+ * the budget is exhausted and a client asks for a decoder, the manager revokes the decoder of the
+ * lowest priority client whose priority is strictly lower than that of the requesting client. The
+ * revoked client is suspended, and it is told when a decoder becomes available again. If no
+ * client can be preempted, the requesting client waits in the same way.
+ *
+ * A revoked decoder keeps counting against the budget until its client has released it, since
+ * the client may be using it when it is revoked. The freed slot is then reserved for the highest
+ * priority waiting client, which is told to call acquire() again.
+ *
+ * Client callbacks are never invoked while the manager's lock is held.
+ */
+@RequiresApi(api = 23)
+class DecoderBudgetManager {
+
+    private static final String TAG = "DecoderBudgetManager";
+
+    /** Client priorities, from lowest to highest. */
+    public static final int PRIORITY_OFFSCREEN = 0;
+    public static final int PRIORITY_VISIBLE = 1;
+    public static final int PRIORITY_FOCUSED = 2;
+
+    /**
+     * A user of decoders, typically a motion photo reader.
+     */
+    interface Client {
+        /**
+         * Returns the current priority of the client.
+         */
+        int getPriority();
+
+        /**
+         * Called when the decoder held by this client is given to a higher priority client. The
+         * client must stop using its decoder and hand it back with release() as soon as possible.
+         */
+        void onDecoderRevoked();
+
+        /**
+         * Called when a waiting client can obtain a decoder by calling acquire() again.
+         */
+        void onDecoderAvailable();
+    }
+
+    /**
+     * Creates and destroys decoders. Replaced by a fake in tests.
+     */
+    interface CodecFactory {
+        MediaCodec createDecoder(MediaFormat format) throws IOException;
+
+        void releaseDecoder(MediaCodec codec);
+
+        /**
+         * Destroys idle decoders kept alive by the factory (if any) until at most the given
+         * number remain, so that idle decoders do not push the total over the budget.
+         */
+        void trimIdleDecoders(int maxIdleDecoders);
+    }
+
+    private static DecoderBudgetManager instance;
+
+    private final CodecFactory codecFactory;
+    private int maxDecoders;
+
+    /** Clients holding (or about to receive) a decoder, from oldest to newest grant. */
+    private final List<Client> holders = new ArrayList<>();
+
+    /** Clients whose decoder was revoked, but which have not released it yet. */
+    private final Set<Client> revokedHolders = new LinkedHashSet<>();
+
+    /** Waiting clients for which a slot of the budget is kept until they call acquire(). */
+    private final Set<Client> reservations = new LinkedHashSet<>();
+
+    /**
+     * The client on behalf of which each revoked holder was preempted. A client waits for its
+     * victim to release its decoder rather than preempting another holder.
+     */
+    private final Map<Client, Client> preemptorsByVictim = new HashMap<>();
+
+    /** Clients waiting for a decoder, in the order in which they started waiting. */
+    private final Set<Client> waiters = new LinkedHashSet<>();
+
+    @VisibleForTesting
+    DecoderBudgetManager(int maxDecoders, CodecFactory codecFactory) {
+        if (maxDecoders <= 0) {
+            throw new IllegalArgumentException("Decoder budget must be positive");
+        }
+        this.maxDecoders = maxDecoders;
+        this.codecFactory = codecFactory;
+    }
+
+    /**
+     * Returns the process-wide decoder budget manager. Released decoders are kept in a CodecPool
+     * so that they can be reused by the next reader.
+     */
+    public static synchronized DecoderBudgetManager getInstance() {
+        if (instance == null) {
+            CodecFactory codecFactory = new CodecFactory() {
+                @Override
+                public MediaCodec createDecoder(MediaFormat format) throws IOException {
+                    return MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+                }
+
+                @Override
+                public void releaseDecoder(MediaCodec codec) {
+                    codec.release();
+                }
+
+                @Override
+                public void trimIdleDecoders(int maxIdleDecoders) {
+                    // Decoders are destroyed as soon as they are released
+                }
+            };
+            instance = new DecoderBudgetManager(
+                    DEFAULT_MAX_CONCURRENT_DECODERS,
+                    new CodecPool(codecFactory, CODEC_POOL_IDLE_TIMEOUT_MS)
+            );
+        }
+        return instance;
+    }
+
+    /**
+     * Sets the maximum number of decoders that can exist at the same time. If the new budget is
+     * lower than the number of decoders in use, the lowest priority decoders are revoked.
+     */
+    public void setMaxDecoders(int maxDecoders) {
+        if (maxDecoders <= 0) {
+            throw new IllegalArgumentException("Decoder budget must be positive");
+        }
+        List<Client> victims = new ArrayList<>();
+        synchronized (this) {
+            this.maxDecoders = maxDecoders;
+            // Revoked decoders are on their way out, so only the others are counted
+            while (holders.size() + reservations.size() > maxDecoders && !holders.isEmpty()) {
+                Client victim = findLowestPriorityHolder(Integer.MAX_VALUE);
+                revokeLocked(victim, /* preemptor = */ null);
+                victims.add(victim);
+            }
+        }
+        for (Client victim : victims) {
+            victim.onDecoderRevoked();
+        }
+        trimIdleDecoders();
+        notifyNextWaiter();
+    }
+
+    /**
+     * Creates a decoder for a client, preempting a lower priority client if the budget is
+     * exhausted.
+     * @param client The client requesting the decoder.
+     * @param format The format of the video track to decode.
+     * @return a decoder for the given format, or null if the budget is exhausted. In the latter
+     * case, onDecoderAvailable() will be called on the client once it may try again. This is also
+     * the case when a lower priority client was preempted, until that client has released its
+     * decoder.
+     * @throws IOException if the decoder cannot be created.
+     */
+    @Nullable
+    public MediaCodec acquire(Client client, MediaFormat format) throws IOException {
+        Client victim = null;
+        synchronized (this) {
+            if (holders.contains(client) || revokedHolders.contains(client)) {
+                throw new IllegalStateException("Client already holds a decoder");
+            }
+            if (!grantLocked(client)) {
+                waiters.add(client);
+                if (preemptorsByVictim.containsValue(client)) {
+                    return null;
+                }
+                victim = findLowestPriorityHolder(client.getPriority());
+                if (victim == null) {
+                    return null;
+                }
+                revokeLocked(victim, client);
+            }
+        }
+
+        if (victim != null) {
+            victim.onDecoderRevoked();
+            // The victim may have released its decoder right away
+            notifyNextWaiter();
+            synchronized (this) {
+                if (!grantLocked(client)) {
+                    return null;
+                }
+            }
+        }
+
+        // Make room for the new decoder in case the factory has to create one
+        trimIdleDecoders();
+        try {
+            return codecFactory.createDecoder(format);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                holders.remove(client);
+            }
+            notifyNextWaiter();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands back a decoder previously handed out by acquire(). A client must call this both when
+     * it is done with its decoder and when its decoder was revoked.
+     * @param client The client which acquired the decoder.
+     * @param codec The decoder to release.
+     */
+    public void release(Client client, MediaCodec codec) {
+        codecFactory.releaseDecoder(codec);
+        synchronized (this) {
+            holders.remove(client);
+            revokedHolders.remove(client);
+            preemptorsByVictim.remove(client);
+        }
+        trimIdleDecoders();
+        notifyNextWaiter();
+    }
+
+    /**
+     * Removes a client which no longer holds a decoder and will not ask for one again.
+     */
+    public void unregister(Client client) {
+        synchronized (this) {
+            waiters.remove(client);
+            holders.remove(client);
+            revokedHolders.remove(client);
+            reservations.remove(client);
+            preemptorsByVictim.remove(client);
+            removePreemptor(client);
+        }
+        notifyNextWaiter();
+    }
+
+    /**
+     * Stops a client from waiting for a decoder, e.g. when it does not need one anymore. A slot
+     * reserved for the client goes to the next waiting client.
+     */
+    public void cancelWait(Client client) {
+        synchronized (this) {
+            waiters.remove(client);
+            reservations.remove(client);
+            removePreemptor(client);
+        }
+        notifyNextWaiter();
+    }
+
+    /**
+     * Must be called whenever the priority of a client changes, so that waiting clients which now
+     * outrank a decoder holder can preempt it.
+     */
+    public void onPriorityChanged(Client client) {
+        notifyNextWaiter();
+    }
+
+    /**
+     * Returns the number of decoders currently handed out, including revoked decoders which have
+     * not been released yet.
+     */
+    public synchronized int getDecoderCount() {
+        return holders.size() + revokedHolders.size();
+    }
+
+    /**
+     * Returns the number of slots of the budget which are in use: decoders handed out (revoked or
+     * not), and slots reserved for waiting clients.
+     */
+    private int getUsedSlotsLocked() {
+        return holders.size() + revokedHolders.size() + reservations.size();
+    }
+
+    /**
+     * Gives a slot of the budget to a client, if one is reserved for it or if one is free. The
+     * slot is taken before the decoder is created outside of the lock.
+     * @return true if the client got a slot.
+     */
+    private boolean grantLocked(Client client) {
+        if (!reservations.remove(client) && getUsedSlotsLocked() >= maxDecoders) {
+            return false;
+        }
+        waiters.remove(client);
+        holders.add(client);
+        removePreemptor(client);
+        return true;
+    }
+
+    /**
+     * Forgets the preemptions made for a client, which does not wait for a decoder anymore. This
+     * must be called with the lock held.
+     */
+    private void removePreemptor(Client client) {
+        Iterator<Map.Entry<Client, Client>> iterator = preemptorsByVictim.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue() == client) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Takes the decoder of a holder back. Its slot stays in use until the holder releases it.
+     * @param preemptor The client which the decoder is taken back for, or null if the budget was
+     * lowered.
+     */
+    private void revokeLocked(Client victim, @Nullable Client preemptor) {
+        holders.remove(victim);
+        revokedHolders.add(victim);
+        waiters.add(victim);
+        if (preemptor != null) {
+            preemptorsByVictim.put(victim, preemptor);
+        }
+    }
+
+    /**
+     * Keeps the number of handed out decoders plus the number of idle decoders kept alive by the
+     * codec factory within the budget.
+     */
+    private void trimIdleDecoders() {
+        int maxIdleDecoders;
+        synchronized (this) {
+            maxIdleDecoders = Math.max(0, maxDecoders - getUsedSlotsLocked());
+        }
+        codecFactory.trimIdleDecoders(maxIdleDecoders);
+    }
+
+    /**
+     * Tells the highest priority waiting client that it can get a decoder, if it can: either
+     * because a slot of the budget is free, in which case the slot is reserved for it, or because
+     * it outranks one of the current holders.
+     */
+    private void notifyNextWaiter() {
+        Client next = null;
+        synchronized (this) {
+            for (Client waiter : waiters) {
+                if (!reservations.contains(waiter)
+                        && (next == null || waiter.getPriority() > next.getPriority())) {
+                    next = waiter;
+                }
+            }
+            if (next != null && getUsedSlotsLocked() < maxDecoders) {
+                reservations.add(next);
+            } else if (next != null
+                    && (preemptorsByVictim.containsValue(next)
+                            || findLowestPriorityHolder(next.getPriority()) == null)) {
+                next = null;
+            }
+        }
+        if (next != null) {
+            next.onDecoderAvailable();
+        }
+    }
+
+    /**
+     * Finds the oldest holder with the lowest priority among the holders whose priority is
+     * strictly lower than the given priority.
+     * @return the holder to preempt, or null if there is no such holder.
+     */
+    @Nullable
+    private Client findLowestPriorityHolder(int priority) {
+        Client lowest = null;
+        for (Client holder : holders) {
+            int holderPriority = holder.getPriority();
+            if (holderPriority < priority
+                    && (lowest == null || holderPriority < lowest.getPriority())) {
+                lowest = holder;
+            }
+        }
+        return lowest;
+    }
+}
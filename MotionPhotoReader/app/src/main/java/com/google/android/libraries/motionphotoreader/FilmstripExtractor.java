@@ -0,0 +1,238 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.graphics.Bitmap;
+import android.media.MediaExtractor;
+
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
+
+import com.adobe.internal.xmp.XMPException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Extracts evenly spaced frames of a motion photo video, for timeline strips and grid previews.
+ *
+ * Only sync frames are decoded. Each requested position is served by the sync frame closest to it,
+ * which is looked up in the sample index of the video (see SampleIndex). The sync frames are
+ * visited in increasing order, and each one is reached with a seek straight to it (which flushes
+ * the decoder), so that it is decoded on its own and none of the frames between sync frames are
+ * decoded. A sync frame which serves several positions is decoded once. This is much faster than
+ * an exact seek to each position, which decodes all the frames between the previous sync frame and
+ * the position, at the cost of frames which may be up to half the interval between sync frames
+ * away from the requested positions.
+ *
+ * Frames are handed out as upright bitmaps, optionally downscaled. The motion track is only read
+ * if stabilization is requested, in which case each frame is stabilized on the CPU (see
+ * StabilizedFrameWarper).
+ */
+@RequiresApi(api = 28)
+public class FilmstripExtractor {
+
+    /**
+     * Receives the extracted frames.
+     */
+    public interface Callback {
+        /**
+         * Called for each requested position, in order, on the thread which called extract().
+         * @param index The index of the position, from 0 to frameCount - 1.
+         * @param timestampUs The timestamp of the frame, in microseconds.
+         * @param bitmap The frame. Consecutive positions which are served by the same sync frame
+         * get the same bitmap.
+         */
+        void onFrameExtracted(int index, long timestampUs, Bitmap bitmap);
+    }
+
+    private final int downscale;
+    private final int rotation;
+    private final boolean isWarped;
+    private final YuvConverter yuvConverter = new YuvConverter();
+
+    /** Buffers which are allocated for the first frame and reused for the others. */
+    private StabilizedFrameWarper warper;
+    private ByteBuffer convertedFrame;
+    private byte[] warpedFrame;
+
+    /** The last decoded frame, which is set by the frame callback of the reader. */
+    private Bitmap lastBitmap;
+    private long lastTimestampUs;
+
+    private FilmstripExtractor(int downscale, int rotation, boolean enableStabilization) {
+        this.downscale = downscale;
+        this.rotation = rotation;
+        this.isWarped = enableStabilization || rotation % 360 != 0;
+    }
+
+    /**
+     * Extracts frames at evenly spaced positions of a motion photo video: the middle of each of
+     * frameCount intervals of equal length. This blocks until all frames have been passed to the
+     * callback, so it should not be called on the UI thread. Positions whose frame cannot be
+     * decoded (e.g. while no decoder is available, see DecoderBudgetManager) are skipped.
+     * @param file The motion photo file.
+     * @param frameCount The number of positions.
+     * @param downscale The factor by which the frames are downscaled in each dimension: 1, 2, 4
+     * or 8.
+     * @param enableStabilization If true, the frames are stabilized. Otherwise, the stabilization
+     * data of the motion photo is not read at all.
+     * @param callback The callback which receives the frames.
+     * @throws IllegalArgumentException if the frame count is not positive, or if the downscale
+     * factor is not supported.
+     * @throws IOException when the file cannot be found.
+     * @throws XMPException when parsing invalid XML syntax.
+     */
+    public static void extract(File file,
+                               int frameCount,
+                               int downscale,
+                               boolean enableStabilization,
+                               Callback callback)
+            throws IOException, XMPException {
+        if (frameCount <= 0) {
+            throw new IllegalArgumentException("Invalid frame count: " + frameCount);
+        }
+        // Checks the downscale factor
+        YuvConverter.getOutputSize(/* size = */ 1, downscale);
+
+        MotionPhotoInfo motionPhotoInfo = MotionPhotoInfo.newInstance(file);
+        FilmstripExtractor filmstripExtractor = new FilmstripExtractor(
+                downscale,
+                motionPhotoInfo.getRotation(),
+                enableStabilization
+        );
+        MotionPhotoReader reader = MotionPhotoReader.openForFrames(
+                file,
+                enableStabilization,
+                /* framePoolSize = */ 1,
+                filmstripExtractor::onFrameDecoded
+        );
+        try {
+            filmstripExtractor.extractFrames(
+                    reader,
+                    motionPhotoInfo.getDurationUs(),
+                    frameCount,
+                    callback
+            );
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns the positions of the frames of a filmstrip: the middle of each of frameCount
+     * intervals of equal length.
+     * @param durationUs The duration of the video, in microseconds.
+     * @param frameCount The number of positions.
+     * @return the positions, in increasing order, in microseconds.
+     */
+    @VisibleForTesting
+    static long[] getTargetTimestampsUs(long durationUs, int frameCount) {
+        long[] timestampsUs = new long[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            timestampsUs[i] = durationUs * (2 * i + 1) / (2 * frameCount);
+        }
+        return timestampsUs;
+    }
+
+    /**
+     * Returns the sync frame which serves each position of a filmstrip: the sync sample closest to
+     * it. Positions are in increasing order, so the sync frames are too, and the positions which
+     * are served by the same sync frame are consecutive.
+     * @param sampleIndex The sample index of the video.
+     * @param targetTimestampsUs The positions, in increasing order, in microseconds.
+     * @return the index of the sync sample of each position, or -1 for all positions if the video
+     * has no sync sample.
+     */
+    @VisibleForTesting
+    static int[] getSyncIndices(SampleIndex sampleIndex, long[] targetTimestampsUs) {
+        int[] syncIndices = new int[targetTimestampsUs.length];
+        for (int i = 0; i < targetTimestampsUs.length; i++) {
+            syncIndices[i] = sampleIndex.getNearestSyncIndex(targetTimestampsUs[i]);
+        }
+        return syncIndices;
+    }
+
+    private void extractFrames(MotionPhotoReader reader,
+                               long durationUs,
+                               int frameCount,
+                               Callback callback) {
+        SampleIndex sampleIndex = reader.getSampleIndex();
+        if (sampleIndex != null) {
+            durationUs = sampleIndex.getDurationUs();
+        }
+        long[] targetTimestampsUs = getTargetTimestampsUs(durationUs, frameCount);
+        int[] syncIndices = sampleIndex == null
+                ? null
+                : getSyncIndices(sampleIndex, targetTimestampsUs);
+
+        long seekTimestampUs = -1L;
+        for (int i = 0; i < frameCount; i++) {
+            // Without a sample index, the extractor finds the closest sync frame itself, but a
+            // sync frame which serves several positions is then decoded for each of them
+            int syncIndex = syncIndices == null ? -1 : syncIndices[i];
+            long nextSeekTimestampUs = syncIndex < 0
+                    ? targetTimestampsUs[i]
+                    : sampleIndex.getTimestampUs(syncIndex);
+            if (lastBitmap == null || nextSeekTimestampUs != seekTimestampUs) {
+                seekTimestampUs = nextSeekTimestampUs;
+                lastBitmap = null;
+                reader.seekTo(
+                        seekTimestampUs,
+                        syncIndex < 0
+                                ? MediaExtractor.SEEK_TO_CLOSEST_SYNC
+                                : MediaExtractor.SEEK_TO_PREVIOUS_SYNC
+                );
+            }
+            if (lastBitmap != null) {
+                callback.onFrameExtracted(i, lastTimestampUs, lastBitmap);
+            }
+        }
+    }
+
+    /**
+     * Converts a decoded frame to a bitmap, downscaled, and rotated and stabilized if needed. This
+     * runs on the thread which seeks the reader.
+     */
+    private void onFrameDecoded(DecodedFrame frame) {
+        try {
+            int width = YuvConverter.getOutputSize(frame.getWidth(), downscale);
+            int height = YuvConverter.getOutputSize(frame.getHeight(), downscale);
+            if (warper == null) {
+                warper = new StabilizedFrameWarper(
+                        width,
+                        height,
+                        rotation,
+                        ForkJoinPool.commonPool()
+                );
+                convertedFrame = ByteBuffer.allocate(4 * width * height);
+                warpedFrame = isWarped ? new byte[4 * width * height] : null;
+            }
+            yuvConverter.convert(frame, convertedFrame, downscale);
+
+            ByteBuffer pixels = convertedFrame;
+            int outputWidth = width;
+            int outputHeight = height;
+            if (isWarped) {
+                outputWidth = warper.getOutputWidth();
+                outputHeight = warper.getOutputHeight();
+                warper.warp(
+                        StabilizedFrameWarper.FORMAT_RGBA_8888,
+                        convertedFrame.array(),
+                        frame.getStripMatrices(),
+                        warpedFrame,
+                        outputWidth,
+                        outputHeight
+                );
+                pixels = ByteBuffer.wrap(warpedFrame);
+            }
+            Bitmap bitmap = Bitmap.createBitmap(outputWidth, outputHeight, Bitmap.Config.ARGB_8888);
+            bitmap.copyPixelsFromBuffer(pixels);
+            pixels.rewind();
+            lastBitmap = bitmap;
+            lastTimestampUs = frame.getTimestampUs();
+        } finally {
+            frame.release();
+        }
+    }
+}
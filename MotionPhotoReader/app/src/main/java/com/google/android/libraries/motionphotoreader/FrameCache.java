@@ -0,0 +1,266 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.opengl.Matrix;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.Arrays;
+
+import static android.opengl.GLES30.GL_CLAMP_TO_EDGE;
+import static android.opengl.GLES30.GL_COLOR_ATTACHMENT0;
+import static android.opengl.GLES30.GL_FRAMEBUFFER;
+import static android.opengl.GLES30.GL_FRAMEBUFFER_COMPLETE;
+import static android.opengl.GLES30.GL_LINEAR;
+import static android.opengl.GLES30.GL_RGBA8;
+import static android.opengl.GLES30.GL_TEXTURE_2D;
+import static android.opengl.GLES30.GL_TEXTURE_MAG_FILTER;
+import static android.opengl.GLES30.GL_TEXTURE_MIN_FILTER;
+import static android.opengl.GLES30.GL_TEXTURE_WRAP_S;
+import static android.opengl.GLES30.GL_TEXTURE_WRAP_T;
+import static android.opengl.GLES30.GL_VIEWPORT;
+import static android.opengl.GLES30.glBindFramebuffer;
+import static android.opengl.GLES30.glBindTexture;
+import static android.opengl.GLES30.glCheckFramebufferStatus;
+import static android.opengl.GLES30.glDeleteFramebuffers;
+import static android.opengl.GLES30.glDeleteTextures;
+import static android.opengl.GLES30.glFramebufferTexture2D;
+import static android.opengl.GLES30.glGenFramebuffers;
+import static android.opengl.GLES30.glGenTextures;
+import static android.opengl.GLES30.glGetError;
+import static android.opengl.GLES30.glGetIntegerv;
+import static android.opengl.GLES30.glTexParameteri;
+import static android.opengl.GLES30.glTexStorage2D;
+import static android.opengl.GLES30.glViewport;
+
+/**
+ * Keeps a downscaled copy of every decoded frame of a motion photo in a 2D texture, so that the
+ * video can be played again (e.g. when it loops) without decoding it. Frames are copied as they
+ * are decoded, unstabilized and unrotated, and are drawn later on with the stabilization and crop
+ * transform of each render target (see TextureRender.setSourceTexture()).
+ *
+ * The memory of all frames is reserved from the FrameCacheBudget when the first frame is cached.
+ * If the budget cannot hold the whole video, nothing is cached. When the cache is evicted to make
+ * room for another one, its textures are deleted and it is filled again on the next pass.
+ *
+ * All methods except isComplete() and onEvicted() must be called on the render thread, with the
+ * EGL context of the owning OutputSurface current.
+ *
+ * OutputSurface also uses full-size caches of a few consecutive frames as the frame windows of
+ * reverse playback. Those are accounted for by a budget of their own.
+ */
+@RequiresApi(api = 23)
+class FrameCache implements FrameCacheBudget.Entry {
+
+    private static final String TAG = "FrameCache";
+
+    private static final float[] IDENTITY_MATRIX = new float[16];
+
+    static {
+        Matrix.setIdentityM(IDENTITY_MATRIX, /* smOffset = */ 0);
+    }
+
+    private final int width;
+    private final int height;
+    private final long[] timestampsUs;
+    private final int[] textures;
+    private final FrameCacheBudget budget;
+    private final Runnable evictionHandler;
+
+    private int framebuffer;
+    private int cachedFrameCount = 0;
+    private boolean isReserved = false;
+    private boolean isRejected = false;
+    private volatile boolean isComplete = false;
+
+    private final int[] savedViewport = new int[4];
+
+    /**
+     * Creates an empty cache. No memory is used until the first frame is cached.
+     * @param width The width of the cached frames, in pixels.
+     * @param height The height of the cached frames, in pixels.
+     * @param timestampsUs The presentation timestamps of all frames of the video, in increasing
+     * order. The cache is complete once all of them have been cached.
+     * @param budget The budget which the memory of the cache is reserved from.
+     * @param evictionHandler Called on any thread when the cache is evicted. It must call clear()
+     * on the render thread.
+     */
+    FrameCache(int width,
+               int height,
+               long[] timestampsUs,
+               FrameCacheBudget budget,
+               Runnable evictionHandler) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid frame dimensions");
+        }
+        this.width = width;
+        this.height = height;
+        this.timestampsUs = timestampsUs;
+        this.textures = new int[timestampsUs.length];
+        this.budget = budget;
+        this.evictionHandler = evictionHandler;
+    }
+
+    /**
+     * Returns the amount of memory used by the cache once it is complete, in bytes.
+     */
+    long getSizeBytes() {
+        return 4L * width * height * timestampsUs.length;
+    }
+
+    /**
+     * Checks whether every frame of the video is cached. This can be called from any thread.
+     */
+    boolean isComplete() {
+        return isComplete;
+    }
+
+    /**
+     * Copies the current frame of a TextureRender (the latest decoded frame, in its external
+     * texture) into the cache, if the frame is not cached yet.
+     * @param timestampUs The presentation timestamp of the frame, in microseconds.
+     */
+    void capture(TextureRender textureRender, long timestampUs) {
+        int index = Arrays.binarySearch(timestampsUs, timestampUs);
+        if (index < 0 || textures[index] != 0 || !reserve()) {
+            return;
+        }
+
+        // Create the texture of the frame, and draw the frame into it
+        int[] handles = new int[1];
+        glGenTextures(/* n = */ 1, handles, /* offset = */ 0);
+        int texture = handles[0];
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glTexStorage2D(GL_TEXTURE_2D, /* levels = */ 1, GL_RGBA8, width, height);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        if (framebuffer == 0) {
+            glGenFramebuffers(/* n = */ 1, handles, /* offset = */ 0);
+            framebuffer = handles[0];
+        }
+        glGetIntegerv(GL_VIEWPORT, savedViewport, /* offset = */ 0);
+        glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+        glFramebufferTexture2D(
+                GL_FRAMEBUFFER,
+                GL_COLOR_ATTACHMENT0,
+                GL_TEXTURE_2D,
+                texture,
+                /* level = */ 0
+        );
+        boolean isFramebufferComplete =
+                glCheckFramebufferStatus(GL_FRAMEBUFFER) == GL_FRAMEBUFFER_COMPLETE;
+        if (isFramebufferComplete) {
+            // The frame is drawn flipped, so that its top row is at texture coordinate 0 as in
+            // the external texture, and it is sampled with the same texture coordinates
+            glViewport(0, 0, width, height);
+            textureRender.setSourceTexture(0);
+            textureRender.setUMatrix(IDENTITY_MATRIX);
+            textureRender.setFlipVertically(true);
+            textureRender.drawFrame(StabilizationTimeline.getIdentityStripMatrices());
+            textureRender.setFlipVertically(false);
+        }
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        glViewport(savedViewport[0], savedViewport[1], savedViewport[2], savedViewport[3]);
+
+        if (!isFramebufferComplete || glGetError() != 0) {
+            Log.e(TAG, "Failed to cache frame at " + timestampUs);
+            glDeleteTextures(/* n = */ 1, new int[] {texture}, /* offset = */ 0);
+            return;
+        }
+        textures[index] = texture;
+        cachedFrameCount++;
+        isComplete = cachedFrameCount == textures.length;
+    }
+
+    /**
+     * Returns the texture holding the frame with the given timestamp, or 0 if it is not cached.
+     * Marks the cache as recently used.
+     */
+    int getTexture(long timestampUs) {
+        int index = Arrays.binarySearch(timestampsUs, timestampUs);
+        if (index < 0 || textures[index] == 0) {
+            return 0;
+        }
+        budget.touch(this);
+        return textures[index];
+    }
+
+    /**
+     * Checks whether a texture belongs to this cache.
+     */
+    boolean holdsTexture(int texture) {
+        if (texture == 0) {
+            return false;
+        }
+        for (int cachedTexture : textures) {
+            if (cachedTexture == texture) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes all cached frames and gives their memory back to the budget. The cache is filled
+     * again by later calls to capture().
+     */
+    void clear() {
+        isComplete = false;
+        deleteTextures();
+        if (isReserved) {
+            budget.release(this);
+            isReserved = false;
+        }
+    }
+
+    /**
+     * Deletes all cached frames and the framebuffer, and gives their memory back to the budget.
+     */
+    void release() {
+        clear();
+        if (framebuffer != 0) {
+            glDeleteFramebuffers(/* n = */ 1, new int[] {framebuffer}, /* offset = */ 0);
+            framebuffer = 0;
+        }
+    }
+
+    @Override
+    public void onEvicted() {
+        isComplete = false;
+        evictionHandler.run();
+    }
+
+    /**
+     * Reserves the memory of the whole cache, once. Caching is given up for good if the budget
+     * cannot hold the whole video.
+     */
+    private boolean reserve() {
+        if (isReserved) {
+            return true;
+        }
+        if (isRejected) {
+            return false;
+        }
+        if (!budget.reserve(this, getSizeBytes())) {
+            Log.w(TAG, "Frame cache budget is too small for " + getSizeBytes() + " bytes");
+            isRejected = true;
+            return false;
+        }
+        isReserved = true;
+        return true;
+    }
+
+    private void deleteTextures() {
+        for (int i = 0; i < textures.length; i++) {
+            if (textures[i] != 0) {
+                glDeleteTextures(/* n = */ 1, new int[] {textures[i]}, /* offset = */ 0);
+                textures[i] = 0;
+            }
+        }
+        cachedFrameCount = 0;
+    }
+}
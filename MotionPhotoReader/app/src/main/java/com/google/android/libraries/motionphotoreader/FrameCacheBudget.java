@@ -0,0 +1,158 @@
+package com.google.android.libraries.motionphotoreader;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.android.libraries.motionphotoreader.Constants.DEFAULT_FRAME_CACHE_BUDGET_BYTES;
+
+/**
+ * Keeps track of the memory used by the decoded frame caches of all motion photo readers in the
+ * process (see FrameCache), and caps it.
+ *
+ * A cache reserves the memory for all of its frames at once, before it caches its first frame. If
+ * the reservation does not fit in the budget, the least recently used caches are evicted until it
+ * does. A cache is used whenever a frame is played from it, so the caches of the motion photos
+ * which are playing are the last to be evicted.
+ *
+ * Eviction callbacks are never invoked while the budget's lock is held.
+ */
+class FrameCacheBudget {
+
+    /**
+     * A cache whose memory is accounted for by the budget.
+     */
+    interface Entry {
+        /**
+         * Called when the reservation of the entry is taken back to make room for another entry.
+         * The entry must free its memory as soon as possible, and reserve it again before it is
+         * refilled.
+         */
+        void onEvicted();
+    }
+
+    private static FrameCacheBudget instance;
+
+    private long budgetBytes;
+    private long usedBytes;
+
+    /** The reservation of each entry, from least to most recently used. */
+    private final Map<Entry, Long> reservations =
+            new LinkedHashMap<>(/* initialCapacity = */ 16, /* loadFactor = */ 0.75f, true);
+
+    @VisibleForTesting
+    FrameCacheBudget(long budgetBytes) {
+        if (budgetBytes < 0) {
+            throw new IllegalArgumentException("Frame cache budget must not be negative");
+        }
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns the process-wide frame cache budget.
+     */
+    public static synchronized FrameCacheBudget getInstance() {
+        if (instance == null) {
+            instance = new FrameCacheBudget(DEFAULT_FRAME_CACHE_BUDGET_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * Sets the maximum amount of memory that all caches may use together. If the new budget is
+     * lower than the memory in use, the least recently used caches are evicted.
+     * @param budgetBytes The budget, in bytes. A budget of 0 disables caching.
+     */
+    public void setBudgetBytes(long budgetBytes) {
+        if (budgetBytes < 0) {
+            throw new IllegalArgumentException("Frame cache budget must not be negative");
+        }
+        List<Entry> victims;
+        synchronized (this) {
+            this.budgetBytes = budgetBytes;
+            victims = evictLocked(/* requester = */ null, /* neededBytes = */ 0);
+        }
+        notifyEvicted(victims);
+    }
+
+    /**
+     * Reserves memory for an entry, evicting the least recently used other entries if needed. A
+     * previous reservation of the same entry is replaced.
+     * @param entry The entry to reserve memory for.
+     * @param bytes The total amount of memory that the entry needs, in bytes.
+     * @return true if the memory was reserved, or false if it does not fit in the budget even
+     * with all other entries evicted. In the latter case nothing is evicted.
+     */
+    public boolean reserve(Entry entry, long bytes) {
+        List<Entry> victims;
+        synchronized (this) {
+            releaseLocked(entry);
+            if (bytes > budgetBytes) {
+                return false;
+            }
+            victims = evictLocked(entry, bytes);
+            reservations.put(entry, bytes);
+            usedBytes += bytes;
+        }
+        notifyEvicted(victims);
+        return true;
+    }
+
+    /**
+     * Marks an entry as the most recently used one. Does nothing if the entry has no reservation.
+     */
+    public synchronized void touch(Entry entry) {
+        reservations.get(entry);
+    }
+
+    /**
+     * Releases the reservation of an entry (without calling onEvicted()).
+     */
+    public synchronized void release(Entry entry) {
+        releaseLocked(entry);
+    }
+
+    /**
+     * Returns the amount of memory reserved by all entries, in bytes.
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private void releaseLocked(Entry entry) {
+        Long bytes = reservations.remove(entry);
+        if (bytes != null) {
+            usedBytes -= bytes;
+        }
+    }
+
+    /**
+     * Removes the least recently used entries (other than the requester) until the needed memory
+     * fits in the budget.
+     * @return the removed entries, which must be notified once the lock is released.
+     */
+    private List<Entry> evictLocked(Entry requester, long neededBytes) {
+        List<Entry> victims = new ArrayList<>();
+        Iterator<Map.Entry<Entry, Long>> iterator = reservations.entrySet().iterator();
+        while (usedBytes + neededBytes > budgetBytes && iterator.hasNext()) {
+            Map.Entry<Entry, Long> reservation = iterator.next();
+            if (reservation.getKey() == requester) {
+                continue;
+            }
+            iterator.remove();
+            usedBytes -= reservation.getValue();
+            victims.add(reservation.getKey());
+        }
+        return victims;
+    }
+
+    private static void notifyEvicted(List<Entry> victims) {
+        for (Entry victim : victims) {
+            victim.onEvicted();
+        }
+    }
+}
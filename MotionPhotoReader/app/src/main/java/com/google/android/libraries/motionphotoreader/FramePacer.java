@@ -0,0 +1,105 @@
+package com.google.android.libraries.motionphotoreader;
+
+import static com.google.android.libraries.motionphotoreader.Constants.FALLBACK_FRAME_DELTA_NS;
+import static com.google.android.libraries.motionphotoreader.Constants.MAX_DROPPED_FRAME_LATENESS_NS;
+import static com.google.android.libraries.motionphotoreader.Constants.US_TO_NS;
+
+/**
+ * Computes the time at which each played frame of a motion photo should be displayed.
+ *
+ * Frames are spaced by the difference of their presentation timestamps, divided by the playback
+ * rate. A frame is late if its display time has already passed when it is scheduled, which
+ * happens when decoding cannot keep up (e.g. in a grid of many motion photos on a slow device).
+ * Late frames are either displayed right away, with the following frames spaced from there (the
+ * video slows down, but every frame is shown), or dropped, so that the following frames catch up
+ * with the original schedule (the video keeps its speed, but skips frames).
+ *
+ * Frames are only scheduled under the decoder lock of the reader, but the settings and counters
+ * of the pacer may be accessed from any thread.
+ */
+class FramePacer {
+
+    /** Returned by schedule() for a frame which should not be displayed. */
+    static final long DROP_FRAME = -1L;
+
+    private volatile float playbackRate = 1.0f;
+    private volatile boolean dropLateFrames = false;
+    private long prevRenderTimestampNs;
+    private volatile long lateFrameCount;
+    private volatile long droppedFrameCount;
+
+    /**
+     * Sets the speed of playback, relative to the speed at which the video was recorded.
+     * @throws IllegalArgumentException if the rate is not a positive number.
+     */
+    void setPlaybackRate(float playbackRate) {
+        if (!(playbackRate > 0f) || Float.isInfinite(playbackRate)) {
+            throw new IllegalArgumentException("Invalid playback rate: " + playbackRate);
+        }
+        this.playbackRate = playbackRate;
+    }
+
+    /**
+     * Sets whether late frames are dropped, or displayed as soon as possible.
+     */
+    void setDropLateFrames(boolean dropLateFrames) {
+        this.dropLateFrames = dropLateFrames;
+    }
+
+    /**
+     * Computes the time at which a frame should be displayed, one frame duration after the
+     * previous frame, and records it as the previous frame.
+     * @param frameDeltaUs The difference between the presentation timestamps of the frame and of
+     * the previous frame, in microseconds. Non-positive deltas are replaced by a default one.
+     * @param currentTimestampNs The current time (see System.nanoTime()).
+     * @param canDrop Whether the frame may be dropped if it is late.
+     * @return the render timestamp of the frame, in nanoseconds, or DROP_FRAME if the frame is
+     * late and should be dropped.
+     */
+    long schedule(long frameDeltaUs, long currentTimestampNs, boolean canDrop) {
+        long frameDeltaNs = frameDeltaUs > 0 ? frameDeltaUs * US_TO_NS : FALLBACK_FRAME_DELTA_NS;
+        frameDeltaNs = (long) (frameDeltaNs / (double) playbackRate);
+
+        // The first frame is displayed one frame duration from now
+        long renderTimestampNs = prevRenderTimestampNs == 0
+                ? currentTimestampNs + frameDeltaNs
+                : prevRenderTimestampNs + frameDeltaNs;
+        if (renderTimestampNs < currentTimestampNs) {
+            lateFrameCount++;
+            if (dropLateFrames
+                    && canDrop
+                    && currentTimestampNs - renderTimestampNs <= MAX_DROPPED_FRAME_LATENESS_NS) {
+                // Keep the schedule, so that the next frames can be on time again
+                droppedFrameCount++;
+                prevRenderTimestampNs = renderTimestampNs;
+                return DROP_FRAME;
+            }
+            // Rebase the render timestamp, since it has drifted too far behind
+            renderTimestampNs = currentTimestampNs + frameDeltaNs;
+        }
+        prevRenderTimestampNs = renderTimestampNs;
+        return renderTimestampNs;
+    }
+
+    /**
+     * Returns the render timestamp of the previous frame, in nanoseconds, or 0 if no frame has been
+     * scheduled yet.
+     */
+    long getPrevRenderTimestampNs() {
+        return prevRenderTimestampNs;
+    }
+
+    /**
+     * Returns the number of frames which were scheduled after their display time.
+     */
+    long getLateFrameCount() {
+        return lateFrameCount;
+    }
+
+    /**
+     * Returns the number of late frames which were dropped.
+     */
+    long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+}
@@ -0,0 +1,83 @@
+package com.google.android.libraries.motionphotoreader;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed set of decoded frame buffers which are handed out to the client and reused once they
+ * are released. All buffers are allocated up front, so that handing out frames never allocates.
+ */
+@RequiresApi(api = 28)
+class FramePool {
+
+    private final int width;
+    private final int height;
+    private final BlockingQueue<DecodedFrame> availableFrames;
+
+    /**
+     * Creates a pool and allocates all of its frames.
+     * @param width The width of the frames, in pixels.
+     * @param height The height of the frames, in pixels.
+     * @param frameCount The number of frames in the pool.
+     */
+    FramePool(int width, int height, int frameCount) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid frame dimensions");
+        }
+        if (frameCount <= 0) {
+            throw new IllegalArgumentException("Invalid frame count: " + frameCount);
+        }
+        this.width = width;
+        this.height = height;
+        availableFrames = new ArrayBlockingQueue<>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            availableFrames.add(new DecodedFrame(this, width, height));
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Takes an available frame from the pool, waiting for one to be released if all frames are in
+     * use.
+     * @param timeoutMs The maximum time to wait for a frame, in milliseconds.
+     * @return a frame, or null if no frame was released in time.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    @Nullable
+    public DecodedFrame acquire(long timeoutMs) throws InterruptedException {
+        DecodedFrame frame = availableFrames.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if (frame != null) {
+            frame.setInUse(true);
+        }
+        return frame;
+    }
+
+    /**
+     * Returns a frame to the pool.
+     * @throws IllegalStateException if the frame is not in use.
+     */
+    public void release(DecodedFrame frame) {
+        if (!frame.setInUse(false)) {
+            throw new IllegalStateException("Frame has already been released");
+        }
+        availableFrames.add(frame);
+    }
+
+    /**
+     * Returns the number of frames which are not in use.
+     */
+    public int getAvailableFrameCount() {
+        return availableFrames.size();
+    }
+}
@@ -0,0 +1,322 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static android.opengl.GLES30.GL_COMPILE_STATUS;
+import static android.opengl.GLES30.GL_FRAGMENT_SHADER;
+import static android.opengl.GLES30.GL_LINK_STATUS;
+import static android.opengl.GLES30.GL_VERTEX_SHADER;
+import static android.opengl.GLES30.glAttachShader;
+import static android.opengl.GLES30.glCompileShader;
+import static android.opengl.GLES30.glCreateProgram;
+import static android.opengl.GLES30.glCreateShader;
+import static android.opengl.GLES30.glDeleteProgram;
+import static android.opengl.GLES30.glDeleteShader;
+import static android.opengl.GLES30.glGetShaderiv;
+import static android.opengl.GLES30.glGetProgramInfoLog;
+import static android.opengl.GLES30.glGetProgramiv;
+import static android.opengl.GLES30.glLinkProgram;
+import static android.opengl.GLES30.glShaderSource;
+
+/**
+ * Shares EGL and OpenGL state between the output surfaces of all readers.
+ *
+ * EGL is initialized once per process, and each render thread (see PlaybackScheduler) gets a single
+ * EGL context which is shared by every output surface rendering on that thread. An output surface
+ * only owns its external texture, its vertex buffers and its window surfaces. Switching between
+ * readers on a render thread thus only switches the draw surface, and shader programs are compiled
+ * and linked once per render thread instead of once per reader (see SharedContext.getProgram()).
+ *
+ * Contexts are not shared between render threads: a program holds the values of its uniforms, so
+ * two threads drawing with the same program at the same time would overwrite each other's
+ * stabilization matrices.
+ */
+@RequiresApi(api = 23)
+class GlContextManager {
+
+    private static final String TAG = "GlContextManager";
+
+    private static GlContextManager instance;
+
+    private EGLDisplay eglDisplay;
+    private EGLConfig eglConfig;
+    private final Map<Thread, SharedContext> contexts = new HashMap<>();
+
+    @VisibleForTesting
+    GlContextManager() {}
+
+    /**
+     * Returns the process-wide context manager.
+     */
+    public static synchronized GlContextManager getInstance() {
+        if (instance == null) {
+            instance = new GlContextManager();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the EGL context of the calling render thread, creating it if needed, and makes it
+     * current without a surface. Every call must be paired with a call to release() on the same
+     * thread.
+     */
+    public synchronized SharedContext acquire() {
+        initializeDisplay();
+        Thread thread = Thread.currentThread();
+        SharedContext context = contexts.get(thread);
+        if (context == null) {
+            context = new SharedContext(eglDisplay, eglConfig);
+            contexts.put(thread, context);
+        }
+        context.userCount++;
+        context.makeCurrent(EGL14.EGL_NO_SURFACE);
+        return context;
+    }
+
+    /**
+     * Releases a context returned by acquire(). The context, and every program it holds, is
+     * destroyed once it is no longer used on its thread.
+     */
+    public synchronized void release(SharedContext context) {
+        if (--context.userCount > 0) {
+            return;
+        }
+        Iterator<SharedContext> iterator = contexts.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == context) {
+                iterator.remove();
+            }
+        }
+        context.destroy();
+    }
+
+    /**
+     * Returns the number of EGL contexts which are alive, i.e. the number of render threads with at
+     * least one output surface.
+     */
+    @VisibleForTesting
+    synchronized int getContextCount() {
+        return contexts.size();
+    }
+
+    /**
+     * Initializes the default EGL display and chooses the config of all contexts, once per process.
+     * The display is never terminated, since terminating it would invalidate the contexts of all
+     * readers.
+     */
+    private void initializeDisplay() {
+        if (eglDisplay != null) {
+            return;
+        }
+
+        // Initialize EGL display
+        EGLDisplay display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (display == EGL14.EGL_NO_DISPLAY) {
+            throw new RuntimeException("Unable to get EGL14 display");
+        }
+
+        // Initialize EGL
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(display, version, 0, version, 1)) {
+            throw new RuntimeException("Unable to initialize EGL14");
+        }
+
+        // Configure EGL
+        int[] numConfigs = new int[1];
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] attributes = {
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_STENCIL_SIZE, 0,
+                EGL14.EGL_NONE
+        };
+        if (!EGL14.eglChooseConfig(
+                display,
+                attributes, /* attrib_listOffset = */0,
+                configs, /* configsOffset = */0,
+                configs.length, numConfigs, /* num_configOffset = */ 0
+        )) {
+            throw new RuntimeException("eglChooseConfig failed");
+        } else if (numConfigs[0] == 0) {
+            throw new IllegalArgumentException("Could not find suitable EGLConfig");
+        }
+        eglConfig = configs[0];
+        eglDisplay = display;
+    }
+
+    /**
+     * The EGL context of a render thread, with the programs linked in it. All methods must be
+     * called on the thread which acquired the context.
+     */
+    static class SharedContext {
+        private final EGLDisplay eglDisplay;
+        private final EGLConfig eglConfig;
+        private final EGLContext eglContext;
+        private final Map<String, Integer> programs = new HashMap<>();
+
+        /** The surface which is current with this context, or null if unknown. */
+        private EGLSurface currentSurface;
+        private int userCount;
+
+        private SharedContext(EGLDisplay eglDisplay, EGLConfig eglConfig) {
+            this.eglDisplay = eglDisplay;
+            this.eglConfig = eglConfig;
+            eglContext = EGL14.eglCreateContext(
+                    eglDisplay,
+                    eglConfig,
+                    EGL14.EGL_NO_CONTEXT,
+                    new int[] {
+                            EGL14.EGL_CONTEXT_CLIENT_VERSION, 3,
+                            EGL14.EGL_NONE
+                    },
+                    /* offset = */ 0
+            );
+            if (eglContext == null || eglContext == EGL14.EGL_NO_CONTEXT) {
+                throw new RuntimeException("Unable to create EGL context");
+            }
+        }
+
+        EGLDisplay getDisplay() {
+            return eglDisplay;
+        }
+
+        EGLConfig getConfig() {
+            return eglConfig;
+        }
+
+        /**
+         * Makes this context current with the given draw and read surface (or with no surface).
+         * Nothing is done if they are current already, so output surfaces can call this at the
+         * start of every render task without paying for redundant context switches.
+         */
+        void makeCurrent(EGLSurface surface) {
+            if (surface.equals(currentSurface)) {
+                return;
+            }
+            if (EGL14.eglMakeCurrent(eglDisplay, surface, surface, eglContext)) {
+                currentSurface = surface;
+            } else {
+                currentSurface = null;
+                Log.e(TAG, "Failed to make context current");
+            }
+        }
+
+        /**
+         * Returns a program linked from the given shaders, compiling and linking it the first time
+         * it is requested in this context. The program is shared by all output surfaces of the
+         * render thread, so its uniforms must be set before each draw call.
+         * @return the program, or 0 if it could not be built.
+         */
+        int getProgram(String vertexShaderSource, String fragmentShaderSource) {
+            String key = vertexShaderSource + '\0' + fragmentShaderSource;
+            Integer program = programs.get(key);
+            if (program == null) {
+                program = buildProgram(vertexShaderSource, fragmentShaderSource);
+                if (program != 0) {
+                    programs.put(key, program);
+                }
+            }
+            return program;
+        }
+
+        /**
+         * Returns the number of programs linked in this context.
+         */
+        @VisibleForTesting
+        int getProgramCount() {
+            return programs.size();
+        }
+
+        private void destroy() {
+            EGL14.eglMakeCurrent(
+                    eglDisplay,
+                    EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT
+            );
+            EGL14.eglDestroyContext(eglDisplay, eglContext);
+            EGL14.eglReleaseThread();
+            currentSurface = null;
+            programs.clear();
+        }
+
+        private static int buildProgram(String vertexShaderSource, String fragmentShaderSource) {
+            int vertexShader = compileShader(GL_VERTEX_SHADER, vertexShaderSource);
+            int fragmentShader = compileShader(GL_FRAGMENT_SHADER, fragmentShaderSource);
+            int program = linkProgram(vertexShader, fragmentShader);
+
+            // The shaders are no longer needed once the program is linked
+            glDeleteShader(vertexShader);
+            glDeleteShader(fragmentShader);
+            return program;
+        }
+
+        private static int linkProgram(int vertexShader, int fragmentShader) {
+            // Create the program
+            final int program = glCreateProgram();
+            if (program == 0) {
+                Log.w(TAG, "Could not create new program");
+                return 0;
+            }
+
+            // Attach shaders to program and link them together
+            glAttachShader(program, vertexShader);
+            glAttachShader(program, fragmentShader);
+            glLinkProgram(program);
+
+            // Verify linking status
+            final int[] linkStatus = new int[1];
+            glGetProgramiv(program, GL_LINK_STATUS, linkStatus, /* offset = */ 0);
+            if (linkStatus[0] == 0) {
+                // Delete the program if linking failed
+                Log.e(TAG, "Failed to link program: " + glGetProgramInfoLog(program));
+                glDeleteProgram(program);
+                return 0;
+            }
+
+            return program;
+        }
+
+        private static int compileShader(int type, String shaderSrc) {
+            // Create new shader object
+            final int shader = glCreateShader(type);
+            if (shader == 0) {
+                Log.w(TAG, "Could not create new shader");
+                return 0;
+            }
+
+            // Pass in the shader source
+            glShaderSource(shader, shaderSrc);
+
+            // Compile the shader
+            glCompileShader(shader);
+
+            // Verify the compile status
+            final int[] compiled = new int[1];
+            glGetShaderiv(shader, GL_COMPILE_STATUS, compiled, /* offset = */ 0);
+            if (compiled[0] == 0) {
+                // Delete the shader if compilation failed
+                glDeleteShader(shader);
+                Log.w(TAG, "Shader failed to compile");
+                return 0;
+            }
+
+            return shader;
+        }
+    }
+}
@@ -237,6 +237,135 @@ class HomographyMatrix {
         return this.rightMultiplyBy(h1).leftMultiplyBy(h2);
     }
 
+    /**
+     * Copies the elements of this matrix, in row-major order, into an array.
+     * @param result The array to copy the elements into.
+     * @param offset The index in the array of the first element.
+     */
+    public void toArray(float[] result, int offset) {
+        for (int i = 0; i < 9; i++) {
+            result[offset + i] = matrix.get(i);
+        }
+    }
+
+    /**
+     * Multiplies two 3x3 matrices stored in row-major order, without allocating. The result array
+     * may be the same as either input array.
+     * @param a The matrix on the left of the product.
+     * @param b The matrix on the right of the product.
+     * @param result The array to store the product a * b in.
+     */
+    public static void multiply(float[] a, float[] b, float[] result) {
+        float r00 = a[0] * b[0] + a[1] * b[3] + a[2] * b[6];
+        float r01 = a[0] * b[1] + a[1] * b[4] + a[2] * b[7];
+        float r02 = a[0] * b[2] + a[1] * b[5] + a[2] * b[8];
+        float r10 = a[3] * b[0] + a[4] * b[3] + a[5] * b[6];
+        float r11 = a[3] * b[1] + a[4] * b[4] + a[5] * b[7];
+        float r12 = a[3] * b[2] + a[4] * b[5] + a[5] * b[8];
+        float r20 = a[6] * b[0] + a[7] * b[3] + a[8] * b[6];
+        float r21 = a[6] * b[1] + a[7] * b[4] + a[8] * b[7];
+        float r22 = a[6] * b[2] + a[7] * b[5] + a[8] * b[8];
+        result[0] = r00;
+        result[1] = r01;
+        result[2] = r02;
+        result[3] = r10;
+        result[4] = r11;
+        result[5] = r12;
+        result[6] = r20;
+        result[7] = r21;
+        result[8] = r22;
+    }
+
+    /**
+     * Inverts a 3x3 matrix stored in row-major order, without allocating. The result array may be
+     * the same as the input array.
+     * @param m The matrix to invert.
+     * @param result The array to store the inverse in.
+     * @return false if the matrix is singular, in which case the result is left untouched.
+     */
+    public static boolean invert(float[] m, float[] result) {
+        // Adjugate of M (the transpose of its cofactor matrix)
+        float a00 = m[4] * m[8] - m[5] * m[7];
+        float a01 = m[2] * m[7] - m[1] * m[8];
+        float a02 = m[1] * m[5] - m[2] * m[4];
+        float a10 = m[5] * m[6] - m[3] * m[8];
+        float a11 = m[0] * m[8] - m[2] * m[6];
+        float a12 = m[2] * m[3] - m[0] * m[5];
+        float a20 = m[3] * m[7] - m[4] * m[6];
+        float a21 = m[1] * m[6] - m[0] * m[7];
+        float a22 = m[0] * m[4] - m[1] * m[3];
+        float det = m[0] * a00 + m[1] * a10 + m[2] * a20;
+        if (Math.abs(det) < Float.MIN_NORMAL) {
+            return false;
+        }
+
+        float invDet = 1.0f / det;
+        result[0] = invDet * a00;
+        result[1] = invDet * a01;
+        result[2] = invDet * a02;
+        result[3] = invDet * a10;
+        result[4] = invDet * a11;
+        result[5] = invDet * a12;
+        result[6] = invDet * a20;
+        result[7] = invDet * a21;
+        result[8] = invDet * a22;
+        return true;
+    }
+
+    /**
+     * Computes the inverse of a homography in the OpenGL frame coordinate system, given the
+     * homography in the pixel coordinate system, without allocating.
+     *
+     * Since the change of basis P is the same for the whole video, the inverse of P^-1 * M * P is
+     * P^-1 * M^-1 * P, where M^-1 is computed by invert().
+     * @param m The homography in the pixel coordinate system, in row-major order.
+     * @param imageWidth The width of the pixel coordinate system (i.e. width of the image).
+     * @param imageHeight The height of the pixel coordinate system (i.e. height of the image).
+     * @param result The array to store the inverse in, in column-major order (as expected by
+     * glUniformMatrix3fv without transposition).
+     * @param offset The index in the result array of the first element.
+     * @param scratch An array of at least 9 elements which is overwritten with M^-1. It may be the
+     * same as the input array.
+     * @return false if the homography is singular, in which case the result is left untouched.
+     */
+    public static boolean invertInGLBasis(float[] m,
+                                          int imageWidth,
+                                          int imageHeight,
+                                          float[] result,
+                                          int offset,
+                                          float[] scratch) {
+        if (!invert(m, scratch)) {
+            return false;
+        }
+        float[] a = scratch;
+        float halfW = imageWidth * 1.0f / 2.0f;
+        float halfH = imageHeight * 1.0f / 2.0f;
+
+        // P = [halfW, 0, halfW; 0, -halfH, halfH; 0, 0, 1], and
+        // P^-1 = [1 / halfW, 0, -1; 0, -1 / halfH, 1; 0, 0, 1]. First compute M^-1 * P...
+        float b00 = a[0] * halfW;
+        float b01 = -a[1] * halfH;
+        float b02 = a[0] * halfW + a[1] * halfH + a[2];
+        float b10 = a[3] * halfW;
+        float b11 = -a[4] * halfH;
+        float b12 = a[3] * halfW + a[4] * halfH + a[5];
+        float b20 = a[6] * halfW;
+        float b21 = -a[7] * halfH;
+        float b22 = a[6] * halfW + a[7] * halfH + a[8];
+
+        // ...then P^-1 * (M^-1 * P), stored in column-major order
+        result[offset] = b00 / halfW - b20;
+        result[offset + 1] = -b10 / halfH + b20;
+        result[offset + 2] = b20;
+        result[offset + 3] = b01 / halfW - b21;
+        result[offset + 4] = -b11 / halfH + b21;
+        result[offset + 5] = b21;
+        result[offset + 6] = b02 / halfW - b22;
+        result[offset + 7] = -b12 / halfH + b22;
+        result[offset + 8] = b22;
+        return true;
+    }
+
     /**
      * Check if this matrix equals another matrix, element-wise.
      * @return true if the two matrices are equal (up to a small error), otherwise return false.
@@ -2,6 +2,7 @@ package com.google.android.libraries.motionphotoreader;
 
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.util.Log;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
@@ -11,13 +12,16 @@ import com.adobe.internal.xmp.XMPException;
 import com.adobe.internal.xmp.XMPIterator;
 import com.adobe.internal.xmp.XMPMeta;
 import com.adobe.internal.xmp.properties.XMPPropertyInfo;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import static com.google.android.libraries.motionphotoreader.Constants.CAMERA_XMP_NAMESPACE;
+import static com.google.android.libraries.motionphotoreader.Constants.MOTION_PHOTO_IMAGE_META_MIMETYPE;
 import static com.google.android.libraries.motionphotoreader.Constants.MOTION_PHOTO_V1;
 import static com.google.android.libraries.motionphotoreader.Constants.MOTION_PHOTO_V2;
 
@@ -34,12 +38,25 @@ import static com.google.android.libraries.motionphotoreader.Constants.MOTION_PH
  *   orientation.
  *   videoOffset: The byte offset from the end of the file at which the video track begins.
  *   version: The version of this motion photo (either v1 or v2).
+ *   stillTimestampUs: The presentation timestamp of the video frame which matches the still
+ *   image, in microseconds, or STILL_TIMESTAMP_UNKNOWN if the file does not specify it.
  */
 @RequiresApi(api = 23)
 public class MotionPhotoInfo {
 
     private final static String TAG = "MotionPhotoInfo";
 
+    /**
+     * The still timestamp of motion photos which do not specify which video frame matches their
+     * still image.
+     */
+    public static final long STILL_TIMESTAMP_UNKNOWN = -1L;
+
+    private static final String V1_XMP_PROP_PRESENTATION_TIMESTAMP =
+            "MicroVideoPresentationTimestampUs";
+    private static final String V2_XMP_PROP_PRESENTATION_TIMESTAMP =
+            "MotionPhotoPresentationTimestampUs";
+
     private static final String V2_XMP_PROP_PREFIX = "Container:Directory[";
     private static final String V2_XMP_PROP_LENGTH_SUFFIX = "]/Container:Item/Item:Length";
     private static final String V2_XMP_PROP_PADDING_SUFFIX = "]/Container:Item/Item:Length";
@@ -50,12 +67,22 @@ public class MotionPhotoInfo {
     private final int rotation;
     private final int videoOffset;
     private final int version;
+    private final long stillTimestampUs;
 
     /**
-     * Creates a MotionPhotoInfo object associated with a given file.
+     * Creates a MotionPhotoInfo object associated with a given file, whose still timestamp is
+     * unknown.
      */
     @VisibleForTesting
     MotionPhotoInfo(MediaFormat mediaFormat, int videoOffset, int version) {
+        this(mediaFormat, videoOffset, version, STILL_TIMESTAMP_UNKNOWN);
+    }
+
+    /**
+     * Creates a MotionPhotoInfo object associated with a given file.
+     */
+    @VisibleForTesting
+    MotionPhotoInfo(MediaFormat mediaFormat, int videoOffset, int version, long stillTimestampUs) {
         width = mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
         height = mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
         durationUs = mediaFormat.getLong(MediaFormat.KEY_DURATION);
@@ -64,6 +91,7 @@ public class MotionPhotoInfo {
                 : 0;
         this.videoOffset = videoOffset;
         this.version = version;
+        this.stillTimestampUs = stillTimestampUs;
     }
 
     /**
@@ -75,8 +103,12 @@ public class MotionPhotoInfo {
             XMPMeta meta = getFileXmp(file);
             int version = getMotionPhotoVersion(meta);
             int videoOffset = getVideoOffset(meta, version);
-            MediaFormat mediaFormat = getFileMediaFormat(file, new MediaExtractor(), videoOffset);
-            return new MotionPhotoInfo(mediaFormat, videoOffset, version);
+            MediaFormat mediaFormat = getFileMediaFormat(file, extractor, videoOffset);
+            long stillTimestampUs = getStillTimestampUs(meta);
+            if (stillTimestampUs == STILL_TIMESTAMP_UNKNOWN && version == MOTION_PHOTO_V1) {
+                stillTimestampUs = getImageDataStillTimestampUs(extractor);
+            }
+            return new MotionPhotoInfo(mediaFormat, videoOffset, version, stillTimestampUs);
         } finally {
             extractor.release();
         }
@@ -86,6 +118,19 @@ public class MotionPhotoInfo {
         return MotionPhotoInfo.newInstance(new File(filename));
     }
 
+    /**
+     * Reads the video offset of a motion photo from its XMP metadata only, without opening the
+     * video track (see getVideoOffset()).
+     * @return the number of bytes from the end of the file to the beginning of the video track, or
+     * 0 if the file is not a motion photo.
+     * @throws XMPException when parsing invalid XMP metadata.
+     */
+    static int readVideoOffset(File file) throws IOException, XMPException {
+        XMPMeta meta = getFileXmp(file);
+        int version = getMotionPhotoVersion(meta);
+        return version == 0 ? 0 : getVideoOffset(meta, version);
+    }
+
     /**
      * Finds the video offset encoded in the motion photo XMP metadata.
      * @param meta The XMP metadata for the motion photo file.
@@ -132,6 +177,64 @@ public class MotionPhotoInfo {
         return videoOffset;
     }
 
+    /**
+     * Finds the still timestamp encoded in the motion photo XMP metadata. Negative values mean
+     * that the still image does not match any video frame.
+     * @param meta The XMP metadata for the motion photo file.
+     * @return the presentation timestamp of the video frame which matches the still image, in
+     * microseconds, or STILL_TIMESTAMP_UNKNOWN if the metadata does not specify it.
+     * @throws XMPException when parsing invalid XMP metadata.
+     */
+    @VisibleForTesting
+    static long getStillTimestampUs(XMPMeta meta) throws XMPException {
+        for (String property : new String[] {
+                V2_XMP_PROP_PRESENTATION_TIMESTAMP,
+                V1_XMP_PROP_PRESENTATION_TIMESTAMP
+        }) {
+            if (meta.doesPropertyExist(CAMERA_XMP_NAMESPACE, property)) {
+                long timestampUs = meta.getPropertyLong(CAMERA_XMP_NAMESPACE, property);
+                return timestampUs >= 0 ? timestampUs : STILL_TIMESTAMP_UNKNOWN;
+            }
+        }
+        return STILL_TIMESTAMP_UNKNOWN;
+    }
+
+    /**
+     * Finds the still timestamp in the image metadata track of a v1 motion photo (see
+     * ImageMeta.ImageData).
+     * @param extractor An extractor whose data source is the video part of the motion photo.
+     * @return the presentation timestamp of the video frame which matches the still image, in
+     * microseconds, or STILL_TIMESTAMP_UNKNOWN if the track does not specify it.
+     */
+    private static long getImageDataStillTimestampUs(MediaExtractor extractor) {
+        long stillTimestampUs = STILL_TIMESTAMP_UNKNOWN;
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime == null || !mime.startsWith(MOTION_PHOTO_IMAGE_META_MIMETYPE)) {
+                continue;
+            }
+            extractor.selectTrack(i);
+            long sampleSize = extractor.getSampleSize();
+            if (sampleSize > 0) {
+                ByteBuffer inputBuffer = ByteBuffer.allocateDirect((int) sampleSize);
+                if (extractor.readSampleData(inputBuffer, /* offset = */ 0) >= 0) {
+                    try {
+                        ImageMeta.ImageData imageData = ImageMeta.ImageData.parseFrom(inputBuffer);
+                        if (imageData.hasPhotoPresentationTimeUs()
+                                && imageData.getPhotoPresentationTimeUs() >= 0) {
+                            stillTimestampUs = imageData.getPhotoPresentationTimeUs();
+                        }
+                    } catch (InvalidProtocolBufferException e) {
+                        Log.w(TAG, "Invalid image metadata", e);
+                    }
+                }
+            }
+            extractor.unselectTrack(i);
+            break;
+        }
+        return stillTimestampUs;
+    }
+
     /**
      * Get the version of the motion photo file encoded by this XMP metadata. There are only two
      * possible versions, v1 or v2.
@@ -213,4 +316,14 @@ public class MotionPhotoInfo {
     }
 
     public int getVersion() { return version; }
+
+    /**
+     * @return the presentation timestamp of the video frame which matches the still image, in
+     * microseconds, or STILL_TIMESTAMP_UNKNOWN if the motion photo does not specify it. This comes
+     * from the MotionPhotoPresentationTimestampUs XMP property, or from the image metadata track
+     * of v1 motion photos. It may not match any frame if the video was edited after capture.
+     */
+    public long getStillTimestampUs() {
+        return stillTimestampUs;
+    }
 }
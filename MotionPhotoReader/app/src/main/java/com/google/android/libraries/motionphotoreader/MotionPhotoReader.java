@@ -2,21 +2,25 @@ package com.google.android.libraries.motionphotoreader;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.media.Image;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.annotation.VisibleForTesting;
 
 import com.adobe.internal.xmp.XMPException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 import java.io.File;
 import java.io.FileDescriptor;
@@ -28,16 +32,19 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static android.os.Build.VERSION_CODES.M;
 import static com.google.android.libraries.motionphotoreader.Constants.BOTTOM_LEFT;
 import static com.google.android.libraries.motionphotoreader.Constants.BOTTOM_RIGHT;
 import static com.google.android.libraries.motionphotoreader.Constants.FALLBACK_FRAME_DELTA_NS;
+import static com.google.android.libraries.motionphotoreader.Constants.FRAME_WINDOW_BYTES;
 import static com.google.android.libraries.motionphotoreader.Constants.IDENTITY;
 import static com.google.android.libraries.motionphotoreader.Constants.MICROVIDEO_META_MIMETYPE;
 import static com.google.android.libraries.motionphotoreader.Constants.MOTION_PHOTO_IMAGE_META_MIMETYPE;
 import static com.google.android.libraries.motionphotoreader.Constants.MOTION_PHOTO_V1;
 import static com.google.android.libraries.motionphotoreader.Constants.NUM_OF_STRIPS;
+import static com.google.android.libraries.motionphotoreader.Constants.TIMEOUT_MS;
 import static com.google.android.libraries.motionphotoreader.Constants.TOP_LEFT;
 import static com.google.android.libraries.motionphotoreader.Constants.TOP_RIGHT;
 import static com.google.android.libraries.motionphotoreader.Constants.US_TO_NS;
@@ -51,6 +58,29 @@ import static com.google.android.libraries.motionphotoreader.Constants.VIDEO_MIM
  * when it is no longer in use to prevent leaking resources. If a Surface is passed to the reader
  * to display the video to, then the reader renders the video via a separate OpenGL pipeline. This
  * pipeline is comprised of the OutputSurface.java and TextureRender.java classes.
+ *
+ * Video decoders are a limited resource, so readers obtain them from the DecoderBudgetManager
+ * according to their priority (see setPriority()). A reader whose decoder is given to a higher
+ * priority reader is suspended: it keeps its position and stabilization state, and resumes
+ * automatically once a decoder is available again.
+ *
+ * Opening a reader parses the motion photo metadata, scans the stabilization data and sets up the
+ * decoder, which is too slow for the UI thread. prepareAsync() does all of this work in the
+ * background, and the prepared reader is then bound to its display surface with setSurface().
+ *
+ * The rendered (stabilized and cropped) video can also be captured, without a display surface:
+ * grabFrame() captures the current frame, and startFrameExport() captures every played frame.
+ *
+ * Interactive timelines should seek with requestSeek(), which does not block the caller and only
+ * decodes the latest of several quickly repeated seeks.
+ *
+ * Short looping videos can be played from a cache of decoded frames (see enableFrameCache()):
+ * once every frame has been decoded, the reader gives its decoder back and plays the next
+ * iterations from the cache.
+ *
+ * Videos can also be played backwards, or back and forth (see setPlaybackMode()). Since frames can
+ * only be decoded forwards, reverse playback decodes a few frames at a time into a frame window,
+ * and presents them backwards while the frames before them are decoded into a second window.
  */
 
 @RequiresApi(api = 28)
@@ -58,45 +88,136 @@ public class MotionPhotoReader {
 
     private static final String TAG = "MotionPhotoReader";
 
+    /** Decoder priorities of a reader, from lowest to highest (see setPriority()). */
+    public static final int PRIORITY_OFFSCREEN = DecoderBudgetManager.PRIORITY_OFFSCREEN;
+    public static final int PRIORITY_VISIBLE = DecoderBudgetManager.PRIORITY_VISIBLE;
+    public static final int PRIORITY_FOCUSED = DecoderBudgetManager.PRIORITY_FOCUSED;
+
+    /**
+     * A seek mode which lands on the exact frame at the requested time (see seekTo()), in addition
+     * to the sync modes of MediaExtractor.
+     */
+    public static final int SEEK_TO_EXACT = 0x100;
+
+    /**
+     * Playback modes (see setPlaybackMode()).
+     */
+    public static final int PLAYBACK_FORWARD = 0;
+    public static final int PLAYBACK_REVERSE = 1;
+    public static final int PLAYBACK_PING_PONG = 2;
+
+    /**
+     * Policies for frames which are decoded after their display time (see setLateFramePolicy()).
+     */
+    public static final int LATE_FRAMES_CATCH_UP = 0;
+    public static final int LATE_FRAMES_DROP = 1;
+
     private final File file;
-    private final Surface surface;
-    private final boolean enableStabilization;
     private final boolean enableCrop;
     private final MediaExtractor extractor;
 
-    private MediaCodec decoder;
+    private volatile MediaCodec decoder;
     private MediaFormat videoFormat;
+    private MediaCodec.Callback decoderCallback;
     private FileInputStream fileInputStream;
 
+    /**
+     * Fields which are used to share the decoder budget with other readers. The decoder lock must
+     * be held whenever the decoder is used or replaced.
+     */
+    private final ReentrantLock decoderLock = new ReentrantLock();
+    private final DecoderBudgetManager.Client codecClient = new CodecClient();
+    private final PlaybackScheduler.TaskQueue resumeQueue =
+            PlaybackScheduler.getInstance().newTaskQueue();
+    private volatile int priority = PRIORITY_VISIBLE;
+    private volatile ResumeListener resumeListener;
+    private volatile boolean revokePending;
+    private boolean isClosed;
+    private long resumeTimestampUs = -1L;
+
+    /**
+     * Fields which are used to coalesce asynchronous seeks (see requestSeek()). The generation
+     * changes with every seek, so that a running seek request can tell that it was superseded.
+     */
+    private final Object seekRequestLock = new Object();
+    private final PlaybackScheduler.TaskQueue seekQueue =
+            PlaybackScheduler.getInstance().newTaskQueue();
+    private volatile long seekGeneration;
+    private SettableFuture<Void> pendingSeekFuture;
+    private boolean isSeekQueueShutdown;
+    private long runningSeekGeneration = -1L;
+
     /**
      * Fields which are used to play the next frame or seek to a frame.
      */
     private int videoTrackIndex;
-    private int motionTrackIndex;
-    private List<HomographyMatrix> homographyList;
-    private long prevRenderTimestampNs;
+    private SampleIndex sampleIndex;
+    private StabilizationTimeline stabilizationTimeline;
+    private long stillTimestampUs = MotionPhotoInfo.STILL_TIMESTAMP_UNKNOWN;
+    private final FramePacer framePacer = new FramePacer();
     private long prevTimestampUs;
+
+    /** The timestamp of the last frame rendered to the output surface, or -1 if none. */
+    private long presentedTimestampUs = -1L;
+
+    /** Whether frames were decoded and dropped after the presented frame. */
+    private boolean isPresentedFrameBehindDecoder;
+
+    /**
+     * Fields which are used to loop the video (see setLooping()). The frames of each iteration are
+     * paced as if they followed the previous iteration, by offsetting their timestamps by the
+     * duration of all previous iterations. While the video plays backwards, the playback timestamp
+     * of a frame is the offset minus its timestamp instead, so that it still increases.
+     */
+    private volatile boolean isLooping;
+    private long loopOffsetUs;
+    private boolean isLoopStartQueued;
+
+    /**
+     * Whether the decoder was released because frames are played from the frame cache. The reader
+     * is not suspended in that case, and the frames are played by the cached playback (which is
+     * null if the video cannot be cached).
+     */
+    private volatile boolean isDecoderParked;
+    private CachedFramePlayback cachedPlayback;
+
+    /**
+     * Fields which are used to play the video backwards (see setPlaybackMode()). The reader
+     * presents the frame reverseFrameIndex next, from the frame windows planned by the reverse
+     * prefetcher (which is null if the video cannot be played backwards).
+     */
+    private volatile int playbackMode = PLAYBACK_FORWARD;
+    private int playbackDirection = 1;
+    private int reverseFrameIndex = -1;
+    private ReverseWindowPrefetcher reversePrefetcher;
     private List<Float> prevHomographyDataList;
 
     /**
-     * The renderWorker and renderHandler are in charge of executing all calls relevant to rendering
-     * and transforming the current frame (if stabilization is on).
+     * The renderHandler is in charge of executing all calls relevant to rendering and transforming
+     * the current frame (if stabilization is on). It runs on a render thread shared with other
+     * readers (see PlaybackScheduler).
      */
-    private HandlerThread renderWorker;
     private Handler renderHandler;
 
     /** Available buffer queues **/
     private final BlockingQueue<Integer> inputBufferQueue;
     private final BlockingQueue<Bundle> outputBufferQueue;
 
+    /** Decoded frames handed out to the client instead of being rendered (see openForFrames()). */
+    private FramePool framePool;
+    private FrameCallback frameCallback;
+
     /** Fields passed onto OpenGL pipeline. */
     private OutputSurface outputSurface;
-    private final int surfaceWidth;
-    private final int surfaceHeight;
     private float scaleFactor;
     private float xTranslate;
     private float yTranslate;
 
+    /** The auto-crop transform of the stabilized video, used by surfaces with crop enabled. */
+    private float cropScaleFactor = 1.0f;
+    private float cropXTranslate = 0.0f;
+    private float cropYTranslate = 0.0f;
+
     /** Flag used for debugging. */
     private final boolean testMode;
 
@@ -104,11 +225,6 @@ public class MotionPhotoReader {
      * Standard MotionPhotoReader constructor.
      * @param file A motion photo file to open.
      * @param extractor A MediaExtractor for reading frame data and stabilization data (if needed).
-     * @param surface The surface on which the final video should be displayed.
-     * @param surfaceWidth The width of the surface to display.
-     * @param surfaceHeight The height of the surface to display.
-     * @param enableStabilization If true, then the video should be stabilized (if possible).
-     * Otherwise, we should not stabilize the video.
      * @param enableCrop If true, then a crop-transform algorithm will be applied to the video to
      * center the video in the surface.
      * @param testMode If true, then we use mock video frame and stabilization data. This should
@@ -118,31 +234,21 @@ public class MotionPhotoReader {
      */
     private MotionPhotoReader(File file,
                               MediaExtractor extractor,
-                              Surface surface,
-                              int surfaceWidth,
-                              int surfaceHeight,
-                              boolean enableStabilization,
                               boolean enableCrop,
                               boolean testMode,
                               BlockingQueue<Integer> inputBufferQueue,
                               BlockingQueue<Bundle> outputBufferQueue) {
         this.file = file;
-        this.surface = surface;
-        this.surfaceWidth = surfaceWidth;
-        this.surfaceHeight = surfaceHeight;
-        this.enableStabilization = enableStabilization;
         this.enableCrop = enableCrop;
         this.testMode = testMode;
         this.extractor = extractor;
         this.inputBufferQueue = inputBufferQueue;
         this.outputBufferQueue = outputBufferQueue;
 
-        // Set the stabilization matrices to the identity for each strip, and set the previous
-        // stabilization data list to the identity for each strip (flattened into list of floats)
-        homographyList = new ArrayList<>();
+        // Set the previous stabilization data list to the identity for each strip (flattened into
+        // list of floats)
         prevHomographyDataList = new ArrayList<>();
         for (int i = 0; i < NUM_OF_STRIPS; i++) {
-            homographyList.add(new HomographyMatrix());
             prevHomographyDataList.addAll(Arrays.asList(IDENTITY));
         }
 
@@ -167,16 +273,15 @@ public class MotionPhotoReader {
         MotionPhotoReader reader = new MotionPhotoReader(
                 file,
                 extractor,
-                surface,
-                surfaceWidth,
-                surfaceHeight,
-                enableStabilization,
                 enableCrop,
                 /* testMode = */ true,
                 inputBufferQueue,
                 outputBufferQueue
         );
-        reader.startRenderThread(motionPhotoInfo, enableStabilization, enableCrop);
+        reader.prepare(motionPhotoInfo, enableStabilization, enableCrop, surface != null);
+        if (surface != null) {
+            reader.setSurface(surface, surfaceWidth, surfaceHeight);
+        }
         return reader;
     }
 
@@ -200,38 +305,188 @@ public class MotionPhotoReader {
                                          boolean enableStabilization,
                                          boolean enableCrop
     ) throws IOException, XMPException {
-        MotionPhotoInfo motionPhotoInfo = MotionPhotoInfo.newInstance(file);
-        MotionPhotoReader reader = new MotionPhotoReader(
+        MotionPhotoReader reader = prepare(
+                file,
+                enableStabilization,
+                enableCrop,
+                /* renderToSurface = */ surface != null,
+                PRIORITY_VISIBLE
+        );
+        if (surface != null) {
+            reader.setSurface(surface, surfaceWidth, surfaceHeight);
+        }
+        return reader;
+    }
+
+    /**
+     * Opens and prepares a new MotionPhotoReader which starts on the video frame that matches the
+     * still image of the motion photo (see seekToStill()), so that the transition from the still
+     * image to the video does not jump. The first call to nextFrame() plays the frame after it.
+     * @param file The motion photo file to open.
+     * @param surface The surface for the motion photo reader to decode.
+     * @param surfaceWidth The width of the surface, in pixels.
+     * @param surfaceHeight The height of the surface, in pixels.
+     * @param enableStabilization If true, the video will be stabilized
+     * @param enableCrop If true, the video will automatically be resized and translated to fit in
+     * the surface.
+     * @return a MotionPhotoReader object for the specified file.
+     * @throws IOException when the file cannot be found.
+     * @throws XMPException when parsing invalid XML syntax.
+     */
+    public static MotionPhotoReader openAtStill(File file,
+                                                Surface surface,
+                                                int surfaceWidth,
+                                                int surfaceHeight,
+                                                boolean enableStabilization,
+                                                boolean enableCrop
+    ) throws IOException, XMPException {
+        MotionPhotoReader reader = open(
                 file,
-                new MediaExtractor(),
                 surface,
                 surfaceWidth,
                 surfaceHeight,
                 enableStabilization,
+                enableCrop
+        );
+        reader.seekToStill();
+        return reader;
+    }
+
+    /**
+     * Opens a new MotionPhotoReader which hands out the decoded frames instead of rendering them,
+     * for analysis jobs such as thumbnails, feature extraction or hashing. Every call to
+     * nextFrame() or seekTo() passes the decoded frame to the callback, on the calling thread, as
+     * an I420 frame with its timestamp and stabilization transform.
+     *
+     * Frames come from a fixed pool of the given size, and must be released by the client once
+     * they are no longer needed. When all frames are in use, the reader waits for one to be
+     * released, and drops the decoded frame if none is released in time.
+     * @param file The motion photo file to open.
+     * @param enableStabilization If true, the stabilization transform of each frame is computed.
+     * Otherwise, frames carry the identity transform.
+     * @param framePoolSize The number of frames that the client may hold at the same time.
+     * @param frameCallback The callback which receives the decoded frames.
+     * @return a MotionPhotoReader object for the specified file.
+     * @throws IOException when the file cannot be found.
+     * @throws XMPException when parsing invalid XML syntax.
+     */
+    public static MotionPhotoReader openForFrames(File file,
+                                                  boolean enableStabilization,
+                                                  int framePoolSize,
+                                                  FrameCallback frameCallback)
+            throws IOException, XMPException {
+        MotionPhotoInfo motionPhotoInfo = MotionPhotoInfo.newInstance(file);
+        MotionPhotoReader reader = new MotionPhotoReader(
+                file,
+                new MediaExtractor(),
+                /* enableCrop = */ false,
+                /* testMode = */ false,
+                /* inputBufferQueue = */ new LinkedBlockingQueue<>(),
+                /* outputBufferQueue = */ new LinkedBlockingQueue<>()
+        );
+        reader.framePool = new FramePool(
+                motionPhotoInfo.getWidth(),
+                motionPhotoInfo.getHeight(),
+                framePoolSize
+        );
+        reader.frameCallback = frameCallback;
+        reader.prepare(
+                motionPhotoInfo,
+                enableStabilization,
+                /* enableCrop = */ false,
+                /* renderToSurface = */ false
+        );
+        return reader;
+    }
+
+    /**
+     * Opens and prepares a new MotionPhotoReader for a particular file in the background. All of
+     * the work which does not depend on the display surface (metadata parsing, the stabilization
+     * pre-scan, the decoder and OpenGL setup) runs on the shared decode threads, so this can be
+     * used to pre-open readers for motion photos which are about to be shown.
+     *
+     * Once the future completes, the reader must be bound to a surface with setSurface() before it
+     * displays anything. The reader starts with PRIORITY_OFFSCREEN so that pre-opened readers do
+     * not take decoders from visible readers; its priority should be raised once it is shown. If
+     * the future is cancelled after the reader has been prepared, the reader is closed.
+     * @param file The motion photo file to open.
+     * @param enableStabilization If true, the video will be stabilized
+     * @param enableCrop If true, the video will automatically be resized and translated to fit in
+     * the surface.
+     * @return a future for the prepared MotionPhotoReader. The future fails with an IOException if
+     * the file cannot be read, or with an XMPException if its XMP metadata is invalid.
+     */
+    public static ListenableFuture<MotionPhotoReader> prepareAsync(File file,
+                                                                   boolean enableStabilization,
+                                                                   boolean enableCrop) {
+        SettableFuture<MotionPhotoReader> future = SettableFuture.create();
+        PlaybackScheduler.getInstance().newTaskQueue().execute(() -> {
+            if (future.isCancelled()) {
+                return;
+            }
+            try {
+                MotionPhotoReader reader = prepare(
+                        file,
+                        enableStabilization,
+                        enableCrop,
+                        /* renderToSurface = */ true,
+                        PRIORITY_OFFSCREEN
+                );
+                if (!future.set(reader)) {
+                    reader.close();
+                }
+            } catch (IOException | XMPException | RuntimeException e) {
+                future.setException(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Creates a reader and does all of the surface-independent setup.
+     * @param renderToSurface If true, the OpenGL pipeline is set up so that the reader can later
+     * be bound to a display surface. Otherwise, decoded frames are not rendered anywhere.
+     * @param priority The initial decoder priority of the reader.
+     */
+    private static MotionPhotoReader prepare(File file,
+                                             boolean enableStabilization,
+                                             boolean enableCrop,
+                                             boolean renderToSurface,
+                                             int priority)
+            throws IOException, XMPException {
+        MotionPhotoInfo motionPhotoInfo = MotionPhotoInfo.newInstance(file);
+        MotionPhotoReader reader = new MotionPhotoReader(
+                file,
+                new MediaExtractor(),
                 enableCrop,
                 /* testMode = */ false,
                 /* inputBufferQueue = */ new LinkedBlockingQueue<>(),
                 /* outputBufferQueue = */ new LinkedBlockingQueue<>()
         );
-        reader.startRenderThread(motionPhotoInfo, enableStabilization, enableCrop);
+        reader.priority = priority;
+        reader.prepare(motionPhotoInfo, enableStabilization, enableCrop, renderToSurface);
         return reader;
     }
+
     /**
-     * Sets up and starts a new handler thread for the rendering pipeline and media decoders and
-     * extractors.
+     * Acquires a shared render thread for the rendering pipeline and media decoders and sets up
+     * the extractors.
      *
      * The extractor reads samples for both tracks and passes the information to a buffer processor.
      * A decoder is set up for the video track to read frame data. If enableStabilization is set to
      * true by the client, then we assume that we want to stabilize the video (if possible).
+     *
+     * None of this depends on the display surface, which is bound afterwards by setSurface().
      */
-    private void startRenderThread(MotionPhotoInfo motionPhotoInfo,
-                                   boolean enableStabilization,
-                                   boolean enableCrop)
+    private void prepare(MotionPhotoInfo motionPhotoInfo,
+                         boolean enableStabilization,
+                         boolean enableCrop,
+                         boolean renderToSurface)
             throws IOException {
-        // Set up the render handler and thread
-        renderWorker = new HandlerThread("renderHandler");
-        renderWorker.start();
-        renderHandler = new Handler(renderWorker.getLooper());
+        stillTimestampUs = motionPhotoInfo.getStillTimestampUs();
+
+        // Set up the render handler on one of the shared render threads
+        renderHandler = PlaybackScheduler.getInstance().acquireRenderHandler();
 
         // Set up input stream from Motion Photo file for media extractor
         fileInputStream = new FileInputStream(file);
@@ -244,110 +499,47 @@ public class MotionPhotoReader {
         boolean isStabilized = isAlreadyStabilized(motionPhotoInfo);
         enableStabilization = enableStabilization && !isStabilized;
 
-        // Set the motion track, and find an auto-crop if stabilization is on
-        for (int i = 0; i < extractor.getTrackCount(); i++) {
-            MediaFormat format = extractor.getTrackFormat(i);
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            if (mime.startsWith(MICROVIDEO_META_MIMETYPE)) {
-                if (enableStabilization) {
+        // Read the whole motion track up front to build the stabilization timeline, and find an
+        // auto-crop if needed. Playback then only reads the video track.
+        if (enableStabilization) {
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime.startsWith(MICROVIDEO_META_MIMETYPE)) {
                     extractor.selectTrack(i);
-                    motionTrackIndex = i;
-
-                    if (enableCrop) {
-                        float[] bottomLeft = Arrays.copyOf(BOTTOM_LEFT, BOTTOM_LEFT.length);
-                        float[] bottomRight = Arrays.copyOf(BOTTOM_RIGHT, BOTTOM_RIGHT.length);
-                        float[] topRight = Arrays.copyOf(TOP_RIGHT, TOP_RIGHT.length);
-                        float[] topLeft = Arrays.copyOf(TOP_LEFT, TOP_LEFT.length);
-
-                        // Find the bounding box intersection of all frames
-                        BoundingBox boundingBox = new BoundingBox(
-                                bottomLeft,
-                                bottomRight,
-                                topRight,
-                                topLeft
-                        );
-
-                        int videoWidth = motionPhotoInfo.getWidth();
-                        int videoHeight = motionPhotoInfo.getHeight();
-                        while (extractor.getSampleSize() >= 0) {
-                            ByteBuffer inputBuffer =
-                                    ByteBuffer.allocateDirect((int) extractor.getSampleSize());
-                            List<HomographyMatrix> newHomographyList =
-                                    MotionPhotoReaderUtils.getHomographies(
-                                            extractor,
-                                            inputBuffer,
-                                            prevHomographyDataList
-                                    );
-
-                            // Update corner positions
-                            bottomLeft = newHomographyList
-                                    .get(NUM_OF_STRIPS - 1)
-                                    .convertFromImageToGL(videoWidth, videoHeight)
-                                    .rightMultiplyBy(bottomLeft);
-                            bottomRight = newHomographyList
-                                    .get(NUM_OF_STRIPS - 1)
-                                    .convertFromImageToGL(videoWidth, videoHeight)
-                                    .rightMultiplyBy(bottomRight);
-                            topRight = newHomographyList
-                                    .get(0)
-                                    .convertFromImageToGL(videoWidth, videoHeight)
-                                    .rightMultiplyBy(topRight);
-                            topLeft = newHomographyList
-                                    .get(0)
-                                    .convertFromImageToGL(videoWidth, videoHeight)
-                                    .rightMultiplyBy(topLeft);
-
-                            BoundingBox newBoundingBox = new BoundingBox(
-                                    bottomLeft,
-                                    bottomRight,
-                                    topRight,
-                                    topLeft
-                            );
-                            boundingBox = boundingBox.intersect(newBoundingBox);
-                            extractor.advance();
-                        }
-
-                        // Compute the scale factor: if the box is wider than it is tall, then we
-                        // want to scale the box according to the height; otherwise, we want to
-                        // scale the box according to its width
-                        scaleFactor = Math.max(2.0f / boundingBox.width(),
-                                2.0f / boundingBox.height());
-                        xTranslate = (boundingBox.xMin + boundingBox.xMax) / 2.0f;
-                        yTranslate = (boundingBox.yMin + boundingBox.yMax) / 2.0f;
-                    }
+                    scanMotionTrack(motionPhotoInfo);
+                    extractor.unselectTrack(i);
+                    break;
                 }
-
-                // Reset the extractor to the beginning
-                extractor.seekTo(0L, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
-                break;
             }
         }
+        if (enableCrop) {
+            scaleFactor = cropScaleFactor;
+            xTranslate = cropXTranslate;
+            yTranslate = cropYTranslate;
+        }
 
-        // Find the appropriate tracks (motion and video) and configure them
-        boolean videoTrackSelected = false;
-        boolean motionTrackSelected = false;
+        // Find the video track (which should be the first video track) and create an appropriate
+        // media decoder
         for (int i = 0; i < extractor.getTrackCount(); i++) {
             MediaFormat format = extractor.getTrackFormat(i);
             String mime = format.getString(MediaFormat.KEY_MIME);
-
-            // Set the video track (which should be the first video track) and create an
-            // appropriate media decoder
-            if (mime.startsWith(VIDEO_MIME_PREFIX) && !videoTrackSelected) {
+            if (mime.startsWith(VIDEO_MIME_PREFIX)) {
                 extractor.selectTrack(i);
                 videoTrackIndex = i;
                 videoFormat = format;
-                decoder = MediaCodec.createDecoderByType(mime);
-                videoTrackSelected = true;
-            }
-            // Set the motion track (if appropriate)
-            if (mime.startsWith(MICROVIDEO_META_MIMETYPE) && !motionTrackSelected) {
-                if (enableStabilization) {
-                    extractor.selectTrack(i);
-                    motionTrackIndex = i;
-                    motionTrackSelected = true;
-                }
+                break;
             }
         }
+        scanVideoTrack();
+
+        // Decode to flexible YUV buffers if the frames are handed out to the client
+        if (framePool != null) {
+            videoFormat.setInteger(
+                    MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible
+            );
+        }
 
         // Set the MediaCodec callback to send buffer information to the corresponding blocking
         // queues (make sure the Android version is capable of supporting MediaCodec callbacks)
@@ -355,7 +547,7 @@ public class MotionPhotoReader {
             Log.e("MotionPhotoReader", "Insufficient Android build version");
             return;
         }
-        decoder.setCallback(new MediaCodec.Callback() {
+        decoderCallback = new MediaCodec.Callback() {
 
             @Override
             public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
@@ -382,130 +574,831 @@ public class MotionPhotoReader {
                                               @NonNull MediaFormat format) {
 
             }
-        }, renderHandler);
+        };
 
-        // Set up OpenGL pipeline if the surface is not null, otherwise we skip the OpenGL rendering
-        // steps altogether
-        if (surface != null) {
+        // Set up OpenGL pipeline if the video is to be displayed on a surface, otherwise we skip
+        // the OpenGL rendering steps altogether
+        if (renderToSurface) {
             outputSurface = new OutputSurface(renderHandler, motionPhotoInfo);
-            outputSurface.setSurface(surface, surfaceWidth, surfaceHeight);
             outputSurface.setCropTransform(scaleFactor, xTranslate, yTranslate);
-            decoder.configure(videoFormat, outputSurface.getDecodeSurface(), null, 0);
-        } else {
-            decoder.configure(videoFormat, null, null, 0);
+            if (sampleIndex != null) {
+                reversePrefetcher = new ReverseWindowPrefetcher(
+                        sampleIndex,
+                        getFrameWindowCapacity(),
+                        new FrameWindowDecoder()
+                );
+                cachedPlayback = new CachedFramePlayback(extractor, sampleIndex);
+            }
+        }
+
+        // If the decoder budget is exhausted, the reader starts out suspended
+        decoderLock.lock();
+        try {
+            startDecoder();
+        } finally {
+            unlockDecoder();
         }
-        decoder.start();
     }
 
     /**
-     * Determines whether the motion photo is pre-stabilized, in which case we should not stabilize
-     * the video.
-     * @throws com.google.protobuf.InvalidProtocolBufferException if parsing an invalid proto object
+     * Reads every sample of the (selected) motion track to build the stabilization timeline. The
+     * crop transform which keeps the stabilized video inside the frame is computed at the same
+     * time, for the surfaces which have crop enabled. The extractor is reset to the beginning
+     * afterwards.
      */
-    private boolean isAlreadyStabilized(MotionPhotoInfo motionPhotoInfo)
-            throws com.google.protobuf.InvalidProtocolBufferException {
-        // Check if the bit exists
-        //   a. If the bit exists, set isStabilized to the value of the bit
-        //   b. If the bit does not exist, set isStabilized to true
-        int version = motionPhotoInfo.getVersion();
-        boolean isStabilized = false;
-        if (version == MOTION_PHOTO_V1) {
-            for (int i = 0; i < extractor.getTrackCount(); i++) {
-                MediaFormat format = extractor.getTrackFormat(i);
-                String mime = format.getString(MediaFormat.KEY_MIME);
-                assert mime != null;
-                if (mime.startsWith(MOTION_PHOTO_IMAGE_META_MIMETYPE)) {
-                    extractor.selectTrack(i);
-                    ByteBuffer inputBuffer = ByteBuffer.allocateDirect(
-                            (int) extractor.getSampleSize()
+    private void scanMotionTrack(MotionPhotoInfo motionPhotoInfo) {
+        int videoWidth = motionPhotoInfo.getWidth();
+        int videoHeight = motionPhotoInfo.getHeight();
+        StabilizationTimeline.Builder timelineBuilder =
+                new StabilizationTimeline.Builder(videoWidth, videoHeight);
+
+        float[] bottomLeft = Arrays.copyOf(BOTTOM_LEFT, BOTTOM_LEFT.length);
+        float[] bottomRight = Arrays.copyOf(BOTTOM_RIGHT, BOTTOM_RIGHT.length);
+        float[] topRight = Arrays.copyOf(TOP_RIGHT, TOP_RIGHT.length);
+        float[] topLeft = Arrays.copyOf(TOP_LEFT, TOP_LEFT.length);
+
+        // Find the bounding box intersection of all frames
+        BoundingBox boundingBox = new BoundingBox(
+                bottomLeft,
+                bottomRight,
+                topRight,
+                topLeft
+        );
+
+        while (extractor.getSampleSize() >= 0) {
+            long sampleTimeUs = extractor.getSampleTime();
+            ByteBuffer inputBuffer = ByteBuffer.allocateDirect((int) extractor.getSampleSize());
+            List<HomographyMatrix> newHomographyList =
+                    MotionPhotoReaderUtils.getHomographies(
+                            extractor,
+                            inputBuffer,
+                            prevHomographyDataList
                     );
-                    int sampleSize = extractor.readSampleData(inputBuffer, 0);
-                    if (sampleSize >= 0) {
-                        // The do_not_stabilize bit is available
-                        ImageMeta.ImageData imageData = ImageMeta.ImageData.parseFrom(inputBuffer);
-                        if (imageData.hasDoNotStabilize()) {
-                            isStabilized = imageData.getDoNotStabilize();
-                        } else {
-                            isStabilized = true;
-                        }
-                    } else {
-                        // The do_not_stabilize bit is unavailable
-                        isStabilized = true;
-                    }
-                    extractor.unselectTrack(i);
-                    break;
-                }
+            timelineBuilder.addFrame(sampleTimeUs, newHomographyList);
+
+            if (!newHomographyList.isEmpty()) {
+                // Update corner positions
+                HomographyMatrix bottomStrip = newHomographyList
+                        .get(NUM_OF_STRIPS - 1)
+                        .convertFromImageToGL(videoWidth, videoHeight);
+                HomographyMatrix topStrip = newHomographyList
+                        .get(0)
+                        .convertFromImageToGL(videoWidth, videoHeight);
+                bottomLeft = bottomStrip.rightMultiplyBy(bottomLeft);
+                bottomRight = bottomStrip.rightMultiplyBy(bottomRight);
+                topRight = topStrip.rightMultiplyBy(topRight);
+                topLeft = topStrip.rightMultiplyBy(topLeft);
+
+                BoundingBox newBoundingBox = new BoundingBox(
+                        bottomLeft,
+                        bottomRight,
+                        topRight,
+                        topLeft
+                );
+                boundingBox = boundingBox.intersect(newBoundingBox);
             }
+            extractor.advance();
         }
-        return isStabilized;
+        stabilizationTimeline = timelineBuilder.build();
+
+        // Compute the scale factor: if the box is wider than it is tall, then we want to scale
+        // the box according to the height; otherwise, we want to scale the box according to its
+        // width
+        cropScaleFactor = Math.max(2.0f / boundingBox.width(), 2.0f / boundingBox.height());
+        cropXTranslate = (boundingBox.xMin + boundingBox.xMax) / 2.0f;
+        cropYTranslate = (boundingBox.yMin + boundingBox.yMax) / 2.0f;
+
+        // Reset the extractor to the beginning
+        extractor.seekTo(0L, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
     }
 
     /**
-     * Shut down all resources allocated to the MotionPhotoReader instance.
+     * Reads the metadata of every sample of the (selected) video track to build the sample index
+     * used by exact seeks. No sample data is read. The extractor is reset to the beginning
+     * afterwards.
      */
-    public void close() {
-        if (outputSurface != null) {
-            outputSurface.release();
-        }
+    private void scanVideoTrack() {
+        SampleIndex.Builder indexBuilder = new SampleIndex.Builder();
         try {
-            fileInputStream.close();
+            while (extractor.getSampleTime() >= 0) {
+                indexBuilder.addSample(
+                        extractor.getSampleTime(),
+                        extractor.getSampleSize(),
+                        (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                );
+                extractor.advance();
+            }
+            sampleIndex = indexBuilder.build();
+        } catch (IllegalArgumentException e) {
+            // Frames are reordered, so exact seeks fall back to seeking to the previous sync frame
+            Log.w(TAG, "Video samples are not in presentation order", e);
+            sampleIndex = null;
+        }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+        // Reset the extractor to the beginning
+        extractor.seekTo(0L, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+    }
+
+    /**
+     * Returns the stabilization data of the frame with the given timestamp, as expected by
+     * OutputSurface.drawImage().
+     */
+    private float[] getStripMatrices(long timestampUs) {
+        if (stabilizationTimeline == null || testMode) {
+            return StabilizationTimeline.getIdentityStripMatrices();
         }
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
-            renderHandler.getLooper().quitSafely();
-        } else {
-            renderHandler.getLooper().quit();
+        return stabilizationTimeline.getStripMatrices(timestampUs);
+    }
+
+    /**
+     * Binds the reader to the surface on which the video is displayed. This only creates the EGL
+     * window surface and sets up the viewport, so it is cheap enough for the UI thread. Frames
+     * played while no surface is bound are decoded but not displayed.
+     *
+     * This can also be called on a bound reader when the surface is resized or replaced (e.g. on
+     * rotation). The decoder, the position of the reader and its stabilization state are kept, and
+     * the current frame is drawn again on the new surface.
+     * @param surface The surface on which the final video should be displayed, or null to detach
+     * the current surface. Detaching blocks until the reader no longer uses the surface.
+     * @param surfaceWidth The width of the surface, in pixels.
+     * @param surfaceHeight The height of the surface, in pixels.
+     * @throws IllegalStateException if the reader was opened without a surface.
+     */
+    public void setSurface(Surface surface, int surfaceWidth, int surfaceHeight) {
+        if (outputSurface == null) {
+            throw new IllegalStateException("Reader was not prepared for rendering to a surface");
         }
-        decoder.release();
-        extractor.release();
+        outputSurface.setSurface(surface, surfaceWidth, surfaceHeight);
     }
 
     /**
-     * Checks whether the Motion Photo video has a succeeding frame.
-     * @return true if there is a frame, otherwise return false.
+     * Adds a surface on which the video is displayed, in addition to the one bound with
+     * setSurface(), with its own size, stabilization and crop settings. This is meant for showing
+     * the same motion photo in several places at once (e.g. a grid tile and a detail view) with a
+     * single reader: every frame is decoded once and then drawn to all surfaces, so adding surfaces
+     * does not add any decoding work.
+     *
+     * Calling this for a surface which has already been added updates its size and settings. The
+     * current frame is drawn to the surface right away.
+     * @param surface The surface to add.
+     * @param surfaceWidth The width of the surface, in pixels.
+     * @param surfaceHeight The height of the surface, in pixels.
+     * @param enableStabilization If true, the video is stabilized on this surface. This has no
+     * effect if the reader does not stabilize the video.
+     * @param enableCrop If true, the video is resized and translated on this surface to hide the
+     * borders of the stabilized video.
+     * @throws IllegalStateException if the reader was opened without a surface.
      */
-    public boolean hasNextFrame() {
-        // Read the next packet and check if it shows a full frame
-        long sampleSize = extractor.getSampleSize();
-        return (sampleSize >= 0);
+    public void addOutputSurface(Surface surface,
+                                 int surfaceWidth,
+                                 int surfaceHeight,
+                                 boolean enableStabilization,
+                                 boolean enableCrop) {
+        if (outputSurface == null) {
+            throw new IllegalStateException("Reader was not prepared for rendering to a surface");
+        }
+        outputSurface.addRenderTarget(
+                surface,
+                surfaceWidth,
+                surfaceHeight,
+                enableCrop ? cropScaleFactor : 1.0f,
+                enableCrop ? cropXTranslate : 0.0f,
+                enableCrop ? cropYTranslate : 0.0f,
+                enableStabilization
+        );
     }
 
     /**
-     * Advances the decoder and extractor by one frame.
+     * Removes a surface added with addOutputSurface(). This blocks until the reader no longer uses
+     * the surface. Does nothing if the surface was not added.
+     * @throws IllegalStateException if the reader was opened without a surface.
      */
-    public void nextFrame() {
-        Bundle bufferData;
-        Integer bufferIndex = -1;
-        long timestampUs = -1;
+    public void removeOutputSurface(Surface surface) {
+        if (outputSurface == null) {
+            throw new IllegalStateException("Reader was not prepared for rendering to a surface");
+        }
+        outputSurface.removeRenderTarget(surface);
+    }
 
-        // We only want to render the final frame if all steps are successful, so this field will
-        // be set to false in the event that any step fails
-        boolean doRender = true;
+    /**
+     * Sets how closely the stabilization of adjacent strips must match for the strips to be
+     * merged and drawn as a single region. Merging strips reduces the vertex and uniform work of
+     * each frame, which helps on low-end devices and when many readers play at once. The default
+     * tolerance is half a pixel, which is not visible.
+     * @param tolerancePixels The maximum distance, in video pixels, by which the corners of a
+     * merged strip may move. A tolerance of 0 only merges strips with identical stabilization.
+     * @throws IllegalArgumentException if the tolerance is negative.
+     * @throws IllegalStateException if the reader was opened without a surface.
+     */
+    public void setStripMergeTolerance(float tolerancePixels) {
+        if (!(tolerancePixels >= 0.0f)) {
+            throw new IllegalArgumentException("Invalid strip merge tolerance: " + tolerancePixels);
+        }
+        if (outputSurface == null) {
+            throw new IllegalStateException("Reader was not prepared for rendering to a surface");
+        }
+        outputSurface.setStripMergeTolerance(tolerancePixels);
+    }
 
-        // Loop through the tracks on the media extractor (note that we only visit the motion track
-        // if we wish to stabilize the video)
-        boolean videoTrackVisited = false;
-        boolean motionTrackVisited = !enableStabilization;
-        while (!(videoTrackVisited && motionTrackVisited)) {
-            int trackIndex = extractor.getSampleTrackIndex();
-            ByteBuffer inputBuffer;
-            if (trackIndex == videoTrackIndex) {
-                // Get the next available input buffer and read frame data
-                bufferIndex = MotionPhotoReaderUtils.getInputBuffer(inputBufferQueue);
-                if (bufferIndex == null) {
-                    doRender = false;
-                    break;
-                }
+    /**
+     * Returns the number of regions that the last frame was drawn with, once adjacent strips with
+     * nearly identical stabilization have been merged (see setStripMergeTolerance()).
+     * @return a number between 1 and the number of stabilization strips, or 0 if no frame has been
+     * drawn yet.
+     */
+    public int getDrawnStripCount() {
+        return outputSurface == null ? 0 : outputSurface.getDrawnStripCount();
+    }
 
-                inputBuffer = decoder.getInputBuffer(bufferIndex);
-                if (inputBuffer == null) {
-                    doRender = false;
-                    break;
-                }
-                MotionPhotoReaderUtils.readFromVideoTrack(
-                        extractor,
+    /**
+     * Captures the current frame as it is displayed: stabilized, cropped and rotated, at the size
+     * of the rotated video. The frame is rendered offscreen, so this also works while no display
+     * surface is bound.
+     * @return a future for the frame. It fails with an IllegalStateException if no frame has been
+     * played yet.
+     * @throws IllegalStateException if the reader was opened without a surface.
+     */
+    public ListenableFuture<Bitmap> grabFrame() {
+        if (outputSurface == null) {
+            throw new IllegalStateException("Reader was not prepared for rendering to a surface");
+        }
+        SettableFuture<Bitmap> future = SettableFuture.create();
+        outputSurface.grabFrame(future);
+        return future;
+    }
+
+    /**
+     * Starts capturing every frame which is played with nextFrame() or seekTo(), as it is
+     * displayed: stabilized, cropped and rotated, at the size of the rotated video. Frames are
+     * rendered offscreen, so this also works while no display surface is bound. To export the
+     * whole video, seek to its start, play it until hasNextFrame() returns false, then call
+     * stopFrameExport().
+     *
+     * Frames are read back asynchronously: the readback of a frame overlaps the rendering of the
+     * next one, so each frame is passed to the callback once the next frame is played (or once
+     * the export is stopped). Frames come from a fixed pool of the given size, and must be released
+     * by the client once they are no longer needed. Frames are dropped while all frames of the pool
+     * are in use.
+     * @param framePoolSize The number of frames that the client may hold at the same time.
+     * @param callback The callback which receives the frames.
+     * @throws IllegalArgumentException if the frame pool size is not positive.
+     * @throws IllegalStateException if the reader was opened without a surface.
+     */
+    public void startFrameExport(int framePoolSize, FrameExportCallback callback) {
+        if (framePoolSize <= 0) {
+            throw new IllegalArgumentException("Invalid frame pool size: " + framePoolSize);
+        }
+        if (outputSurface == null) {
+            throw new IllegalStateException("Reader was not prepared for rendering to a surface");
+        }
+        outputSurface.startFrameExport(framePoolSize, callback::onFrameExported);
+    }
+
+    /**
+     * Stops capturing frames (see startFrameExport()). Frames which are still being read back are
+     * passed to the callback first. Frames held by the client stay valid until they are released.
+     * @return a future which completes once the last frame has been passed to the callback.
+     */
+    public ListenableFuture<Void> stopFrameExport() {
+        SettableFuture<Void> future = SettableFuture.create();
+        if (outputSurface == null) {
+            future.set(null);
+        } else {
+            outputSurface.stopFrameExport(future);
+        }
+        return future;
+    }
+
+    /**
+     * Keeps a downscaled copy of every frame as it is played, and plays the video from these
+     * copies once all frames have been played, without a decoder. This is meant for short videos
+     * which loop for a long time (see setLooping()): the decoder is given back to the
+     * DecoderBudgetManager after the first iteration. The copies are drawn with the stabilization
+     * and crop of each surface, as decoded frames are. Frames which are exported while the reader
+     * plays from the cache have the resolution of the cache.
+     *
+     * The memory of the cache is accounted for by a budget which is shared by all readers (see
+     * setFrameCacheBudget()). If the whole video does not fit in the budget, it is not cached.
+     * If the cache of this reader is evicted to make room for another one, the reader gets a
+     * decoder again and fills its cache on the next iteration. Does nothing if the samples of the
+     * video cannot be indexed (see SEEK_TO_EXACT).
+     * @param downscaleFactor The factor by which frames are downscaled in each dimension. A factor
+     * of 2 takes a quarter of the memory of full-size frames.
+     * @throws IllegalArgumentException if the downscale factor is less than 1.
+     * @throws IllegalStateException if the reader was opened without a surface.
+     */
+    public void enableFrameCache(int downscaleFactor) {
+        if (downscaleFactor < 1) {
+            throw new IllegalArgumentException("Invalid downscale factor: " + downscaleFactor);
+        }
+        if (outputSurface == null) {
+            throw new IllegalStateException("Reader was not prepared for rendering to a surface");
+        }
+        if (sampleIndex == null) {
+            Log.w(TAG, "Video samples are not indexed, frame cache is disabled");
+            return;
+        }
+        long[] timestampsUs = new long[sampleIndex.getSampleCount()];
+        for (int i = 0; i < timestampsUs.length; i++) {
+            timestampsUs[i] = sampleIndex.getTimestampUs(i);
+        }
+        outputSurface.enableFrameCache(downscaleFactor, timestampsUs);
+    }
+
+    /**
+     * Sets the maximum amount of memory that the frame caches of all readers may use together
+     * (see enableFrameCache()). If the caches use more than that, the least recently played ones
+     * are evicted. The default budget is 64 MiB.
+     * @param budgetBytes The budget, in bytes. A budget of 0 disables all frame caches.
+     * @throws IllegalArgumentException if the budget is negative.
+     */
+    public static void setFrameCacheBudget(long budgetBytes) {
+        FrameCacheBudget.getInstance().setBudgetBytes(budgetBytes);
+    }
+
+    /**
+     * Checks whether the reader plays its frames from the frame cache, without a decoder.
+     */
+    @VisibleForTesting
+    boolean isPlayingFromFrameCache() {
+        return isDecoderParked;
+    }
+
+    /**
+     * Chooses where the next frame comes from: the frame cache if it holds every frame, in which
+     * case the decoder is released, or the decoder otherwise, which is obtained again if it was
+     * released for the frame cache. This must be called with the decoder lock held.
+     * @return true if the reader can present a frame, or false if it is suspended.
+     */
+    private boolean acquireFrameSourceLocked() {
+        if (framePool == null && outputSurface != null && outputSurface.isFrameCacheComplete()) {
+            parkDecoderLocked();
+            return true;
+        }
+        if (isDecoderParked) {
+            // The frame cache was evicted, so decoding resumes from the current position
+            isDecoderParked = false;
+            resumeTimestampUs = extractor.getSampleTime();
+            resumeDecoder();
+        }
+        return decoder != null;
+    }
+
+    /**
+     * Releases the decoder while frames are played from the frame cache. The position of the
+     * extractor is kept, so that decoding can resume from there if the cache is evicted.
+     */
+    private void parkDecoderLocked() {
+        if (isDecoderParked) {
+            return;
+        }
+        isDecoderParked = true;
+        if (decoder == null) {
+            // A suspended reader does not need to wait for a decoder anymore
+            DecoderBudgetManager.getInstance().cancelWait(codecClient);
+            return;
+        }
+        if (isLoopStartQueued) {
+            // The first frame of the next iteration is played from the cache instead
+            discardQueuedLoopStartLocked();
+            extractor.seekTo(0L, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+        suspendDecoder();
+    }
+
+    /**
+     * Acquires a decoder from the decoder budget manager, then configures and starts it. This must
+     * be called with the decoder lock held.
+     * @return true if the decoder was started, or false if the decoder budget is exhausted.
+     * @throws IOException if the decoder cannot be created.
+     */
+    private boolean startDecoder() throws IOException {
+        MediaCodec newDecoder =
+                DecoderBudgetManager.getInstance().acquire(codecClient, videoFormat);
+        if (newDecoder == null) {
+            Log.i(TAG, "Decoder budget exhausted, reader is suspended");
+            return false;
+        }
+        newDecoder.setCallback(decoderCallback, renderHandler);
+        if (outputSurface != null) {
+            newDecoder.configure(videoFormat, outputSurface.getDecodeSurface(), null, 0);
+        } else {
+            newDecoder.configure(videoFormat, null, null, 0);
+        }
+        newDecoder.start();
+        decoder = newDecoder;
+        return true;
+    }
+
+    /**
+     * Releases the decoder and saves the position of the reader, so that playback can resume from
+     * the same frame later on. The stabilization state is left untouched. This must be called with
+     * the decoder lock held.
+     */
+    private void suspendDecoder() {
+        revokePending = false;
+        if (decoder == null) {
+            return;
+        }
+        resumeTimestampUs = extractor.getSampleTime();
+        if (isLoopStartQueued) {
+            // The first frame of the next iteration has not been played yet
+            isLoopStartQueued = false;
+            resumeTimestampUs = 0L;
+        }
+        MediaCodec oldDecoder = decoder;
+        decoder = null;
+        DecoderBudgetManager.getInstance().release(codecClient, oldDecoder);
+
+        // Drop the buffer indices of the old decoder
+        inputBufferQueue.clear();
+        outputBufferQueue.clear();
+    }
+
+    /**
+     * Obtains a new decoder for a suspended reader, and decodes (without rendering) from the
+     * previous sync frame up to the frame at which the reader was suspended. This must be called
+     * with the decoder lock held.
+     */
+    private void resumeDecoder() {
+        if (decoder != null || isClosed) {
+            return;
+        }
+        if (isDecoderParked) {
+            // Frames come from the frame cache, so a slot reserved for this reader is not needed
+            DecoderBudgetManager.getInstance().cancelWait(codecClient);
+            return;
+        }
+        try {
+            if (!startDecoder()) {
+                return;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to create a decoder", e);
+            return;
+        }
+
+        if (resumeTimestampUs >= 0) {
+            extractor.seekTo(resumeTimestampUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            decodeForwardTo(resumeTimestampUs);
+        }
+    }
+
+    /**
+     * Feeds video samples to the decoder and discards the decoded frames until the extractor
+     * reaches the given timestamp. Stops early if the running seek request is superseded, in which
+     * case the decoder has still decoded every sample before the position of the extractor.
+     * @param targetTimestampUs The timestamp of the first sample which should not be decoded.
+     */
+    private void decodeForwardTo(long targetTimestampUs) {
+        while (true) {
+            long sampleTimeUs = extractor.getSampleTime();
+            if (sampleTimeUs < 0 || sampleTimeUs >= targetTimestampUs || isSeekSuperseded()) {
+                return;
+            }
+            if (extractor.getSampleTrackIndex() == videoTrackIndex) {
+                Integer bufferIndex = MotionPhotoReaderUtils.getInputBuffer(inputBufferQueue);
+                if (bufferIndex == null) {
+                    return;
+                }
+                ByteBuffer inputBuffer = decoder.getInputBuffer(bufferIndex);
+                if (inputBuffer == null) {
+                    return;
+                }
+                MotionPhotoReaderUtils.readFromVideoTrack(
+                        extractor,
+                        decoder,
+                        inputBuffer,
+                        bufferIndex
+                );
+                Bundle bufferData = MotionPhotoReaderUtils.getOutputBuffer(outputBufferQueue);
+                if (bufferData == null) {
+                    return;
+                }
+                decoder.releaseOutputBuffer(
+                        bufferData.getInt("BUFFER_INDEX"),
+                        /* render = */ false
+                );
+            }
+            extractor.advance();
+        }
+    }
+
+    /**
+     * Releases the decoder lock, first suspending the reader if its decoder was revoked while the
+     * lock was held.
+     */
+    private void unlockDecoder() {
+        if (revokePending) {
+            suspendDecoder();
+        }
+        decoderLock.unlock();
+    }
+
+    /**
+     * Sets the decoder priority of this reader. When decoders are scarce, readers with a higher
+     * priority take the decoders of readers with a lower priority. Readers start with
+     * PRIORITY_VISIBLE.
+     * @param priority One of PRIORITY_OFFSCREEN, PRIORITY_VISIBLE or PRIORITY_FOCUSED.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+        DecoderBudgetManager.getInstance().onPriorityChanged(codecClient);
+    }
+
+    /**
+     * Sets the listener which is told when the reader is resumed after it was suspended, e.g. so
+     * that a player which stopped calling nextFrame() while the reader was suspended can start
+     * playing again.
+     * @param listener The listener, or null to remove it.
+     */
+    public void setResumeListener(@Nullable ResumeListener listener) {
+        resumeListener = listener;
+    }
+
+    /**
+     * Checks whether the reader is waiting for a decoder. A suspended reader does not advance when
+     * nextFrame() or seekTo() are called.
+     * @return true if the reader has no decoder and does not play from its frame cache, otherwise
+     * return false.
+     */
+    public boolean isSuspended() {
+        return decoder == null && !isDecoderParked;
+    }
+
+    /**
+     * Determines whether the motion photo is pre-stabilized, in which case we should not stabilize
+     * the video.
+     * @throws com.google.protobuf.InvalidProtocolBufferException if parsing an invalid proto object
+     */
+    private boolean isAlreadyStabilized(MotionPhotoInfo motionPhotoInfo)
+            throws com.google.protobuf.InvalidProtocolBufferException {
+        // Check if the bit exists
+        //   a. If the bit exists, set isStabilized to the value of the bit
+        //   b. If the bit does not exist, set isStabilized to true
+        int version = motionPhotoInfo.getVersion();
+        boolean isStabilized = false;
+        if (version == MOTION_PHOTO_V1) {
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                assert mime != null;
+                if (mime.startsWith(MOTION_PHOTO_IMAGE_META_MIMETYPE)) {
+                    extractor.selectTrack(i);
+                    ByteBuffer inputBuffer = ByteBuffer.allocateDirect(
+                            (int) extractor.getSampleSize()
+                    );
+                    int sampleSize = extractor.readSampleData(inputBuffer, 0);
+                    if (sampleSize >= 0) {
+                        // The do_not_stabilize bit is available
+                        ImageMeta.ImageData imageData = ImageMeta.ImageData.parseFrom(inputBuffer);
+                        if (imageData.hasDoNotStabilize()) {
+                            isStabilized = imageData.getDoNotStabilize();
+                        } else {
+                            isStabilized = true;
+                        }
+                    } else {
+                        // The do_not_stabilize bit is unavailable
+                        isStabilized = true;
+                    }
+                    extractor.unselectTrack(i);
+                    break;
+                }
+            }
+        }
+        return isStabilized;
+    }
+
+    /**
+     * Shut down all resources allocated to the MotionPhotoReader instance.
+     */
+    public void close() {
+        synchronized (seekRequestLock) {
+            isSeekQueueShutdown = true;
+            seekQueue.shutdown();
+            seekGeneration++;
+            if (pendingSeekFuture != null) {
+                pendingSeekFuture.cancel(/* mayInterruptIfRunning = */ false);
+                pendingSeekFuture = null;
+            }
+        }
+
+        decoderLock.lock();
+        try {
+            isClosed = true;
+            revokePending = false;
+            resumeQueue.shutdown();
+            if (decoder != null) {
+                DecoderBudgetManager.getInstance().release(codecClient, decoder);
+                decoder = null;
+            }
+            DecoderBudgetManager.getInstance().unregister(codecClient);
+        } finally {
+            decoderLock.unlock();
+        }
+
+        if (outputSurface != null) {
+            outputSurface.release();
+        }
+        try {
+            fileInputStream.close();
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        PlaybackScheduler.getInstance().releaseRenderHandler(renderHandler);
+        extractor.release();
+    }
+
+    /**
+     * Checks whether the Motion Photo video has a succeeding frame, in the current playback mode.
+     * @return true if there is a frame (always the case while looping), otherwise return false.
+     */
+    public boolean hasNextFrame() {
+        if (isLooping) {
+            return true;
+        }
+        int mode = playbackMode;
+        if (playbackDirection > 0) {
+            // Read the next packet and check if it shows a full frame
+            long sampleSize = extractor.getSampleSize();
+            if (mode == PLAYBACK_FORWARD) {
+                return sampleSize >= 0;
+            }
+            // Playback turns around at the presented frame, unless it is the first one
+            int presentedIndex = getPresentedIndex();
+            return mode == PLAYBACK_REVERSE
+                    ? presentedIndex != 0
+                    : sampleSize >= 0 || presentedIndex > 0;
+        }
+        if (mode == PLAYBACK_FORWARD) {
+            return getPresentedIndex() + 1 < sampleIndex.getSampleCount();
+        }
+        return reverseFrameIndex >= 0;
+    }
+
+    /**
+     * Sets whether the video starts over once its last frame has been played with nextFrame().
+     * Looping does not go through the seek path: the first sample is queued to the decoder while
+     * the last frame is being presented, and the first frame is then played like any other frame,
+     * with its own stabilization and a presentation time one frame after the last one.
+     * @param looping If true, the video loops. Readers do not loop by default.
+     */
+    public void setLooping(boolean looping) {
+        isLooping = looping;
+    }
+
+    /**
+     * Sets the direction in which nextFrame() plays the video. The change takes effect on the next
+     * call to nextFrame(), from the frame which is presented. Frame timing and stabilization are
+     * the same in both directions: each frame is shown for as long as it is in forward playback.
+     *
+     * In PLAYBACK_REVERSE mode, the video plays backwards and, while looping, starts over from its
+     * last frame. In PLAYBACK_PING_PONG mode, the video plays forwards to its last frame, then
+     * backwards to its first frame, and so on while looping.
+     *
+     * Frames are decoded forwards, a few at a time (see FRAME_WINDOW_BYTES), and presented
+     * backwards from a frame window while the frames before them are decoded into a second window.
+     * The decoding of the next window is spread over the frames of the current one. If the frame
+     * cache holds the whole video (see enableFrameCache()), reverse playback needs no decoder.
+     * @param mode One of PLAYBACK_FORWARD, PLAYBACK_REVERSE or PLAYBACK_PING_PONG.
+     * @throws IllegalArgumentException if the mode is unknown.
+     * @throws IllegalStateException if a mode other than PLAYBACK_FORWARD is set on a reader which
+     * was opened without a surface.
+     */
+    public void setPlaybackMode(int mode) {
+        if (mode != PLAYBACK_FORWARD && mode != PLAYBACK_REVERSE && mode != PLAYBACK_PING_PONG) {
+            throw new IllegalArgumentException("Invalid playback mode: " + mode);
+        }
+        if (mode != PLAYBACK_FORWARD) {
+            if (outputSurface == null) {
+                throw new IllegalStateException(
+                        "Reader was not prepared for rendering to a surface"
+                );
+            }
+            if (sampleIndex == null) {
+                Log.w(TAG, "Video samples are not indexed, reverse playback is disabled");
+                return;
+            }
+        }
+        playbackMode = mode;
+    }
+
+    /**
+     * Sets the speed at which nextFrame() paces the frames, relative to the speed at which the
+     * video was recorded (e.g. 0.5 for half speed, 2 for double speed). The rate only changes the
+     * display times given to the frames: the caller still calls nextFrame() once per frame.
+     * @param playbackRate The playback rate, 1 by default.
+     * @throws IllegalArgumentException if the rate is not a positive number.
+     */
+    public void setPlaybackRate(float playbackRate) {
+        framePacer.setPlaybackRate(playbackRate);
+    }
+
+    /**
+     * Sets what happens to frames which are decoded after their display time, e.g. when many
+     * motion photos play at once on a slow device. With LATE_FRAMES_CATCH_UP, late frames are
+     * displayed as soon as possible and the following frames are paced from there, so playback
+     * slows down. With LATE_FRAMES_DROP, late decoded frames are released without being rendered
+     * and the surface keeps the previous frame, so that playback keeps its speed. Frames played
+     * from the frame cache or backwards (which are not decoded when they are played) and frames
+     * handed out by a reader opened with openForFrames() are never dropped.
+     * @param policy LATE_FRAMES_CATCH_UP (the default) or LATE_FRAMES_DROP.
+     * @throws IllegalArgumentException if the policy is unknown.
+     */
+    public void setLateFramePolicy(int policy) {
+        if (policy != LATE_FRAMES_CATCH_UP && policy != LATE_FRAMES_DROP) {
+            throw new IllegalArgumentException("Invalid late frame policy: " + policy);
+        }
+        framePacer.setDropLateFrames(policy == LATE_FRAMES_DROP);
+    }
+
+    /**
+     * @return the number of frames played by nextFrame() after their display time, whether they
+     * were dropped or not.
+     */
+    public long getLateFrameCount() {
+        return framePacer.getLateFrameCount();
+    }
+
+    /**
+     * @return the number of late frames which were dropped (see setLateFramePolicy()).
+     */
+    public long getDroppedFrameCount() {
+        return framePacer.getDroppedFrameCount();
+    }
+
+    /**
+     * Advances the decoder and extractor by one frame. Does nothing while the reader is suspended.
+     */
+    public void nextFrame() {
+        decoderLock.lock();
+        try {
+            if (!acquireFrameSourceLocked()) {
+                return;
+            }
+            updatePlaybackDirectionLocked();
+            if (playbackDirection < 0) {
+                nextReverseFrameLocked();
+            } else if (isDecoderParked) {
+                nextCachedFrameLocked();
+            } else {
+                nextFrameLocked();
+            }
+            if ((playbackDirection > 0 || isDecoderParked) && reversePrefetcher != null) {
+                // The presented frame does not come from a frame window anymore
+                reversePrefetcher.release();
+            }
+        } finally {
+            unlockDecoder();
+        }
+    }
+
+    private void nextFrameLocked() {
+        Bundle bufferData;
+        Integer bufferIndex = -1;
+        long timestampUs = -1;
+
+        // We only want to render the final frame if all steps are successful, so this field will
+        // be set to false in the event that any step fails
+        boolean doRender = true;
+
+        // The first sample of a new iteration may have been queued while the last frame of the
+        // previous iteration was presented, in which case only its output needs to be collected
+        boolean videoTrackVisited = false;
+        boolean hasRewound = false;
+        if (isLoopStartQueued) {
+            isLoopStartQueued = false;
+            videoTrackVisited = true;
+            bufferData = MotionPhotoReaderUtils.getOutputBuffer(outputBufferQueue);
+            if (bufferData == null) {
+                doRender = false;
+            } else {
+                timestampUs = bufferData.getLong("TIMESTAMP_US");
+                bufferIndex = bufferData.getInt("BUFFER_INDEX");
+            }
+        }
+
+        // Read the next video sample (the stabilization data of the frame comes from the
+        // stabilization timeline, so the motion track is not read during playback)
+        while (!videoTrackVisited) {
+            int trackIndex = extractor.getSampleTrackIndex();
+            ByteBuffer inputBuffer;
+            if (trackIndex == videoTrackIndex) {
+                // Get the next available input buffer and read frame data
+                bufferIndex = MotionPhotoReaderUtils.getInputBuffer(inputBufferQueue);
+                if (bufferIndex == null) {
+                    doRender = false;
+                    break;
+                }
+
+                inputBuffer = decoder.getInputBuffer(bufferIndex);
+                if (inputBuffer == null) {
+                    doRender = false;
+                    break;
+                }
+                MotionPhotoReaderUtils.readFromVideoTrack(
+                        extractor,
                         decoder,
                         inputBuffer,
                         bufferIndex
@@ -520,29 +1413,12 @@ public class MotionPhotoReader {
                 timestampUs = bufferData.getLong("TIMESTAMP_US");
                 bufferIndex = bufferData.getInt("BUFFER_INDEX");
                 videoTrackVisited = true;
-            } else if (trackIndex == motionTrackIndex) {
-                if (!testMode) {
-                    // Get stabilization data from the high resolution extractor (the list of
-                    // homographies will be empty if the frame has already been stabilized)
-                    inputBuffer = ByteBuffer.allocateDirect((int) extractor.getSampleSize());
-                    List<HomographyMatrix> newHomographyList =
-                            MotionPhotoReaderUtils.getHomographies(
-                                    extractor,
-                                    inputBuffer,
-                                    prevHomographyDataList
-                            );
-
-                    // Multiply previous stabilization matrices by new stabilization matrices
-                    List<HomographyMatrix> tempHomographyList = new ArrayList<>();
-                    for (int i = 0; i < newHomographyList.size(); i++) {
-                        HomographyMatrix newStripMatrix = homographyList
-                                .get(i)
-                                .leftMultiplyBy(newHomographyList.get(i));
-                        tempHomographyList.add(newStripMatrix);
-                    }
-                    homographyList = tempHomographyList;
-                }
-                motionTrackVisited = true;
+            } else if (trackIndex == -1 && isLoopingForward() && !hasRewound) {
+                // Start over if the end was reached without the loop start being queued (e.g.
+                // when looping was enabled at the end of the video)
+                rewindForLoopLocked(prevTimestampUs - loopOffsetUs);
+                hasRewound = true;
+                continue;
             } else if (trackIndex == -1) {
                 // If the track index is -1, then the extractor has no frame data to read,
                 // so we don't want to render anything
@@ -555,46 +1431,472 @@ public class MotionPhotoReader {
         }
 
         if (doRender) {
-            // Compute the delay in render timestamp between the current frame and the previous
-            // frame.
-            long frameDeltaNs = (timestampUs - prevTimestampUs) * US_TO_NS;
-            if (frameDeltaNs <= 0) {
-                frameDeltaNs = FALLBACK_FRAME_DELTA_NS;
-            }
-            // Set the previous timestamp ("zero out" the timestamps) to the current system
-            // timestamp if it has not been set yet (i.e. equals zero).
-            long renderTimestampNs;
-            long currentTimestampNs = System.nanoTime();
-            if (prevRenderTimestampNs == 0) {
-                renderTimestampNs = currentTimestampNs + frameDeltaNs;
-            } else {
-                renderTimestampNs = prevRenderTimestampNs + frameDeltaNs;
+            // Timestamps keep increasing from one iteration of a looping video to the next
+            long playbackTimestampUs = timestampUs + loopOffsetUs;
+            if (isLoopingForward() && extractor.getSampleTime() < 0) {
+                queueLoopStartLocked(timestampUs);
             }
-            // Rebase the render timestamp if it has drifted too far behind
-            if (renderTimestampNs < currentTimestampNs) {
-                renderTimestampNs = currentTimestampNs + frameDeltaNs;
+
+            // Frames handed out to the client are never dropped
+            long renderTimestampNs = scheduleFrameLocked(
+                    playbackTimestampUs,
+                    /* canDrop = */ framePool == null
+            );
+            if (renderTimestampNs == FramePacer.DROP_FRAME) {
+                // The surface keeps showing the previous frame
+                decoder.releaseOutputBuffer(bufferIndex, /* render = */ false);
+                isPresentedFrameBehindDecoder = true;
+                return;
             }
-            decoder.releaseOutputBuffer(bufferIndex, /* render = */ true);
-            prevTimestampUs = timestampUs;
-            prevRenderTimestampNs = renderTimestampNs;
+            renderFrame(bufferIndex, timestampUs, renderTimestampNs);
+        }
+    }
+
+    /**
+     * Plays the next frame from the frame cache (see CachedFramePlayback).
+     */
+    private void nextCachedFrameLocked() {
+        long timestampUs = cachedPlayback.nextFrame();
+        if (timestampUs < 0) {
+            if (!isLoopingForward()) {
+                return;
+            }
+            rewindForLoopLocked(prevTimestampUs - loopOffsetUs);
+            timestampUs = cachedPlayback.nextFrame();
+            if (timestampUs < 0) {
+                return;
+            }
+        }
+        long renderTimestampNs = scheduleFrameLocked(
+                timestampUs + loopOffsetUs,
+                /* canDrop = */ false
+        );
+        drawCachedFrameLocked(timestampUs, renderTimestampNs);
+    }
+
+    /**
+     * Presents a frame of the frame cache, or of the front frame window during reverse playback.
+     */
+    private void drawCachedFrameLocked(long timestampUs, long renderTimestampNs) {
+        presentedTimestampUs = timestampUs;
+        outputSurface.drawCachedFrame(
+                getStripMatrices(timestampUs),
+                timestampUs,
+                renderTimestampNs
+        );
+    }
+
+    /**
+     * Checks whether the video starts over from its first frame once its last frame has been
+     * played forwards (rather than turning around, see setPlaybackMode()).
+     */
+    private boolean isLoopingForward() {
+        return isLooping && playbackMode == PLAYBACK_FORWARD;
+    }
+
+    /**
+     * Returns the index of the presented frame, or -1 if no frame has been presented yet.
+     */
+    private int getPresentedIndex() {
+        return presentedTimestampUs < 0 ? -1 : sampleIndex.getFrameIndex(presentedTimestampUs);
+    }
+
+    /**
+     * Turns playback around if the playback mode asks for it: when the mode has changed, or when
+     * a ping-pong pass has reached the end of the video.
+     */
+    private void updatePlaybackDirectionLocked() {
+        int mode = playbackMode;
+        if (playbackDirection > 0) {
+            if (mode == PLAYBACK_REVERSE
+                    || (mode == PLAYBACK_PING_PONG
+                            && presentedTimestampUs >= 0
+                            && extractor.getSampleTime() < 0)) {
+                startReverseLocked();
+            }
+        } else if (mode == PLAYBACK_FORWARD
+                || (mode == PLAYBACK_PING_PONG && reverseFrameIndex < 0 && isLooping)) {
+            startForwardLocked();
+        }
+    }
+
+    /**
+     * Sets the direction of playback, keeping the playback timestamps of the frames increasing
+     * across the turn.
+     * @param direction 1 to play forwards, or -1 to play backwards.
+     * @param pivotTimestampUs The timestamp of the frame at which playback turns around, which is
+     * the last frame presented before the turn.
+     */
+    private void setPlaybackDirectionLocked(int direction, long pivotTimestampUs) {
+        loopOffsetUs = prevTimestampUs - direction * pivotTimestampUs;
+        playbackDirection = direction;
+    }
+
+    /**
+     * Starts playing backwards from the frame before the presented one, or from the last frame if
+     * no frame has been presented yet.
+     */
+    private void startReverseLocked() {
+        discardQueuedLoopStartLocked();
+        int presentedIndex = getPresentedIndex();
+        if (presentedIndex >= 0) {
+            setPlaybackDirectionLocked(-1, presentedTimestampUs);
+            reverseFrameIndex = presentedIndex - 1;
+        } else {
+            setPlaybackDirectionLocked(-1, sampleIndex.getDurationUs());
+            reverseFrameIndex = sampleIndex.getSampleCount() - 1;
+        }
+        reversePrefetcher.invalidate();
+    }
+
+    /**
+     * Starts playing forwards from the frame after the presented one. The decoder decodes (without
+     * rendering) up to the presented frame, so that nextFrameLocked() can go on from there.
+     */
+    private void startForwardLocked() {
+        int presentedIndex = getPresentedIndex();
+        setPlaybackDirectionLocked(1, presentedIndex >= 0 ? presentedTimestampUs : 0L);
+        int nextIndex = presentedIndex + 1;
+        int currentIndex = sampleIndex.getPositionIndex(extractor.getSampleTime());
+        if (currentIndex == nextIndex) {
+            return;
+        }
+        if (nextIndex == 0) {
+            extractor.seekTo(sampleIndex.getTimestampUs(0), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            return;
+        }
+        if (isDecoderParked) {
+            // Frames come from the frame cache, so only the position of the extractor matters
+            cachedPlayback.moveToFrameAfter(presentedIndex);
+            return;
+        }
+        long nextTimestampUs = nextIndex < sampleIndex.getSampleCount()
+                ? sampleIndex.getTimestampUs(nextIndex)
+                : Long.MAX_VALUE;
+        int startIndex = sampleIndex.getDecodeStartIndex(currentIndex, presentedIndex);
+        if (startIndex != currentIndex) {
+            extractor.seekTo(
+                    sampleIndex.getTimestampUs(startIndex),
+                    MediaExtractor.SEEK_TO_PREVIOUS_SYNC
+            );
+        }
+        decodeForwardTo(nextTimestampUs);
+    }
+
+    /**
+     * Presents the next frame backwards, from the front frame window (or from the frame cache if
+     * the decoder is parked), then decodes part of the next window.
+     */
+    private void nextReverseFrameLocked() {
+        if (reverseFrameIndex < 0) {
+            if (playbackMode != PLAYBACK_REVERSE || !isLooping) {
+                return;
+            }
+            // Start over from the last frame, which the window before the first frame holds
+            reverseFrameIndex = sampleIndex.getSampleCount() - 1;
+            loopOffsetUs += sampleIndex.getDurationUs();
+        }
+
+        if (!isDecoderParked) {
+            reversePrefetcher.prepareFrame(
+                    reverseFrameIndex,
+                    /* wrapAround = */ playbackMode == PLAYBACK_REVERSE && isLooping
+            );
+        }
+
+        long timestampUs = sampleIndex.getTimestampUs(reverseFrameIndex);
+        reverseFrameIndex--;
+        long renderTimestampNs = scheduleFrameLocked(
+                loopOffsetUs - timestampUs,
+                /* canDrop = */ false
+        );
+        drawCachedFrameLocked(timestampUs, renderTimestampNs);
 
-            // Wait for the image and render it after it arrives
-            if (outputSurface != null) {
-                outputSurface.awaitNewImage();
-                outputSurface.drawImage(homographyList, renderTimestampNs);
+        if (!isDecoderParked) {
+            reversePrefetcher.prefetchAfterFrame(reverseFrameIndex);
+        }
+    }
+
+    /**
+     * Returns the number of frames that a frame window may hold, which is at least 2.
+     */
+    private int getFrameWindowCapacity() {
+        long frameBytes = 4L
+                * videoFormat.getInteger(MediaFormat.KEY_WIDTH)
+                * videoFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        return (int) Math.max(2, Math.min(FRAME_WINDOW_BYTES / frameBytes, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Continues reverse playback from the frame before the one which a seek has presented.
+     */
+    private void onSeekLocked() {
+        if (playbackDirection > 0 || presentedTimestampUs < 0) {
+            return;
+        }
+        setPlaybackDirectionLocked(-1, presentedTimestampUs);
+        reverseFrameIndex = getPresentedIndex() - 1;
+        reversePrefetcher.invalidate();
+    }
+
+    /**
+     * Computes the time at which a played frame should be displayed, one frame duration (at the
+     * playback rate) after the previous frame, and records it as the previous frame (see
+     * FramePacer).
+     * @param playbackTimestampUs The timestamp of the frame, which keeps increasing from one
+     * iteration of a looping video to the next.
+     * @param canDrop Whether the frame may be dropped if it is late.
+     * @return the render timestamp of the frame, in nanoseconds, or FramePacer.DROP_FRAME if the
+     * frame should be dropped.
+     */
+    private long scheduleFrameLocked(long playbackTimestampUs, boolean canDrop) {
+        long renderTimestampNs = framePacer.schedule(
+                playbackTimestampUs - prevTimestampUs,
+                System.nanoTime(),
+                canDrop
+        );
+        prevTimestampUs = playbackTimestampUs;
+        return renderTimestampNs;
+    }
+
+    /**
+     * Rewinds the extractor to the first sample and starts a new iteration of a looping video.
+     * @param lastTimestampUs The timestamp of the last frame of the video, which is used to
+     * estimate its duration if there is no sample index.
+     */
+    private void rewindForLoopLocked(long lastTimestampUs) {
+        extractor.seekTo(0L, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        loopOffsetUs += sampleIndex != null
+                ? sampleIndex.getDurationUs()
+                : lastTimestampUs + FALLBACK_FRAME_DELTA_NS / US_TO_NS;
+    }
+
+    /**
+     * Rewinds a looping video once its last sample has been decoded, and queues the first sample
+     * to the decoder right away, so that it is decoded while the last frame is being presented.
+     * The next call to nextFrameLocked() then only collects the decoded frame.
+     * @param lastTimestampUs The timestamp of the last frame of the video.
+     */
+    private void queueLoopStartLocked(long lastTimestampUs) {
+        rewindForLoopLocked(lastTimestampUs);
+        if (extractor.getSampleTrackIndex() != videoTrackIndex) {
+            return;
+        }
+        Integer bufferIndex = MotionPhotoReaderUtils.getInputBuffer(inputBufferQueue);
+        if (bufferIndex == null) {
+            return;
+        }
+        ByteBuffer inputBuffer = decoder.getInputBuffer(bufferIndex);
+        if (inputBuffer == null) {
+            return;
+        }
+        MotionPhotoReaderUtils.readFromVideoTrack(extractor, decoder, inputBuffer, bufferIndex);
+        extractor.advance();
+        isLoopStartQueued = true;
+    }
+
+    /**
+     * Drops the first sample of the next iteration if it was queued by queueLoopStartLocked(), so
+     * that the decoder has decoded every sample before the position of the extractor and nothing
+     * more. This must be called before the extractor is moved.
+     */
+    private void discardQueuedLoopStartLocked() {
+        if (!isLoopStartQueued) {
+            return;
+        }
+        isLoopStartQueued = false;
+        Bundle bufferData = MotionPhotoReaderUtils.getOutputBuffer(outputBufferQueue);
+        if (bufferData != null) {
+            decoder.releaseOutputBuffer(bufferData.getInt("BUFFER_INDEX"), /* render = */ false);
+        }
+    }
+
+    /**
+     * Renders a decoded frame to the output surface, or hands it out to the frame callback if the
+     * reader was opened with openForFrames().
+     * @param bufferIndex The index of the decoder output buffer which holds the frame.
+     * @param timestampUs The presentation timestamp of the frame, in microseconds.
+     * @param renderTimestampNs The time at which the frame should be displayed, in nanoseconds.
+     */
+    private void renderFrame(int bufferIndex, long timestampUs, long renderTimestampNs) {
+        if (framePool != null) {
+            deliverFrame(bufferIndex, timestampUs);
+            return;
+        }
+        decoder.releaseOutputBuffer(bufferIndex, /* render = */ true);
+        presentedTimestampUs = timestampUs;
+        isPresentedFrameBehindDecoder = false;
+
+        // Wait for the image and render it after it arrives
+        if (outputSurface != null) {
+            outputSurface.awaitNewImage();
+            outputSurface.drawImage(
+                    getStripMatrices(timestampUs),
+                    timestampUs,
+                    renderTimestampNs
+            );
+        }
+    }
+
+    /**
+     * Copies a decoded frame into a frame of the pool and passes it to the frame callback. The
+     * decoder output buffer is released right away, so that decoding can go on while the client
+     * holds the frame.
+     */
+    private void deliverFrame(int bufferIndex, long timestampUs) {
+        DecodedFrame frame;
+        try {
+            frame = framePool.acquire(TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            frame = null;
+        }
+        if (frame == null) {
+            Log.w(TAG, "No frame released by the client, dropping frame at " + timestampUs);
+            decoder.releaseOutputBuffer(bufferIndex, /* render = */ false);
+            return;
+        }
+
+        try (Image image = decoder.getOutputImage(bufferIndex)) {
+            if (image == null) {
+                Log.e(TAG, "Decoder did not produce an image for frame at " + timestampUs);
+                frame.release();
+                return;
             }
+            frame.set(image, timestampUs, getStripMatrices(timestampUs));
+        } finally {
+            decoder.releaseOutputBuffer(bufferIndex, /* render = */ false);
         }
+        frameCallback.onFrameDecoded(frame);
     }
 
     /**
-     * Sets the decoder and extractor to the frame specified by the given timestamp.
+     * Sets the decoder and extractor to the frame specified by the given timestamp. Does nothing
+     * while the reader is suspended. Nothing is decoded or drawn if the seek lands on the frame
+     * which is displayed already.
+     *
+     * With the sync modes of MediaExtractor, the reader shows a sync frame near the timestamp,
+     * which may be a whole group of pictures away from it. With SEEK_TO_EXACT, the reader shows
+     * the last frame at or before the timestamp: the frames leading up to it are decoded without
+     * being rendered, starting either from the current position or from the previous sync frame,
+     * whichever is estimated to be cheaper (see SampleIndex).
      * @param seekTimestampUs The desired timestamp of the video.
-     * @param mode The sync mode of the extractor.
+     * @param mode The sync mode of the extractor (e.g. MediaExtractor.SEEK_TO_PREVIOUS_SYNC), or
+     * SEEK_TO_EXACT.
      */
     public void seekTo(long seekTimestampUs, int mode) {
+        cancelSeekRequests();
+        decoderLock.lock();
+        try {
+            if (acquireFrameSourceLocked()) {
+                seekToLocked(seekTimestampUs, mode);
+                onSeekLocked();
+            }
+        } finally {
+            unlockDecoder();
+        }
+    }
+
+    /**
+     * Seeks to the video frame which matches the still image of the motion photo (see
+     * MotionPhotoInfo.getStillTimestampUs()). This is an exact seek, so only the frames between
+     * the sync frame before the still frame and the still frame are decoded. Does nothing if the
+     * motion photo does not specify its still timestamp.
+     */
+    public void seekToStill() {
+        if (stillTimestampUs == MotionPhotoInfo.STILL_TIMESTAMP_UNKNOWN) {
+            Log.w(TAG, "Still timestamp is unknown, not seeking");
+            return;
+        }
+        seekTo(stillTimestampUs, SEEK_TO_EXACT);
+    }
+
+    private void seekToLocked(long seekTimestampUs, int mode) {
+        if (isDecoderParked) {
+            seekCachedLocked(seekTimestampUs, mode);
+            return;
+        }
+        discardQueuedLoopStartLocked();
+        if (mode == SEEK_TO_EXACT) {
+            if (sampleIndex != null) {
+                seekToExactLocked(seekTimestampUs);
+                return;
+            }
+            mode = MediaExtractor.SEEK_TO_PREVIOUS_SYNC;
+        }
+
         // Seek extractor to correct location
         extractor.seekTo(seekTimestampUs, mode);
 
+        // Skip decoding if the seek lands on the frame which is presented already (e.g. when a
+        // widget restores its position after its surface was recreated). The output surface still
+        // holds that frame in its texture, and redraws it from there whenever a surface needs it.
+        // The decoder has already decoded this frame last, so it can carry on from here.
+        if (framePool == null
+                && presentedTimestampUs >= 0
+                && !isPresentedFrameBehindDecoder
+                && extractor.getSampleTime() == presentedTimestampUs) {
+            extractor.advance();
+            return;
+        }
+        presentNextFrameLocked();
+    }
+
+    /**
+     * Seeks to the last frame at or before the given timestamp, decoding the frames before it
+     * without rendering them. Their stabilization data does not need to be applied, since the
+     * stabilization timeline is looked up by timestamp for the frame which is rendered.
+     */
+    private void seekToExactLocked(long seekTimestampUs) {
+        int targetIndex = sampleIndex.getFrameIndex(seekTimestampUs);
+        if (targetIndex < 0) {
+            return;
+        }
+        long targetTimestampUs = sampleIndex.getTimestampUs(targetIndex);
+
+        // The decoder has decoded every sample before the position of the extractor
+        int currentIndex = sampleIndex.getPositionIndex(extractor.getSampleTime());
+        if (framePool == null
+                && targetTimestampUs == presentedTimestampUs
+                && currentIndex == targetIndex + 1) {
+            return;
+        }
+
+        int startIndex = sampleIndex.getDecodeStartIndex(currentIndex, targetIndex);
+        if (startIndex != currentIndex) {
+            extractor.seekTo(
+                    sampleIndex.getTimestampUs(startIndex),
+                    MediaExtractor.SEEK_TO_PREVIOUS_SYNC
+            );
+        }
+        decodeForwardTo(targetTimestampUs);
+        if (extractor.getSampleTime() != targetTimestampUs) {
+            if (!isSeekSuperseded()) {
+                Log.w(TAG, "Failed to decode up to frame at " + targetTimestampUs);
+            }
+            return;
+        }
+        presentNextFrameLocked();
+    }
+
+    /**
+     * Seeks while frames are played from the frame cache (see CachedFramePlayback).
+     */
+    private void seekCachedLocked(long seekTimestampUs, int mode) {
+        long timestampUs = cachedPlayback.seekTo(seekTimestampUs, mode);
+        if (timestampUs < 0) {
+            return;
+        }
+        prevTimestampUs = timestampUs;
+        loopOffsetUs = 0L;
+        drawCachedFrameLocked(timestampUs, framePacer.getPrevRenderTimestampNs());
+    }
+
+    /**
+     * Decodes the sample at which the extractor is positioned and renders it right away, as the
+     * result of a seek.
+     */
+    private void presentNextFrameLocked() {
         Bundle bufferData;
         Integer bufferIndex = -1;
         long timestampUs = -1;
@@ -603,11 +1905,10 @@ public class MotionPhotoReader {
         // be set to false in the event that any step fails
         boolean doRender = true;
 
-        // Loop through the tracks on the media extractor (note that we only visit the motion track
-        // if we wish to stabilize the video)
+        // Read the next video sample (the stabilization data of the frame comes from the
+        // stabilization timeline, so the motion track is not read during playback)
         boolean videoTrackVisited = false;
-        boolean motionTrackVisited = !enableStabilization;
-        while (!(videoTrackVisited && motionTrackVisited)) {
+        while (!videoTrackVisited) {
             int trackIndex = extractor.getSampleTrackIndex();
             ByteBuffer inputBuffer;
             if (trackIndex == videoTrackIndex) {
@@ -639,13 +1940,6 @@ public class MotionPhotoReader {
                 timestampUs = bufferData.getLong("TIMESTAMP_US");
                 bufferIndex = bufferData.getInt("BUFFER_INDEX");
                 videoTrackVisited = true;
-            } else if (trackIndex == motionTrackIndex) {
-                // Set the stabilization matrices to the appropriate scaling matrix for each strip
-                homographyList = new ArrayList<>();
-                for (int i = 0; i < NUM_OF_STRIPS; i++) {
-                    homographyList.add(new HomographyMatrix());
-                }
-                motionTrackVisited = true;
             } else if (trackIndex == -1) {
                 doRender = false;
                 break;
@@ -656,18 +1950,129 @@ public class MotionPhotoReader {
         }
 
         if (doRender) {
-            long renderTimestampNs = prevRenderTimestampNs;
-            decoder.releaseOutputBuffer(bufferIndex, /* render = */ true);
+            long renderTimestampNs = framePacer.getPrevRenderTimestampNs();
 
             // Reset the previous timestamp and previous render timestamp
             prevTimestampUs = timestampUs;
+            loopOffsetUs = 0L;
+            renderFrame(bufferIndex, timestampUs, renderTimestampNs);
+        }
+    }
+
+    /**
+     * Requests a seek to the exact frame at the given timestamp (see SEEK_TO_EXACT) without
+     * blocking the caller, e.g. while the user drags a timeline. Seek requests run one at a time
+     * in the background. A new request (or a call to seekTo()) supersedes all earlier ones: those
+     * which have not started are dropped, and the one in progress stops decoding at the next frame,
+     * so that only the latest target is decoded.
+     * @param seekTimestampUs The desired timestamp of the video.
+     * @param previewSyncFrame If true, and the requested frame can only be reached by decoding
+     * from a sync frame, that sync frame is shown first while the reader decodes forward to the
+     * requested frame. This gives quick feedback during a fast drag.
+     * @return a future which completes once the requested frame has been shown (or right away
+     * while the reader is suspended). It is cancelled if the request is superseded, or if the
+     * reader is closed first.
+     */
+    public ListenableFuture<Void> requestSeek(long seekTimestampUs, boolean previewSyncFrame) {
+        SettableFuture<Void> future = SettableFuture.create();
+        synchronized (seekRequestLock) {
+            if (isSeekQueueShutdown) {
+                future.cancel(/* mayInterruptIfRunning = */ false);
+                return future;
+            }
+            supersedeSeekRequestsLocked();
+            long generation = seekGeneration;
+            pendingSeekFuture = future;
+            seekQueue.execute(() -> runSeekRequest(
+                    generation,
+                    seekTimestampUs,
+                    previewSyncFrame,
+                    future
+            ));
+        }
+        return future;
+    }
+
+    /**
+     * Supersedes all seek requests which are pending or in progress.
+     */
+    private void cancelSeekRequests() {
+        synchronized (seekRequestLock) {
+            supersedeSeekRequestsLocked();
+            pendingSeekFuture = null;
+        }
+    }
+
+    private void supersedeSeekRequestsLocked() {
+        seekGeneration++;
+        seekQueue.clear();
+        if (pendingSeekFuture != null) {
+            pendingSeekFuture.cancel(/* mayInterruptIfRunning = */ false);
+        }
+    }
 
-            // Wait for the image and render it after it arrives
-            if (outputSurface != null) {
-                outputSurface.awaitNewImage();
-                outputSurface.drawImage(homographyList, renderTimestampNs);
+    /**
+     * Runs a seek request on the seek queue, unless it has been superseded in the meantime.
+     */
+    private void runSeekRequest(long generation,
+                                long seekTimestampUs,
+                                boolean previewSyncFrame,
+                                SettableFuture<Void> future) {
+        decoderLock.lock();
+        try {
+            if (generation == seekGeneration && acquireFrameSourceLocked()) {
+                runningSeekGeneration = generation;
+                if (previewSyncFrame
+                        && !isDecoderParked
+                        && isDecodedFromSyncFrame(seekTimestampUs)) {
+                    seekToLocked(seekTimestampUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                }
+                if (!isSeekSuperseded()) {
+                    seekToLocked(seekTimestampUs, SEEK_TO_EXACT);
+                }
+                onSeekLocked();
             }
+        } finally {
+            runningSeekGeneration = -1L;
+            unlockDecoder();
+        }
+
+        // Does nothing if the request was superseded, since its future is cancelled
+        future.set(null);
+    }
+
+    /**
+     * Checks whether an exact seek to the given timestamp restarts decoding from a sync frame
+     * other than the requested frame, rather than going on from the current position.
+     */
+    private boolean isDecodedFromSyncFrame(long seekTimestampUs) {
+        if (sampleIndex == null) {
+            return false;
         }
+        int targetIndex = sampleIndex.getFrameIndex(seekTimestampUs);
+        if (targetIndex < 0) {
+            return false;
+        }
+        int currentIndex = sampleIndex.getPositionIndex(extractor.getSampleTime());
+        int startIndex = sampleIndex.getDecodeStartIndex(currentIndex, targetIndex);
+        return startIndex != currentIndex && startIndex != targetIndex;
+    }
+
+    /**
+     * Checks whether the seek request which is running on the current thread has been superseded.
+     * This must be called with the decoder lock held.
+     */
+    private boolean isSeekSuperseded() {
+        return runningSeekGeneration >= 0 && runningSeekGeneration != seekGeneration;
+    }
+
+    /**
+     * Returns the index of the samples of the video track, or null if the samples could not be
+     * indexed (see scanVideoTrack()).
+     */
+    @Nullable
+    SampleIndex getSampleIndex() {
+        return sampleIndex;
     }
 
     /**
@@ -678,6 +2083,147 @@ public class MotionPhotoReader {
         return extractor.getSampleTime();
     }
 
+    /**
+     * Receives the decoded frames of a reader opened with openForFrames().
+     */
+    public interface FrameCallback {
+        /**
+         * Called on the thread which calls nextFrame() or seekTo(), for every decoded frame. The
+         * frame must be released once it is no longer needed, either right away or later on from
+         * any thread.
+         */
+        void onFrameDecoded(DecodedFrame frame);
+    }
+
+    /**
+     * Is told when a suspended reader has obtained a decoder again (see setResumeListener()).
+     */
+    public interface ResumeListener {
+        /**
+         * Called on a shared decode thread once the reader can play frames again.
+         */
+        void onResumed(MotionPhotoReader reader);
+    }
+
+    /**
+     * Receives the frames captured by a reader after startFrameExport().
+     */
+    public interface FrameExportCallback {
+        /**
+         * Called on the render thread for every captured frame, so this should return quickly.
+         * The frame must be released once it is no longer needed, either right away or later on
+         * from any thread.
+         */
+        void onFrameExported(RenderedFrame frame);
+    }
+
+    /**
+     * Decodes the frame windows of reverse playback with the decoder of the reader. This must be
+     * used with the decoder lock held.
+     */
+    private class FrameWindowDecoder implements ReverseWindowPrefetcher.WindowDecoder {
+        @Override
+        public int getPositionIndex() {
+            return sampleIndex.getPositionIndex(extractor.getSampleTime());
+        }
+
+        @Override
+        public void seekTo(int index) {
+            extractor.seekTo(
+                    sampleIndex.getTimestampUs(index),
+                    MediaExtractor.SEEK_TO_PREVIOUS_SYNC
+            );
+        }
+
+        @Override
+        public void startWindow(long[] timestampsUs) {
+            outputSurface.startFrameWindow(timestampsUs);
+        }
+
+        @Override
+        public boolean decodeSample(boolean capture) {
+            Integer bufferIndex = null;
+            ByteBuffer inputBuffer = null;
+            Bundle bufferData = null;
+            if (extractor.getSampleTrackIndex() == videoTrackIndex) {
+                bufferIndex = MotionPhotoReaderUtils.getInputBuffer(inputBufferQueue);
+            }
+            if (bufferIndex != null) {
+                inputBuffer = decoder.getInputBuffer(bufferIndex);
+            }
+            if (inputBuffer != null) {
+                MotionPhotoReaderUtils.readFromVideoTrack(
+                        extractor,
+                        decoder,
+                        inputBuffer,
+                        bufferIndex
+                );
+                bufferData = MotionPhotoReaderUtils.getOutputBuffer(outputBufferQueue);
+            }
+            if (bufferData == null) {
+                Log.w(TAG, "Failed to decode frames for reverse playback");
+                return false;
+            }
+            extractor.advance();
+
+            int outputIndex = bufferData.getInt("BUFFER_INDEX");
+            decoder.releaseOutputBuffer(outputIndex, /* render = */ capture);
+            if (capture) {
+                outputSurface.captureWindowFrame(bufferData.getLong("TIMESTAMP_US"));
+            }
+            return true;
+        }
+
+        @Override
+        public void swapWindows() {
+            outputSurface.swapFrameWindows();
+        }
+
+        @Override
+        public void clearWindows() {
+            outputSurface.clearFrameWindows();
+        }
+    }
+
+    /**
+     * Connects the reader to the DecoderBudgetManager.
+     */
+    private class CodecClient implements DecoderBudgetManager.Client {
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public void onDecoderRevoked() {
+            revokePending = true;
+            // If the decoder is in use, the thread using it suspends the reader once it is done
+            if (decoderLock.tryLock()) {
+                unlockDecoder();
+            }
+        }
+
+        @Override
+        public void onDecoderAvailable() {
+            // Resume on a decode thread, since the caller may hold the lock of another reader
+            resumeQueue.execute(() -> {
+                boolean isResumed;
+                decoderLock.lock();
+                try {
+                    boolean wasSuspended = isSuspended();
+                    resumeDecoder();
+                    isResumed = wasSuspended && !isSuspended();
+                } finally {
+                    unlockDecoder();
+                }
+                ResumeListener listener = resumeListener;
+                if (isResumed && listener != null) {
+                    listener.onResumed(MotionPhotoReader.this);
+                }
+            });
+        }
+    }
+
     /**
      * @return a MotionPhotoInfo object containing motion photo metadata.
      * @throws IOException if the given file cannot be found.
@@ -688,6 +2234,8 @@ public class MotionPhotoReader {
     }
 
     /**
+     * Decodes the still image of the motion photo at full resolution. To show the image in a
+     * smaller view, use PosterLoader, which decodes it downsampled and caches the result.
      * @return a bitmap of the JPEG stored by the motion photo.
      * @throws IOException if the BitmapFactory cannot decode the given file.
      */
@@ -2,6 +2,7 @@ package com.google.android.libraries.motionphotoreader;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Rect;
 import android.media.MediaExtractor;
 import android.os.Build;
 import android.os.Parcel;
@@ -17,11 +18,13 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import com.adobe.internal.xmp.XMPException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
 
 /**
  * Widget that can load and play motion photos video files.
@@ -30,6 +33,9 @@ import java.util.concurrent.Executors;
  *   - autoloop: If true, the video automatically loops when the end is reached. Otherwise, stop
  *     video after it ends.
  *   - backgroundColor: The color of the surface which the video does not cover.
+ *
+ * Motion photo readers are prepared in the background (see MotionPhotoReader.prepareAsync()), and
+ * bound to the widget surface once both the reader and the surface are ready.
  */
 
 @RequiresApi(api = 29)
@@ -42,10 +48,14 @@ public class MotionPhotoWidget extends SurfaceView {
     private final boolean enableStabilization;
     private final boolean enableCrop;
 
-    private ExecutorService executor;
-    private MotionPhotoReader reader;
+    private PlaybackScheduler.TaskQueue taskQueue;
+    private volatile MotionPhotoReader reader;
+    private boolean isReaderBound;
+    private boolean isPositionRestored;
+    private ListenableFuture<MotionPhotoReader> pendingReader;
     private File file;
     private SurfaceHolder surfaceHolder;
+    private boolean isSurfaceReady;
     private PlayProcess playProcess;
 
     /** Fields that are saved for the view state. */
@@ -89,12 +99,11 @@ public class MotionPhotoWidget extends SurfaceView {
     }
 
     /**
-     * Sets up the executor, the play/pause process to be executed, and the surface texture
-     * listener. This should only be called in a constructor, and should be called in every
-     * constructor.
+     * Sets up the play/pause process to be executed and the surface texture listener. This should
+     * only be called in a constructor, and should be called in every constructor.
      */
     private void initialize() {
-        // Set up the executor and play/pause process to facilitate stopping and starting the video
+        // Set up the play/pause process to facilitate stopping and starting the video
         playProcess = new PlayProcess();
 
         surfaceHolder = this.getHolder();
@@ -110,64 +119,150 @@ public class MotionPhotoWidget extends SurfaceView {
                 surfaceHolder = holder;
                 surfaceWidth = width;
                 surfaceHeight = height;
+                isSurfaceReady = true;
 
-                // Create a new motion photo reader
-                if (reader != null) {
-                    reader.close();
-                }
-                try {
-                    reader = MotionPhotoReader.open(
-                            file,
-                            holder.getSurface(),
-                            surfaceWidth,
-                            surfaceHeight,
-                            enableStabilization,
-                            enableCrop
-                    );
-                } catch (IOException | XMPException e) {
-                    Log.e(TAG, "Exception occurred while opening file", e);
-                }
-
-                // Continue playing the video if not in paused state
-                reader.seekTo(savedTimestampUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
-                if (!isPaused) {
-                    play();
+                if (reader == null) {
+                    // The reader is bound once it has been prepared
+                    if (pendingReader == null && file != null) {
+                        prepareReader();
+                    }
+                } else if (isReaderBound) {
+                    // Resize (or replace) the surface of the reader without reopening it
+                    reader.setSurface(holder.getSurface(), surfaceWidth, surfaceHeight);
+                } else {
+                    bindReader();
                 }
             }
 
             @Override
             public void surfaceDestroyed(SurfaceHolder holder) {
                 Log.d(TAG, "Surface destroyed");
+                isSurfaceReady = false;
                 playProcess.cancel();
+
+                // Keep the reader, but stop it from using the surface which is going away
+                if (reader != null && isReaderBound) {
+                    reader.setSurface(/* surface = */ null, /* surfaceWidth = */ 0,
+                            /* surfaceHeight = */ 0);
+                    isReaderBound = false;
+                }
             }
         });
     }
 
+    /**
+     * Starts preparing a motion photo reader for the current file in the background. The reader
+     * is bound to the surface as soon as both are ready.
+     */
+    private void prepareReader() {
+        ListenableFuture<MotionPhotoReader> future = MotionPhotoReader.prepareAsync(
+                file,
+                enableStabilization,
+                enableCrop
+        );
+        pendingReader = future;
+        Futures.addCallback(future, new FutureCallback<MotionPhotoReader>() {
+            @Override
+            public void onSuccess(MotionPhotoReader preparedReader) {
+                // Ignore readers which were superseded while being prepared
+                if (future != pendingReader) {
+                    preparedReader.close();
+                    return;
+                }
+                pendingReader = null;
+                reader = preparedReader;
+                reader.setLooping(autoloop);
+                // Playback stops while the reader is suspended, and goes on once it is resumed
+                reader.setResumeListener(resumedReader -> post(() -> {
+                    if (resumedReader == reader && !isPaused && isShown()) {
+                        play();
+                    }
+                }));
+                isPositionRestored = false;
+                if (isSurfaceReady) {
+                    bindReader();
+                }
+            }
+
+            @Override
+            public void onFailure(@NonNull Throwable t) {
+                if (future == pendingReader) {
+                    pendingReader = null;
+                }
+                if (!(t instanceof CancellationException)) {
+                    Log.e(TAG, "Exception occurred while opening file", t);
+                }
+            }
+        }, getContext().getMainExecutor());
+    }
+
+    /**
+     * Binds the reader to the surface, then shows the saved frame (the first time a reader is
+     * bound) and continues playing the video if not in paused state.
+     */
+    private void bindReader() {
+        reader.setSurface(surfaceHolder.getSurface(), surfaceWidth, surfaceHeight);
+        isReaderBound = true;
+        reader.setPriority(hasFocus()
+                ? MotionPhotoReader.PRIORITY_FOCUSED
+                : MotionPhotoReader.PRIORITY_VISIBLE);
+        if (!isPositionRestored) {
+            reader.seekTo(savedTimestampUs, MotionPhotoReader.SEEK_TO_EXACT);
+            isPositionRestored = true;
+        }
+        if (!isPaused) {
+            play();
+        }
+    }
+
     @Override
     protected void onVisibilityChanged(@NonNull View changedView, int visibility) {
         super.onVisibilityChanged(changedView, visibility);
+        if (reader == null) {
+            return;
+        }
+        // Hidden widgets keep their reader, but let visible widgets take its decoder if needed
         switch (visibility) {
             case VISIBLE:
+                reader.setPriority(hasFocus()
+                        ? MotionPhotoReader.PRIORITY_FOCUSED
+                        : MotionPhotoReader.PRIORITY_VISIBLE);
+                if (!isPaused) {
+                    play();
+                }
                 break;
             case INVISIBLE:
             case GONE:
-                if (reader != null) {
-                    reader.close();
-                }
+                playProcess.cancel();
+                reader.setPriority(MotionPhotoReader.PRIORITY_OFFSCREEN);
                 break;
         }
     }
 
+    @Override
+    protected void onFocusChanged(boolean gainFocus,
+                                  int direction,
+                                  @Nullable Rect previouslyFocusedRect) {
+        super.onFocusChanged(gainFocus, direction, previouslyFocusedRect);
+        if (reader != null && isShown()) {
+            reader.setPriority(gainFocus
+                    ? MotionPhotoReader.PRIORITY_FOCUSED
+                    : MotionPhotoReader.PRIORITY_VISIBLE);
+        }
+    }
+
     @Override
     public void onAttachedToWindow() {
         super.onAttachedToWindow();
-        executor = Executors.newSingleThreadExecutor();
+        // Playback runs on the decode threads shared by all widgets
+        taskQueue = PlaybackScheduler.getInstance().newTaskQueue();
     }
 
     @Override
     public void onDetachedFromWindow() {
         super.onDetachedFromWindow();
-        executor.shutdown();
+        playProcess.cancel();
+        taskQueue.shutdown();
     }
 
     @Override
@@ -177,11 +272,7 @@ public class MotionPhotoWidget extends SurfaceView {
 
         // Wrap our super class's state with our own
         SavedState myState = new SavedState(superState);
-        if (reader != null) {
-            myState.savedTimestampUs = reader.getCurrentTimestampUs();
-        } else {
-            myState.savedTimestampUs = 0L;
-        }
+        myState.savedTimestampUs = getCurrentTimestampUs();
         myState.isPaused = this.isPaused;
         myState.surfaceWidth = this.surfaceWidth;
         myState.surfaceHeight = this.surfaceHeight;
@@ -204,15 +295,19 @@ public class MotionPhotoWidget extends SurfaceView {
     }
 
     /**
-     * Plays the motion photo video.
+     * Plays the motion photo video. If the reader is still being prepared, the video starts
+     * playing once it is ready.
      */
     public void play() {
         if (playProcess != null) {
             playProcess.cancel();
         }
-        playProcess = new PlayProcess();
-        executor.submit(playProcess);
         isPaused = false;
+        if (reader == null) {
+            return;
+        }
+        playProcess = new PlayProcess();
+        taskQueue.execute(playProcess);
     }
 
     /**
@@ -227,6 +322,10 @@ public class MotionPhotoWidget extends SurfaceView {
      * Reset the motion photo video to beginning.
      */
     public void restart() {
+        if (reader == null) {
+            savedTimestampUs = 0L;
+            return;
+        }
         reader.seekTo(0L, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
     }
 
@@ -235,6 +334,9 @@ public class MotionPhotoWidget extends SurfaceView {
      * @return the current timestamp of the motion photo reader, in microseconds.
      */
     public long getCurrentTimestampUs() {
+        if (reader == null) {
+            return savedTimestampUs;
+        }
         return reader.getCurrentTimestampUs();
     }
 
@@ -247,28 +349,26 @@ public class MotionPhotoWidget extends SurfaceView {
     }
 
     /**
-     * Set the motion photo file to a specified file.
+     * Set the motion photo file to a specified file. The file is opened in the background, and
+     * its first frame is shown once it is ready. Errors while opening the file are logged.
      * @param file is the motion photo file to play.
      */
     public void setFile(File file) throws IOException, XMPException {
         this.file = file;
-        // Switch the motion photo reader if another file is already playing
+        savedTimestampUs = 0L;
+
+        // Switch the motion photo reader if another file is already playing or being prepared
         if (reader != null) {
             pause();
             reader.close();
-            reader = MotionPhotoReader.open(
-                    file,
-                    surfaceHolder.getSurface(),
-                    surfaceWidth,
-                    surfaceHeight,
-                    enableStabilization,
-                    enableCrop
-            );
-            // Show the first frame
-            if (reader.hasNextFrame()) {
-                reader.nextFrame();
-            }
+            reader = null;
+            isReaderBound = false;
+        }
+        if (pendingReader != null) {
+            pendingReader.cancel(/* mayInterruptIfRunning = */ false);
+            pendingReader = null;
         }
+        prepareReader();
     }
 
     /**
@@ -281,21 +381,32 @@ public class MotionPhotoWidget extends SurfaceView {
 
     /**
      * A Runnable for starting up the player.
+     *
+     * Each run plays a single frame and then queues the next run, so that the shared decode
+     * threads are not blocked by a single widget for the whole duration of the playback.
      */
     private class PlayProcess implements Runnable {
         private volatile boolean exit;
 
         @Override
         public void run() {
-            // Start playing video
-            while (!exit) {
-                if (reader.hasNextFrame()) {
-                    reader.nextFrame();
-                } else {
-                    if (autoloop) {
-                        reader.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
-                    }
-                }
+            // Stop playing while the reader is waiting for a decoder (its resume listener starts
+            // playing again once it has one)
+            MotionPhotoReader reader = MotionPhotoWidget.this.reader;
+            if (exit || reader == null || reader.isSuspended()) {
+                return;
+            }
+
+            // Play the next frame (the reader starts over by itself if autoloop is set)
+            if (reader.hasNextFrame()) {
+                reader.nextFrame();
+            } else {
+                // Stop playing once the end of the video is reached
+                return;
+            }
+
+            if (!exit) {
+                taskQueue.execute(this);
             }
         }
 
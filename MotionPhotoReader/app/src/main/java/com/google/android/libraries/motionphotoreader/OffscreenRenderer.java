@@ -0,0 +1,246 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+
+import static android.opengl.GLES30.GL_COLOR_ATTACHMENT0;
+import static android.opengl.GLES30.GL_FRAMEBUFFER;
+import static android.opengl.GLES30.GL_FRAMEBUFFER_COMPLETE;
+import static android.opengl.GLES30.GL_MAP_READ_BIT;
+import static android.opengl.GLES30.GL_PIXEL_PACK_BUFFER;
+import static android.opengl.GLES30.GL_RENDERBUFFER;
+import static android.opengl.GLES30.GL_RGBA;
+import static android.opengl.GLES30.GL_RGBA8;
+import static android.opengl.GLES30.GL_STREAM_READ;
+import static android.opengl.GLES30.GL_UNSIGNED_BYTE;
+import static android.opengl.GLES30.GL_VIEWPORT;
+import static android.opengl.GLES30.glBindBuffer;
+import static android.opengl.GLES30.glBindFramebuffer;
+import static android.opengl.GLES30.glBindRenderbuffer;
+import static android.opengl.GLES30.glBufferData;
+import static android.opengl.GLES30.glCheckFramebufferStatus;
+import static android.opengl.GLES30.glDeleteBuffers;
+import static android.opengl.GLES30.glDeleteFramebuffers;
+import static android.opengl.GLES30.glDeleteRenderbuffers;
+import static android.opengl.GLES30.glFramebufferRenderbuffer;
+import static android.opengl.GLES30.glGenBuffers;
+import static android.opengl.GLES30.glGenFramebuffers;
+import static android.opengl.GLES30.glGenRenderbuffers;
+import static android.opengl.GLES30.glGetError;
+import static android.opengl.GLES30.glGetIntegerv;
+import static android.opengl.GLES30.glMapBufferRange;
+import static android.opengl.GLES30.glReadPixels;
+import static android.opengl.GLES30.glRenderbufferStorage;
+import static android.opengl.GLES30.glUnmapBuffer;
+import static android.opengl.GLES30.glViewport;
+
+/**
+ * Renders frames into an offscreen framebuffer and reads them back into a pool of reusable
+ * RenderedFrame buffers. This must only be used on the render thread, with the EGL context of the
+ * owning OutputSurface current.
+ *
+ * Readback is double-buffered through two pixel buffer objects. glReadPixels() only queues the
+ * copy of a frame into one of them, and the pixels are mapped and copied out once the next frame
+ * has been queued (or when flush() is called). The GPU thus renders and reads back frame N + 1
+ * while the render thread copies out frame N, and neither waits for the other.
+ *
+ * Frames are drawn upside down, since glReadPixels() returns the bottom row first, so that the
+ * read back pixels are in the top-to-bottom order of Android bitmaps without any row shuffling.
+ */
+@RequiresApi(api = 23)
+class OffscreenRenderer {
+
+    private static final String TAG = "OffscreenRenderer";
+    private static final int PIXEL_BUFFER_COUNT = 2;
+
+    /**
+     * Receives the frames which have been read back.
+     */
+    interface Listener {
+        /**
+         * Called on the render thread for every frame which has been read back. The frame must be
+         * released once it is no longer needed.
+         */
+        void onFrameRendered(RenderedFrame frame);
+    }
+
+    private final int width;
+    private final int height;
+    private final BlockingQueue<RenderedFrame> framePool;
+    private final Listener listener;
+
+    private final int framebuffer;
+    private final int renderbuffer;
+    private final int[] pixelBuffers = new int[PIXEL_BUFFER_COUNT];
+
+    /** The timestamps of the frames which are being read back into each pixel buffer. */
+    private final long[] pendingTimestampsUs = new long[PIXEL_BUFFER_COUNT];
+    private final boolean[] isPending = new boolean[PIXEL_BUFFER_COUNT];
+    private int nextPixelBuffer = 0;
+
+    private final int[] savedViewport = new int[4];
+
+    /**
+     * Creates the framebuffer and the pixel buffers, and allocates the frame pool.
+     * @param width The width of the rendered frames, in pixels.
+     * @param height The height of the rendered frames, in pixels.
+     * @param frameCount The number of frames in the pool, i.e. the number of frames that the
+     * listener may hold at the same time.
+     * @param listener The listener which receives the frames.
+     */
+    OffscreenRenderer(int width, int height, int frameCount, Listener listener) {
+        this.width = width;
+        this.height = height;
+        this.framePool = RenderedFrame.createPool(width, height, frameCount);
+        this.listener = listener;
+
+        // Set up a framebuffer with a single color attachment
+        int[] handles = new int[1];
+        glGenFramebuffers(/* n = */ 1, handles, /* offset = */ 0);
+        framebuffer = handles[0];
+        glGenRenderbuffers(/* n = */ 1, handles, /* offset = */ 0);
+        renderbuffer = handles[0];
+        glBindRenderbuffer(GL_RENDERBUFFER, renderbuffer);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_RGBA8, width, height);
+        glBindRenderbuffer(GL_RENDERBUFFER, 0);
+        glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+        glFramebufferRenderbuffer(
+                GL_FRAMEBUFFER,
+                GL_COLOR_ATTACHMENT0,
+                GL_RENDERBUFFER,
+                renderbuffer
+        );
+        if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+            Log.e(TAG, "Offscreen framebuffer is incomplete");
+        }
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+
+        // Set up the pixel buffers which frames are read back into
+        glGenBuffers(PIXEL_BUFFER_COUNT, pixelBuffers, /* offset = */ 0);
+        for (int pixelBuffer : pixelBuffers) {
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, pixelBuffer);
+            glBufferData(
+                    GL_PIXEL_PACK_BUFFER,
+                    RenderedFrame.getSize(width, height),
+                    /* data = */ null,
+                    GL_STREAM_READ
+            );
+        }
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+        if (glGetError() != 0) {
+            Log.e(TAG, "Failed to set up offscreen render target");
+        }
+    }
+
+    /**
+     * Draws a frame into the offscreen framebuffer and queues its readback, then copies out the
+     * previous frame (if any) and passes it to the listener. The framebuffer and the viewport of
+     * the display surface are restored afterwards.
+     * @param textureRender The texture render which holds the current frame.
+     * @param stripMatrices The stabilization data of the frame (see StabilizationTimeline).
+     * @param timestampUs The presentation timestamp of the frame, in microseconds.
+     * @return the number of regions that the frame was drawn with (see TextureRender.drawFrame()).
+     */
+    int render(TextureRender textureRender, float[] stripMatrices, long timestampUs) {
+        glGetIntegerv(GL_VIEWPORT, savedViewport, /* offset = */ 0);
+        glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+        glViewport(0, 0, width, height);
+        textureRender.setFlipVertically(true);
+        int regionCount = textureRender.drawFrame(stripMatrices);
+        textureRender.setFlipVertically(false);
+
+        // Queue the readback into the next pixel buffer, without waiting for it
+        int index = nextPixelBuffer;
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, pixelBuffers[index]);
+        glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, /* offset = */ 0);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        isPending[index] = true;
+        pendingTimestampsUs[index] = timestampUs;
+        nextPixelBuffer = (index + 1) % PIXEL_BUFFER_COUNT;
+
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        glViewport(savedViewport[0], savedViewport[1], savedViewport[2], savedViewport[3]);
+        if (glGetError() != 0) {
+            Log.e(TAG, "Failed to render offscreen frame");
+        }
+
+        // The pixel buffer which is used next holds the previous frame
+        completeReadback(nextPixelBuffer);
+        return regionCount;
+    }
+
+    /**
+     * Copies out all frames whose readback is still pending, oldest first, and passes them to the
+     * listener.
+     */
+    void flush() {
+        for (int i = 0; i < PIXEL_BUFFER_COUNT; i++) {
+            completeReadback((nextPixelBuffer + i) % PIXEL_BUFFER_COUNT);
+        }
+    }
+
+    /**
+     * @return the width of the rendered frames, in pixels.
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the rendered frames, in pixels.
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Deletes the framebuffer and the pixel buffers. Pending readbacks are dropped, but frames held
+     * by the listener stay valid.
+     */
+    void release() {
+        glDeleteFramebuffers(/* n = */ 1, new int[] {framebuffer}, /* offset = */ 0);
+        glDeleteRenderbuffers(/* n = */ 1, new int[] {renderbuffer}, /* offset = */ 0);
+        glDeleteBuffers(PIXEL_BUFFER_COUNT, pixelBuffers, /* offset = */ 0);
+    }
+
+    /**
+     * Maps a pixel buffer and copies its frame into a frame of the pool. The frame is dropped if
+     * every frame of the pool is held by the listener.
+     */
+    private void completeReadback(int index) {
+        if (!isPending[index]) {
+            return;
+        }
+        isPending[index] = false;
+        long timestampUs = pendingTimestampsUs[index];
+        RenderedFrame frame = framePool.poll();
+        if (frame == null) {
+            Log.w(TAG, "No frame released by the client, dropping frame at " + timestampUs);
+            return;
+        }
+        frame.setInUse(true);
+
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, pixelBuffers[index]);
+        ByteBuffer pixels = (ByteBuffer) glMapBufferRange(
+                GL_PIXEL_PACK_BUFFER,
+                /* offset = */ 0,
+                RenderedFrame.getSize(width, height),
+                GL_MAP_READ_BIT
+        );
+        if (pixels == null) {
+            Log.e(TAG, "Failed to map pixel buffer for frame at " + timestampUs);
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+            frame.release();
+            return;
+        }
+        frame.set(pixels, timestampUs);
+        glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        listener.onFrameRendered(frame);
+    }
+}
@@ -1,30 +1,55 @@
 package com.google.android.libraries.motionphotoreader;
 
+import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.opengl.EGL14;
-import android.opengl.EGLConfig;
-import android.opengl.EGLContext;
-import android.opengl.EGLDisplay;
-import android.opengl.EGLExt;
-import android.opengl.EGLSurface;
 import android.os.Handler;
 import android.util.Log;
 import android.view.Surface;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import com.google.common.util.concurrent.SettableFuture;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.android.libraries.motionphotoreader.Constants.IMAGE_TIMEOUT_MS;
+import static com.google.android.libraries.motionphotoreader.Constants.TIMEOUT_MS;
 
 /**
  * Holds state associated with a Surface used for MediaCodec decoder input.
  *
- * Creates an EGL surface from a given surface (obtained in OutputSurface.setSurface()) and gets a
- * SurfaceTexture from a TextureRender object to hold frames from the decoder. The TextureRender
- * draws frames to the EGL surface.
+ * Gets a SurfaceTexture from a TextureRender object to hold frames from the decoder, and creates an
+ * EGL surface from a given surface (obtained in OutputSurface.setSurface()). The TextureRender
+ * draws frames to the EGL surface. The decode surface is available as soon as the instance is
+ * constructed, so a decoder can be configured before the display surface exists; frames drawn
+ * before setSurface() is called are dropped.
+ *
+ * The display surface can be replaced or resized at any time with setSurface(). This only touches
+ * the EGL window surface and the viewport, and the last frame is drawn again so that a paused video
+ * does not go blank.
+ *
+ * More display surfaces can be added with addRenderTarget(), each with its own size, crop transform
+ * and stabilization setting (see RenderTarget). Every decoded frame is uploaded to the texture once
+ * and then drawn to each target, so adding targets does not add any decoding work.
+ *
+ * Frames can also be rendered offscreen and read back (see OffscreenRenderer): a single frame with
+ * grabFrame(), or every drawn frame while an export is running. Offscreen rendering does not need
+ * a display surface.
+ *
+ * Decoded frames can also be kept in a FrameCache (see enableFrameCache()), and drawn again from
+ * there with drawCachedFrame() without being decoded. Reverse playback uses two small frame
+ * windows the same way: one is drawn from while the frames before it are decoded into the other
+ * (see startFrameWindow()).
+ *
+ * The render handler may be shared with other output surfaces, which also share its EGL context and
+ * shader program (see GlContextManager). Every task posted to it thus makes this instance's surface
+ * current before issuing any GL calls, and every draw binds this instance's texture.
  */
 
 @RequiresApi(api = 23)
@@ -33,10 +58,8 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
 
     private final Object frameSyncObject = new Object();
 
-    private EGLDisplay eglDisplay;
-    private EGLContext eglContext;
-    private EGLSurface eglSurface;
-    private EGLConfig eglConfig;
+    /** The EGL context of the render thread (render thread only). */
+    private GlContextManager.SharedContext glContext;
 
     private final Handler renderHandler;
     private final MotionPhotoInfo motionPhotoInfo;
@@ -47,6 +70,65 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
     private TextureRender textureRender;
     private boolean frameAvailable;
 
+    /**
+     * Whether a decoded frame was requested and has not reached the decode Surface yet, the task
+     * which uses that frame, deferred until it arrives, and the latch counted down once the task
+     * has run or was dropped (render thread only).
+     */
+    private boolean isAwaitingImage;
+    @Nullable private Runnable pendingImageTask;
+    @Nullable private CountDownLatch pendingImageDone;
+    /** Whether the last requested frame never arrived, so that its draw is skipped. */
+    private boolean isImageSkipped;
+    private final Runnable imageTimeout = this::onImageTimeout;
+
+    /**
+     * The display surfaces in drawing order, including the one managed by setSurface() (render
+     * thread only).
+     */
+    private final List<RenderTarget> renderTargets = new ArrayList<>();
+    private RenderTarget primaryTarget;
+
+    /** The crop transform of the surface managed by setSurface() (render thread only). */
+    private float primaryScaleFactor = 1.0f;
+    private float primaryXTranslate = 0.0f;
+    private float primaryYTranslate = 0.0f;
+    private final float[] primaryUMatrix = new float[16];
+
+    /**
+     * The stabilization of the last drawn frame, and an ID which changes whenever a new frame is
+     * drawn (render thread only).
+     */
+    private float[] lastStripMatrices;
+    private long lastTimestampUs;
+    private long lastFrameId = -1L;
+
+    /** The offscreen render target of the running frame export, if any (render thread only). */
+    private OffscreenRenderer exportRenderer;
+
+    /**
+     * The offscreen render target of grabFrame(), kept until the output size changes so that its
+     * framebuffer and frame pool are reused, and the future of the running grab (render thread
+     * only).
+     */
+    private OffscreenRenderer grabRenderer;
+    private SettableFuture<Bitmap> grabFuture;
+
+    /** The copies of the decoded frames, if enabled (created and used on the render thread). */
+    private volatile FrameCache frameCache;
+
+    /**
+     * The frame windows of reverse playback: the one which is drawn from, and the one which is
+     * being filled (render thread only). Windows are bounded by their number of frames rather
+     * than by the shared frame cache budget.
+     */
+    private FrameCache frontWindow;
+    private FrameCache backWindow;
+    private final FrameCacheBudget frameWindowBudget = new FrameCacheBudget(Long.MAX_VALUE);
+
+    /** The number of strip regions in the last drawn frame (see StripMerger). */
+    private volatile int drawnStripCount = 0;
+
     /**
      * Creates a new output surface.
      * @param renderHandler The handler thread on which all calls from this instance will run.
@@ -60,21 +142,22 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
         }
         this.motionPhotoInfo = motionPhotoInfo;
         eglSetup();
+        setupTextureRender();
     }
 
     /**
      * Sets up the texture render object for preprocessing video frames before rendering to the
      * final output surface.
-     * @param surfaceWidth The width of the surface on which the video is displayed, in pixels.
-     * @param surfaceHeight The height of the surface on which the video is displayed, in pixels.
      */
-    private void setupTextureRender(int surfaceWidth, int surfaceHeight) {
+    private void setupTextureRender() {
         renderHandler.post(() -> {
+            makeCurrent();
             textureRender = new TextureRender();
             textureRender.setVideoWidth(motionPhotoInfo.getWidth());
             textureRender.setVideoHeight(motionPhotoInfo.getHeight());
             textureRender.setVideoRotation(motionPhotoInfo.getRotation());
-            textureRender.onSurfaceCreated(surfaceWidth, surfaceHeight);
+            textureRender.onSurfaceCreated(glContext);
+            updatePrimaryUMatrix();
 
             // Get the texture for motion photo outputs
             surfaceTextureHandle = textureRender.getTextureID();
@@ -82,115 +165,217 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
             // After the motion photo texture has been created, the motion photo surface can be
             // initialized
             surfaceTexture = new SurfaceTexture(surfaceTextureHandle);
-            surfaceTexture.setOnFrameAvailableListener(this);
+            surfaceTexture.setOnFrameAvailableListener(this, renderHandler);
             Surface decodeSurface = new Surface(surfaceTexture);
             decodeSurfaceFuture.set(decodeSurface);
         });
     }
 
     /**
-     * Configures and initializes the EGL context.
+     * Acquires the EGL context of the render thread, which is shared with the other output surfaces
+     * rendering on the same thread (see GlContextManager).
      */
     private void eglSetup() {
-        renderHandler.post(() -> {
-            // Initialize EGL display
-            eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
-            if (eglDisplay == EGL14.EGL_NO_DISPLAY) {
-                throw new RuntimeException("Unable to get EGL14 display");
-            }
-
-            // Initialize EGL
-            int[] version = new int[2];
-            if (!EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
-                eglDisplay = null;
-                throw new RuntimeException("Unable to initialize EGL14");
-            }
-
-            // Configure EGL
-            int[] numConfigs = new int[1];
-            EGLConfig[] configs = new EGLConfig[1];
-            int[] attributes = {
-                    EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
-                    EGL14.EGL_RED_SIZE, 8,
-                    EGL14.EGL_GREEN_SIZE, 8,
-                    EGL14.EGL_BLUE_SIZE, 8,
-                    EGL14.EGL_ALPHA_SIZE, 8,
-                    EGL14.EGL_STENCIL_SIZE, 0,
-                    EGL14.EGL_NONE
-            };
-            if (!EGL14.eglChooseConfig(
-                    eglDisplay,
-                    attributes, /* attrib_listOffset = */0,
-                    configs, /* configsOffset = */0,
-                    configs.length, numConfigs, /* num_configOffset = */ 0
-            )) {
-                throw new RuntimeException("eglChooseConfig failed");
-            } else if (numConfigs[0] == 0) {
-                throw new IllegalArgumentException("Could not find suitable EGLConfig");
-            }
-            eglConfig = configs[0];
-
-            // Initialize EGL context
-            eglContext = EGL14.eglCreateContext(
-                    eglDisplay,
-                    eglConfig,
-                    EGL14.EGL_NO_CONTEXT,
-                    new int[] {
-                            EGL14.EGL_CONTEXT_CLIENT_VERSION, 3,
-                            EGL14.EGL_NONE
-                    },
-                    /* offset = */ 0
-            );
-
-            // Make context current (with EGL_NO_SURFACE)
-            eglSurface = EGL14.EGL_NO_SURFACE;
-            if (!EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
-                Log.e(TAG, "Failed to make context current");
-            }
-        });
+        renderHandler.post(() -> glContext = GlContextManager.getInstance().acquire());
     }
 
     /**
      * Associate a Surface object with this OutputSurface on which the final video will be
-     * displayed. This should be called immediately after the instance is constructed.
-     * @param surface The Surface object on which the final video will be displayed.
+     * displayed, or update the size of the current one. The EGL window surface is only recreated
+     * if the Surface object changes.
+     *
+     * Passing a null surface detaches the current one. In that case, this blocks until the EGL
+     * window surface has been destroyed, so that the caller can safely let go of the Surface
+     * (e.g. in SurfaceHolder.Callback.surfaceDestroyed()).
+     * @param surface The Surface object on which the final video will be displayed, or null.
      * @param surfaceWidth The width of the Surface object, in pixels.
      * @param surfaceHeight The height of the Surface object, in pixels.
      */
     public void setSurface(Surface surface, int surfaceWidth, int surfaceHeight) {
-        // Set up the texture render
-        setupTextureRender(surfaceWidth, surfaceHeight);
+        postAndWait(
+                () -> updateSurface(surface, surfaceWidth, surfaceHeight),
+                /* wait = */ surface == null
+        );
+    }
+
+    private void updateSurface(Surface surface, int surfaceWidth, int surfaceHeight) {
+        // Abort if context is null
+        if (glContext == null) {
+            Log.i(TAG, "EGL Context is null, can't set EGL surface");
+            return;
+        }
 
+        if (primaryTarget == null || surface != primaryTarget.getSurface()) {
+            // Destroy the EGL surface of the previous display surface, if any
+            if (primaryTarget != null) {
+                destroyRenderTarget(primaryTarget);
+                primaryTarget = null;
+            }
+            if (surface == null) {
+                return;
+            }
+            primaryTarget = new RenderTarget(glContext, surface);
+            updatePrimaryTransform();
+            renderTargets.add(/* index = */ 0, primaryTarget);
+        }
+        primaryTarget.setSize(surfaceWidth, surfaceHeight);
+
+        // Draw the last frame again, since the new surface (or the resized buffers) are empty
+        redraw(primaryTarget);
+    }
+
+    /**
+     * Adds a display surface which every frame is drawn to, in addition to the one set with
+     * setSurface(). If the surface has already been added (or set with setSurface()), its size and
+     * settings are updated instead. The last frame is drawn to the surface right away.
+     * @param surface The surface to add.
+     * @param surfaceWidth The width of the surface, in pixels.
+     * @param surfaceHeight The height of the surface, in pixels.
+     * @param scaleFactor The crop scale of the video on this surface (see setCropTransform()).
+     * @param xTranslate The crop translation of the video along the x-axis.
+     * @param yTranslate The crop translation of the video along the y-axis.
+     * @param enableStabilization If false, frames are drawn unstabilized on this surface.
+     */
+    public void addRenderTarget(Surface surface,
+                                int surfaceWidth,
+                                int surfaceHeight,
+                                float scaleFactor,
+                                float xTranslate,
+                                float yTranslate,
+                                boolean enableStabilization) {
         renderHandler.post(() -> {
-            // Abort if context is null
-            if (eglContext == null) {
-                Log.i(TAG, "EGL Context is null, can't set EGL surface");
+            if (glContext == null) {
+                Log.i(TAG, "EGL Context is null, can't add render target");
                 return;
             }
+            RenderTarget target = findRenderTarget(surface);
+            if (target == null) {
+                target = new RenderTarget(glContext, surface);
+                renderTargets.add(target);
+            }
+            target.setSize(surfaceWidth, surfaceHeight);
+            target.setTransform(
+                    scaleFactor,
+                    xTranslate,
+                    yTranslate,
+                    motionPhotoInfo.getRotation(),
+                    enableStabilization
+            );
+            redraw(target);
+        });
+    }
 
-            // Destroy EGL surface if valid
-            if (!Objects.equals(eglSurface, EGL14.EGL_NO_SURFACE)) {
-                EGL14.eglDestroySurface(eglDisplay, eglSurface);
+    /**
+     * Removes a display surface added with addRenderTarget() (or set with setSurface()). This
+     * blocks until the EGL window surface has been destroyed, so that the caller can safely let go
+     * of the surface afterwards.
+     */
+    public void removeRenderTarget(Surface surface) {
+        postAndWait(() -> {
+            RenderTarget target = findRenderTarget(surface);
+            if (target == null) {
+                return;
+            }
+            if (target == primaryTarget) {
+                primaryTarget = null;
             }
+            destroyRenderTarget(target);
+        }, /* wait = */ true);
+    }
 
-            // Initialize EGL surface
-            if (surface == null) {
-                eglSurface = EGL14.EGL_NO_SURFACE;
-            } else {
-                eglSurface = EGL14.eglCreateWindowSurface(
-                        eglDisplay,
-                        eglConfig,
-                        surface,
-                        new int[] { EGL14.EGL_NONE },
-                        /* offset = */ 0
-                );
+    /**
+     * Returns the number of display surfaces which frames are drawn to.
+     */
+    int getRenderTargetCount() {
+        CountDownLatch counted = new CountDownLatch(1);
+        int[] count = new int[1];
+        renderHandler.post(() -> {
+            count[0] = renderTargets.size();
+            counted.countDown();
+        });
+        try {
+            counted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return count[0];
+    }
+
+    private RenderTarget findRenderTarget(Surface surface) {
+        for (RenderTarget target : renderTargets) {
+            if (target.getSurface() == surface) {
+                return target;
             }
+        }
+        return null;
+    }
 
-            // Make EGL surface current
-            if (!EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
-                Log.e(TAG, "Failed to make context current");
+    /**
+     * Removes a render target and destroys its EGL window surface, which must not be current
+     * anymore.
+     */
+    private void destroyRenderTarget(RenderTarget target) {
+        renderTargets.remove(target);
+        glContext.makeCurrent(EGL14.EGL_NO_SURFACE);
+        target.release();
+        makeCurrent();
+    }
+
+    /**
+     * Draws the last frame again on a render target from the texture, which still holds it. Does
+     * nothing if no frame has been drawn yet, or if the target already shows the last frame with
+     * its current size and settings (e.g. when a surface is set again without being resized).
+     */
+    private void redraw(RenderTarget target) {
+        if (lastStripMatrices == null || target.isPresenting(lastFrameId)) {
+            return;
+        }
+        target.makeCurrent();
+        drawnStripCount = target.draw(
+                textureRender,
+                lastStripMatrices,
+                lastFrameId,
+                System.nanoTime()
+        );
+    }
+
+    /**
+     * Posts a task to the render thread, and optionally blocks until it has run.
+     */
+    private void postAndWait(Runnable task, boolean wait) {
+        CountDownLatch taskDone = new CountDownLatch(1);
+        renderHandler.post(() -> {
+            try {
+                task.run();
+            } finally {
+                taskDone.countDown();
             }
         });
+
+        if (wait) {
+            try {
+                if (!taskDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Timed out while waiting for the render thread");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Makes the EGL context of the render thread current, with the first display surface of this
+     * instance (if any). This must be called at the start of every render task, since other output
+     * surfaces may have made their own surface current on the same thread in the meantime.
+     */
+    private void makeCurrent() {
+        if (glContext == null) {
+            Log.e(TAG, "Output surface has been released");
+            return;
+        }
+        glContext.makeCurrent(renderTargets.isEmpty()
+                ? EGL14.EGL_NO_SURFACE
+                : renderTargets.get(0).getEglSurface());
     }
 
     /**
@@ -198,18 +383,38 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
      */
     public void release() {
         renderHandler.post(() -> {
-            if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
-                EGL14.eglDestroySurface(eglDisplay, eglSurface);
-                EGL14.eglDestroyContext(eglDisplay, eglContext);
-                EGL14.eglReleaseThread();
-                EGL14.eglTerminate(eglDisplay);
+            // The context is only destroyed once no output surface renders on this thread anymore,
+            // so every object owned by this instance is deleted explicitly
+            if (glContext != null) {
+                glContext.makeCurrent(EGL14.EGL_NO_SURFACE);
+                if (exportRenderer != null) {
+                    exportRenderer.release();
+                }
+                if (grabRenderer != null) {
+                    grabRenderer.release();
+                }
+                if (frameCache != null) {
+                    frameCache.release();
+                }
+                releaseFrameWindows();
+                for (RenderTarget target : renderTargets) {
+                    target.release();
+                }
+                if (textureRender != null) {
+                    textureRender.release();
+                }
+                GlContextManager.getInstance().release(glContext);
+                glContext = null;
             }
 
-            eglDisplay = EGL14.EGL_NO_DISPLAY;
-            eglContext = EGL14.EGL_NO_CONTEXT;
-            eglSurface = EGL14.EGL_NO_SURFACE;
-
+            dropPendingImageTask();
+            renderTargets.clear();
+            primaryTarget = null;
             textureRender = null;
+            exportRenderer = null;
+            grabRenderer = null;
+            frameCache = null;
+            lastStripMatrices = null;
             if (surfaceTexture != null) {
                 surfaceTexture.release();
                 surfaceTexture = null;
@@ -239,52 +444,518 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
     }
 
     /**
-     * Wait for a new frame to be decoded to the decode Surface.
+     * Wait for a new frame to be decoded to the decode Surface. The render thread is shared with
+     * other readers, so it never blocks: the next drawImage() is deferred until the frame arrives,
+     * and skipped if it does not arrive within IMAGE_TIMEOUT_MS.
      */
     public void awaitNewImage() {
+        renderHandler.post(() -> awaitImage(/* imageTask = */ null, /* imageDone = */ null));
+    }
+
+    /**
+     * Requests the next frame of the decode Surface. The frame is latched into the external
+     * texture as soon as it is available, without blocking the render thread, and is skipped if it
+     * does not arrive within IMAGE_TIMEOUT_MS. This must run on the render thread.
+     * @param imageTask The task to run once the frame is latched, or null if it is set later.
+     * @param imageDone A latch counted down once the task has run or the frame was skipped.
+     */
+    private void awaitImage(@Nullable Runnable imageTask, @Nullable CountDownLatch imageDone) {
+        dropPendingImageTask();
+        isAwaitingImage = true;
+        isImageSkipped = false;
+        pendingImageTask = imageTask;
+        pendingImageDone = imageDone;
+        renderHandler.postDelayed(imageTimeout, IMAGE_TIMEOUT_MS);
+        latchNewImage();
+    }
+
+    /**
+     * Latches the awaited frame into the external texture if it is available on the decode
+     * Surface, and runs the task which uses it. This must run on the render thread.
+     */
+    private void latchNewImage() {
+        if (!isAwaitingImage || surfaceTexture == null) {
+            return;
+        }
+        synchronized (frameSyncObject) {
+            if (!frameAvailable) {
+                return;
+            }
+            frameAvailable = false;
+        }
+        Runnable imageTask = pendingImageTask;
+        CountDownLatch imageDone = pendingImageDone;
+        isAwaitingImage = false;
+        pendingImageTask = null;
+        pendingImageDone = null;
+        renderHandler.removeCallbacks(imageTimeout);
+        try {
+            makeCurrent();
+            surfaceTexture.updateTexImage();
+            if (imageTask != null) {
+                imageTask.run();
+            }
+        } finally {
+            if (imageDone != null) {
+                imageDone.countDown();
+            }
+        }
+    }
+
+    /**
+     * Gives up on the awaited frame, whose task is dropped. This runs on the render thread.
+     */
+    private void onImageTimeout() {
+        if (isAwaitingImage) {
+            Log.w(TAG, "Timed out waiting for a decoded frame, skipping it");
+            dropPendingImageTask();
+            isImageSkipped = true;
+        }
+    }
+
+    /**
+     * Stops waiting for the awaited frame, if any, without running its task. This must run on the
+     * render thread.
+     */
+    private void dropPendingImageTask() {
+        renderHandler.removeCallbacks(imageTimeout);
+        if (pendingImageDone != null) {
+            pendingImageDone.countDown();
+        }
+        isAwaitingImage = false;
+        pendingImageTask = null;
+        pendingImageDone = null;
+    }
+
+    /**
+     * Sets the crop transform of the video on the display surface set with setSurface(), and in
+     * grabbed and exported frames (see TextureRender.setUMatrix()).
+     */
+    public void setCropTransform(float scaleFactor, float xTranslate, float yTranslate) {
         renderHandler.post(() -> {
-            final int TIMEOUT_MS = 500;
-
-            synchronized(frameSyncObject) {
-                while (!frameAvailable) {
-                    try {
-                        frameSyncObject.wait(TIMEOUT_MS);
-                        if (!frameAvailable) {
-                            throw new RuntimeException("Surface frame wait timed out");
-                        }
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "Failed to wait for available frame");
-                    }
+            primaryScaleFactor = scaleFactor;
+            primaryXTranslate = xTranslate;
+            primaryYTranslate = yTranslate;
+            updatePrimaryUMatrix();
+            if (primaryTarget != null) {
+                updatePrimaryTransform();
+            }
+        });
+    }
+
+    private void updatePrimaryUMatrix() {
+        TextureRender.computeUMatrix(
+                primaryUMatrix,
+                primaryScaleFactor,
+                primaryXTranslate,
+                primaryYTranslate,
+                motionPhotoInfo.getRotation()
+        );
+    }
+
+    private void updatePrimaryTransform() {
+        primaryTarget.setTransform(
+                primaryScaleFactor,
+                primaryXTranslate,
+                primaryYTranslate,
+                motionPhotoInfo.getRotation(),
+                /* enableStabilization = */ true
+        );
+    }
+
+    /**
+     * Draw the image to every display Surface, and to the offscreen render target if a frame
+     * export is running.
+     * @param stripMatrices The stabilization data of the frame, as returned by
+     * StabilizationTimeline.getStripMatrices().
+     * @param timestampUs The presentation timestamp of the frame, in microseconds.
+     * @param renderTimestampNs The time at which the frame should be displayed, in nanoseconds.
+     */
+    public void drawImage(float[] stripMatrices, long timestampUs, long renderTimestampNs) {
+        renderHandler.post(() -> {
+            Runnable draw = () -> {
+                if (textureRender == null) {
+                    return;
                 }
-                frameAvailable = false;
+                textureRender.setSourceTexture(0);
+                drawFrame(stripMatrices, timestampUs, renderTimestampNs);
+
+                // Keep a copy of the decoded frame once it has been displayed
+                if (frameCache != null) {
+                    makeCurrent();
+                    frameCache.capture(textureRender, timestampUs);
+                }
+            };
+            if (isAwaitingImage) {
+                pendingImageTask = draw;
+            } else if (isImageSkipped) {
+                isImageSkipped = false;
+            } else {
+                draw.run();
             }
-            surfaceTexture.updateTexImage();
         });
     }
 
-    public void setCropTransform(float scaleFactor, float xTranslate, float yTranslate) {
-        renderHandler.post(() -> textureRender.setUMatrix(scaleFactor, xTranslate, yTranslate));
+    /**
+     * Draws a frame from the frame cache instead of the latest decoded frame (see drawImage()).
+     * Nothing is drawn if the frame is not cached (e.g. because the cache was evicted).
+     * @param stripMatrices The stabilization data of the frame.
+     * @param timestampUs The presentation timestamp of the frame, in microseconds.
+     * @param renderTimestampNs The time at which the frame should be displayed, in nanoseconds.
+     */
+    public void drawCachedFrame(float[] stripMatrices, long timestampUs, long renderTimestampNs) {
+        renderHandler.post(() -> {
+            int texture = frameCache == null ? 0 : frameCache.getTexture(timestampUs);
+            if (texture == 0 && frontWindow != null) {
+                texture = frontWindow.getTexture(timestampUs);
+            }
+            if (texture == 0) {
+                Log.w(TAG, "Frame at " + timestampUs + " is not cached");
+                return;
+            }
+            textureRender.setSourceTexture(texture);
+            drawFrame(stripMatrices, timestampUs, renderTimestampNs);
+        });
+    }
+
+    /**
+     * Draws the current source texture of the TextureRender to every display surface and to the
+     * offscreen render target of the running export, if any. This must run on the render thread.
+     */
+    private void drawFrame(float[] stripMatrices, long timestampUs, long renderTimestampNs) {
+        lastStripMatrices = stripMatrices;
+        lastTimestampUs = timestampUs;
+        lastFrameId++;
+
+        // Drop the frame if there is no display surface yet and nothing is exported
+        if (renderTargets.isEmpty() && exportRenderer == null) {
+            return;
+        }
+
+        // The texture holds the decoded frame, so it is drawn to each target without decoding
+        // it again
+        int regionCount = 0;
+        for (RenderTarget target : renderTargets) {
+            target.makeCurrent();
+            regionCount = Math.max(
+                    regionCount,
+                    target.draw(textureRender, stripMatrices, lastFrameId, renderTimestampNs)
+            );
+        }
+        if (exportRenderer != null) {
+            makeCurrent();
+            textureRender.setUMatrix(primaryUMatrix);
+            regionCount = Math.max(
+                    regionCount,
+                    exportRenderer.render(textureRender, stripMatrices, timestampUs)
+            );
+        }
+        drawnStripCount = regionCount;
+    }
+
+    /**
+     * Starts keeping a downscaled copy of every decoded frame, so that the video can be drawn
+     * again with drawCachedFrame() without decoding it (see FrameCache). A previous cache is
+     * dropped.
+     * @param downscaleFactor The factor by which the frames are downscaled in each dimension.
+     * @param timestampsUs The timestamps of all frames of the video, in increasing order.
+     */
+    public void enableFrameCache(int downscaleFactor, long[] timestampsUs) {
+        renderHandler.post(() -> {
+            makeCurrent();
+            clearFrameCacheSource();
+            if (frameCache != null) {
+                frameCache.release();
+            }
+            frameCache = new FrameCache(
+                    Math.max(motionPhotoInfo.getWidth() / downscaleFactor, 1),
+                    Math.max(motionPhotoInfo.getHeight() / downscaleFactor, 1),
+                    timestampsUs,
+                    FrameCacheBudget.getInstance(),
+                    () -> renderHandler.post(this::onFrameCacheEvicted)
+            );
+        });
+    }
+
+    /**
+     * Checks whether every frame of the video can be drawn from the frame cache. This can be
+     * called from any thread.
+     */
+    public boolean isFrameCacheComplete() {
+        FrameCache cache = frameCache;
+        return cache != null && cache.isComplete();
+    }
+
+    /**
+     * Deletes the frames of an evicted frame cache. The cache is filled again as frames are
+     * decoded.
+     */
+    private void onFrameCacheEvicted() {
+        if (frameCache == null || glContext == null) {
+            return;
+        }
+        makeCurrent();
+        clearFrameCacheSource();
+        frameCache.clear();
+    }
+
+    /**
+     * Makes the TextureRender draw from the external texture again if it draws from the frame
+     * cache, whose textures are about to be deleted.
+     */
+    private void clearFrameCacheSource() {
+        if (frameCache != null && frameCache.holdsTexture(textureRender.getSourceTexture())) {
+            textureRender.setSourceTexture(0);
+        }
+    }
+
+    /**
+     * Starts filling a new frame window with the given frames, which are then captured with
+     * captureWindowFrame() as they are decoded. The window which was being filled before is
+     * dropped. The window is drawn from once swapFrameWindows() is called.
+     * @param timestampsUs The timestamps of the frames of the window, in increasing order.
+     */
+    public void startFrameWindow(long[] timestampsUs) {
+        renderHandler.post(() -> {
+            makeCurrent();
+            if (backWindow != null) {
+                backWindow.release();
+            }
+            backWindow = new FrameCache(
+                    motionPhotoInfo.getWidth(),
+                    motionPhotoInfo.getHeight(),
+                    timestampsUs,
+                    frameWindowBudget,
+                    /* evictionHandler = */ () -> {}
+            );
+        });
+    }
+
+    /**
+     * Waits for the frame which was just released to the decode Surface, and copies it into the
+     * window which is being filled (and into the frame cache, if enabled), without drawing it.
+     * Blocks the calling thread (but not the render thread) until the frame has been copied or
+     * skipped, so that the decoder can release the next frame to the decode Surface right away.
+     * @param timestampUs The presentation timestamp of the frame, in microseconds.
+     */
+    public void captureWindowFrame(long timestampUs) {
+        CountDownLatch captured = new CountDownLatch(1);
+        renderHandler.post(() -> awaitImage(() -> {
+            // The displayed frame may come from a window, so the source texture is restored
+            int sourceTexture = textureRender.getSourceTexture();
+            if (backWindow != null) {
+                backWindow.capture(textureRender, timestampUs);
+            }
+            if (frameCache != null) {
+                frameCache.capture(textureRender, timestampUs);
+            }
+            textureRender.setSourceTexture(sourceTexture);
+        }, captured));
+
+        try {
+            if (!captured.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out while waiting for the render thread");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Makes the window which was being filled the one which is drawn from (see drawCachedFrame()),
+     * and drops the previous one.
+     */
+    public void swapFrameWindows() {
+        renderHandler.post(() -> {
+            makeCurrent();
+            if (frontWindow != null) {
+                if (frontWindow.holdsTexture(textureRender.getSourceTexture())) {
+                    textureRender.setSourceTexture(0);
+                }
+                frontWindow.release();
+            }
+            frontWindow = backWindow;
+            backWindow = null;
+        });
+    }
+
+    /**
+     * Drops both frame windows, once the displayed frame no longer comes from them.
+     */
+    public void clearFrameWindows() {
+        renderHandler.post(() -> {
+            if (glContext == null) {
+                return;
+            }
+            makeCurrent();
+            releaseFrameWindows();
+        });
+    }
+
+    private void releaseFrameWindows() {
+        for (FrameCache window : new FrameCache[] {frontWindow, backWindow}) {
+            if (window != null) {
+                if (window.holdsTexture(textureRender.getSourceTexture())) {
+                    textureRender.setSourceTexture(0);
+                }
+                window.release();
+            }
+        }
+        frontWindow = null;
+        backWindow = null;
+    }
+
+    /**
+     * Renders the last drawn frame offscreen and reads it back into a bitmap, at the size of the
+     * rotated video. This works whether or not a display surface is set.
+     * @param future The future which receives the bitmap. It fails with an IllegalStateException if
+     * no frame has been drawn yet.
+     */
+    public void grabFrame(SettableFuture<Bitmap> future) {
+        renderHandler.post(() -> {
+            if (lastStripMatrices == null || textureRender == null) {
+                future.setException(new IllegalStateException("No frame has been drawn yet"));
+                return;
+            }
+            makeCurrent();
+            int width = getOutputWidth();
+            int height = getOutputHeight();
+            if (grabRenderer != null
+                    && (grabRenderer.getWidth() != width || grabRenderer.getHeight() != height)) {
+                grabRenderer.release();
+                grabRenderer = null;
+            }
+            if (grabRenderer == null) {
+                grabRenderer = new OffscreenRenderer(
+                        width,
+                        height,
+                        /* frameCount = */ 1,
+                        this::onFrameGrabbed
+                );
+            }
+            grabFuture = future;
+            try {
+                textureRender.setUMatrix(primaryUMatrix);
+                grabRenderer.render(textureRender, lastStripMatrices, lastTimestampUs);
+                grabRenderer.flush();
+            } finally {
+                grabFuture = null;
+            }
+            if (!future.isDone()) {
+                future.setException(new IllegalStateException("Failed to read back frame"));
+            }
+        });
+    }
+
+    /**
+     * Copies a frame read back by the grab renderer into a new bitmap, and passes it to the
+     * running grab. This runs on the render thread.
+     */
+    private void onFrameGrabbed(RenderedFrame frame) {
+        try {
+            if (grabFuture != null) {
+                Bitmap bitmap = Bitmap.createBitmap(
+                        frame.getWidth(),
+                        frame.getHeight(),
+                        Bitmap.Config.ARGB_8888
+                );
+                bitmap.copyPixelsFromBuffer(frame.getBuffer());
+                grabFuture.set(bitmap);
+            }
+        } finally {
+            frame.release();
+        }
     }
 
     /**
-     * Draw the image to the final display Surface.
+     * Starts rendering every drawn frame offscreen as well, at the size of the rotated video, and
+     * passes the read back frames to the listener (see OffscreenRenderer). A running export is
+     * flushed and replaced.
+     * @param frameCount The number of frames that the listener may hold at the same time.
+     * @param listener The listener which receives the frames, on the render thread.
      */
-    public void drawImage(List<HomographyMatrix> homographyList, long renderTimestampNs) {
+    public void startFrameExport(int frameCount, OffscreenRenderer.Listener listener) {
         renderHandler.post(() -> {
-            EGLExt.eglPresentationTimeANDROID(eglDisplay, eglSurface, renderTimestampNs);
-            textureRender.drawFrame(homographyList);
-            EGL14.eglSwapBuffers(eglDisplay, eglSurface);
+            makeCurrent();
+            releaseExportRenderer();
+            exportRenderer = new OffscreenRenderer(
+                    getOutputWidth(),
+                    getOutputHeight(),
+                    frameCount,
+                    listener
+            );
         });
     }
 
+    /**
+     * Stops the running frame export, if any, once the frames which are still being read back have
+     * been passed to the listener.
+     * @param future The future which is completed once the export has stopped.
+     */
+    public void stopFrameExport(SettableFuture<Void> future) {
+        renderHandler.post(() -> {
+            makeCurrent();
+            try {
+                releaseExportRenderer();
+            } finally {
+                future.set(null);
+            }
+        });
+    }
+
+    private void releaseExportRenderer() {
+        if (exportRenderer != null) {
+            exportRenderer.flush();
+            exportRenderer.release();
+            exportRenderer = null;
+        }
+    }
+
+    /**
+     * Returns the width of the video once it has been rotated, in pixels.
+     */
+    private int getOutputWidth() {
+        return motionPhotoInfo.getRotation() % 180 == 0
+                ? motionPhotoInfo.getWidth()
+                : motionPhotoInfo.getHeight();
+    }
+
+    /**
+     * Returns the height of the video once it has been rotated, in pixels.
+     */
+    private int getOutputHeight() {
+        return motionPhotoInfo.getRotation() % 180 == 0
+                ? motionPhotoInfo.getHeight()
+                : motionPhotoInfo.getWidth();
+    }
+
+    /**
+     * Sets how far, in video pixels, the corners of a strip may move when adjacent strips with
+     * nearly identical stabilization are merged and drawn as a single region.
+     */
+    public void setStripMergeTolerance(float tolerancePixels) {
+        renderHandler.post(() -> textureRender.setStripMergeTolerance(tolerancePixels));
+    }
+
+    /**
+     * Returns the number of regions the last frame was drawn with, after merging adjacent strips
+     * with nearly identical stabilization (the largest number over all targets). This is between 1
+     * and NUM_OF_STRIPS, or 0 if no frame has been drawn yet.
+     */
+    public int getDrawnStripCount() {
+        return drawnStripCount;
+    }
+
     @Override
     public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        // This is delivered on the render thread (see setupTextureRender())
         synchronized (frameSyncObject) {
             if (frameAvailable) {
-                throw new RuntimeException("Available frame already set, frame could be dropped");
+                // A frame which was skipped arrived late, and is replaced by this one
+                Log.w(TAG, "Available frame already set, frame could be dropped");
             }
             frameAvailable = true;
-            frameSyncObject.notifyAll();
         }
+        latchNewImage();
     }
 }
@@ -0,0 +1,276 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multiplexes the playback work of many motion photo readers onto a fixed set of threads.
+ *
+ * Render work (EGL, OpenGL and MediaCodec callbacks) is pinned to one of a fixed pool of render
+ * threads. Since an EGL context can only be current on one thread, a reader keeps the same render
+ * thread for its whole lifetime, and readers are spread across the pool by load. Decode work
+ * (e.g. the play loop of a MotionPhotoWidget) runs on a shared decode pool through TaskQueue
+ * objects, which run their tasks one at a time and in submission order.
+ *
+ * Both pools are sized to the number of available cores, so the number of playback threads stays
+ * bounded no matter how many readers are open.
+ */
+class PlaybackScheduler {
+
+    private static final String TAG = "PlaybackScheduler";
+
+    /** Prefixes of the names given to the threads owned by the scheduler. */
+    private static final String RENDER_THREAD_NAME_PREFIX = "renderHandler-";
+    private static final String DECODE_THREAD_NAME_PREFIX = "playbackDecode-";
+
+    /** Time after which an idle decode thread is stopped, in seconds. */
+    private static final long DECODE_THREAD_KEEP_ALIVE_S = 30L;
+
+    /**
+     * Starts and stops render threads. Replaced by a fake in tests.
+     */
+    interface RenderThreadFactory {
+        /**
+         * Starts a render thread, and returns a handler for posting work to it.
+         */
+        Handler startRenderThread(String name);
+
+        /**
+         * Stops a render thread once all of its pending work has run.
+         */
+        void quitRenderThread(Handler handler);
+    }
+
+    private static PlaybackScheduler instance;
+
+    private final RenderThreadFactory renderThreadFactory;
+
+    /** Render threads are started lazily and stopped once no reader is using them. */
+    private final Handler[] renderHandlers;
+    private final int[] renderThreadUsers;
+
+    private final ThreadPoolExecutor decodeExecutor;
+
+    /**
+     * Creates a scheduler with the given pool sizes, whose render threads are HandlerThreads.
+     * @param numRenderThreads The maximum number of render threads.
+     * @param numDecodeThreads The maximum number of decode threads.
+     */
+    @VisibleForTesting
+    PlaybackScheduler(int numRenderThreads, int numDecodeThreads) {
+        this(numRenderThreads, numDecodeThreads, new HandlerThreadFactory());
+    }
+
+    /**
+     * Creates a scheduler with the given pool sizes.
+     * @param numRenderThreads The maximum number of render threads.
+     * @param numDecodeThreads The maximum number of decode threads.
+     * @param renderThreadFactory The factory which starts and stops the render threads.
+     */
+    @VisibleForTesting
+    PlaybackScheduler(int numRenderThreads,
+                      int numDecodeThreads,
+                      RenderThreadFactory renderThreadFactory) {
+        if (numRenderThreads <= 0 || numDecodeThreads <= 0) {
+            throw new IllegalArgumentException("Thread pool sizes must be positive");
+        }
+        this.renderThreadFactory = renderThreadFactory;
+        renderHandlers = new Handler[numRenderThreads];
+        renderThreadUsers = new int[numRenderThreads];
+
+        AtomicInteger decodeThreadCount = new AtomicInteger(0);
+        ThreadFactory decodeThreadFactory = runnable -> {
+            Thread thread = new Thread(
+                    runnable,
+                    DECODE_THREAD_NAME_PREFIX + decodeThreadCount.getAndIncrement()
+            );
+            thread.setDaemon(true);
+            return thread;
+        };
+        decodeExecutor = new ThreadPoolExecutor(
+                /* corePoolSize = */ numDecodeThreads,
+                /* maximumPoolSize = */ numDecodeThreads,
+                DECODE_THREAD_KEEP_ALIVE_S,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                decodeThreadFactory
+        );
+        decodeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the process-wide scheduler, with both thread pools sized to the number of cores.
+     */
+    public static synchronized PlaybackScheduler getInstance() {
+        if (instance == null) {
+            int numCores = Math.max(1, Runtime.getRuntime().availableProcessors());
+            instance = new PlaybackScheduler(numCores, numCores);
+        }
+        return instance;
+    }
+
+    /**
+     * Assigns a render thread to a new reader. The least loaded render thread is chosen, and it is
+     * started if it is not already running. Every call must be paired with a call to
+     * releaseRenderHandler() once the reader is closed.
+     * @return a handler for posting work to the assigned render thread.
+     */
+    public synchronized Handler acquireRenderHandler() {
+        int index = 0;
+        for (int i = 1; i < renderHandlers.length; i++) {
+            if (renderThreadUsers[i] < renderThreadUsers[index]) {
+                index = i;
+            }
+        }
+
+        if (renderHandlers[index] == null) {
+            renderHandlers[index] =
+                    renderThreadFactory.startRenderThread(RENDER_THREAD_NAME_PREFIX + index);
+        }
+        renderThreadUsers[index]++;
+        return renderHandlers[index];
+    }
+
+    /**
+     * Releases a render thread previously assigned by acquireRenderHandler(). The thread is
+     * stopped once all of its pending work has run if no other reader is using it.
+     * @param handler The handler returned by acquireRenderHandler().
+     */
+    public synchronized void releaseRenderHandler(Handler handler) {
+        for (int i = 0; i < renderHandlers.length; i++) {
+            if (renderHandlers[i] != handler) {
+                continue;
+            }
+            renderThreadUsers[i]--;
+            if (renderThreadUsers[i] == 0) {
+                renderThreadFactory.quitRenderThread(handler);
+                renderHandlers[i] = null;
+            }
+            return;
+        }
+        throw new IllegalArgumentException("Handler was not acquired from this scheduler");
+    }
+
+    /**
+     * Creates a new task queue whose tasks run on the shared decode pool.
+     */
+    public TaskQueue newTaskQueue() {
+        return new TaskQueue(decodeExecutor);
+    }
+
+    /**
+     * Returns the number of render threads that are currently running.
+     */
+    @VisibleForTesting
+    synchronized int getRenderThreadCount() {
+        int count = 0;
+        for (Handler handler : renderHandlers) {
+            if (handler != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of decode threads that are currently alive.
+     */
+    @VisibleForTesting
+    int getDecodeThreadCount() {
+        return decodeExecutor.getPoolSize();
+    }
+
+    /**
+     * An executor which runs its tasks on a shared executor, one at a time and in the order they
+     * were submitted. A long-running job should be broken down into short tasks which re-submit
+     * themselves, so that the shared threads can be multiplexed between many queues.
+     */
+    static class TaskQueue implements Executor {
+
+        private final Executor executor;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private Runnable activeTask;
+        private boolean isShutdown;
+
+        TaskQueue(Executor executor) {
+            this.executor = executor;
+        }
+
+        /**
+         * Queues a task to run after all previously submitted tasks have completed. Tasks
+         * submitted after shutdown() are ignored.
+         */
+        @Override
+        public synchronized void execute(Runnable task) {
+            if (isShutdown) {
+                return;
+            }
+            tasks.offer(() -> {
+                try {
+                    task.run();
+                } finally {
+                    scheduleNext();
+                }
+            });
+            if (activeTask == null) {
+                scheduleNext();
+            }
+        }
+
+        /**
+         * Drops all tasks which have not started running yet.
+         */
+        public synchronized void clear() {
+            tasks.clear();
+        }
+
+        /**
+         * Drops all pending tasks and stops accepting new ones. The currently running task (if
+         * any) is allowed to finish.
+         */
+        public synchronized void shutdown() {
+            isShutdown = true;
+            tasks.clear();
+        }
+
+        private synchronized void scheduleNext() {
+            activeTask = tasks.poll();
+            if (activeTask != null) {
+                executor.execute(activeTask);
+            }
+        }
+    }
+
+    /**
+     * Runs each render thread on its own HandlerThread.
+     */
+    private static class HandlerThreadFactory implements RenderThreadFactory {
+        @Override
+        public Handler startRenderThread(String name) {
+            HandlerThread thread = new HandlerThread(name);
+            thread.start();
+            return new Handler(thread.getLooper());
+        }
+
+        @Override
+        public void quitRenderThread(Handler handler) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                handler.getLooper().quitSafely();
+            } else {
+                handler.getLooper().quit();
+            }
+        }
+    }
+}
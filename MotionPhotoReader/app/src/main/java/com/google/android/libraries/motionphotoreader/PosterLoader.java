@@ -0,0 +1,276 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
+
+import com.adobe.internal.xmp.XMPException;
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.google.android.libraries.motionphotoreader.Constants.DEFAULT_POSTER_CACHE_BYTES;
+import static com.google.android.libraries.motionphotoreader.Constants.POSTER_POOL_BYTES;
+
+/**
+ * Loads the still image of motion photos as posters for thumbnails, grids and the first frame
+ * shown before playback starts.
+ *
+ * Unlike MotionPhotoReader.getMotionPhotoImageBitmap(), which decodes the still image at full
+ * resolution, a poster is decoded at the smallest power of 2 subsampling which still covers the
+ * requested size, and only the bytes of the primary JPEG are read (the video track appended to the
+ * file is skipped, see MotionPhotoInfo). Optionally, the thumbnail embedded in the EXIF metadata
+ * of the image is used instead when it is large enough, which avoids decoding the image at all.
+ *
+ * Posters are kept in a cache whose size is bounded in bytes, so the same poster may be handed out
+ * to several callers. Once every caller gave a poster back with releasePoster() and the poster left
+ * the cache, its memory is reused by the next decoded posters (see BitmapFactory.Options.inBitmap
+ * and PosterPool). This class is thread-safe.
+ */
+@RequiresApi(api = 28)
+public class PosterLoader {
+
+    private static PosterLoader instance;
+
+    private final LruCache<String, Bitmap> cache;
+    private final PosterPool posterPool;
+
+    @VisibleForTesting
+    PosterLoader(long cacheBytes, long maxPooledBytes) {
+        if (cacheBytes <= 0 || cacheBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid poster cache size: " + cacheBytes);
+        }
+        this.posterPool = new PosterPool(maxPooledBytes);
+        this.cache = new LruCache<String, Bitmap>((int) cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap poster) {
+                return poster.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted,
+                                        String key,
+                                        Bitmap oldPoster,
+                                        Bitmap newPoster) {
+                posterPool.onUncached(oldPoster);
+            }
+        };
+    }
+
+    /**
+     * Returns the process-wide poster loader.
+     */
+    public static synchronized PosterLoader getInstance() {
+        if (instance == null) {
+            instance = new PosterLoader(DEFAULT_POSTER_CACHE_BYTES, POSTER_POOL_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * Loads the poster of a motion photo, from the cache if it was loaded before with the same
+     * parameters. This reads the file, so it should not be called on the UI thread. Every returned
+     * poster must be given back with releasePoster() once it is not displayed anymore.
+     * @param file The motion photo file.
+     * @param targetWidth The width of the view which shows the poster, in pixels.
+     * @param targetHeight The height of the view which shows the poster, in pixels.
+     * @param preferThumbnail If true, the EXIF thumbnail of the image is used when it covers the
+     * target size.
+     * @return a mutable bitmap of the still image, with the orientation of the stored image (see
+     * ExifInterface.TAG_ORIENTATION), whose dimensions are at least the target ones unless the
+     * image is smaller. Returns null if the image cannot be decoded.
+     * @throws IllegalArgumentException if the target size is not positive.
+     * @throws IOException when the file cannot be read.
+     * @throws XMPException when parsing invalid XMP metadata.
+     */
+    @Nullable
+    public Bitmap loadPoster(File file, int targetWidth, int targetHeight, boolean preferThumbnail)
+            throws IOException, XMPException {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid poster size: " + targetWidth + "x" + targetHeight
+            );
+        }
+        String key = file.getAbsolutePath() + ":" + file.lastModified() + ":" + file.length()
+                + ":" + targetWidth + "x" + targetHeight + ":" + preferThumbnail;
+        // The poster is acquired with the pool lock held, so that it cannot be pooled in between
+        synchronized (posterPool) {
+            Bitmap poster = cache.get(key);
+            if (poster != null) {
+                posterPool.acquire(poster);
+                return poster;
+            }
+        }
+        Bitmap poster = decodePoster(file, targetWidth, targetHeight, preferThumbnail);
+        if (poster != null) {
+            synchronized (posterPool) {
+                posterPool.acquire(poster);
+                posterPool.onCached(poster);
+                cache.put(key, poster);
+            }
+        }
+        return poster;
+    }
+
+    /**
+     * Gives a poster back once it is not displayed anymore. The poster stays cached for later
+     * callers, and its memory is only reused once no caller holds it and it left the cache, but the
+     * caller must not use it after this call.
+     * @param poster A bitmap returned by loadPoster(), released once per call to loadPoster().
+     */
+    public void releasePoster(Bitmap poster) {
+        posterPool.release(poster);
+    }
+
+    /**
+     * Drops all cached and pooled posters.
+     */
+    public void clear() {
+        cache.evictAll();
+        posterPool.clear();
+    }
+
+    /**
+     * Returns the subsampling factor at which an image is decoded: the largest power of 2 which
+     * keeps both dimensions of the decoded image at least as large as the target ones.
+     * @param imageWidth The width of the stored image, in pixels.
+     * @param imageHeight The height of the stored image, in pixels.
+     * @param targetWidth The minimum width of the decoded image, in pixels.
+     * @param targetHeight The minimum height of the decoded image, in pixels.
+     * @return the subsampling factor (see BitmapFactory.Options.inSampleSize).
+     */
+    @VisibleForTesting
+    static int computeInSampleSize(int imageWidth,
+                                   int imageHeight,
+                                   int targetWidth,
+                                   int targetHeight) {
+        int inSampleSize = 1;
+        while (imageWidth / (2 * inSampleSize) >= targetWidth
+                && imageHeight / (2 * inSampleSize) >= targetHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * A decoder of an encoded image, which may be called several times.
+     */
+    private interface ImageSource {
+        @Nullable
+        Bitmap decode(BitmapFactory.Options options) throws IOException;
+    }
+
+    @Nullable
+    private Bitmap decodePoster(File file,
+                                int targetWidth,
+                                int targetHeight,
+                                boolean preferThumbnail)
+            throws IOException, XMPException {
+        int orientation;
+        byte[] thumbnail = null;
+        try (FileInputStream input = new FileInputStream(file)) {
+            ExifInterface exif = new ExifInterface(input.getFD());
+            orientation = exif.getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL
+            );
+            if (preferThumbnail && exif.hasThumbnail()) {
+                thumbnail = exif.getThumbnail();
+            }
+        }
+
+        // The target size is the displayed one, so it is transposed if the stored image is
+        int width = targetWidth;
+        int height = targetHeight;
+        if (orientation == ExifInterface.ORIENTATION_ROTATE_90
+                || orientation == ExifInterface.ORIENTATION_ROTATE_270
+                || orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                || orientation == ExifInterface.ORIENTATION_TRANSVERSE) {
+            width = targetHeight;
+            height = targetWidth;
+        }
+
+        if (thumbnail != null) {
+            byte[] thumbnailBytes = thumbnail;
+            Bitmap poster = decodeSubsampled(
+                    options -> BitmapFactory.decodeByteArray(
+                            thumbnailBytes,
+                            /* offset = */ 0,
+                            thumbnailBytes.length,
+                            options
+                    ),
+                    width,
+                    height,
+                    /* mustCoverTarget = */ true
+            );
+            if (poster != null) {
+                return poster;
+            }
+        }
+
+        long imageLength = file.length() - MotionPhotoInfo.readVideoOffset(file);
+        return decodeSubsampled(
+                options -> {
+                    try (InputStream input = ByteStreams.limit(
+                            new BufferedInputStream(new FileInputStream(file)),
+                            imageLength
+                    )) {
+                        return BitmapFactory.decodeStream(input, /* outPadding = */ null, options);
+                    }
+                },
+                width,
+                height,
+                /* mustCoverTarget = */ false
+        );
+    }
+
+    /**
+     * Decodes an image at the subsampling which fits the target size, into a pooled bitmap if one
+     * is large enough.
+     * @param mustCoverTarget If true, nothing is decoded (and null is returned) if the image is
+     * smaller than the target size.
+     */
+    @Nullable
+    private Bitmap decodeSubsampled(ImageSource source,
+                                    int targetWidth,
+                                    int targetHeight,
+                                    boolean mustCoverTarget)
+            throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+        int imageWidth = options.outWidth;
+        int imageHeight = options.outHeight;
+        if (imageWidth <= 0 || imageHeight <= 0) {
+            return null;
+        }
+        if (mustCoverTarget && (imageWidth < targetWidth || imageHeight < targetHeight)) {
+            return null;
+        }
+
+        int inSampleSize = computeInSampleSize(imageWidth, imageHeight, targetWidth, targetHeight);
+        long decodedBytes = 4L
+                * ((imageWidth + inSampleSize - 1) / inSampleSize)
+                * ((imageHeight + inSampleSize - 1) / inSampleSize);
+        options = new BitmapFactory.Options();
+        options.inSampleSize = inSampleSize;
+        options.inMutable = true;
+        options.inBitmap = posterPool.take(decodedBytes);
+        try {
+            return source.decode(options);
+        } catch (IllegalArgumentException e) {
+            // The decoder rejected the pooled bitmap, which is dropped
+            options.inBitmap = null;
+            return source.decode(options);
+        }
+    }
+}
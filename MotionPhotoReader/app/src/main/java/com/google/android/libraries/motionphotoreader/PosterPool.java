@@ -0,0 +1,144 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the posters handed out by a PosterLoader, and of the posters whose memory may be
+ * decoded into (see BitmapFactory.Options.inBitmap).
+ *
+ * The same cached poster may be handed out to several views, so every poster is reference
+ * counted: it is only reused once it has been released as many times as it was handed out, and
+ * once it has left the cache. This class is thread-safe.
+ */
+class PosterPool {
+
+    private final long maxPooledBytes;
+
+    /** The number of times each poster was handed out and not released yet. */
+    private final Map<Bitmap, Integer> refCounts = new IdentityHashMap<>();
+    private final Set<Bitmap> cachedPosters =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** Posters which may be decoded into, from least to most recently released. */
+    private final List<Bitmap> pool = new ArrayList<>();
+    private long pooledBytes = 0;
+
+    /**
+     * @param maxPooledBytes The maximum amount of memory used by the reusable posters, in bytes.
+     */
+    PosterPool(long maxPooledBytes) {
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("Poster pool size must not be negative");
+        }
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Records that a poster was handed out to a caller.
+     */
+    synchronized void acquire(Bitmap poster) {
+        Integer refCount = refCounts.get(poster);
+        refCounts.put(poster, refCount == null ? 1 : refCount + 1);
+    }
+
+    /**
+     * Records that a caller does not use a poster anymore. The poster becomes reusable if no other
+     * caller uses it and it is not cached.
+     */
+    synchronized void release(Bitmap poster) {
+        Integer refCount = refCounts.get(poster);
+        if (refCount == null) {
+            return;
+        }
+        if (refCount > 1) {
+            refCounts.put(poster, refCount - 1);
+            return;
+        }
+        refCounts.remove(poster);
+        recycleIfUnused(poster);
+    }
+
+    /**
+     * Records that a poster was added to the cache, where it may be found by later callers.
+     */
+    synchronized void onCached(Bitmap poster) {
+        cachedPosters.add(poster);
+    }
+
+    /**
+     * Records that a poster was removed from the cache. The poster becomes reusable if no caller
+     * uses it.
+     */
+    synchronized void onUncached(Bitmap poster) {
+        if (cachedPosters.remove(poster)) {
+            recycleIfUnused(poster);
+        }
+    }
+
+    /**
+     * Takes the smallest reusable poster whose memory can hold the given number of bytes out of
+     * the pool, or returns null if there is none.
+     */
+    @Nullable
+    synchronized Bitmap take(long bytes) {
+        Bitmap best = null;
+        for (Bitmap bitmap : pool) {
+            if (bitmap.getConfig() == Bitmap.Config.ARGB_8888
+                    && bitmap.getAllocationByteCount() >= bytes
+                    && (best == null
+                            || bitmap.getAllocationByteCount() < best.getAllocationByteCount())) {
+                best = bitmap;
+            }
+        }
+        if (best != null) {
+            pool.remove(best);
+            pooledBytes -= best.getAllocationByteCount();
+        }
+        return best;
+    }
+
+    /**
+     * Drops all reusable posters.
+     */
+    synchronized void clear() {
+        pool.clear();
+        pooledBytes = 0;
+    }
+
+    /**
+     * Returns the number of reusable posters.
+     */
+    @VisibleForTesting
+    synchronized int getPooledCount() {
+        return pool.size();
+    }
+
+    /**
+     * Adds a poster to the pool if it is neither handed out nor cached, dropping the least
+     * recently released posters if the pool is over its size.
+     */
+    private void recycleIfUnused(Bitmap poster) {
+        if (refCounts.containsKey(poster)
+                || cachedPosters.contains(poster)
+                || !poster.isMutable()
+                || poster.isRecycled()
+                || pool.contains(poster)) {
+            return;
+        }
+        pool.add(poster);
+        pooledBytes += poster.getAllocationByteCount();
+        while (pooledBytes > maxPooledBytes && !pool.isEmpty()) {
+            pooledBytes -= pool.remove(0).getAllocationByteCount();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.opengl.EGL14;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * A display surface which an OutputSurface renders decoded frames to, with its own size, crop
+ * transform and stabilization setting. All targets of an OutputSurface share its EGL context and
+ * its TextureRender, so each decoded frame is uploaded once and then drawn to every target.
+ *
+ * A target remembers which frame it presents, so that redrawing it (e.g. when its surface is set
+ * again with the same size) can be skipped when neither the frame nor the settings of the target
+ * changed since the last swap.
+ *
+ * All methods must be called on the render thread.
+ */
+@RequiresApi(api = 23)
+class RenderTarget {
+
+    private static final String TAG = "RenderTarget";
+
+    private final GlContextManager.SharedContext glContext;
+    private final EGLDisplay eglDisplay;
+    private final Surface surface;
+    private final EGLSurface eglSurface;
+    private final float[] uMatrix = new float[16];
+    private int width;
+    private int height;
+    private boolean enableStabilization = true;
+
+    /** The ID of the frame shown on the surface (see OutputSurface), or -1 if it is out of date. */
+    private long presentedFrameId = -1L;
+
+    /**
+     * Creates the EGL window surface of a display surface.
+     * @param glContext The EGL context of the owning OutputSurface.
+     * @param surface The surface to render to.
+     */
+    RenderTarget(GlContextManager.SharedContext glContext, Surface surface) {
+        this.glContext = glContext;
+        this.eglDisplay = glContext.getDisplay();
+        this.surface = surface;
+        eglSurface = EGL14.eglCreateWindowSurface(
+                eglDisplay,
+                glContext.getConfig(),
+                surface,
+                new int[] { EGL14.EGL_NONE },
+                /* offset = */ 0
+        );
+        if (eglSurface == null || eglSurface == EGL14.EGL_NO_SURFACE) {
+            Log.e(TAG, "Failed to create EGL window surface");
+        }
+    }
+
+    Surface getSurface() {
+        return surface;
+    }
+
+    EGLSurface getEglSurface() {
+        return eglSurface;
+    }
+
+    /**
+     * Sets the size of the surface, in pixels. The video is fit into the surface.
+     */
+    void setSize(int width, int height) {
+        if (width != this.width || height != this.height) {
+            presentedFrameId = -1L;
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Sets the crop transform of the video (see TextureRender.setUMatrix()) and whether it is
+     * stabilized on this target.
+     * @param videoRotation The rotation of the video, in degrees.
+     */
+    void setTransform(float scaleFactor,
+                      float xTranslate,
+                      float yTranslate,
+                      int videoRotation,
+                      boolean enableStabilization) {
+        TextureRender.computeUMatrix(uMatrix, scaleFactor, xTranslate, yTranslate, videoRotation);
+        this.enableStabilization = enableStabilization;
+        presentedFrameId = -1L;
+    }
+
+    /**
+     * Checks whether the surface shows the given frame with the current size and settings of this
+     * target, in which case drawing the frame again would not change anything.
+     */
+    boolean isPresenting(long frameId) {
+        return frameId >= 0 && frameId == presentedFrameId;
+    }
+
+    /**
+     * Makes the window surface of this target current with the context of the render thread.
+     */
+    void makeCurrent() {
+        glContext.makeCurrent(eglSurface);
+    }
+
+    /**
+     * Draws the current frame of a TextureRender to this target and presents it. The EGL surface
+     * of this target must be current.
+     * @param stripMatrices The stabilization data of the frame (see StabilizationTimeline). The
+     * frame is drawn unstabilized if stabilization is disabled on this target.
+     * @param frameId The ID of the frame, which identifies the content of the texture together with
+     * its stabilization data.
+     * @param renderTimestampNs The time at which the frame should be displayed, in nanoseconds.
+     * @return the number of regions that the frame was drawn with.
+     */
+    int draw(TextureRender textureRender,
+             float[] stripMatrices,
+             long frameId,
+             long renderTimestampNs) {
+        textureRender.onSurfaceChanged(width, height);
+        textureRender.setUMatrix(uMatrix);
+        int regionCount = textureRender.drawFrame(enableStabilization
+                ? stripMatrices
+                : StabilizationTimeline.getIdentityStripMatrices());
+        EGLExt.eglPresentationTimeANDROID(eglDisplay, eglSurface, renderTimestampNs);
+        presentedFrameId = EGL14.eglSwapBuffers(eglDisplay, eglSurface) ? frameId : -1L;
+        return regionCount;
+    }
+
+    /**
+     * Destroys the EGL window surface. The surface must not be current anymore.
+     */
+    void release() {
+        EGL14.eglDestroySurface(eglDisplay, eglSurface);
+    }
+}
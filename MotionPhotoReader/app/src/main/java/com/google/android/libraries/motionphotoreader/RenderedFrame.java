@@ -0,0 +1,133 @@
+package com.google.android.libraries.motionphotoreader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A frame as it is displayed by a MotionPhotoReader (stabilized, cropped and rotated), read back
+ * from an offscreen render target in RGBA_8888. Handed out by MotionPhotoReader.startFrameExport().
+ *
+ * Frames come from a fixed pool which is allocated when the export starts, so reading frames back
+ * does not allocate any memory. Each frame must be released once it is no longer needed, after
+ * which its buffer is reused for a later frame and must not be accessed anymore.
+ *
+ * The pixels are tightly packed, with the top row first: the row stride is 4 times the width of
+ * the frame. The buffer can be passed to Bitmap.copyPixelsFromBuffer() for an ARGB_8888 bitmap.
+ */
+public class RenderedFrame {
+
+    private final BlockingQueue<RenderedFrame> pool;
+    private final int width;
+    private final int height;
+    private final ByteBuffer buffer;
+    private long timestampUs;
+    private boolean inUse;
+
+    RenderedFrame(BlockingQueue<RenderedFrame> pool, int width, int height) {
+        this.pool = pool;
+        this.width = width;
+        this.height = height;
+        buffer = ByteBuffer.allocateDirect(getSize(width, height)).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Allocates a pool of frames. Frames are taken from the pool with poll(), marked as in use
+     * with setInUse(), and return to the pool when they are released.
+     * @param width The width of the frames, in pixels.
+     * @param height The height of the frames, in pixels.
+     * @param frameCount The number of frames in the pool.
+     */
+    static BlockingQueue<RenderedFrame> createPool(int width, int height, int frameCount) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid frame dimensions");
+        }
+        if (frameCount <= 0) {
+            throw new IllegalArgumentException("Invalid frame count: " + frameCount);
+        }
+        BlockingQueue<RenderedFrame> pool = new ArrayBlockingQueue<>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            pool.add(new RenderedFrame(pool, width, height));
+        }
+        return pool;
+    }
+
+    /**
+     * Returns the size of the pixel data of a frame, in bytes.
+     */
+    static int getSize(int width, int height) {
+        return 4 * width * height;
+    }
+
+    /**
+     * Returns the width of the frame, in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the frame, in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the presentation timestamp of the frame, in microseconds.
+     */
+    public long getTimestampUs() {
+        return timestampUs;
+    }
+
+    /**
+     * Returns the RGBA pixels of the frame. The buffer is shared with later frames once this frame
+     * has been released, and its position and limit may be changed freely until then.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the distance between the starts of two consecutive rows, in bytes.
+     */
+    public int getRowStride() {
+        return 4 * width;
+    }
+
+    /**
+     * Returns the frame to its pool, so that its buffer can be reused for a later frame.
+     * @throws IllegalStateException if the frame has already been released.
+     */
+    public void release() {
+        if (!setInUse(false)) {
+            throw new IllegalStateException("Frame has already been released");
+        }
+        pool.add(this);
+    }
+
+    /**
+     * Marks the frame as in use or available.
+     * @return false if the frame was already in the requested state.
+     */
+    synchronized boolean setInUse(boolean inUse) {
+        if (this.inUse == inUse) {
+            return false;
+        }
+        this.inUse = inUse;
+        return true;
+    }
+
+    /**
+     * Copies the pixels of a frame into this frame.
+     * @param pixels The RGBA pixels, top row first, from the position to the limit of the buffer.
+     * @param timestampUs The presentation timestamp of the frame, in microseconds.
+     */
+    void set(ByteBuffer pixels, long timestampUs) {
+        buffer.clear();
+        buffer.put(pixels);
+        buffer.clear();
+        this.timestampUs = timestampUs;
+    }
+}
@@ -0,0 +1,195 @@
+package com.google.android.libraries.motionphotoreader;
+
+/**
+ * Plans the decoding of the frame windows from which a reader plays a video backwards (see
+ * MotionPhotoReader.setPlaybackMode()).
+ *
+ * Frames can only be decoded forwards, so the reader presents the frames [windowStartIndex,
+ * windowEndIndex) of a front window backwards, while the frames [prefetchStartIndex,
+ * prefetchEndIndex) which precede them are decoded into a back window, starting from the sample
+ * prefetchDecodeIndex. Once the front window is used up, the windows are swapped. Indices are
+ * sample indices (see SampleIndex). The decoding of the back window is spread over the frames of
+ * the front window, so that no frame waits for a whole window to be decoded.
+ *
+ * The prefetcher only decides which samples are decoded and when: the samples are read, decoded
+ * and copied into the windows by a WindowDecoder. Frame windows are only planned under the
+ * decoder lock of the reader.
+ */
+class ReverseWindowPrefetcher {
+
+    private final SampleIndex sampleIndex;
+    private final int windowCapacity;
+    private final WindowDecoder windowDecoder;
+
+    private int windowStartIndex;
+    private int windowEndIndex;
+    private int prefetchStartIndex;
+    private int prefetchEndIndex;
+    private int prefetchDecodeIndex;
+    private boolean hasFrameWindows;
+
+    /**
+     * @param sampleIndex The index of the samples of the video track.
+     * @param windowCapacity The maximum number of frames in a frame window, which must be at
+     * least 2.
+     * @param windowDecoder Decodes the samples into the frame windows.
+     * @throws IllegalArgumentException if the capacity is less than 2.
+     */
+    ReverseWindowPrefetcher(SampleIndex sampleIndex,
+                            int windowCapacity,
+                            WindowDecoder windowDecoder) {
+        if (windowCapacity < 2) {
+            throw new IllegalArgumentException("Invalid frame window capacity: " + windowCapacity);
+        }
+        this.sampleIndex = sampleIndex;
+        this.windowCapacity = windowCapacity;
+        this.windowDecoder = windowDecoder;
+    }
+
+    /**
+     * Makes sure that the front window holds a frame before it is presented. If the frame is not
+     * in the front window, the back window is decoded to the end (or, if the frame is not in the
+     * back window either, a window ending with the frame is decoded first) and swapped to the
+     * front, and the window which precedes it is planned.
+     * @param frameIndex The index of the frame to present.
+     * @param wrapAround Whether the window before the first frame holds the last frames of the
+     * video, as when a reversed loop starts over.
+     */
+    void prepareFrame(int frameIndex, boolean wrapAround) {
+        if (frameIndex >= windowStartIndex && frameIndex < windowEndIndex) {
+            return;
+        }
+        if (frameIndex < prefetchStartIndex || frameIndex >= prefetchEndIndex) {
+            // Nothing useful is being decoded (e.g. after a seek), so start from this frame
+            windowStartIndex = frameIndex + 1;
+            windowEndIndex = windowStartIndex;
+            planPrefetch(wrapAround);
+        }
+        // The front window is used up: finish decoding the next one and draw from it
+        prefetch(Integer.MAX_VALUE);
+        windowDecoder.swapWindows();
+        windowStartIndex = prefetchStartIndex;
+        windowEndIndex = prefetchEndIndex;
+        planPrefetch(wrapAround);
+    }
+
+    /**
+     * Decodes part of the back window once a frame of the front window has been presented, so
+     * that the back window is complete by the time the front window is used up.
+     * @param nextFrameIndex The index of the next frame to present.
+     */
+    void prefetchAfterFrame(int nextFrameIndex) {
+        int framesLeft = Math.max(nextFrameIndex - windowStartIndex + 1, 1);
+        int samplesLeft = prefetchEndIndex - prefetchDecodeIndex;
+        prefetch((samplesLeft + framesLeft - 1) / framesLeft);
+    }
+
+    /**
+     * Forgets what the frame windows hold, so that the next frame is decoded into a new window.
+     * The windows are replaced as new ones are decoded.
+     */
+    void invalidate() {
+        windowStartIndex = 0;
+        windowEndIndex = 0;
+        prefetchStartIndex = 0;
+        prefetchEndIndex = 0;
+        prefetchDecodeIndex = 0;
+    }
+
+    /**
+     * Drops the frame windows once the presented frame no longer comes from them.
+     */
+    void release() {
+        invalidate();
+        if (hasFrameWindows) {
+            windowDecoder.clearWindows();
+            hasFrameWindows = false;
+        }
+    }
+
+    /**
+     * Chooses the frames of the back window, which precede the front window (or the last frames
+     * of the video if wrapping around), and positions the decoder to decode them.
+     */
+    private void planPrefetch(boolean wrapAround) {
+        int endIndex = windowStartIndex;
+        if (endIndex == 0 && wrapAround) {
+            endIndex = sampleIndex.getSampleCount();
+        }
+        if (endIndex == 0) {
+            prefetchStartIndex = 0;
+            prefetchEndIndex = 0;
+            prefetchDecodeIndex = 0;
+            return;
+        }
+        prefetchEndIndex = endIndex;
+        prefetchStartIndex = sampleIndex.getReverseWindowStart(endIndex, windowCapacity);
+
+        // The decoder has decoded every sample before its position
+        int currentIndex = windowDecoder.getPositionIndex();
+        prefetchDecodeIndex = sampleIndex.getDecodeStartIndex(currentIndex, prefetchStartIndex);
+        if (prefetchDecodeIndex != currentIndex) {
+            windowDecoder.seekTo(prefetchDecodeIndex);
+        }
+
+        long[] timestampsUs = new long[prefetchEndIndex - prefetchStartIndex];
+        for (int i = 0; i < timestampsUs.length; i++) {
+            timestampsUs[i] = sampleIndex.getTimestampUs(prefetchStartIndex + i);
+        }
+        windowDecoder.startWindow(timestampsUs);
+        hasFrameWindows = true;
+    }
+
+    /**
+     * Decodes up to the given number of samples towards the end of the back window. The frames of
+     * the window are copied into it as they are decoded, and the frames before it are discarded.
+     */
+    private void prefetch(int maxSampleCount) {
+        for (int i = 0; i < maxSampleCount && prefetchDecodeIndex < prefetchEndIndex; i++) {
+            if (!windowDecoder.decodeSample(prefetchDecodeIndex >= prefetchStartIndex)) {
+                // Give up on this window, the next one starts over from a sync sample
+                prefetchDecodeIndex = prefetchEndIndex;
+                return;
+            }
+            prefetchDecodeIndex++;
+        }
+    }
+
+    /**
+     * Reads and decodes the samples of the video track into the frame windows.
+     */
+    interface WindowDecoder {
+        /**
+         * Returns the index of the next sample to decode (see SampleIndex.getPositionIndex()).
+         */
+        int getPositionIndex();
+
+        /**
+         * Moves the decoder to the given sync sample (or the first sample), which is decoded next.
+         */
+        void seekTo(int index);
+
+        /**
+         * Starts filling the back window, which drops what it held.
+         * @param timestampsUs The timestamps of the frames of the window, in presentation order.
+         */
+        void startWindow(long[] timestampsUs);
+
+        /**
+         * Decodes the next sample and moves past it.
+         * @param capture Whether the frame is copied into the back window, or discarded.
+         * @return false if the sample could not be decoded.
+         */
+        boolean decodeSample(boolean capture);
+
+        /**
+         * Swaps the windows: the back window is presented from, and the front one is filled next.
+         */
+        void swapWindows();
+
+        /**
+         * Drops both windows.
+         */
+        void clearWindows();
+    }
+}
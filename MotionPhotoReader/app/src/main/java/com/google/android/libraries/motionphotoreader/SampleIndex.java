@@ -0,0 +1,223 @@
+package com.google.android.libraries.motionphotoreader;
+
+import java.util.Arrays;
+
+import static com.google.android.libraries.motionphotoreader.Constants.FALLBACK_FRAME_DELTA_NS;
+import static com.google.android.libraries.motionphotoreader.Constants.US_TO_NS;
+
+/**
+ * The timestamps, sizes and sync flags of every sample of a motion photo video track.
+ *
+ * The index is built once while the reader is prepared, from the sample metadata of the extractor
+ * (no sample data is read). It is used by exact seeks to find the sample at which decoding should
+ * start in order to reach a given frame, and to estimate the cost of decoding up to that frame.
+ *
+ * The decode cost of a run of samples is modelled as the size of their compressed data plus a
+ * fixed cost per sample. Sync samples are usually much larger than the samples which depend on
+ * them, so continuing to decode from the current position through a few dependent samples is
+ * often cheaper than decoding from the sync sample right before the target.
+ */
+class SampleIndex {
+
+    /**
+     * The fixed cost of decoding a sample (queueing the input and waiting for the output), in bytes
+     * of compressed data.
+     */
+    static final long DECODE_COST_PER_SAMPLE = 4096;
+
+    private final long[] timestampsUs;
+    private final int[] previousSyncIndices;
+
+    /** The decode cost of the samples before each index (prefix sums, one more than samples). */
+    private final long[] cumulativeCosts;
+
+    private SampleIndex(long[] timestampsUs, int[] previousSyncIndices, long[] cumulativeCosts) {
+        this.timestampsUs = timestampsUs;
+        this.previousSyncIndices = previousSyncIndices;
+        this.cumulativeCosts = cumulativeCosts;
+    }
+
+    /**
+     * Returns the number of samples in the index.
+     */
+    public int getSampleCount() {
+        return timestampsUs.length;
+    }
+
+    /**
+     * Returns the presentation timestamp of a sample, in microseconds.
+     */
+    public long getTimestampUs(int index) {
+        return timestampsUs[index];
+    }
+
+    /**
+     * Returns the duration of the track, i.e. the time at which the last sample stops being
+     * displayed, assuming that it is displayed as long as the sample before it.
+     * @return the duration in microseconds, or 0 if the index is empty.
+     */
+    public long getDurationUs() {
+        int sampleCount = timestampsUs.length;
+        if (sampleCount == 0) {
+            return 0L;
+        }
+        long lastTimestampUs = timestampsUs[sampleCount - 1];
+        long frameDurationUs = sampleCount > 1
+                ? lastTimestampUs - timestampsUs[sampleCount - 2]
+                : FALLBACK_FRAME_DELTA_NS / US_TO_NS;
+        return lastTimestampUs + frameDurationUs;
+    }
+
+    /**
+     * Returns the index of the frame which is displayed at the given time: the last sample at or
+     * before the timestamp, or the first sample if the timestamp precedes it.
+     * @return the index of the frame, or -1 if the index is empty.
+     */
+    public int getFrameIndex(long timestampUs) {
+        if (timestampsUs.length == 0) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(timestampsUs, timestampUs);
+        if (index < 0) {
+            index = Math.max(-index - 2, 0);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of the sample at which the extractor is positioned.
+     * @param sampleTimeUs The sample time of the extractor, or -1 once all samples have been read.
+     * @return the index of the sample, the sample count once all samples have been read, or -1 if
+     * there is no sample at the given time.
+     */
+    public int getPositionIndex(long sampleTimeUs) {
+        if (sampleTimeUs < 0) {
+            return timestampsUs.length;
+        }
+        int index = Arrays.binarySearch(timestampsUs, sampleTimeUs);
+        return index < 0 ? -1 : index;
+    }
+
+    /**
+     * Returns the index of the last sync sample at or before a sample, or -1 if there is none.
+     */
+    public int getPreviousSyncIndex(int index) {
+        return previousSyncIndices[index];
+    }
+
+    /**
+     * Returns the index of the sync sample which is closest to the given time. Of two sync samples
+     * which are equally close, the earlier one is returned.
+     * @return the index of the sync sample, or -1 if there is none.
+     */
+    public int getNearestSyncIndex(long timestampUs) {
+        int frameIndex = getFrameIndex(timestampUs);
+        if (frameIndex < 0) {
+            return -1;
+        }
+        int previousIndex = previousSyncIndices[frameIndex];
+        int nextIndex = -1;
+        for (int i = frameIndex + 1; i < timestampsUs.length; i++) {
+            if (previousSyncIndices[i] == i) {
+                nextIndex = i;
+                break;
+            }
+        }
+        if (previousIndex < 0 || nextIndex < 0) {
+            return Math.max(previousIndex, nextIndex);
+        }
+        long previousDistanceUs = timestampUs - timestampsUs[previousIndex];
+        long nextDistanceUs = timestampsUs[nextIndex] - timestampUs;
+        return previousDistanceUs <= nextDistanceUs ? previousIndex : nextIndex;
+    }
+
+    /**
+     * Returns the estimated cost of decoding the samples from one index up to (excluding) another.
+     */
+    public long getDecodeCost(int fromIndex, int toIndex) {
+        return cumulativeCosts[toIndex] - cumulativeCosts[fromIndex];
+    }
+
+    /**
+     * Chooses the sample from which to decode in order to reach a target frame, given the position
+     * of a decoder which has decoded every sample before its current index. The decoder can either
+     * go on from its current index (if it is not past the target), or restart from a sync sample
+     * at or before the target. Of all such sync samples, the last one is the cheapest start, so
+     * the choice is between it and the current index.
+     * @param currentIndex The index of the next sample to decode, or -1 if the decoder state is
+     * unknown and decoding must restart from a sync sample.
+     * @param targetIndex The index of the frame to reach.
+     * @return the index to decode from: currentIndex, or the index of a sync sample.
+     */
+    public int getDecodeStartIndex(int currentIndex, int targetIndex) {
+        int syncIndex = previousSyncIndices[targetIndex];
+        if (syncIndex < 0) {
+            // No sync sample before the target, so decoding must start at the first sample
+            syncIndex = 0;
+        }
+        if (currentIndex < 0 || currentIndex > targetIndex) {
+            return syncIndex;
+        }
+        long continueCost = getDecodeCost(currentIndex, targetIndex + 1);
+        long restartCost = getDecodeCost(syncIndex, targetIndex + 1);
+        return continueCost <= restartCost ? currentIndex : syncIndex;
+    }
+
+    /**
+     * Chooses the first frame of a window of frames which are played backwards, ending right
+     * before a given frame. The window does not reach past the sync sample which its last frame
+     * depends on, so that all of its frames are decoded in one pass from that sync sample.
+     * @param endIndex The index of the frame after the window. It must be positive.
+     * @param maxFrames The maximum number of frames in the window.
+     * @return the index of the first frame of the window.
+     */
+    public int getReverseWindowStart(int endIndex, int maxFrames) {
+        int syncIndex = Math.max(previousSyncIndices[endIndex - 1], 0);
+        return Math.max(endIndex - maxFrames, syncIndex);
+    }
+
+    /**
+     * Builds an index from the samples of a track, which must be added in presentation order.
+     */
+    static class Builder {
+        private long[] timestampsUs = new long[32];
+        private int[] previousSyncIndices = new int[32];
+        private long[] cumulativeCosts = new long[33];
+        private int sampleCount = 0;
+        private int lastSyncIndex = -1;
+
+        /**
+         * Adds a sample to the index.
+         * @param timestampUs The presentation timestamp of the sample, in microseconds.
+         * @param size The size of the compressed sample, in bytes (negative sizes count as 0).
+         * @param isSync Whether the sample is a sync sample (see MediaExtractor.SAMPLE_FLAG_SYNC).
+         * @throws IllegalArgumentException if the sample does not follow the previous sample.
+         */
+        public void addSample(long timestampUs, long size, boolean isSync) {
+            if (sampleCount > 0 && timestampUs <= timestampsUs[sampleCount - 1]) {
+                throw new IllegalArgumentException("Samples must be added in presentation order");
+            }
+            if (sampleCount == timestampsUs.length) {
+                timestampsUs = Arrays.copyOf(timestampsUs, 2 * sampleCount);
+                previousSyncIndices = Arrays.copyOf(previousSyncIndices, 2 * sampleCount);
+                cumulativeCosts = Arrays.copyOf(cumulativeCosts, 2 * sampleCount + 1);
+            }
+            if (isSync) {
+                lastSyncIndex = sampleCount;
+            }
+            timestampsUs[sampleCount] = timestampUs;
+            previousSyncIndices[sampleCount] = lastSyncIndex;
+            cumulativeCosts[sampleCount + 1] =
+                    cumulativeCosts[sampleCount] + Math.max(size, 0) + DECODE_COST_PER_SAMPLE;
+            sampleCount++;
+        }
+
+        public SampleIndex build() {
+            return new SampleIndex(
+                    Arrays.copyOf(timestampsUs, sampleCount),
+                    Arrays.copyOf(previousSyncIndices, sampleCount),
+                    Arrays.copyOf(cumulativeCosts, sampleCount + 1)
+            );
+        }
+    }
+}
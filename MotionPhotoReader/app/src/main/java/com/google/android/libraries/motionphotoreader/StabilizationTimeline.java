@@ -0,0 +1,154 @@
+package com.google.android.libraries.motionphotoreader;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.android.libraries.motionphotoreader.Constants.IDENTITY;
+import static com.google.android.libraries.motionphotoreader.Constants.NUM_OF_STRIPS;
+
+/**
+ * The precomputed stabilization state of every frame of a motion photo video.
+ *
+ * The timeline is built once while the reader is prepared, from the samples of the motion track.
+ * For every sample, it stores the accumulated stabilization homography of each strip, already
+ * inverted, converted to the OpenGL frame coordinate system and laid out in column-major order as
+ * expected by glUniformMatrix3fv. Rendering a frame then only takes a lookup by timestamp and an
+ * upload of the floats, and the motion track does not need to be read during playback.
+ */
+class StabilizationTimeline {
+
+    /** The number of floats stored for each frame (one 3x3 matrix per strip). */
+    public static final int FRAME_DATA_SIZE = 9 * NUM_OF_STRIPS;
+
+    private static final float[] IDENTITY_STRIP_MATRICES = createIdentityStripMatrices();
+
+    private final long[] timestampsUs;
+    private final float[][] stripMatrices;
+
+    private StabilizationTimeline(long[] timestampsUs, float[][] stripMatrices) {
+        this.timestampsUs = timestampsUs;
+        this.stripMatrices = stripMatrices;
+    }
+
+    /**
+     * Returns the stabilization data of the frame with the given timestamp: the inverse
+     * stabilization matrix of each strip, in the OpenGL basis and in column-major order. If there
+     * is no sample at the exact timestamp, the data of the closest preceding sample is returned.
+     * The returned array must not be modified.
+     * @param timestampUs The presentation timestamp of the frame, in microseconds.
+     */
+    public float[] getStripMatrices(long timestampUs) {
+        int index = Arrays.binarySearch(timestampsUs, timestampUs);
+        if (index < 0) {
+            // Use the closest preceding sample (or the identity before the first sample)
+            index = -index - 2;
+            if (index < 0) {
+                return IDENTITY_STRIP_MATRICES;
+            }
+        }
+        return stripMatrices[index];
+    }
+
+    /**
+     * Returns the number of frames in the timeline.
+     */
+    public int getFrameCount() {
+        return timestampsUs.length;
+    }
+
+    /**
+     * Returns the stabilization data of an unstabilized frame (the identity for every strip), in
+     * the same layout as getStripMatrices(). The returned array must not be modified.
+     */
+    public static float[] getIdentityStripMatrices() {
+        return IDENTITY_STRIP_MATRICES;
+    }
+
+    private static float[] createIdentityStripMatrices() {
+        float[] matrices = new float[FRAME_DATA_SIZE];
+        for (int i = 0; i < NUM_OF_STRIPS; i++) {
+            for (int j = 0; j < 9; j++) {
+                matrices[9 * i + j] = IDENTITY[j];
+            }
+        }
+        return matrices;
+    }
+
+    /**
+     * Builds a timeline from the motion track samples, which must be added in presentation order.
+     */
+    static class Builder {
+        private final int videoWidth;
+        private final int videoHeight;
+
+        /** The accumulated homography of each strip, in the pixel basis and in row-major order. */
+        private final float[] accumulated = createIdentityStripMatrices();
+        private final float[] sampleMatrix = new float[9];
+        private final float[] stripMatrix = new float[9];
+        private final float[] inverseMatrix = new float[9];
+
+        private long[] timestampsUs = new long[32];
+        private float[][] stripMatrices = new float[32][];
+        private int frameCount = 0;
+
+        /**
+         * @param videoWidth The width of the video, in pixels.
+         * @param videoHeight The height of the video, in pixels.
+         */
+        Builder(int videoWidth, int videoHeight) {
+            this.videoWidth = videoWidth;
+            this.videoHeight = videoHeight;
+        }
+
+        /**
+         * Adds the stabilization data of a motion track sample. The homographies of the sample are
+         * accumulated with those of the previous samples.
+         * @param timestampUs The presentation timestamp of the sample, in microseconds.
+         * @param homographyList The homography of each strip for this sample, or an empty list if
+         * the frame does not need to be stabilized (see MotionPhotoReaderUtils.getHomographies()).
+         * @throws IllegalArgumentException if the sample precedes the previous sample.
+         */
+        public void addFrame(long timestampUs, List<HomographyMatrix> homographyList) {
+            if (frameCount > 0 && timestampUs < timestampsUs[frameCount - 1]) {
+                throw new IllegalArgumentException("Samples must be added in presentation order");
+            }
+            float[] frameData = new float[FRAME_DATA_SIZE];
+            for (int i = 0; i < NUM_OF_STRIPS; i++) {
+                for (int j = 0; j < 9; j++) {
+                    stripMatrix[j] = accumulated[9 * i + j];
+                }
+                if (!homographyList.isEmpty()) {
+                    homographyList.get(i).toArray(sampleMatrix, /* offset = */ 0);
+                    HomographyMatrix.multiply(sampleMatrix, stripMatrix, stripMatrix);
+                    System.arraycopy(stripMatrix, 0, accumulated, 9 * i, 9);
+                }
+                if (!HomographyMatrix.invertInGLBasis(
+                        stripMatrix,
+                        videoWidth,
+                        videoHeight,
+                        frameData,
+                        /* offset = */ 9 * i,
+                        inverseMatrix
+                )) {
+                    // Leave a singular strip unstabilized
+                    System.arraycopy(IDENTITY_STRIP_MATRICES, 9 * i, frameData, 9 * i, 9);
+                }
+            }
+
+            if (frameCount == timestampsUs.length) {
+                timestampsUs = Arrays.copyOf(timestampsUs, 2 * frameCount);
+                stripMatrices = Arrays.copyOf(stripMatrices, 2 * frameCount);
+            }
+            timestampsUs[frameCount] = timestampUs;
+            stripMatrices[frameCount] = frameData;
+            frameCount++;
+        }
+
+        public StabilizationTimeline build() {
+            return new StabilizationTimeline(
+                    Arrays.copyOf(timestampsUs, frameCount),
+                    Arrays.copyOf(stripMatrices, frameCount)
+            );
+        }
+    }
+}
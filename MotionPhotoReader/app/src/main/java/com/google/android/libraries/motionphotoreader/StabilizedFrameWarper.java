@@ -0,0 +1,456 @@
+package com.google.android.libraries.motionphotoreader;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import static com.google.android.libraries.motionphotoreader.Constants.NUM_OF_STRIPS;
+
+/**
+ * Applies stabilization, crop and rotation to decoded frames on the CPU, without EGL.
+ *
+ * This is a reference implementation of the warp done by TextureRender: it takes the same strip
+ * matrices (see StabilizationTimeline) and crop transform, and produces the image that the GPU
+ * would render into a viewport of the output size. Pixels that no strip covers are black, like the
+ * GL clear color. It can run on machines without a GPU and in JVM tests.
+ *
+ * Every output pixel is mapped back to the source frame through the inverse of the transform of
+ * each strip, and sampled bilinearly. Strips are applied in draw order, so that a later strip
+ * covers an earlier one where they overlap, as on the GPU. Rows are split into bands which are
+ * warped in parallel on a fork-join pool. The band tasks, the plane descriptors and the per-strip
+ * transforms are allocated once and reused for every frame, so a warp does not allocate any
+ * memory.
+ *
+ * This class is not thread-safe: the scratch state is shared by all calls, so an instance must
+ * not warp several frames at once, nor have its crop transform changed during a warp.
+ */
+@RequiresApi(api = 21)
+class StabilizedFrameWarper {
+
+    /** Interleaved 8-bit RGBA, 4 bytes per pixel. */
+    public static final int FORMAT_RGBA_8888 = 0;
+
+    /** 8-bit planar YUV 4:2:0 (a full resolution Y plane followed by the U and V planes). */
+    public static final int FORMAT_I420 = 1;
+
+    /** The number of bands per thread, so that threads which finish early can steal work. */
+    private static final int BANDS_PER_THREAD = 4;
+
+    /** Black, in RGBA and in limited range YUV. */
+    private static final byte[] RGBA_BLACK = {0, 0, 0, (byte) 255};
+    private static final byte[] Y_BLACK = {16};
+    private static final byte[] UV_BLACK = {(byte) 128};
+
+    private final int videoWidth;
+    private final int videoHeight;
+    private final int videoRotation;
+    private final ForkJoinPool pool;
+    private final BandTask[] tasks;
+    private final RecursiveAction rootTask = new RecursiveAction() {
+        @Override
+        protected void compute() {
+            ForkJoinTask.invokeAll(tasks);
+        }
+    };
+
+    /** The planes being warped, and the color of uncovered pixels, shared with the band tasks. */
+    private final Plane srcPlane = new Plane();
+    private final Plane dstPlane = new Plane();
+    private byte[] fill;
+
+    private float scaleFactor = 1.0f;
+    private float xTranslate = 0.0f;
+    private float yTranslate = 0.0f;
+
+    /**
+     * For each strip, the transform from output pixel coordinates to source pixel coordinates, in
+     * row-major order, and whether the strip is drawn at all (singular strips are skipped).
+     */
+    private final float[] stripTransforms = new float[9 * NUM_OF_STRIPS];
+    private final boolean[] stripVisible = new boolean[NUM_OF_STRIPS];
+
+    /** For each strip, the range of output rows and columns that it may cover. */
+    private final int[] stripBounds = new int[4 * NUM_OF_STRIPS];
+
+    /** Scratch matrices used to compose the strip transforms. */
+    private final float[] scratchMatrix = new float[9];
+    private final float[] outputToGL = new float[9];
+    private final float[] glToSource = new float[9];
+
+    /**
+     * Creates a warper for the frames of a motion photo video, which runs on the common fork-join
+     * pool.
+     */
+    public StabilizedFrameWarper(MotionPhotoInfo motionPhotoInfo) {
+        this(
+                motionPhotoInfo.getWidth(),
+                motionPhotoInfo.getHeight(),
+                motionPhotoInfo.getRotation(),
+                ForkJoinPool.commonPool()
+        );
+    }
+
+    /**
+     * Creates a warper.
+     * @param videoWidth The width of the decoded frames, in pixels.
+     * @param videoHeight The height of the decoded frames, in pixels.
+     * @param videoRotation The camera orientation of the video (clockwise), in degrees.
+     * @param pool The pool on which the rows of a frame are warped.
+     */
+    public StabilizedFrameWarper(int videoWidth, int videoHeight, int videoRotation,
+                                 ForkJoinPool pool) {
+        if (videoWidth <= 0 || videoHeight <= 0) {
+            throw new IllegalArgumentException("Invalid video dimensions");
+        }
+        this.videoWidth = videoWidth;
+        this.videoHeight = videoHeight;
+        this.videoRotation = videoRotation;
+        this.pool = pool;
+        tasks = new BandTask[pool.getParallelism() * BANDS_PER_THREAD];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new BandTask(i);
+        }
+    }
+
+    /**
+     * Sets the crop transform, with the same meaning as in TextureRender.setUMatrix(). By default,
+     * frames are not cropped.
+     */
+    public void setCropTransform(float scaleFactor, float xTranslate, float yTranslate) {
+        this.scaleFactor = scaleFactor;
+        this.xTranslate = xTranslate;
+        this.yTranslate = yTranslate;
+    }
+
+    /**
+     * Returns the width of the output frames at full resolution, which takes the rotation of the
+     * video into account.
+     */
+    public int getOutputWidth() {
+        return videoRotation % 180 == 0 ? videoWidth : videoHeight;
+    }
+
+    /**
+     * Returns the height of the output frames at full resolution, which takes the rotation of the
+     * video into account.
+     */
+    public int getOutputHeight() {
+        return videoRotation % 180 == 0 ? videoHeight : videoWidth;
+    }
+
+    /**
+     * Returns the size of a frame in the given format, in bytes.
+     */
+    public static int getFrameSize(int format, int width, int height) {
+        switch (format) {
+            case FORMAT_RGBA_8888:
+                return 4 * width * height;
+            case FORMAT_I420:
+                return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+            default:
+                throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+    }
+
+    /**
+     * Warps a decoded frame. The output has the same format as the input, and should have the
+     * aspect ratio of getOutputWidth() and getOutputHeight() so that the video is not distorted.
+     * @param format FORMAT_RGBA_8888 or FORMAT_I420.
+     * @param source The decoded frame, of size videoWidth x videoHeight.
+     * @param stripMatrices The stabilization data of the frame, as returned by
+     * StabilizationTimeline.getStripMatrices().
+     * @param output The array to store the warped frame in.
+     * @param outputWidth The width of the output frame, in pixels.
+     * @param outputHeight The height of the output frame, in pixels.
+     */
+    public void warp(int format,
+                     byte[] source,
+                     float[] stripMatrices,
+                     byte[] output,
+                     int outputWidth,
+                     int outputHeight) {
+        if (outputWidth <= 0 || outputHeight <= 0) {
+            throw new IllegalArgumentException("Invalid output dimensions");
+        }
+        if (source.length < getFrameSize(format, videoWidth, videoHeight)
+                || output.length < getFrameSize(format, outputWidth, outputHeight)) {
+            throw new IllegalArgumentException("Frame buffer is too small");
+        }
+
+        if (format == FORMAT_RGBA_8888) {
+            srcPlane.set(source, 0, videoWidth, videoHeight, 4);
+            dstPlane.set(output, 0, outputWidth, outputHeight, 4);
+            warpPlane(stripMatrices, RGBA_BLACK);
+            return;
+        }
+
+        // Warp each plane of the I420 frame, the chroma planes at half resolution
+        int srcChromaWidth = (videoWidth + 1) / 2;
+        int srcChromaHeight = (videoHeight + 1) / 2;
+        int dstChromaWidth = (outputWidth + 1) / 2;
+        int dstChromaHeight = (outputHeight + 1) / 2;
+        int srcOffset = videoWidth * videoHeight;
+        int dstOffset = outputWidth * outputHeight;
+        srcPlane.set(source, 0, videoWidth, videoHeight, 1);
+        dstPlane.set(output, 0, outputWidth, outputHeight, 1);
+        warpPlane(stripMatrices, Y_BLACK);
+        for (int i = 0; i < 2; i++) {
+            srcPlane.set(source, srcOffset, srcChromaWidth, srcChromaHeight, 1);
+            dstPlane.set(output, dstOffset, dstChromaWidth, dstChromaHeight, 1);
+            warpPlane(stripMatrices, UV_BLACK);
+            srcOffset += srcChromaWidth * srcChromaHeight;
+            dstOffset += dstChromaWidth * dstChromaHeight;
+        }
+    }
+
+    /**
+     * Warps srcPlane into dstPlane. Since the transforms go through the OpenGL frame coordinate
+     * system, which does not depend on the resolution, subsampled chroma planes are warped like
+     * full resolution planes.
+     */
+    private void warpPlane(float[] stripMatrices, byte[] fill) {
+        computeStripTransforms(stripMatrices, srcPlane, dstPlane);
+        this.fill = fill;
+        try {
+            for (BandTask task : tasks) {
+                task.reinitialize();
+            }
+            rootTask.reinitialize();
+            pool.invoke(rootTask);
+        } finally {
+            this.fill = null;
+            srcPlane.data = null;
+            dstPlane.data = null;
+        }
+    }
+
+    /**
+     * Computes the transform from the output plane to the source plane for each strip, and the
+     * part of the output plane that each strip covers.
+     *
+     * On the GPU, a strip vertex p is drawn at U * S * p, where U is the crop and rotation matrix
+     * and S is the strip matrix, and is textured with the source pixel at p. Each output pixel q is
+     * therefore textured with the source pixel at S^-1 * U^-1 * q.
+     */
+    private void computeStripTransforms(float[] stripMatrices, Plane src, Plane dst) {
+        // Output plane pixels to the OpenGL frame coordinate system
+        float[] m = outputToGL;
+        set(m,
+                2.0f / dst.width, 0.0f, -1.0f,
+                0.0f, -2.0f / dst.height, 1.0f,
+                0.0f, 0.0f, 1.0f);
+
+        // Undo the crop and rotation: U^-1 = R(rotation) * S(1 / scale) * T(-translation)
+        double radians = Math.toRadians(videoRotation);
+        float cos = (float) Math.cos(radians) / scaleFactor;
+        float sin = (float) Math.sin(radians) / scaleFactor;
+        set(scratchMatrix,
+                cos, -sin, -cos * xTranslate + sin * yTranslate,
+                sin, cos, -sin * xTranslate - cos * yTranslate,
+                0.0f, 0.0f, 1.0f);
+        HomographyMatrix.multiply(scratchMatrix, m, m);
+
+        // The OpenGL frame coordinate system to source plane pixels
+        set(glToSource,
+                src.width / 2.0f, 0.0f, src.width / 2.0f,
+                0.0f, -src.height / 2.0f, src.height / 2.0f,
+                0.0f, 0.0f, 1.0f);
+
+        for (int i = 0; i < NUM_OF_STRIPS; i++) {
+            // The strip matrices are stored in column-major order
+            for (int r = 0; r < 3; r++) {
+                for (int c = 0; c < 3; c++) {
+                    scratchMatrix[3 * r + c] = stripMatrices[9 * i + 3 * c + r];
+                }
+            }
+            stripVisible[i] = HomographyMatrix.invert(scratchMatrix, scratchMatrix);
+            if (!stripVisible[i]) {
+                continue;
+            }
+            HomographyMatrix.multiply(scratchMatrix, m, scratchMatrix);
+            HomographyMatrix.multiply(glToSource, scratchMatrix, scratchMatrix);
+            System.arraycopy(scratchMatrix, 0, stripTransforms, 9 * i, 9);
+            computeStripBounds(i, src, dst);
+        }
+    }
+
+    /**
+     * Computes the bounding box of the output pixels covered by a strip, from its corners. If the
+     * strip is not entirely in front of the camera, the whole output plane is used instead.
+     */
+    private void computeStripBounds(int stripIndex, Plane src, Plane dst) {
+        int[] bounds = stripBounds;
+        int offset = 4 * stripIndex;
+        bounds[offset] = 0;
+        bounds[offset + 1] = 0;
+        bounds[offset + 2] = dst.width;
+        bounds[offset + 3] = dst.height;
+
+        float[] inverse = scratchMatrix;
+        System.arraycopy(stripTransforms, 9 * stripIndex, inverse, 0, 9);
+        if (!HomographyMatrix.invert(inverse, inverse)) {
+            return;
+        }
+        float top = getStripTop(stripIndex, src.height);
+        float bottom = getStripTop(stripIndex - 1, src.height);
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (int corner = 0; corner < 4; corner++) {
+            float x = corner % 2 == 0 ? 0.0f : src.width;
+            float y = corner < 2 ? top : bottom;
+            float w = inverse[6] * x + inverse[7] * y + inverse[8];
+            if (w <= 0.0f) {
+                return;
+            }
+            float outX = (inverse[0] * x + inverse[1] * y + inverse[2]) / w;
+            float outY = (inverse[3] * x + inverse[4] * y + inverse[5]) / w;
+            minX = Math.min(minX, outX);
+            minY = Math.min(minY, outY);
+            maxX = Math.max(maxX, outX);
+            maxY = Math.max(maxY, outY);
+        }
+        bounds[offset] = clamp((int) Math.floor(minX) - 1, 0, dst.width);
+        bounds[offset + 1] = clamp((int) Math.floor(minY) - 1, 0, dst.height);
+        bounds[offset + 2] = clamp((int) Math.ceil(maxX) + 1, 0, dst.width);
+        bounds[offset + 3] = clamp((int) Math.ceil(maxY) + 1, 0, dst.height);
+    }
+
+    /**
+     * Returns the first source row of a strip, in plane pixels. Strip 0 is at the bottom of the
+     * frame, like in the OpenGL frame coordinate system.
+     */
+    private static float getStripTop(int stripIndex, int planeHeight) {
+        return (float) planeHeight * (NUM_OF_STRIPS - 1 - stripIndex) / NUM_OF_STRIPS;
+    }
+
+    /**
+     * Warps the rows of a band of the output plane.
+     */
+    private void warpRows(Plane src, Plane dst, byte[] fill, int startRow, int endRow) {
+        int channels = dst.channels;
+        for (int y = startRow; y < endRow; y++) {
+            int rowOffset = dst.offset + y * dst.width * channels;
+            for (int i = 0; i < dst.width * channels; i += channels) {
+                System.arraycopy(fill, 0, dst.data, rowOffset + i, channels);
+            }
+
+            float outY = y + 0.5f;
+            for (int strip = 0; strip < NUM_OF_STRIPS; strip++) {
+                int bounds = 4 * strip;
+                if (!stripVisible[strip] || y < stripBounds[bounds + 1]
+                        || y >= stripBounds[bounds + 3]) {
+                    continue;
+                }
+                float stripTop = getStripTop(strip, src.height);
+                float stripBottom = getStripTop(strip - 1, src.height);
+                int t = 9 * strip;
+                float[] k = stripTransforms;
+                for (int x = stripBounds[bounds]; x < stripBounds[bounds + 2]; x++) {
+                    float outX = x + 0.5f;
+                    float w = k[t + 6] * outX + k[t + 7] * outY + k[t + 8];
+                    float srcX = (k[t] * outX + k[t + 1] * outY + k[t + 2]) / w;
+                    float srcY = (k[t + 3] * outX + k[t + 4] * outY + k[t + 5]) / w;
+                    if (srcX < 0.0f || srcX > src.width || srcY < stripTop
+                            || srcY > stripBottom) {
+                        continue;
+                    }
+                    sampleBilinear(src, srcX, srcY, dst.data, rowOffset + x * channels);
+                }
+            }
+        }
+    }
+
+    /**
+     * Samples a plane at the given position (in pixels, where pixel centers are at half
+     * integers) with bilinear interpolation, clamping to the edges of the plane.
+     */
+    private static void sampleBilinear(Plane src, float x, float y, byte[] out, int outOffset) {
+        float fx = x - 0.5f;
+        float fy = y - 0.5f;
+        int x0 = (int) Math.floor(fx);
+        int y0 = (int) Math.floor(fy);
+        float ax = fx - x0;
+        float ay = fy - y0;
+        int x1 = clamp(x0 + 1, 0, src.width - 1);
+        int y1 = clamp(y0 + 1, 0, src.height - 1);
+        x0 = clamp(x0, 0, src.width - 1);
+        y0 = clamp(y0, 0, src.height - 1);
+
+        int channels = src.channels;
+        int stride = src.width * channels;
+        int p00 = src.offset + y0 * stride + x0 * channels;
+        int p01 = src.offset + y0 * stride + x1 * channels;
+        int p10 = src.offset + y1 * stride + x0 * channels;
+        int p11 = src.offset + y1 * stride + x1 * channels;
+        byte[] data = src.data;
+        for (int c = 0; c < channels; c++) {
+            int v00 = data[p00 + c] & 0xFF;
+            int v01 = data[p01 + c] & 0xFF;
+            int v10 = data[p10 + c] & 0xFF;
+            int v11 = data[p11 + c] & 0xFF;
+            float top = v00 + ax * (v01 - v00);
+            float bottom = v10 + ax * (v11 - v10);
+            out[outOffset + c] = (byte) (top + ay * (bottom - top) + 0.5f);
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static void set(float[] m, float m00, float m01, float m02, float m10, float m11,
+                            float m12, float m20, float m21, float m22) {
+        m[0] = m00;
+        m[1] = m01;
+        m[2] = m02;
+        m[3] = m10;
+        m[4] = m11;
+        m[5] = m12;
+        m[6] = m20;
+        m[7] = m21;
+        m[8] = m22;
+    }
+
+    /**
+     * A plane of a frame buffer, with tightly packed rows. Planes are reused for every frame.
+     */
+    private static class Plane {
+        byte[] data;
+        int offset;
+        int width;
+        int height;
+        int channels;
+
+        void set(byte[] data, int offset, int width, int height, int channels) {
+            this.data = data;
+            this.offset = offset;
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+        }
+    }
+
+    /**
+     * Warps one of the bands of rows of dstPlane, which split it evenly.
+     */
+    private class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int bandIndex;
+
+        BandTask(int bandIndex) {
+            this.bandIndex = bandIndex;
+        }
+
+        @Override
+        protected void compute() {
+            int startRow = (int) ((long) dstPlane.height * bandIndex / tasks.length);
+            int endRow = (int) ((long) dstPlane.height * (bandIndex + 1) / tasks.length);
+            warpRows(srcPlane, dstPlane, fill, startRow, endRow);
+        }
+    }
+}
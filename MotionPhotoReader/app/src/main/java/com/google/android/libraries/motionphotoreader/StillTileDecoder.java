@@ -0,0 +1,285 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import com.adobe.internal.xmp.XMPException;
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.google.android.libraries.motionphotoreader.Constants.DEFAULT_STILL_TILE_SIZE;
+import static com.google.android.libraries.motionphotoreader.Constants.DEFAULT_TILE_CACHE_BYTES;
+
+/**
+ * Decodes the still image of a motion photo tile by tile, so that a viewer can zoom into it
+ * without decoding the whole image at full resolution.
+ *
+ * Only the bytes of the primary JPEG are handed to the region decoder (the video track appended
+ * to the file is skipped, see MotionPhotoInfo). Tiles are organized in a pyramid of resolutions
+ * (see TilePyramid): a viewer picks the level which matches its zoom scale, and decodes the tiles
+ * which intersect its viewport at that level. Decoded tiles are kept in a cache whose size is
+ * bounded in bytes, and the tiles around the viewport can be decoded ahead of time on the shared
+ * decode threads (see PlaybackScheduler) so that panning does not wait for them.
+ *
+ * Tile bitmaps belong to the cache, and must not be recycled or modified by the caller. This
+ * class is thread-safe.
+ */
+@RequiresApi(api = 28)
+public class StillTileDecoder implements AutoCloseable {
+
+    private static final String TAG = "StillTileDecoder";
+
+    private final BitmapRegionDecoder regionDecoder;
+    private final TilePyramid pyramid;
+    private final LruCache<Long, Bitmap> tileCache;
+    private final PlaybackScheduler.TaskQueue prefetchQueue;
+
+    /** Guards the region decoder against being recycled while it decodes. */
+    private final Object decodeLock = new Object();
+    private volatile boolean isClosed = false;
+
+    private StillTileDecoder(BitmapRegionDecoder regionDecoder, int tileSize, long cacheBytes) {
+        this.regionDecoder = regionDecoder;
+        this.pyramid = new TilePyramid(
+                regionDecoder.getWidth(),
+                regionDecoder.getHeight(),
+                tileSize
+        );
+        this.tileCache = new LruCache<Long, Bitmap>((int) cacheBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap tile) {
+                return tile.getAllocationByteCount();
+            }
+        };
+        this.prefetchQueue = PlaybackScheduler.getInstance().newTaskQueue();
+    }
+
+    /**
+     * Opens the still image of a motion photo for tiled decoding, with the default tile size and
+     * cache size.
+     * @param file The motion photo file.
+     * @return a StillTileDecoder object, which must be closed once it is not needed anymore.
+     * @throws IOException when the file cannot be read, or the image cannot be decoded.
+     * @throws XMPException when parsing invalid XMP metadata.
+     */
+    public static StillTileDecoder open(File file) throws IOException, XMPException {
+        return open(file, DEFAULT_STILL_TILE_SIZE, DEFAULT_TILE_CACHE_BYTES);
+    }
+
+    /**
+     * Opens the still image of a motion photo for tiled decoding.
+     * @param file The motion photo file.
+     * @param tileSize The width and height of the decoded tiles, in pixels.
+     * @param cacheBytes The maximum amount of memory used by the cached tiles, in bytes.
+     * @return a StillTileDecoder object, which must be closed once it is not needed anymore.
+     * @throws IllegalArgumentException if the tile size or the cache size is not positive.
+     * @throws IOException when the file cannot be read, or the image cannot be decoded.
+     * @throws XMPException when parsing invalid XMP metadata.
+     */
+    public static StillTileDecoder open(File file, int tileSize, long cacheBytes)
+            throws IOException, XMPException {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Invalid tile size: " + tileSize);
+        }
+        if (cacheBytes <= 0 || cacheBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid tile cache size: " + cacheBytes);
+        }
+        long imageLength = file.length() - MotionPhotoInfo.readVideoOffset(file);
+        BitmapRegionDecoder regionDecoder;
+        try (InputStream input = ByteStreams.limit(
+                new BufferedInputStream(new FileInputStream(file)),
+                imageLength
+        )) {
+            regionDecoder = BitmapRegionDecoder.newInstance(input, /* isShareable = */ false);
+        }
+        if (regionDecoder == null) {
+            throw new IOException("Cannot decode the still image of " + file);
+        }
+        return new StillTileDecoder(regionDecoder, tileSize, cacheBytes);
+    }
+
+    /**
+     * @return the width of the still image, in pixels.
+     */
+    public int getImageWidth() {
+        return pyramid.getImageWidth();
+    }
+
+    /**
+     * @return the height of the still image, in pixels.
+     */
+    public int getImageHeight() {
+        return pyramid.getImageHeight();
+    }
+
+    /**
+     * @return the width and height of the decoded tiles, in pixels.
+     */
+    public int getTileSize() {
+        return pyramid.getTileSize();
+    }
+
+    /**
+     * @return the number of levels of the tile pyramid. Level 0 is the full resolution image, and
+     * each level halves the resolution of the previous one.
+     */
+    public int getLevelCount() {
+        return pyramid.getLevelCount();
+    }
+
+    /**
+     * Returns the level to decode for a zoom scale: the lowest resolution which is still at least
+     * as large as the displayed image.
+     * @param scale The ratio of displayed pixels to image pixels.
+     */
+    public int getLevelForScale(float scale) {
+        return pyramid.getLevelForScale(scale);
+    }
+
+    /**
+     * @return the number of columns of tiles at a level.
+     */
+    public int getColumnCount(int level) {
+        return pyramid.getColumnCount(level);
+    }
+
+    /**
+     * @return the number of rows of tiles at a level.
+     */
+    public int getRowCount(int level) {
+        return pyramid.getRowCount(level);
+    }
+
+    /**
+     * @return the area of the still image covered by a tile, in image pixels.
+     */
+    public Rect getTileRect(int level, int column, int row) {
+        int[] bounds = pyramid.getTileBounds(level, column, row);
+        return new Rect(bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+
+    /**
+     * Returns a tile if it is in the cache, without decoding it.
+     * @return the tile, or null if it is not cached.
+     */
+    @Nullable
+    public Bitmap getCachedTile(int level, int column, int row) {
+        return tileCache.get(getTileKey(level, column, row));
+    }
+
+    /**
+     * Returns a tile, from the cache or by decoding it. This blocks while the tile is decoded, so
+     * it should not be called on the UI thread.
+     * @return the tile, whose size is the size of its area divided by the sample size of the
+     * level, or null if it cannot be decoded.
+     * @throws IllegalStateException if the decoder is closed.
+     */
+    @Nullable
+    public Bitmap getTile(int level, int column, int row) {
+        if (isClosed) {
+            throw new IllegalStateException("Tile decoder is closed");
+        }
+        return loadTile(level, column, row);
+    }
+
+    /**
+     * Decodes ahead of time the tiles of a level which intersect a viewport, and then the ring of
+     * tiles around it, in the background. Tiles which are already cached are skipped, and the
+     * tiles which are still pending from a previous call are dropped.
+     * @param level The level of the tiles.
+     * @param viewport The visible area of the still image, in image pixels.
+     */
+    public void prefetch(int level, Rect viewport) {
+        if (isClosed) {
+            return;
+        }
+        int firstColumn = pyramid.getColumnAt(level, viewport.left);
+        int lastColumn = pyramid.getColumnAt(level, viewport.right - 1);
+        int firstRow = pyramid.getRowAt(level, viewport.top);
+        int lastRow = pyramid.getRowAt(level, viewport.bottom - 1);
+
+        prefetchQueue.clear();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                queueTile(level, column, row);
+            }
+        }
+        for (int row = firstRow - 1; row <= lastRow + 1; row++) {
+            for (int column = firstColumn - 1; column <= lastColumn + 1; column++) {
+                boolean isVisible = row >= firstRow && row <= lastRow
+                        && column >= firstColumn && column <= lastColumn;
+                if (!isVisible
+                        && row >= 0 && row < pyramid.getRowCount(level)
+                        && column >= 0 && column < pyramid.getColumnCount(level)) {
+                    queueTile(level, column, row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all pending prefetches and cached tiles, and releases the region decoder.
+     */
+    @Override
+    public void close() {
+        isClosed = true;
+        prefetchQueue.shutdown();
+        synchronized (decodeLock) {
+            regionDecoder.recycle();
+        }
+        tileCache.evictAll();
+    }
+
+    private void queueTile(int level, int column, int row) {
+        prefetchQueue.execute(() -> {
+            if (!isClosed) {
+                loadTile(level, column, row);
+            }
+        });
+    }
+
+    @Nullable
+    private Bitmap loadTile(int level, int column, int row) {
+        long key = getTileKey(level, column, row);
+        Bitmap tile = tileCache.get(key);
+        if (tile != null) {
+            return tile;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = pyramid.getSampleSize(level);
+        Rect region = getTileRect(level, column, row);
+        synchronized (decodeLock) {
+            if (isClosed) {
+                return null;
+            }
+            tile = regionDecoder.decodeRegion(region, options);
+        }
+        if (tile == null) {
+            Log.w(TAG, "Failed to decode tile " + column + "," + row + " at level " + level);
+            return null;
+        }
+        tileCache.put(key, tile);
+        return tile;
+    }
+
+    /**
+     * Packs the position of a tile into a cache key (levels and tile indices fit in 16 bits).
+     */
+    private long getTileKey(int level, int column, int row) {
+        // Checks the position
+        pyramid.getTileBounds(level, column, row);
+        return ((long) level << 32) | ((long) column << 16) | row;
+    }
+}
@@ -0,0 +1,149 @@
+package com.google.android.libraries.motionphotoreader;
+
+import static com.google.android.libraries.motionphotoreader.Constants.NUM_OF_STRIPS;
+import static com.google.android.libraries.motionphotoreader.Constants.STRIP_VERTEX_SIZE;
+import static com.google.android.libraries.motionphotoreader.Constants.VERTICES_PER_STRIP;
+
+/**
+ * Merges adjacent stabilization strips whose homographies are nearly identical into larger
+ * regions, so that a frame can be drawn with fewer regions than strips.
+ *
+ * Two strips are considered identical if transforming the corners of a strip with the matrix of
+ * the other strip moves them by at most a given number of video pixels. Most frames are stabilized
+ * with almost the same homography for every strip (and unstabilized frames use the identity for
+ * every strip), so they collapse into a single region.
+ */
+class StripMerger {
+
+    private StripMerger() {}
+
+    /**
+     * Groups the strips of a frame into regions of adjacent strips. Each region is drawn with the
+     * matrix of its first strip, and a strip only joins a region if that matrix moves the corners
+     * of the strip by at most the given tolerance.
+     * @param stripMatrices The inverse stabilization matrix of each strip, in the OpenGL basis and
+     * in column-major order (see StabilizationTimeline).
+     * @param videoWidth The width of the video, in pixels.
+     * @param videoHeight The height of the video, in pixels.
+     * @param tolerancePixels The maximum error allowed at the corners of a merged strip, in video
+     * pixels.
+     * @param regionStarts Receives the index of the first strip of each region. Must have room for
+     * NUM_OF_STRIPS entries.
+     * @param regionMatrices Receives the matrix of each region, in the same layout as
+     * stripMatrices. Must have room for NUM_OF_STRIPS matrices.
+     * @return the number of regions.
+     */
+    static int mergeStrips(float[] stripMatrices,
+                           int videoWidth,
+                           int videoHeight,
+                           float tolerancePixels,
+                           int[] regionStarts,
+                           float[] regionMatrices) {
+        int regionCount = 0;
+        int regionOffset = 0;
+        for (int stripIndex = 0; stripIndex < NUM_OF_STRIPS; stripIndex++) {
+            if (regionCount == 0 || !(getMaxCornerError(
+                    stripMatrices,
+                    /* stripIndex = */ stripIndex,
+                    /* otherOffset = */ regionOffset,
+                    videoWidth,
+                    videoHeight
+            ) <= tolerancePixels)) {
+                // Start a new region with the matrix of this strip
+                regionOffset = 9 * stripIndex;
+                regionStarts[regionCount] = stripIndex;
+                System.arraycopy(stripMatrices, regionOffset, regionMatrices, 9 * regionCount, 9);
+                regionCount++;
+            }
+        }
+        return regionCount;
+    }
+
+    /**
+     * Creates the vertices of the given regions, as two triangles per region. Each vertex is
+     * stored as (x, y, 1, region index), where (x, y, 1) are the homogeneous 2D coordinates of the
+     * vertex.
+     * @param regionStarts The index of the first strip of each region (see mergeStrips()).
+     * @param regionCount The number of regions.
+     * @param vertices Receives the vertices. Must have room for the vertices of NUM_OF_STRIPS
+     * regions.
+     * @return the number of vertices written.
+     */
+    static int createRegionVertices(int[] regionStarts, int regionCount, float[] vertices) {
+        int i = 0;
+        for (int regionIndex = 0; regionIndex < regionCount; regionIndex++) {
+            int endStrip = regionIndex + 1 < regionCount
+                    ? regionStarts[regionIndex + 1]
+                    : NUM_OF_STRIPS;
+            float bottom = getStripBoundary(regionStarts[regionIndex]);
+            float top = getStripBoundary(endStrip);
+            float[][] corners = {
+                    {-1.0f, bottom},  // bottom left
+                    { 1.0f, bottom},  // bottom right
+                    {-1.0f, top},     // top left
+                    {-1.0f, top},     // top left
+                    { 1.0f, bottom},  // bottom right
+                    { 1.0f, top}      // top right
+            };
+            for (float[] corner : corners) {
+                vertices[i++] = corner[0];
+                vertices[i++] = corner[1];
+                vertices[i++] = 1.0f;
+                vertices[i++] = regionIndex;
+            }
+        }
+        return i / STRIP_VERTEX_SIZE;
+    }
+
+    /**
+     * Returns the number of floats needed to hold the vertices of all strips.
+     */
+    static int getMaxVertexDataSize() {
+        return NUM_OF_STRIPS * VERTICES_PER_STRIP * STRIP_VERTEX_SIZE;
+    }
+
+    /**
+     * Returns the y coordinate of the bottom of a strip in the OpenGL frame coordinate system.
+     */
+    private static float getStripBoundary(int stripIndex) {
+        return -1.0f + 2.0f * stripIndex / NUM_OF_STRIPS;
+    }
+
+    /**
+     * Computes how far the corners of a strip move, in video pixels, when they are transformed by
+     * another matrix instead of the matrix of the strip.
+     */
+    private static float getMaxCornerError(float[] matrices,
+                                           int stripIndex,
+                                           int otherOffset,
+                                           int videoWidth,
+                                           int videoHeight) {
+        int stripOffset = 9 * stripIndex;
+        float maxError = 0.0f;
+        for (int corner = 0; corner < 4; corner++) {
+            float x = corner % 2 == 0 ? -1.0f : 1.0f;
+            float y = getStripBoundary(stripIndex + corner / 2);
+
+            float stripX = transformX(matrices, stripOffset, x, y);
+            float stripY = transformY(matrices, stripOffset, x, y);
+            float otherX = transformX(matrices, otherOffset, x, y);
+            float otherY = transformY(matrices, otherOffset, x, y);
+
+            // The OpenGL frame coordinate system spans 2 units in each direction
+            float dx = (stripX - otherX) * videoWidth / 2.0f;
+            float dy = (stripY - otherY) * videoHeight / 2.0f;
+            maxError = Math.max(maxError, (float) Math.hypot(dx, dy));
+        }
+        return maxError;
+    }
+
+    private static float transformX(float[] m, int offset, float x, float y) {
+        return (m[offset] * x + m[offset + 3] * y + m[offset + 6])
+                / (m[offset + 2] * x + m[offset + 5] * y + m[offset + 8]);
+    }
+
+    private static float transformY(float[] m, int offset, float x, float y) {
+        return (m[offset + 1] * x + m[offset + 4] * y + m[offset + 7])
+                / (m[offset + 2] * x + m[offset + 5] * y + m[offset + 8]);
+    }
+}
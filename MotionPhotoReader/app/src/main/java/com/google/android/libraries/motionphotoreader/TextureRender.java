@@ -6,47 +6,44 @@ import android.util.Log;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.List;
 
 import static android.opengl.GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
+import static android.opengl.GLES30.GL_ARRAY_BUFFER;
 import static android.opengl.GLES30.GL_COLOR_BUFFER_BIT;
-import static android.opengl.GLES30.GL_COMPILE_STATUS;
+import static android.opengl.GLES30.GL_DYNAMIC_DRAW;
 import static android.opengl.GLES30.GL_FLOAT;
-import static android.opengl.GLES30.GL_FRAGMENT_SHADER;
-import static android.opengl.GLES30.GL_LINK_STATUS;
 import static android.opengl.GLES30.GL_TEXTURE0;
-import static android.opengl.GLES30.GL_TRIANGLE_STRIP;
-import static android.opengl.GLES30.GL_VALIDATE_STATUS;
-import static android.opengl.GLES30.GL_VERTEX_SHADER;
+import static android.opengl.GLES30.GL_TEXTURE_2D;
+import static android.opengl.GLES30.GL_TRIANGLES;
 import static android.opengl.GLES30.glActiveTexture;
-import static android.opengl.GLES30.glAttachShader;
+import static android.opengl.GLES30.glBindBuffer;
 import static android.opengl.GLES30.glBindTexture;
+import static android.opengl.GLES30.glBindVertexArray;
+import static android.opengl.GLES30.glBufferData;
+import static android.opengl.GLES30.glBufferSubData;
 import static android.opengl.GLES30.glClear;
 import static android.opengl.GLES30.glClearColor;
-import static android.opengl.GLES30.glCompileShader;
-import static android.opengl.GLES30.glCreateProgram;
-import static android.opengl.GLES30.glCreateShader;
-import static android.opengl.GLES30.glDeleteProgram;
-import static android.opengl.GLES30.glDeleteShader;
+import static android.opengl.GLES30.glDeleteBuffers;
+import static android.opengl.GLES30.glDeleteTextures;
+import static android.opengl.GLES30.glDeleteVertexArrays;
 import static android.opengl.GLES30.glDrawArrays;
 import static android.opengl.GLES30.glEnableVertexAttribArray;
+import static android.opengl.GLES30.glGenBuffers;
 import static android.opengl.GLES30.glGenTextures;
+import static android.opengl.GLES30.glGenVertexArrays;
 import static android.opengl.GLES30.glGetAttribLocation;
 import static android.opengl.GLES30.glGetError;
-import static android.opengl.GLES30.glGetProgramInfoLog;
-import static android.opengl.GLES30.glGetProgramiv;
-import static android.opengl.GLES30.glGetShaderiv;
 import static android.opengl.GLES30.glGetUniformLocation;
-import static android.opengl.GLES30.glLinkProgram;
-import static android.opengl.GLES30.glShaderSource;
 import static android.opengl.GLES30.glUniform1i;
+import static android.opengl.GLES30.glUniformMatrix3fv;
 import static android.opengl.GLES30.glUniformMatrix4fv;
 import static android.opengl.GLES30.glUseProgram;
-import static android.opengl.GLES30.glValidateProgram;
 import static android.opengl.GLES30.glVertexAttribPointer;
 import static android.opengl.GLES30.glViewport;
+import static com.google.android.libraries.motionphotoreader.Constants.DEFAULT_STRIP_MERGE_TOLERANCE_PIXELS;
 import static com.google.android.libraries.motionphotoreader.Constants.FLOAT_SIZE_BYTES;
 import static com.google.android.libraries.motionphotoreader.Constants.NUM_OF_STRIPS;
+import static com.google.android.libraries.motionphotoreader.Constants.STRIP_VERTEX_SIZE;
 import static com.google.android.libraries.motionphotoreader.Constants.TRIANGLE_VERTICES_DATA_POS_OFFSET;
 import static com.google.android.libraries.motionphotoreader.Constants.TRIANGLE_VERTICES_DATA_STRIDE_BYTES;
 
@@ -56,22 +53,33 @@ import static com.google.android.libraries.motionphotoreader.Constants.TRIANGLE_
  * Video frames are decoded onto a Surface wrapped around a Surface Texture attached to this GL
  * context. Stabilization is applied, and the texture is then rendered to a flat image plane
  * covering the viewport.
+ *
+ * Adjacent strips with nearly identical stabilization matrices are merged into larger regions
+ * (see StripMerger). The geometry of the regions lives in a vertex buffer which is only rewritten
+ * when the regions change, and the matrices of all regions are uploaded as a single uniform array,
+ * so each frame is drawn with one draw call. The matrices are precomputed for the whole video (see
+ * StabilizationTimeline), so no matrix inversion happens on the render thread.
+ *
+ * Frames are normally drawn from the external texture which the decoder renders to. They can also
+ * be drawn from a 2D texture holding a previously decoded frame (see FrameCache), with a second
+ * program which only differs in its sampler type.
  */
 class TextureRender {
 
     private static final String TAG = "TextureRender";
 
-    // The vertex shader applies a stabilization homography (uStabMatrix) to the boundaries of each
-    // strip, and also flips the image about the y-axis
+    // The vertex shader applies the stabilization homography of its region (one of uStabMatrices,
+    // selected by the region index stored in the w component of aPosition) to the boundaries of
+    // each region, and also flips the image about the y-axis
     private static final String VERTEX_SHADER =
             "#version 300 es\n" +
             "uniform mat4 uMatrix;\n" +
-            "uniform mat4 uStabMatrix;\n" +
-            "in vec3 aPosition;\n" +
+            "uniform mat3 uStabMatrices[" + NUM_OF_STRIPS + "];\n" +
+            "layout(location = 0) in vec4 aPosition;\n" +
             "out vec2 TexCoord;\n" +
             "void main() {\n" +
             "  TexCoord = 0.5 * vec2(aPosition.x, -aPosition.y) + vec2(0.5, 0.5);\n" +
-            "  vec4 hPos = uStabMatrix * vec4(aPosition, 1.0);\n" +
+            "  vec3 hPos = uStabMatrices[int(aPosition.w)] * aPosition.xyz;\n" +
             "  gl_Position = uMatrix * vec4(hPos.x, hPos.y, 0.0, hPos.z);\n" +
             "}";
 
@@ -87,15 +95,54 @@ class TextureRender {
             "  FragColor = texture(uTexUnit, TexCoord);\n" +
             "}";
 
+    // The fragment shader for frames drawn from a 2D texture instead of the external texture
+    private static final String FRAGMENT_SHADER_2D =
+            "#version 300 es\n" +
+            "precision mediump float;\n" +
+            "uniform sampler2D uTexUnit;\n" +
+            "in vec2 TexCoord;\n" +
+            "out vec4 FragColor;\n" +
+            "void main() {\n" +
+            "  FragColor = texture(uTexUnit, TexCoord);\n" +
+            "}";
+
+    // Flips the image upside down, for render targets which are read back bottom row first
+    private static final float[] FLIP_VERTICAL_MATRIX = {
+            1.0f,  0.0f, 0.0f, 0.0f,
+            0.0f, -1.0f, 0.0f, 0.0f,
+            0.0f,  0.0f, 1.0f, 0.0f,
+            0.0f,  0.0f, 0.0f, 1.0f
+    };
+
     private final float[] uMatrix = new float[16];
-    private final float[] uStabMatrix = new float[16];
+    private final float[] flippedUMatrix = new float[16];
+    private boolean flipVertically = false;
+
+    /** The current strip regions and their matrices (see StripMerger). */
+    private final int[] regionStarts = new int[NUM_OF_STRIPS];
+    private final float[] regionMatrices = new float[StabilizationTimeline.FRAME_DATA_SIZE];
+
+    /** The strip regions whose vertices are in the vertex buffer. */
+    private final int[] bufferedRegionStarts = new int[NUM_OF_STRIPS];
+    private int bufferedRegionCount = 0;
+    private int bufferedVertexCount = 0;
+
+    private final float[] regionVerticesData = new float[StripMerger.getMaxVertexDataSize()];
+    private final FloatBuffer regionVertices = ByteBuffer
+            .allocateDirect(regionVerticesData.length * FLOAT_SIZE_BYTES)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    private float stripMergeTolerancePixels = DEFAULT_STRIP_MERGE_TOLERANCE_PIXELS;
 
     private int textureID;
-    private int program;
+    private final ProgramHandles externalProgram = new ProgramHandles();
+    private final ProgramHandles texture2DProgram = new ProgramHandles();
+    private int vertexArray;
+    private int vertexBuffer;
     private int aPositionHandle;
-    private int uMatrixHandle;
-    private int uStabMatrixHandle;
-    private int uTextureUnitHandle;
+
+    /** The 2D texture that frames are drawn from, or 0 to draw from the external texture. */
+    private int sourceTexture2D = 0;
 
     private int videoWidth = 0;
     private int videoHeight = 0;
@@ -103,14 +150,11 @@ class TextureRender {
     int surfaceWidth = 0;
     int surfaceHeight = 0;
 
-    private FloatBuffer triangleVertices;
-
     /**
      * Create a TextureRender instance and allocate memory for image data.
      */
     public TextureRender() {
         Matrix.setIdentityM(uMatrix, /* smOffset = */ 0);
-        Matrix.setIdentityM(uStabMatrix, /* smOffset = */ 0);
     }
 
     /**
@@ -129,6 +173,15 @@ class TextureRender {
         this.videoHeight = videoHeight;
     }
 
+    /**
+     * Sets how far, in video pixels, the corners of a strip may move when the strip is merged with
+     * its neighbours and drawn with their stabilization matrix. A tolerance of 0 only merges strips
+     * with identical matrices.
+     */
+    public void setStripMergeTolerance(float tolerancePixels) {
+        this.stripMergeTolerancePixels = tolerancePixels;
+    }
+
     /**
      * Specify the camera orientation (as a rotation) of the video being rendered, in degrees.
      */
@@ -137,48 +190,144 @@ class TextureRender {
     }
 
     /**
-     * Sets up the GL program to render the video frames. Should be called immediately after
-     * constructing an instance of the TextureRender.
-     * @param surfaceWidth The width of the display Surface that the GL viewport covers, in pixels.
-     * @param surfaceHeight The height of the display Surface that the GL viewport covers, in pixels.
+     * Sets up the GL programs to render the video frames. Should be called immediately after
+     * constructing an instance of the TextureRender. This does not depend on the display Surface,
+     * whose size is set by onSurfaceChanged().
+     *
+     * The programs are shared with the other readers which render on the same thread (see
+     * GlContextManager), so they are only compiled and linked for the first of them. This instance
+     * only owns its external texture and its vertex buffers.
+     * @param glContext The EGL context of the render thread, which must be current.
      */
-    public void onSurfaceCreated(int surfaceWidth, int surfaceHeight) {
-        this.surfaceWidth = surfaceWidth;
-        this.surfaceHeight = surfaceHeight;
-
+    public void onSurfaceCreated(GlContextManager.SharedContext glContext) {
         glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
 
-        int vertexShader = compileShader(GL_VERTEX_SHADER, VERTEX_SHADER);
-        int fragmentShader = compileShader(GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
-        program = linkProgram(vertexShader, fragmentShader);
-
-        // Validate the program
-        glValidateProgram(program);
-        final int[] validateStatus = new int[1];
-        glGetProgramiv(program, GL_VALIDATE_STATUS, validateStatus, /* offset = */ 0);
-        Log.v(TAG, "Program validation results: " + validateStatus[0]
-                + "\nLog: " + glGetProgramInfoLog(program));
-
-        setViewport();
-        glUseProgram(program);
+        // Look up all handles once the programs are linked
+        externalProgram.setUp(glContext.getProgram(VERTEX_SHADER, FRAGMENT_SHADER));
+        texture2DProgram.setUp(glContext.getProgram(VERTEX_SHADER, FRAGMENT_SHADER_2D));
+        aPositionHandle = glGetAttribLocation(externalProgram.program, "aPosition");
+        if (glGetError() != 0) {
+            Log.e(TAG, "Failed to get texture unit");
+        }
 
         // Create and bind textures
         int[] textureIds = new int[1];
         glGenTextures(/* n = */ 1, textureIds, 0);
+        textureID = textureIds[0];
         glActiveTexture(GL_TEXTURE0);
         glBindTexture(GL_TEXTURE_EXTERNAL_OES, textureID);
-        textureID = textureIds[0];
 
         if (glGetError() != 0) {
             Log.e(TAG, "Failed to set up textures");
         }
 
-        uTextureUnitHandle = glGetUniformLocation(program, "uTexUnit");
-        glUniform1i(uTextureUnitHandle, /* x = */0);
+        setupStripVertices();
+    }
+
+    /**
+     * Selects the texture that frames are drawn from.
+     * @param texture2D A 2D texture holding a frame, upright and unstabilized (see FrameCache),
+     * or 0 to draw the latest decoded frame from the external texture.
+     */
+    public void setSourceTexture(int texture2D) {
+        sourceTexture2D = texture2D;
+    }
+
+    /**
+     * Returns the 2D texture that frames are drawn from, or 0 if they are drawn from the external
+     * texture.
+     */
+    public int getSourceTexture() {
+        return sourceTexture2D;
+    }
+
+    /**
+     * Creates the vertex buffer holding the region geometry, and records the vertex layout in a
+     * vertex array object. The buffer has room for one region per strip and starts out with that
+     * layout.
+     */
+    private void setupStripVertices() {
+        int[] handles = new int[1];
+        glGenVertexArrays(/* n = */ 1, handles, /* offset = */ 0);
+        vertexArray = handles[0];
+        glGenBuffers(/* n = */ 1, handles, /* offset = */ 0);
+        vertexBuffer = handles[0];
+
+        glBindVertexArray(vertexArray);
+        glBindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+        glBufferData(
+                GL_ARRAY_BUFFER,
+                regionVerticesData.length * FLOAT_SIZE_BYTES,
+                /* data = */ null,
+                GL_DYNAMIC_DRAW
+        );
+        glEnableVertexAttribArray(aPositionHandle);
+        glVertexAttribPointer(
+                aPositionHandle,
+                /* size = */ STRIP_VERTEX_SIZE,
+                /* type = */ GL_FLOAT,
+                /* normalized = */ false,
+                TRIANGLE_VERTICES_DATA_STRIDE_BYTES,
+                TRIANGLE_VERTICES_DATA_POS_OFFSET
+        );
+        glBindVertexArray(0);
+
+        for (int i = 0; i < NUM_OF_STRIPS; i++) {
+            regionStarts[i] = i;
+        }
+        updateRegionVertices(NUM_OF_STRIPS);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
 
         if (glGetError() != 0) {
-            Log.e(TAG, "Failed to get texture unit");
+            Log.e(TAG, "Failed to set up strip vertices");
+        }
+    }
+
+    /**
+     * Rewrites the vertex buffer with the geometry of the current regions. The vertex buffer must
+     * be bound.
+     */
+    private void updateRegionVertices(int regionCount) {
+        bufferedVertexCount = StripMerger.createRegionVertices(
+                regionStarts,
+                regionCount,
+                regionVerticesData
+        );
+        int size = bufferedVertexCount * STRIP_VERTEX_SIZE;
+        regionVertices.clear();
+        regionVertices.put(regionVerticesData, /* offset = */ 0, size);
+        regionVertices.position(/* newPosition = */ 0);
+        glBufferSubData(GL_ARRAY_BUFFER, /* offset = */ 0, size * FLOAT_SIZE_BYTES, regionVertices);
+
+        System.arraycopy(regionStarts, 0, bufferedRegionStarts, 0, regionCount);
+        bufferedRegionCount = regionCount;
+    }
+
+    /**
+     * Checks whether the vertex buffer already holds the geometry of the current regions.
+     */
+    private boolean isBuffered(int regionCount) {
+        if (regionCount != bufferedRegionCount) {
+            return false;
         }
+        for (int i = 0; i < regionCount; i++) {
+            if (regionStarts[i] != bufferedRegionStarts[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the size of the display Surface and updates the GL viewport to fit the video in it.
+     * @param surfaceWidth The width of the display Surface that the GL viewport covers, in pixels.
+     * @param surfaceHeight The height of the display Surface that the GL viewport covers, in
+     * pixels.
+     */
+    public void onSurfaceChanged(int surfaceWidth, int surfaceHeight) {
+        this.surfaceWidth = surfaceWidth;
+        this.surfaceHeight = surfaceHeight;
+        setViewport();
     }
 
     private void setViewport() {
@@ -213,67 +362,39 @@ class TextureRender {
         }
     }
 
-    private static int linkProgram(int vertexShader, int fragmentShader) {
-        // Create the program
-        final int program = glCreateProgram();
-        if (program == 0) {
-            Log.w(TAG, "Could not create new program");
-            return 0;
-        }
-
-        // Attach shaders to program and link them together
-        glAttachShader(program, vertexShader);
-        glAttachShader(program, fragmentShader);
-        glLinkProgram(program);
-
-        // Verify linking status
-        final int[] linkStatus = new int[1];
-        glGetProgramiv(program, GL_LINK_STATUS, linkStatus, /* offset = */ 0);
-        if (linkStatus[0] == 0) {
-            // Delete the program if linking failed
-            glDeleteProgram(program);
-            Log.e(TAG, "Failed to link program");
-        }
-
-        return program;
+    public void setUMatrix(float scaleFactor, float xTranslate, float yTranslate) {
+        computeUMatrix(uMatrix, scaleFactor, xTranslate, yTranslate, videoRotation);
     }
 
-    private int compileShader(int type, String shaderSrc) {
-        // Create new shader object
-        final int shader = glCreateShader(type);
-        if (shader == 0) {
-            Log.w(TAG, "Could not create new shader");
-            return 0;
-        }
-
-        // Pass in the shader source
-        glShaderSource(shader, shaderSrc);
-
-        // Compile the shader
-        glCompileShader(shader);
-
-        // Verify the compile status
-        final int[] compiled = new int[1];
-        glGetShaderiv(shader, GL_COMPILE_STATUS, compiled, /* offset = */ 0);
-        if (compiled[0] == 0) {
-            // Delete the shader if compilation failed
-            glDeleteShader(shader);
-            Log.w(TAG, "Shader failed to compile");
-            return 0;
-        }
-
-        return shader;
+    /**
+     * Sets the matrix which maps the stabilized frame into the viewport, as computed by
+     * computeUMatrix(). This is used to draw to render targets with different crop transforms.
+     * The matrix is uploaded by the next drawFrame() call, to the program it draws with.
+     */
+    public void setUMatrix(float[] matrix) {
+        System.arraycopy(matrix, 0, uMatrix, 0, uMatrix.length);
     }
 
-    public void setUMatrix(float scaleFactor, float xTranslate, float yTranslate) {
+    /**
+     * Computes the matrix which maps the stabilized frame into the viewport: the auto-crop scale
+     * and translation, followed by the rotation of the video.
+     * @param result Receives the matrix, in column-major order.
+     * @param videoRotation The rotation of the video, in degrees.
+     */
+    static void computeUMatrix(float[] result,
+                               float scaleFactor,
+                               float xTranslate,
+                               float yTranslate,
+                               int videoRotation) {
         // Scale and translate matrix for auto-crop
-        Matrix.translateM(uMatrix, 0, xTranslate, yTranslate, 0.0f);
-        Matrix.scaleM(uMatrix, 0, scaleFactor, scaleFactor, 1.0f);
+        Matrix.setIdentityM(result, /* smOffset = */ 0);
+        Matrix.translateM(result, 0, xTranslate, yTranslate, 0.0f);
+        Matrix.scaleM(result, 0, scaleFactor, scaleFactor, 1.0f);
 
         // Set up rotation matrix if the camera orientation is greater than 0 degrees
         if (videoRotation > 0) {
             Matrix.rotateM(
-                    uMatrix,
+                    result,
                     /* rmOffset = */ 0,
                     /* a = */ -videoRotation,  // Original video rotation is stored clockwise
                     /* x = */ 0,
@@ -281,14 +402,14 @@ class TextureRender {
                     /* z = */ 1
             );
         }
+    }
 
-        // TODO: Switch to VBOs and VAOs
-        uMatrixHandle = glGetUniformLocation(program, "uMatrix");
+    private void uploadUMatrix(ProgramHandles handles, float[] matrix) {
         glUniformMatrix4fv(
-                uMatrixHandle,
+                handles.uMatrixHandle,
                 /* count = */ 1,
                 /* transpose = */ false,
-                uMatrix,
+                matrix,
                 /* offset = */ 0
         );
         if (glGetError() != 0) {
@@ -297,92 +418,86 @@ class TextureRender {
     }
 
     /**
-     * Stabilize and render a single strip of the frame.
-     * @param stripIndex The index (from 0 to NUM_OF_STRIPS - 1) of the current strip to render.
-     * @param homography The homography matrix to stabilize this strip.
+     * Flips the rendered image upside down, or restores it. Frames drawn into an offscreen render
+     * target are flipped, so that they are read back with the top row first (see
+     * OffscreenRenderer).
      */
-    private void drawStrip(int stripIndex, HomographyMatrix homography) {
-        // Set up and store strip vertices
-        float[] triangleVerticesData = {
-            // positions in homogeneous 2D coordinates (x,y,1)
-            -1.0f, -1.0f + 2.0f * stripIndex / NUM_OF_STRIPS, 1.0f,           // bottom left
-             1.0f, -1.0f + 2.0f * stripIndex / NUM_OF_STRIPS, 1.0f,           // bottom right
-            -1.0f, -1.0f + 2.0f * (stripIndex + 1.0f) / NUM_OF_STRIPS, 1.0f,  // top left
-             1.0f, -1.0f + 2.0f * (stripIndex + 1.0f) / NUM_OF_STRIPS, 1.0f   // top right
-        };
-        triangleVertices = ByteBuffer
-                .allocateDirect(triangleVerticesData.length * FLOAT_SIZE_BYTES)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        triangleVertices.put(triangleVerticesData).position(/* newPosition = */ 0);
-
-        // Set up pointers to strip vertices for the GL program
-        aPositionHandle = glGetAttribLocation(program, "aPosition");
-        glEnableVertexAttribArray(aPositionHandle);
-        glVertexAttribPointer(
-                aPositionHandle,
-                /* size = */ 3,
-                /* type = */ GL_FLOAT,
-                /* normalized = */ false,
-                TRIANGLE_VERTICES_DATA_STRIDE_BYTES,
-                triangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET)
-        );
-        if (glGetError() != 0) {
-            Log.e(TAG, "Failed to get vertex position");
-        }
+    public void setFlipVertically(boolean flip) {
+        flipVertically = flip;
+    }
 
-        // Set the homography matrix for this strip
-        storeAsGLMatrix(homography);
+    /**
+     * Render the current frame.
+     * @param stripMatrices The inverse stabilization matrix of each strip, in the OpenGL basis and
+     * in column-major order (see StabilizationTimeline).
+     * @return the number of regions that were drawn, after merging nearly identical strips.
+     */
+    public int drawFrame(float[] stripMatrices) {
+        int regionCount = StripMerger.mergeStrips(
+                stripMatrices,
+                videoWidth,
+                videoHeight,
+                stripMergeTolerancePixels,
+                regionStarts,
+                regionMatrices
+        );
 
-        // Draw the strip
-        glDrawArrays(GL_TRIANGLE_STRIP, /* first = */ 0, /* count = */ 4);
-        if (glGetError() != 0) {
-            Log.e(TAG, "Failed to draw to strip" + stripIndex);
+        // Only touch the vertex buffer if the regions changed since the last frame
+        if (!isBuffered(regionCount)) {
+            glBindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+            updateRegionVertices(regionCount);
+            glBindBuffer(GL_ARRAY_BUFFER, 0);
         }
-    }
 
-    private void storeAsGLMatrix(HomographyMatrix homography) {
-        // 1. Store the matrix in row-major order
-        // 2. Invert the matrix
-        // 3. Store a pointer to the matrix (mark the matrix as transposed, since GL stores matrices
-        //    in column-major order
-        float[] uStabMatrixInv = new float[16];
-        Matrix.setIdentityM(uStabMatrixInv, 0);
-        uStabMatrixInv[0] = homography.get(0, 0);
-        uStabMatrixInv[1] = homography.get(0, 1);
-        uStabMatrixInv[2] = homography.get(0, 2);
-        uStabMatrixInv[4] = homography.get(1, 0);
-        uStabMatrixInv[5] = homography.get(1, 1);
-        uStabMatrixInv[6] = homography.get(1, 2);
-        uStabMatrixInv[8] = homography.get(2, 0);
-        uStabMatrixInv[9] = homography.get( 2, 1);
-        uStabMatrixInv[10] = homography.get(2, 2);
-        Matrix.invertM(uStabMatrix, 0, uStabMatrixInv, 0);
-
-        uStabMatrixHandle = glGetUniformLocation(program, "uStabMatrix");
-        glUniformMatrix4fv(
-                uStabMatrixHandle,
-                /* count = */ 1,
-                /* transpose = */ true,
-                uStabMatrix,
+        // Draw all regions at once. The programs and the texture unit are shared with the other
+        // readers of the render thread, so this reader's texture and matrices are set for every
+        // frame.
+        glClear(/* mask = */ GL_COLOR_BUFFER_BIT);
+        ProgramHandles handles;
+        glActiveTexture(GL_TEXTURE0);
+        if (sourceTexture2D != 0) {
+            handles = texture2DProgram;
+            glUseProgram(handles.program);
+            glBindTexture(GL_TEXTURE_2D, sourceTexture2D);
+        } else {
+            handles = externalProgram;
+            glUseProgram(handles.program);
+            glBindTexture(GL_TEXTURE_EXTERNAL_OES, textureID);
+        }
+        float[] matrix = uMatrix;
+        if (flipVertically) {
+            Matrix.multiplyMM(
+                    flippedUMatrix, /* resultOffset = */ 0,
+                    FLIP_VERTICAL_MATRIX, /* lhsOffset = */ 0,
+                    uMatrix, /* rhsOffset = */ 0
+            );
+            matrix = flippedUMatrix;
+        }
+        uploadUMatrix(handles, matrix);
+        glUniformMatrix3fv(
+                handles.uStabMatricesHandle,
+                /* count = */ regionCount,
+                /* transpose = */ false,
+                regionMatrices,
                 /* offset = */ 0
         );
+        glBindVertexArray(vertexArray);
+        glDrawArrays(GL_TRIANGLES, /* first = */ 0, /* count = */ bufferedVertexCount);
+        glBindVertexArray(0);
         if (glGetError() != 0) {
-            Log.e(TAG, "Failed to get matrix");
+            Log.e(TAG, "Failed to draw frame");
         }
+        return regionCount;
     }
 
     /**
-     * Render the current frame.
+     * Deletes the texture and the vertex buffers of this instance. The program is kept, since it is
+     * shared with the other readers of the render thread. The EGL context must be current.
      */
-    public void drawFrame(List<HomographyMatrix> homographyList) {
-        glClear(/* mask = */ GL_COLOR_BUFFER_BIT);
-        for (int i = 0; i < NUM_OF_STRIPS; i++) {
-            drawStrip(
-                    /* stripIndex = */ i,
-                    homographyList.get(i).convertFromImageToGL(videoWidth, videoHeight)
-            );
-        }
+    public void release() {
+        glDeleteTextures(/* n = */ 1, new int[] {textureID}, /* offset = */ 0);
+        glDeleteBuffers(/* n = */ 1, new int[] {vertexBuffer}, /* offset = */ 0);
+        glDeleteVertexArrays(/* n = */ 1, new int[] {vertexArray}, /* offset = */ 0);
     }
 
     /**
@@ -391,4 +506,24 @@ class TextureRender {
     public int getTextureID() {
         return textureID;
     }
+
+    /**
+     * A program shared by the readers of the render thread, with the locations of its uniforms.
+     */
+    private static class ProgramHandles {
+        int program;
+        int uMatrixHandle;
+        int uStabMatricesHandle;
+
+        /**
+         * Looks up the uniforms of a linked program, and binds its sampler to texture unit 0.
+         */
+        void setUp(int program) {
+            this.program = program;
+            uMatrixHandle = glGetUniformLocation(program, "uMatrix");
+            uStabMatricesHandle = glGetUniformLocation(program, "uStabMatrices");
+            glUseProgram(program);
+            glUniform1i(glGetUniformLocation(program, "uTexUnit"), /* x = */ 0);
+        }
+    }
 }
@@ -0,0 +1,150 @@
+package com.google.android.libraries.motionphotoreader;
+
+/**
+ * The tile layout of an image which is decoded at several resolutions (see StillTileDecoder).
+ *
+ * Level 0 is the full resolution image, and each level halves the resolution of the previous one
+ * (the image is decoded with an inSampleSize of 2^level). At every level the decoded image is cut
+ * into square tiles of the same size in decoded pixels, so a tile covers twice as many image
+ * pixels in each dimension as a tile of the level below. The last level is the first one at which
+ * the whole image fits in a single tile.
+ *
+ * All positions are in image pixels (i.e. at level 0).
+ */
+class TilePyramid {
+
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int tileSize;
+    private final int levelCount;
+
+    /**
+     * @param imageWidth The width of the image, in pixels.
+     * @param imageHeight The height of the image, in pixels.
+     * @param tileSize The width and height of the decoded tiles, in pixels.
+     */
+    TilePyramid(int imageWidth, int imageHeight, int tileSize) {
+        if (imageWidth <= 0 || imageHeight <= 0) {
+            throw new IllegalArgumentException("Invalid image dimensions");
+        }
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Invalid tile size: " + tileSize);
+        }
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.tileSize = tileSize;
+
+        int level = 0;
+        while ((long) tileSize << level < Math.max(imageWidth, imageHeight)) {
+            level++;
+        }
+        this.levelCount = level + 1;
+    }
+
+    int getImageWidth() {
+        return imageWidth;
+    }
+
+    int getImageHeight() {
+        return imageHeight;
+    }
+
+    int getTileSize() {
+        return tileSize;
+    }
+
+    int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * Returns the subsampling factor of a level (see BitmapFactory.Options.inSampleSize).
+     */
+    int getSampleSize(int level) {
+        checkLevel(level);
+        return 1 << level;
+    }
+
+    /**
+     * Returns the level at which an image displayed at the given scale should be decoded: the
+     * lowest resolution which is still at least as large as the displayed image.
+     * @param scale The ratio of displayed pixels to image pixels.
+     */
+    int getLevelForScale(float scale) {
+        if (!(scale > 0f)) {
+            throw new IllegalArgumentException("Invalid scale: " + scale);
+        }
+        int level = 0;
+        while (level + 1 < levelCount && (1 << (level + 1)) * scale <= 1f) {
+            level++;
+        }
+        return level;
+    }
+
+    int getColumnCount(int level) {
+        return divideRoundingUp(imageWidth, getTileSpan(level));
+    }
+
+    int getRowCount(int level) {
+        return divideRoundingUp(imageHeight, getTileSpan(level));
+    }
+
+    /**
+     * Returns the column of the tile which contains an image position, clamped to the columns of
+     * the level.
+     */
+    int getColumnAt(int level, int x) {
+        return clamp(x / getTileSpan(level), getColumnCount(level) - 1);
+    }
+
+    /**
+     * Returns the row of the tile which contains an image position, clamped to the rows of the
+     * level.
+     */
+    int getRowAt(int level, int y) {
+        return clamp(y / getTileSpan(level), getRowCount(level) - 1);
+    }
+
+    /**
+     * Returns the bounds of a tile in the image, as {left, top, right, bottom}. Tiles of the last
+     * column and row are cropped to the image.
+     */
+    int[] getTileBounds(int level, int column, int row) {
+        if (column < 0 || column >= getColumnCount(level)
+                || row < 0 || row >= getRowCount(level)) {
+            throw new IllegalArgumentException(
+                    "Invalid tile " + column + "," + row + " at level " + level
+            );
+        }
+        int span = getTileSpan(level);
+        int left = column * span;
+        int top = row * span;
+        return new int[] {
+                left,
+                top,
+                Math.min(left + span, imageWidth),
+                Math.min(top + span, imageHeight)
+        };
+    }
+
+    /**
+     * Returns the width and height of the image area covered by a tile of a level, in pixels.
+     */
+    private int getTileSpan(int level) {
+        return tileSize * getSampleSize(level);
+    }
+
+    private void checkLevel(int level) {
+        if (level < 0 || level >= levelCount) {
+            throw new IllegalArgumentException("Invalid level: " + level);
+        }
+    }
+
+    private static int divideRoundingUp(int dividend, int divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+}
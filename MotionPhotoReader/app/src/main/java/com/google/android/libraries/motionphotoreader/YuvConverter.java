@@ -0,0 +1,352 @@
+package com.google.android.libraries.motionphotoreader;
+
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts YUV 4:2:0 frames, as produced by MediaCodec, to RGB.
+ *
+ * Both planar (I420) and semi-planar (NV12, NV21) layouts are supported, since the chroma planes
+ * are described by their row and pixel strides like in android.media.Image. The output is written
+ * to caller-owned memory, either as ARGB ints (as used by Bitmap.setPixels()) or as RGBA bytes (as
+ * used by Bitmap.copyPixelsFromBuffer()), and can be downscaled by 2, 4 or 8 in the same pass by
+ * averaging the source pixels.
+ *
+ * The rows of the output are split into bands which are converted in parallel on a fork-join pool.
+ * The tasks are allocated once and reused for every frame, so a conversion does not allocate any
+ * memory. As a consequence, an instance must not convert several frames at once.
+ *
+ * The conversion uses the BT.601 limited range matrix, with fixed-point arithmetic.
+ */
+@RequiresApi(api = 21)
+public class YuvConverter {
+
+    /** Fixed-point coefficients of the BT.601 limited range conversion, scaled by 2^10. */
+    private static final int Y_FACTOR = 1192;
+    private static final int V_TO_R = 1634;
+    private static final int V_TO_G = 833;
+    private static final int U_TO_G = 400;
+    private static final int U_TO_B = 2066;
+    private static final int FIXED_POINT_SHIFT = 10;
+    private static final int FIXED_POINT_HALF = 1 << (FIXED_POINT_SHIFT - 1);
+
+    /** The number of bands per thread, so that threads which finish early can steal work. */
+    private static final int BANDS_PER_THREAD = 4;
+
+    private final ForkJoinPool pool;
+    private final BandTask[] tasks;
+    private final RecursiveAction rootTask = new RecursiveAction() {
+        @Override
+        protected void compute() {
+            ForkJoinTask.invokeAll(tasks);
+        }
+    };
+
+    /** The frame being converted, shared with the band tasks. */
+    private ByteBuffer yPlane;
+    private ByteBuffer uPlane;
+    private ByteBuffer vPlane;
+    private int yOffset;
+    private int uOffset;
+    private int vOffset;
+    private int yRowStride;
+    private int uvRowStride;
+    private int uvPixelStride;
+    private int downscale;
+    private int outputWidth;
+    private int outputHeight;
+    private int[] intOutput;
+    private ByteBuffer byteOutput;
+    private int byteOutputOffset;
+
+    /**
+     * Creates a converter which runs on the common fork-join pool.
+     */
+    public YuvConverter() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a converter.
+     * @param pool The pool on which the rows of a frame are converted.
+     */
+    public YuvConverter(ForkJoinPool pool) {
+        this.pool = pool;
+        tasks = new BandTask[pool.getParallelism() * BANDS_PER_THREAD];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new BandTask(i);
+        }
+    }
+
+    /**
+     * Returns the width or height of a downscaled frame. Partial blocks at the right and bottom
+     * edges of the frame are dropped.
+     * @param size The width or height of the frame, in pixels.
+     * @param downscale 1, 2, 4 or 8.
+     */
+    public static int getOutputSize(int size, int downscale) {
+        checkDownscale(downscale);
+        return size / downscale;
+    }
+
+    /**
+     * Converts a decoded frame to ARGB ints.
+     * @param frame The frame to convert.
+     * @param output The array to store the pixels in, row by row, with no padding. Must hold at
+     * least getOutputSize(width, downscale) * getOutputSize(height, downscale) pixels.
+     * @param downscale 1, 2, 4 or 8.
+     */
+    @RequiresApi(api = 28)
+    public void convert(DecodedFrame frame, int[] output, int downscale) {
+        convert(
+                frame.getPlane(DecodedFrame.PLANE_Y),
+                frame.getRowStride(DecodedFrame.PLANE_Y),
+                frame.getPlane(DecodedFrame.PLANE_U),
+                frame.getPlane(DecodedFrame.PLANE_V),
+                frame.getRowStride(DecodedFrame.PLANE_U),
+                frame.getPixelStride(DecodedFrame.PLANE_U),
+                frame.getWidth(),
+                frame.getHeight(),
+                output,
+                downscale
+        );
+    }
+
+    /**
+     * Converts a decoded frame to RGBA bytes.
+     * @param frame The frame to convert.
+     * @param output The buffer to store the pixels in, row by row, with no padding, starting at its
+     * current position. Must hold at least 4 * getOutputSize(width, downscale) *
+     * getOutputSize(height, downscale) bytes. The position of the buffer is not changed.
+     * @param downscale 1, 2, 4 or 8.
+     */
+    @RequiresApi(api = 28)
+    public void convert(DecodedFrame frame, ByteBuffer output, int downscale) {
+        convert(
+                frame.getPlane(DecodedFrame.PLANE_Y),
+                frame.getRowStride(DecodedFrame.PLANE_Y),
+                frame.getPlane(DecodedFrame.PLANE_U),
+                frame.getPlane(DecodedFrame.PLANE_V),
+                frame.getRowStride(DecodedFrame.PLANE_U),
+                frame.getPixelStride(DecodedFrame.PLANE_U),
+                frame.getWidth(),
+                frame.getHeight(),
+                output,
+                downscale
+        );
+    }
+
+    /**
+     * Converts a YUV 4:2:0 frame to ARGB ints. The planes are read from their current positions,
+     * which are not changed.
+     * @param y The luma plane, with a pixel stride of 1.
+     * @param yRowStride The row stride of the luma plane, in bytes.
+     * @param u The U plane.
+     * @param v The V plane.
+     * @param uvRowStride The row stride of the chroma planes, in bytes.
+     * @param uvPixelStride The pixel stride of the chroma planes, in bytes (1 for planar layouts,
+     * 2 for semi-planar layouts).
+     * @param width The width of the frame, in pixels.
+     * @param height The height of the frame, in pixels.
+     * @param output The array to store the pixels in (see convert(DecodedFrame, int[], int)).
+     * @param downscale 1, 2, 4 or 8.
+     */
+    public void convert(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                        int uvRowStride, int uvPixelStride, int width, int height,
+                        int[] output, int downscale) {
+        int pixelCount = getOutputSize(width, downscale) * getOutputSize(height, downscale);
+        if (output.length < pixelCount) {
+            throw new IllegalArgumentException("Output array is too small");
+        }
+        run(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, height, downscale,
+                output, /* byteOutput = */ null);
+    }
+
+    /**
+     * Converts a YUV 4:2:0 frame to RGBA bytes. The planes are read from their current positions,
+     * which are not changed.
+     * @param y The luma plane, with a pixel stride of 1.
+     * @param yRowStride The row stride of the luma plane, in bytes.
+     * @param u The U plane.
+     * @param v The V plane.
+     * @param uvRowStride The row stride of the chroma planes, in bytes.
+     * @param uvPixelStride The pixel stride of the chroma planes, in bytes (1 for planar layouts,
+     * 2 for semi-planar layouts).
+     * @param width The width of the frame, in pixels.
+     * @param height The height of the frame, in pixels.
+     * @param output The buffer to store the pixels in (see convert(DecodedFrame, ByteBuffer,
+     * int)).
+     * @param downscale 1, 2, 4 or 8.
+     */
+    public void convert(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                        int uvRowStride, int uvPixelStride, int width, int height,
+                        ByteBuffer output, int downscale) {
+        int pixelCount = getOutputSize(width, downscale) * getOutputSize(height, downscale);
+        if (output.remaining() < 4 * pixelCount) {
+            throw new IllegalArgumentException("Output buffer is too small");
+        }
+        run(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, height, downscale,
+                /* intOutput = */ null, output);
+    }
+
+    private void run(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride,
+                     int uvPixelStride, int width, int height, int downscale, int[] intOutput,
+                     ByteBuffer byteOutput) {
+        this.yPlane = y;
+        this.uPlane = u;
+        this.vPlane = v;
+        this.yOffset = y.position();
+        this.uOffset = u.position();
+        this.vOffset = v.position();
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.downscale = downscale;
+        this.outputWidth = getOutputSize(width, downscale);
+        this.outputHeight = getOutputSize(height, downscale);
+        this.intOutput = intOutput;
+        this.byteOutput = byteOutput;
+        this.byteOutputOffset = byteOutput == null ? 0 : byteOutput.position();
+        try {
+            for (BandTask task : tasks) {
+                task.reinitialize();
+            }
+            rootTask.reinitialize();
+            pool.invoke(rootTask);
+        } finally {
+            this.yPlane = null;
+            this.uPlane = null;
+            this.vPlane = null;
+            this.intOutput = null;
+            this.byteOutput = null;
+        }
+    }
+
+    /**
+     * Converts the output rows in [startRow, endRow).
+     */
+    private void convertRows(int startRow, int endRow) {
+        if (downscale == 1) {
+            convertFullSizeRows(startRow, endRow);
+            return;
+        }
+        int scale = downscale;
+        int chromaScale = Math.max(1, scale / 2);
+        int yShift = Integer.numberOfTrailingZeros(scale) * 2;
+        int chromaShift = Integer.numberOfTrailingZeros(chromaScale) * 2;
+        for (int row = startRow; row < endRow; row++) {
+            int outputOffset = row * outputWidth;
+            int yRow = row * scale;
+            int uvRow = yRow / 2;
+            for (int column = 0; column < outputWidth; column++) {
+                int yColumn = column * scale;
+                int uvColumn = yColumn / 2;
+
+                // Average the source pixels of the block (a single pixel without downscaling)
+                int ySum = 0;
+                for (int dy = 0; dy < scale; dy++) {
+                    int offset = yOffset + (yRow + dy) * yRowStride + yColumn;
+                    for (int dx = 0; dx < scale; dx++) {
+                        ySum += yPlane.get(offset + dx) & 0xFF;
+                    }
+                }
+                int uSum = 0;
+                int vSum = 0;
+                for (int dy = 0; dy < chromaScale; dy++) {
+                    int offset = (uvRow + dy) * uvRowStride + uvColumn * uvPixelStride;
+                    for (int dx = 0; dx < chromaScale; dx++) {
+                        int pixelOffset = offset + dx * uvPixelStride;
+                        uSum += uPlane.get(uOffset + pixelOffset) & 0xFF;
+                        vSum += vPlane.get(vOffset + pixelOffset) & 0xFF;
+                    }
+                }
+                putPixel(
+                        outputOffset + column,
+                        toArgb(ySum >> yShift, uSum >> chromaShift, vSum >> chromaShift)
+                );
+            }
+        }
+    }
+
+    /**
+     * Converts the output rows in [startRow, endRow) without downscaling. Each chroma sample is
+     * read once for the two pixels of a row that share it.
+     */
+    private void convertFullSizeRows(int startRow, int endRow) {
+        for (int row = startRow; row < endRow; row++) {
+            int outputOffset = row * outputWidth;
+            int yRowOffset = yOffset + row * yRowStride;
+            int uvRowOffset = (row / 2) * uvRowStride;
+            for (int column = 0; column < outputWidth; column += 2) {
+                int uvOffset = uvRowOffset + (column / 2) * uvPixelStride;
+                int u = uPlane.get(uOffset + uvOffset) & 0xFF;
+                int v = vPlane.get(vOffset + uvOffset) & 0xFF;
+                int y = yPlane.get(yRowOffset + column) & 0xFF;
+                putPixel(outputOffset + column, toArgb(y, u, v));
+                if (column + 1 < outputWidth) {
+                    y = yPlane.get(yRowOffset + column + 1) & 0xFF;
+                    putPixel(outputOffset + column + 1, toArgb(y, u, v));
+                }
+            }
+        }
+    }
+
+    private void putPixel(int index, int argb) {
+        if (intOutput != null) {
+            intOutput[index] = argb;
+        } else {
+            int byteOffset = byteOutputOffset + 4 * index;
+            byteOutput.put(byteOffset, (byte) (argb >> 16));
+            byteOutput.put(byteOffset + 1, (byte) (argb >> 8));
+            byteOutput.put(byteOffset + 2, (byte) argb);
+            byteOutput.put(byteOffset + 3, (byte) 0xFF);
+        }
+    }
+
+    /**
+     * Converts a YUV pixel to an opaque ARGB pixel.
+     */
+    static int toArgb(int y, int u, int v) {
+        int luma = Y_FACTOR * Math.max(0, y - 16) + FIXED_POINT_HALF;
+        int cb = u - 128;
+        int cr = v - 128;
+        int r = clamp((luma + V_TO_R * cr) >> FIXED_POINT_SHIFT);
+        int g = clamp((luma - V_TO_G * cr - U_TO_G * cb) >> FIXED_POINT_SHIFT);
+        int b = clamp((luma + U_TO_B * cb) >> FIXED_POINT_SHIFT);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static void checkDownscale(int downscale) {
+        if (downscale != 1 && downscale != 2 && downscale != 4 && downscale != 8) {
+            throw new IllegalArgumentException("Unsupported downscale factor: " + downscale);
+        }
+    }
+
+    /**
+     * Converts one of the bands of rows that the output is split into.
+     */
+    private class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int bandIndex;
+
+        BandTask(int bandIndex) {
+            this.bandIndex = bandIndex;
+        }
+
+        @Override
+        protected void compute() {
+            int startRow = (int) ((long) outputHeight * bandIndex / tasks.length);
+            int endRow = (int) ((long) outputHeight * (bandIndex + 1) / tasks.length);
+            convertRows(startRow, endRow);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.media.MediaExtractor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Local unit test for the CachedFramePlayback class.
+ */
+public class CachedFramePlaybackTest {
+
+    private static final long FRAME_DURATION_US = 33_333L;
+    private static final int SAMPLE_COUNT = 20;
+    private static final int SYNC_INTERVAL = 8;
+
+    private SampleIndex sampleIndex;
+    private MediaExtractor extractor;
+    private CachedFramePlayback cachedPlayback;
+
+    /** The index of the sample at which the mock extractor is positioned. */
+    private int positionIndex;
+
+    @Before
+    public void setUp() {
+        SampleIndex.Builder builder = new SampleIndex.Builder();
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            builder.addSample(i * FRAME_DURATION_US, /* size = */ 1000, i % SYNC_INTERVAL == 0);
+        }
+        sampleIndex = builder.build();
+        extractor = mockExtractor();
+        cachedPlayback = new CachedFramePlayback(extractor, sampleIndex);
+    }
+
+    @Test
+    public void nextFrame_playsFramesInOrderThenEnds() {
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            assertEquals(i * FRAME_DURATION_US, cachedPlayback.nextFrame());
+        }
+        assertEquals(-1L, cachedPlayback.nextFrame());
+        assertEquals(-1L, cachedPlayback.nextFrame());
+    }
+
+    @Test
+    public void seekTo_exact_movesPastTargetFrame() {
+        long timestampUs = cachedPlayback.seekTo(
+                13 * FRAME_DURATION_US + 1,
+                MotionPhotoReader.SEEK_TO_EXACT
+        );
+
+        assertEquals(13 * FRAME_DURATION_US, timestampUs);
+        assertEquals(14, positionIndex);
+        verify(extractor, never()).readSampleData(any(), anyInt());
+    }
+
+    @Test
+    public void seekTo_previousSync_landsOnSyncFrame() {
+        long timestampUs = cachedPlayback.seekTo(
+                13 * FRAME_DURATION_US,
+                MediaExtractor.SEEK_TO_PREVIOUS_SYNC
+        );
+
+        assertEquals(8 * FRAME_DURATION_US, timestampUs);
+        assertEquals(9, positionIndex);
+    }
+
+    @Test
+    public void moveToFrameAfter_resumesFromNextFrame() {
+        cachedPlayback.moveToFrameAfter(5);
+        assertEquals(6 * FRAME_DURATION_US, cachedPlayback.nextFrame());
+
+        // Nothing follows the last frame
+        cachedPlayback.moveToFrameAfter(SAMPLE_COUNT - 1);
+        assertEquals(-1L, cachedPlayback.nextFrame());
+    }
+
+    /**
+     * Creates an extractor which moves through the samples of the index, and seeks to the sync
+     * sample at or before a timestamp.
+     */
+    private MediaExtractor mockExtractor() {
+        MediaExtractor mockExtractor = mock(MediaExtractor.class);
+        when(mockExtractor.getSampleTime()).thenAnswer(invocation ->
+                positionIndex < SAMPLE_COUNT ? sampleIndex.getTimestampUs(positionIndex) : -1L
+        );
+        when(mockExtractor.advance()).thenAnswer(invocation -> {
+            positionIndex = Math.min(positionIndex + 1, SAMPLE_COUNT);
+            return positionIndex < SAMPLE_COUNT;
+        });
+        doAnswer(invocation -> {
+            long timestampUs = invocation.getArgument(0);
+            int frameIndex = sampleIndex.getFrameIndex(timestampUs);
+            positionIndex = Math.max(sampleIndex.getPreviousSyncIndex(frameIndex), 0);
+            return null;
+        }).when(mockExtractor).seekTo(anyLong(), anyInt());
+        return mockExtractor;
+    }
+}
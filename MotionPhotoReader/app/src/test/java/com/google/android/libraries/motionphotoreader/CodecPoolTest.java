@@ -0,0 +1,186 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Local unit test for the CodecPool class.
+ */
+public class CodecPoolTest {
+
+    private static final long IDLE_TIMEOUT_MS = 60_000L;
+    private static final String AVC = "video/avc";
+    private static final String HEVC = "video/hevc";
+
+    private FakeCodecFactory codecFactory;
+    private CodecPool codecPool;
+
+    @Before
+    public void setUp() {
+        codecFactory = new FakeCodecFactory();
+        codecPool = new CodecPool(codecFactory, IDLE_TIMEOUT_MS);
+    }
+
+    @Test
+    public void createDecoder_afterRelease_reusesStoppedDecoder() throws IOException {
+        MediaCodec first = codecPool.createDecoder(mockFormat(AVC, 1920, 1080));
+        codecPool.releaseDecoder(first);
+        verify(first).stop();
+        assertEquals(1, codecPool.getIdleDecoderCount());
+
+        MediaCodec second = codecPool.createDecoder(mockFormat(AVC, 1920, 1080));
+        assertSame(first, second);
+        assertEquals(1, codecFactory.createCount);
+        assertEquals(0, codecPool.getIdleDecoderCount());
+    }
+
+    @Test
+    public void createDecoder_smallerVideo_reusesDecoderAtMaxResolution() throws IOException {
+        MediaCodec first = codecPool.createDecoder(mockFormat(AVC, 1920, 1080));
+        codecPool.releaseDecoder(first);
+
+        MediaFormat smallFormat = mockFormat(AVC, 1280, 720);
+        assertSame(first, codecPool.createDecoder(smallFormat));
+        verify(smallFormat).setInteger(MediaFormat.KEY_MAX_WIDTH, 1920);
+        verify(smallFormat).setInteger(MediaFormat.KEY_MAX_HEIGHT, 1920);
+    }
+
+    @Test
+    public void createDecoder_reusedTwice_keepsPooledMaxResolution() throws IOException {
+        MediaCodec codec = codecPool.createDecoder(mockFormat(AVC, 1920, 1080));
+        codecPool.releaseDecoder(codec);
+
+        MediaFormat smallFormat = mockFormat(AVC, 1280, 720);
+        assertSame(codec, codecPool.createDecoder(smallFormat));
+        codecPool.releaseDecoder(codec);
+
+        // The decoder keeps the size it was created with, not the size of the previous borrower
+        MediaFormat smallerFormat = mockFormat(AVC, 640, 480);
+        assertSame(codec, codecPool.createDecoder(smallerFormat));
+        verify(smallerFormat).setInteger(MediaFormat.KEY_MAX_WIDTH, 1920);
+        verify(smallerFormat).setInteger(MediaFormat.KEY_MAX_HEIGHT, 1920);
+        verify(codec, times(2)).stop();
+        assertEquals(1, codecFactory.createCount);
+    }
+
+    @Test
+    public void createDecoder_otherOrientation_reusesDecoder() throws IOException {
+        MediaFormat landscapeFormat = mockFormat(AVC, 1920, 1080);
+        MediaCodec first = codecPool.createDecoder(landscapeFormat);
+        verify(landscapeFormat).setInteger(MediaFormat.KEY_MAX_WIDTH, 1920);
+        verify(landscapeFormat).setInteger(MediaFormat.KEY_MAX_HEIGHT, 1920);
+        codecPool.releaseDecoder(first);
+
+        MediaFormat portraitFormat = mockFormat(AVC, 1080, 1920);
+        assertSame(first, codecPool.createDecoder(portraitFormat));
+        verify(portraitFormat).setInteger(MediaFormat.KEY_MAX_WIDTH, 1920);
+        verify(portraitFormat).setInteger(MediaFormat.KEY_MAX_HEIGHT, 1920);
+        assertEquals(1, codecFactory.createCount);
+    }
+
+    @Test
+    public void createDecoder_incompatibleFormat_createsNewDecoder() throws IOException {
+        MediaCodec first = codecPool.createDecoder(mockFormat(AVC, 1280, 720));
+        codecPool.releaseDecoder(first);
+
+        // Larger resolution
+        MediaCodec second = codecPool.createDecoder(mockFormat(AVC, 1920, 1080));
+        assertNotSame(first, second);
+
+        // Different MIME type
+        MediaCodec third = codecPool.createDecoder(mockFormat(HEVC, 1280, 720));
+        assertNotSame(first, third);
+        assertEquals(3, codecFactory.createCount);
+        assertEquals(1, codecPool.getIdleDecoderCount());
+    }
+
+    @Test
+    public void createDecoder_prefersSmallestCompatibleDecoder() throws IOException {
+        MediaCodec large = codecPool.createDecoder(mockFormat(AVC, 3840, 2160));
+        MediaCodec small = codecPool.createDecoder(mockFormat(AVC, 1920, 1080));
+        codecPool.releaseDecoder(large);
+        codecPool.releaseDecoder(small);
+
+        assertSame(small, codecPool.createDecoder(mockFormat(AVC, 1440, 1080)));
+        assertSame(large, codecPool.createDecoder(mockFormat(AVC, 1440, 1080)));
+    }
+
+    @Test
+    public void evictIdleDecoders_destroysDecodersPastTimeout() throws IOException {
+        MediaCodec codec = codecPool.createDecoder(mockFormat(AVC, 1920, 1080));
+        codecPool.releaseDecoder(codec);
+        long nowMs = System.nanoTime() / 1_000_000L;
+
+        codecPool.evictIdleDecoders(nowMs);
+        assertEquals(1, codecPool.getIdleDecoderCount());
+
+        codecPool.evictIdleDecoders(nowMs + IDLE_TIMEOUT_MS + 1);
+        assertEquals(0, codecPool.getIdleDecoderCount());
+        assertTrue(codecFactory.destroyedCodecs.contains(codec));
+    }
+
+    @Test
+    public void trimIdleDecoders_destroysLeastRecentlyReleased() throws IOException {
+        MediaCodec first = codecPool.createDecoder(mockFormat(AVC, 1920, 1080));
+        MediaCodec second = codecPool.createDecoder(mockFormat(AVC, 1920, 1080));
+        codecPool.releaseDecoder(first);
+        codecPool.releaseDecoder(second);
+
+        codecPool.trimIdleDecoders(1);
+        assertEquals(1, codecPool.getIdleDecoderCount());
+        assertTrue(codecFactory.destroyedCodecs.contains(first));
+        assertSame(second, codecPool.createDecoder(mockFormat(AVC, 1920, 1080)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void releaseDecoder_notFromPool_throws() {
+        codecPool.releaseDecoder(mock(MediaCodec.class));
+    }
+
+    private static MediaFormat mockFormat(String mime, int width, int height) {
+        MediaFormat format = mock(MediaFormat.class);
+        when(format.getString(MediaFormat.KEY_MIME)).thenReturn(mime);
+        when(format.getInteger(MediaFormat.KEY_WIDTH)).thenReturn(width);
+        when(format.getInteger(MediaFormat.KEY_HEIGHT)).thenReturn(height);
+        return format;
+    }
+
+    /**
+     * Hands out mock decoders and remembers which ones were destroyed.
+     */
+    private static class FakeCodecFactory implements DecoderBudgetManager.CodecFactory {
+        int createCount = 0;
+        final Set<MediaCodec> destroyedCodecs = new HashSet<>();
+
+        @Override
+        public MediaCodec createDecoder(MediaFormat format) {
+            createCount++;
+            return mock(MediaCodec.class);
+        }
+
+        @Override
+        public void releaseDecoder(MediaCodec codec) {
+            destroyedCodecs.add(codec);
+        }
+
+        @Override
+        public void trimIdleDecoders(int maxIdleDecoders) {
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.google.android.libraries.motionphotoreader.DecodedFrame.PLANE_U;
+import static com.google.android.libraries.motionphotoreader.DecodedFrame.PLANE_V;
+import static com.google.android.libraries.motionphotoreader.DecodedFrame.PLANE_Y;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit test for the DecodedFrame class.
+ */
+public class DecodedFrameTest {
+
+    private static final int WIDTH = 5;
+    private static final int HEIGHT = 3;
+
+    private DecodedFrame frame;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        frame = new FramePool(WIDTH, HEIGHT, /* frameCount = */ 1).acquire(/* timeoutMs = */ 0L);
+    }
+
+    @Test
+    public void planes_areTightlyPacked() {
+        assertEquals(WIDTH, frame.getRowStride(PLANE_Y));
+        assertEquals(3, frame.getRowStride(PLANE_U));
+        assertEquals(3, frame.getRowStride(PLANE_V));
+        assertEquals(WIDTH * HEIGHT, frame.getPlane(PLANE_Y).capacity());
+        assertEquals(3 * 2, frame.getPlane(PLANE_U).capacity());
+        assertEquals(3 * 2, frame.getPlane(PLANE_V).capacity());
+        assertEquals(1, frame.getPixelStride(PLANE_U));
+    }
+
+    @Test
+    public void copyPlane_paddedRows_dropsPadding() {
+        // Rows of 8 bytes, with a crop starting at (1, 1)
+        int rowStride = 8;
+        ByteBuffer src = ByteBuffer.allocate(rowStride * (HEIGHT + 1));
+        for (int i = 0; i < src.capacity(); i++) {
+            src.put(i, (byte) i);
+        }
+        frame.copyPlane(src, rowStride, /* srcPixelStride = */ 1, /* left = */ 1, /* top = */ 1,
+                PLANE_Y);
+
+        assertArrayEquals(
+                new byte[] {9, 10, 11, 12, 13, 17, 18, 19, 20, 21, 25, 26, 27, 28, 29},
+                toArray(frame.getPlane(PLANE_Y))
+        );
+        assertEquals(0, src.position());
+        assertEquals(src.capacity(), src.limit());
+    }
+
+    @Test
+    public void copyPlane_interleavedChroma_deinterleaves() {
+        // Semi-planar chroma (as in NV12), where U and V samples alternate
+        ByteBuffer src = ByteBuffer.allocate(2 * 6);
+        for (int i = 0; i < src.capacity(); i++) {
+            src.put(i, (byte) i);
+        }
+        frame.copyPlane(src, /* srcRowStride = */ 6, /* srcPixelStride = */ 2, 0, 0, PLANE_U);
+        src.position(1);
+        frame.copyPlane(src, /* srcRowStride = */ 6, /* srcPixelStride = */ 2, 0, 0, PLANE_V);
+
+        assertArrayEquals(new byte[] {0, 2, 4, 6, 8, 10}, toArray(frame.getPlane(PLANE_U)));
+        assertArrayEquals(new byte[] {1, 3, 5, 7, 9, 11}, toArray(frame.getPlane(PLANE_V)));
+    }
+
+    @Test
+    public void set_copiesStabilizationData() {
+        float[] stripMatrices = StabilizationTimeline.getIdentityStripMatrices().clone();
+        frame.set(/* timestampUs = */ 33_000L, stripMatrices);
+        stripMatrices[0] = 2.0f;
+
+        assertEquals(33_000L, frame.getTimestampUs());
+        assertArrayEquals(
+                StabilizationTimeline.getIdentityStripMatrices(),
+                frame.getStripMatrices(),
+                0.0f
+        );
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,277 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.android.libraries.motionphotoreader.DecoderBudgetManager.PRIORITY_FOCUSED;
+import static com.google.android.libraries.motionphotoreader.DecoderBudgetManager.PRIORITY_OFFSCREEN;
+import static com.google.android.libraries.motionphotoreader.DecoderBudgetManager.PRIORITY_VISIBLE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Local unit test for the DecoderBudgetManager class.
+ */
+public class DecoderBudgetManagerTest {
+
+    private static final int MAX_DECODERS = 2;
+
+    private FakeCodecFactory codecFactory;
+    private DecoderBudgetManager manager;
+    private MediaFormat format;
+
+    @Before
+    public void setUp() {
+        codecFactory = new FakeCodecFactory();
+        manager = new DecoderBudgetManager(MAX_DECODERS, codecFactory);
+        format = mock(MediaFormat.class);
+    }
+
+    @Test
+    public void acquire_withinBudget_createsDecoders() throws IOException {
+        FakeClient a = new FakeClient(PRIORITY_VISIBLE);
+        FakeClient b = new FakeClient(PRIORITY_VISIBLE);
+        assertTrue(a.acquire());
+        assertTrue(b.acquire());
+        assertEquals(2, codecFactory.liveCodecs);
+        assertEquals(2, manager.getDecoderCount());
+    }
+
+    @Test
+    public void acquire_budgetExhaustedBySamePriority_waits() throws IOException {
+        FakeClient a = new FakeClient(PRIORITY_VISIBLE);
+        FakeClient b = new FakeClient(PRIORITY_VISIBLE);
+        FakeClient c = new FakeClient(PRIORITY_VISIBLE);
+        assertTrue(a.acquire());
+        assertTrue(b.acquire());
+        assertFalse(c.acquire());
+        assertEquals(0, a.revokeCount);
+        assertEquals(0, b.revokeCount);
+        assertEquals(MAX_DECODERS, codecFactory.liveCodecs);
+
+        // The waiting client gets the decoder released by another client
+        a.release();
+        assertEquals(1, c.availableCount);
+        assertTrue(c.acquire());
+        assertEquals(MAX_DECODERS, codecFactory.liveCodecs);
+    }
+
+    @Test
+    public void acquire_higherPriority_preemptsLowestPriority() throws IOException {
+        FakeClient offscreen = new FakeClient(PRIORITY_OFFSCREEN);
+        FakeClient visible = new FakeClient(PRIORITY_VISIBLE);
+        FakeClient focused = new FakeClient(PRIORITY_FOCUSED);
+        assertTrue(visible.acquire());
+        assertTrue(offscreen.acquire());
+        assertTrue(focused.acquire());
+
+        assertEquals(1, offscreen.revokeCount);
+        assertNull(offscreen.codec);
+        assertEquals(0, visible.revokeCount);
+        assertNotNull(focused.codec);
+        assertEquals(MAX_DECODERS, codecFactory.liveCodecs);
+        assertEquals(MAX_DECODERS, codecFactory.peakLiveCodecs);
+    }
+
+    @Test
+    public void priorityChange_suspendedClientResumes() throws IOException {
+        FakeClient a = new FakeClient(PRIORITY_VISIBLE);
+        FakeClient b = new FakeClient(PRIORITY_VISIBLE);
+        FakeClient c = new FakeClient(PRIORITY_VISIBLE);
+        assertTrue(a.acquire());
+        assertTrue(b.acquire());
+        assertFalse(c.acquire());
+
+        // Scrolling a off-screen lets the waiting client preempt it
+        a.priority = PRIORITY_OFFSCREEN;
+        manager.onPriorityChanged(a);
+        assertEquals(1, c.availableCount);
+        assertTrue(c.acquire());
+        assertEquals(1, a.revokeCount);
+
+        // Scrolling a back into view does not preempt clients with the same priority
+        a.priority = PRIORITY_VISIBLE;
+        manager.onPriorityChanged(a);
+        assertEquals(0, a.availableCount);
+
+        // Focusing a preempts one of the visible clients
+        a.priority = PRIORITY_FOCUSED;
+        manager.onPriorityChanged(a);
+        assertEquals(1, a.availableCount);
+        assertTrue(a.acquire());
+        assertEquals(1, b.revokeCount + c.revokeCount);
+        assertEquals(MAX_DECODERS, codecFactory.peakLiveCodecs);
+    }
+
+    @Test
+    public void setMaxDecoders_lowerBudget_revokesLowestPriority() throws IOException {
+        FakeClient visible = new FakeClient(PRIORITY_VISIBLE);
+        FakeClient offscreen = new FakeClient(PRIORITY_OFFSCREEN);
+        assertTrue(visible.acquire());
+        assertTrue(offscreen.acquire());
+
+        manager.setMaxDecoders(1);
+        assertEquals(1, offscreen.revokeCount);
+        assertEquals(0, visible.revokeCount);
+        assertEquals(1, codecFactory.liveCodecs);
+    }
+
+    @Test
+    public void acquireAndRelease_trimIdleDecodersToRemainingBudget() throws IOException {
+        FakeClient a = new FakeClient(PRIORITY_VISIBLE);
+        assertTrue(a.acquire());
+        assertEquals(MAX_DECODERS - 1, codecFactory.lastMaxIdleDecoders);
+
+        a.release();
+        assertEquals(MAX_DECODERS, codecFactory.lastMaxIdleDecoders);
+    }
+
+    @Test
+    public void unregister_waitingClient_isNotNotified() throws IOException {
+        FakeClient a = new FakeClient(PRIORITY_VISIBLE);
+        FakeClient b = new FakeClient(PRIORITY_VISIBLE);
+        FakeClient c = new FakeClient(PRIORITY_VISIBLE);
+        assertTrue(a.acquire());
+        assertTrue(b.acquire());
+        assertFalse(c.acquire());
+
+        manager.unregister(c);
+        a.release();
+        assertEquals(0, c.availableCount);
+        assertEquals(1, manager.getDecoderCount());
+    }
+
+    @Test
+    public void manyClients_decoderCountStaysWithinBudget() throws IOException {
+        List<FakeClient> clients = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            FakeClient client = new FakeClient(i % 3);
+            clients.add(client);
+            client.acquire();
+        }
+        for (FakeClient client : clients) {
+            client.priority = (client.priority + 1) % 3;
+            manager.onPriorityChanged(client);
+            if (client.availableCount > 0 && client.codec == null) {
+                client.acquire();
+            }
+        }
+        assertTrue(codecFactory.peakLiveCodecs <= MAX_DECODERS);
+        assertTrue(manager.getDecoderCount() <= MAX_DECODERS);
+    }
+
+    @Test
+    public void acquire_victimReleasesLater_decoderCountNeverExceedsBudget() throws IOException {
+        FakeClient a = new FakeClient(PRIORITY_OFFSCREEN);
+        FakeClient b = new FakeClient(PRIORITY_VISIBLE);
+        FakeClient focused = new FakeClient(PRIORITY_FOCUSED);
+        FakeClient visible = new FakeClient(PRIORITY_VISIBLE);
+        a.releasesOnRevoke = false;
+        assertTrue(a.acquire());
+        assertTrue(b.acquire());
+
+        // a is busy decoding, so the focused client waits for it to release its decoder
+        assertFalse(focused.acquire());
+        assertEquals(1, a.revokeCount);
+        assertEquals(MAX_DECODERS, codecFactory.liveCodecs);
+        assertEquals(MAX_DECODERS, manager.getDecoderCount());
+
+        // Asking again while the victim still holds its decoder neither creates a decoder nor
+        // preempts another holder
+        assertFalse(focused.acquire());
+        assertFalse(visible.acquire());
+        assertEquals(0, b.revokeCount);
+        assertEquals(MAX_DECODERS, codecFactory.peakLiveCodecs);
+
+        // The released slot goes to the focused client, not to the other waiting clients
+        a.release();
+        assertEquals(1, focused.availableCount);
+        assertEquals(0, visible.availableCount);
+        assertFalse(visible.acquire());
+        assertTrue(focused.acquire());
+        assertEquals(MAX_DECODERS, codecFactory.liveCodecs);
+        assertEquals(MAX_DECODERS, codecFactory.peakLiveCodecs);
+    }
+
+    /**
+     * A client which behaves like a motion photo reader: a revoked decoder is released right away,
+     * unless the client is busy with its decoder, in which case it is released later.
+     */
+    private class FakeClient implements DecoderBudgetManager.Client {
+        int priority;
+        MediaCodec codec;
+        int revokeCount = 0;
+        int availableCount = 0;
+        boolean releasesOnRevoke = true;
+
+        FakeClient(int priority) {
+            this.priority = priority;
+        }
+
+        boolean acquire() throws IOException {
+            codec = manager.acquire(this, format);
+            return codec != null;
+        }
+
+        void release() {
+            MediaCodec oldCodec = codec;
+            codec = null;
+            manager.release(this, oldCodec);
+        }
+
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public void onDecoderRevoked() {
+            revokeCount++;
+            if (releasesOnRevoke) {
+                release();
+            }
+        }
+
+        @Override
+        public void onDecoderAvailable() {
+            availableCount++;
+        }
+    }
+
+    /**
+     * Hands out mock decoders and keeps track of how many exist at the same time.
+     */
+    private static class FakeCodecFactory implements DecoderBudgetManager.CodecFactory {
+        int liveCodecs = 0;
+        int peakLiveCodecs = 0;
+        int lastMaxIdleDecoders = -1;
+
+        @Override
+        public MediaCodec createDecoder(MediaFormat format) {
+            liveCodecs++;
+            peakLiveCodecs = Math.max(peakLiveCodecs, liveCodecs);
+            return mock(MediaCodec.class);
+        }
+
+        @Override
+        public void releaseDecoder(MediaCodec codec) {
+            liveCodecs--;
+        }
+
+        @Override
+        public void trimIdleDecoders(int maxIdleDecoders) {
+            lastMaxIdleDecoders = maxIdleDecoders;
+        }
+    }
+}
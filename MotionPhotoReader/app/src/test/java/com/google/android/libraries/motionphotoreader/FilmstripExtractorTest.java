@@ -0,0 +1,100 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit test for the FilmstripExtractor class.
+ */
+public class FilmstripExtractorTest {
+
+    private static final long FRAME_DURATION_US = 33_000L;
+    private static final int SAMPLE_COUNT = 30;
+    private static final int SYNC_INTERVAL = 10;
+
+    @Test
+    public void getTargetTimestampsUs_returnsMiddleOfEachInterval() {
+        long[] timestampsUs = FilmstripExtractor.getTargetTimestampsUs(
+                /* durationUs = */ 3_000_000L,
+                /* frameCount = */ 3
+        );
+
+        assertArrayEquals(new long[] {500_000L, 1_500_000L, 2_500_000L}, timestampsUs);
+    }
+
+    @Test
+    public void getTargetTimestampsUs_singleFrame_returnsMiddleOfVideo() {
+        long[] timestampsUs = FilmstripExtractor.getTargetTimestampsUs(
+                /* durationUs = */ 2_000_000L,
+                /* frameCount = */ 1
+        );
+
+        assertArrayEquals(new long[] {1_000_000L}, timestampsUs);
+    }
+
+    @Test
+    public void getSyncIndices_picksNearestSyncFrame() {
+        SampleIndex sampleIndex = newSampleIndex();
+
+        // Frame 9 is closer to the sync frame after it (10) than to the one before it (0)
+        int[] syncIndices = FilmstripExtractor.getSyncIndices(
+                sampleIndex,
+                new long[] {3 * FRAME_DURATION_US, 9 * FRAME_DURATION_US, 27 * FRAME_DURATION_US}
+        );
+
+        assertArrayEquals(new int[] {0, 10, 20}, syncIndices);
+    }
+
+    @Test
+    public void getSyncIndices_positionsShareSyncFrame() {
+        SampleIndex sampleIndex = newSampleIndex();
+        long[] targetTimestampsUs = FilmstripExtractor.getTargetTimestampsUs(
+                sampleIndex.getDurationUs(),
+                /* frameCount = */ 5
+        );
+
+        int[] syncIndices = FilmstripExtractor.getSyncIndices(sampleIndex, targetTimestampsUs);
+
+        // The middle position is as far from sync frame 10 as from 20, and gets the earlier one
+        assertArrayEquals(new int[] {0, 10, 10, 20, 20}, syncIndices);
+        // Positions which share a sync frame are consecutive, so each one is decoded once
+        int decodedFrameCount = 1;
+        for (int i = 1; i < syncIndices.length; i++) {
+            if (syncIndices[i] != syncIndices[i - 1]) {
+                decodedFrameCount++;
+            }
+        }
+        assertEquals(3, decodedFrameCount);
+    }
+
+    @Test
+    public void getSyncIndices_noSyncFrame_returnsMinusOne() {
+        SampleIndex.Builder builder = new SampleIndex.Builder();
+        builder.addSample(0L, /* size = */ 1000L, /* isSync = */ false);
+        builder.addSample(FRAME_DURATION_US, /* size = */ 1000L, /* isSync = */ false);
+
+        int[] syncIndices = FilmstripExtractor.getSyncIndices(
+                builder.build(),
+                new long[] {0L, FRAME_DURATION_US}
+        );
+
+        assertArrayEquals(new int[] {-1, -1}, syncIndices);
+    }
+
+    /**
+     * Returns the index of a video with a sync frame every SYNC_INTERVAL frames.
+     */
+    private static SampleIndex newSampleIndex() {
+        SampleIndex.Builder builder = new SampleIndex.Builder();
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            builder.addSample(
+                    i * FRAME_DURATION_US,
+                    /* size = */ 1000L,
+                    /* isSync = */ i % SYNC_INTERVAL == 0
+            );
+        }
+        return builder.build();
+    }
+}
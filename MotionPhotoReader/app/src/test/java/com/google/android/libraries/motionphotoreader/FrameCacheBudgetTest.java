@@ -0,0 +1,113 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for the FrameCacheBudget class.
+ */
+public class FrameCacheBudgetTest {
+
+    private static final long BUDGET_BYTES = 100L;
+
+    @Test
+    public void reserve_fitsInBudget_evictsNothing() {
+        FrameCacheBudget budget = new FrameCacheBudget(BUDGET_BYTES);
+        FakeEntry first = new FakeEntry();
+        FakeEntry second = new FakeEntry();
+
+        assertTrue(budget.reserve(first, 40L));
+        assertTrue(budget.reserve(second, 60L));
+
+        assertEquals(100L, budget.getUsedBytes());
+        assertEquals(0, first.evictionCount);
+        assertEquals(0, second.evictionCount);
+    }
+
+    @Test
+    public void reserve_overBudget_evictsLeastRecentlyUsedEntry() {
+        FrameCacheBudget budget = new FrameCacheBudget(BUDGET_BYTES);
+        FakeEntry first = new FakeEntry();
+        FakeEntry second = new FakeEntry();
+        FakeEntry third = new FakeEntry();
+        budget.reserve(first, 40L);
+        budget.reserve(second, 40L);
+
+        // Using the first entry makes the second one the least recently used
+        budget.touch(first);
+        assertTrue(budget.reserve(third, 40L));
+
+        assertEquals(0, first.evictionCount);
+        assertEquals(1, second.evictionCount);
+        assertEquals(80L, budget.getUsedBytes());
+    }
+
+    @Test
+    public void reserve_largerThanBudget_isRejectedWithoutEvicting() {
+        FrameCacheBudget budget = new FrameCacheBudget(BUDGET_BYTES);
+        FakeEntry small = new FakeEntry();
+        FakeEntry large = new FakeEntry();
+        budget.reserve(small, 40L);
+
+        assertFalse(budget.reserve(large, BUDGET_BYTES + 1));
+
+        assertEquals(0, small.evictionCount);
+        assertEquals(40L, budget.getUsedBytes());
+    }
+
+    @Test
+    public void reserve_sameEntryTwice_replacesReservation() {
+        FrameCacheBudget budget = new FrameCacheBudget(BUDGET_BYTES);
+        FakeEntry entry = new FakeEntry();
+        budget.reserve(entry, 80L);
+
+        assertTrue(budget.reserve(entry, 90L));
+
+        assertEquals(0, entry.evictionCount);
+        assertEquals(90L, budget.getUsedBytes());
+    }
+
+    @Test
+    public void release_freesReservationWithoutEviction() {
+        FrameCacheBudget budget = new FrameCacheBudget(BUDGET_BYTES);
+        FakeEntry entry = new FakeEntry();
+        budget.reserve(entry, 80L);
+
+        budget.release(entry);
+
+        assertEquals(0, entry.evictionCount);
+        assertEquals(0L, budget.getUsedBytes());
+    }
+
+    @Test
+    public void setBudgetBytes_lowerBudget_evictsUntilItFits() {
+        FrameCacheBudget budget = new FrameCacheBudget(BUDGET_BYTES);
+        FakeEntry first = new FakeEntry();
+        FakeEntry second = new FakeEntry();
+        budget.reserve(first, 50L);
+        budget.reserve(second, 50L);
+
+        budget.setBudgetBytes(60L);
+
+        assertEquals(1, first.evictionCount);
+        assertEquals(0, second.evictionCount);
+        assertEquals(50L, budget.getUsedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setBudgetBytes_negative_throwsIllegalArgumentException() {
+        new FrameCacheBudget(BUDGET_BYTES).setBudgetBytes(-1L);
+    }
+
+    private static class FakeEntry implements FrameCacheBudget.Entry {
+        private int evictionCount = 0;
+
+        @Override
+        public void onEvicted() {
+            evictionCount++;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Test;
+
+import static com.google.android.libraries.motionphotoreader.Constants.FALLBACK_FRAME_DELTA_NS;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit test for the FramePacer class.
+ */
+public class FramePacerTest {
+
+    /** The frame delta of a 30 fps video, in microseconds. */
+    private static final long FRAME_DELTA_US = 33_333L;
+    private static final long FRAME_DELTA_NS = FRAME_DELTA_US * 1000L;
+    private static final long START_NS = 1_000_000_000L;
+
+    @Test
+    public void schedule_onTime_spacesFramesByTheirDelta() {
+        FramePacer pacer = new FramePacer();
+
+        assertEquals(START_NS + FRAME_DELTA_NS, pacer.schedule(FRAME_DELTA_US, START_NS, true));
+        assertEquals(
+                START_NS + 2 * FRAME_DELTA_NS,
+                pacer.schedule(FRAME_DELTA_US, START_NS + 1000L, true)
+        );
+        assertEquals(0L, pacer.getLateFrameCount());
+    }
+
+    @Test
+    public void schedule_invalidDelta_usesFallbackDelta() {
+        FramePacer pacer = new FramePacer();
+
+        assertEquals(START_NS + FALLBACK_FRAME_DELTA_NS, pacer.schedule(0L, START_NS, true));
+    }
+
+    @Test
+    public void schedule_doubleRate_halvesFrameDelta() {
+        FramePacer pacer = new FramePacer();
+        pacer.setPlaybackRate(2.0f);
+
+        assertEquals(START_NS + FRAME_DELTA_NS / 2, pacer.schedule(FRAME_DELTA_US, START_NS, true));
+    }
+
+    @Test
+    public void schedule_lateFrameWithCatchUp_rebasesOnCurrentTime() {
+        FramePacer pacer = new FramePacer();
+        pacer.schedule(FRAME_DELTA_US, START_NS, true);
+
+        long lateNs = START_NS + 3 * FRAME_DELTA_NS;
+        assertEquals(lateNs + FRAME_DELTA_NS, pacer.schedule(FRAME_DELTA_US, lateNs, true));
+        assertEquals(1L, pacer.getLateFrameCount());
+        assertEquals(0L, pacer.getDroppedFrameCount());
+    }
+
+    @Test
+    public void schedule_lateFrameWithDrop_dropsAndKeepsSchedule() {
+        FramePacer pacer = new FramePacer();
+        pacer.setDropLateFrames(true);
+        pacer.schedule(FRAME_DELTA_US, START_NS, true);
+
+        long lateNs = START_NS + 3 * FRAME_DELTA_NS + 1000L;
+        assertEquals(FramePacer.DROP_FRAME, pacer.schedule(FRAME_DELTA_US, lateNs, true));
+        // The next frame is still late, but the one after it is on time again
+        assertEquals(FramePacer.DROP_FRAME, pacer.schedule(FRAME_DELTA_US, lateNs, true));
+        assertEquals(
+                START_NS + 4 * FRAME_DELTA_NS,
+                pacer.schedule(FRAME_DELTA_US, lateNs, true)
+        );
+        assertEquals(2L, pacer.getLateFrameCount());
+        assertEquals(2L, pacer.getDroppedFrameCount());
+    }
+
+    @Test
+    public void schedule_lateFrameWhichCannotBeDropped_rebases() {
+        FramePacer pacer = new FramePacer();
+        pacer.setDropLateFrames(true);
+        pacer.schedule(FRAME_DELTA_US, START_NS, true);
+
+        long lateNs = START_NS + 3 * FRAME_DELTA_NS;
+        assertEquals(lateNs + FRAME_DELTA_NS, pacer.schedule(FRAME_DELTA_US, lateNs, false));
+        assertEquals(1L, pacer.getLateFrameCount());
+        assertEquals(0L, pacer.getDroppedFrameCount());
+    }
+
+    @Test
+    public void schedule_veryLateFrameWithDrop_rebasesInsteadOfDropping() {
+        FramePacer pacer = new FramePacer();
+        pacer.setDropLateFrames(true);
+        pacer.schedule(FRAME_DELTA_US, START_NS, true);
+
+        // e.g. playback was paused for a second
+        long lateNs = START_NS + 1_000_000_000L;
+        assertEquals(lateNs + FRAME_DELTA_NS, pacer.schedule(FRAME_DELTA_US, lateNs, true));
+        assertEquals(0L, pacer.getDroppedFrameCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setPlaybackRate_zero_throwsIllegalArgumentException() {
+        new FramePacer().setPlaybackRate(0f);
+    }
+}
@@ -0,0 +1,65 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Local unit test for the FramePool class.
+ */
+public class FramePoolTest {
+
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+
+    @Test
+    public void acquire_poolExhausted_timesOut() throws InterruptedException {
+        FramePool pool = new FramePool(WIDTH, HEIGHT, /* frameCount = */ 2);
+        assertNotNull(pool.acquire(/* timeoutMs = */ 0L));
+        assertNotNull(pool.acquire(/* timeoutMs = */ 0L));
+        assertEquals(0, pool.getAvailableFrameCount());
+        assertNull(pool.acquire(/* timeoutMs = */ 10L));
+    }
+
+    @Test
+    public void release_frameIsReused() throws InterruptedException {
+        FramePool pool = new FramePool(WIDTH, HEIGHT, /* frameCount = */ 1);
+        DecodedFrame frame = pool.acquire(/* timeoutMs = */ 0L);
+        frame.release();
+        assertEquals(1, pool.getAvailableFrameCount());
+        assertSame(frame, pool.acquire(/* timeoutMs = */ 0L));
+    }
+
+    @Test
+    public void acquire_waitsForReleaseFromOtherThread() throws InterruptedException {
+        FramePool pool = new FramePool(WIDTH, HEIGHT, /* frameCount = */ 1);
+        DecodedFrame frame = pool.acquire(/* timeoutMs = */ 0L);
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(20L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            frame.release();
+        });
+        releaser.start();
+        assertSame(frame, pool.acquire(/* timeoutMs = */ 5_000L));
+        releaser.join();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void release_twice_throws() throws InterruptedException {
+        FramePool pool = new FramePool(WIDTH, HEIGHT, /* frameCount = */ 1);
+        DecodedFrame frame = pool.acquire(/* timeoutMs = */ 0L);
+        frame.release();
+        frame.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_emptyPool_throws() {
+        new FramePool(WIDTH, HEIGHT, /* frameCount = */ 0);
+    }
+}
@@ -3,10 +3,14 @@ package com.google.android.libraries.motionphotoreader;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
+
 import static com.google.android.libraries.motionphotoreader.TestConstants.THETA_DEGREES_A;
 import static com.google.android.libraries.motionphotoreader.TestConstants.THETA_DEGREES_B;
 import static com.google.android.libraries.motionphotoreader.TestConstants.VIDEO_HEIGHT_PIXELS;
 import static com.google.android.libraries.motionphotoreader.TestConstants.VIDEO_WIDTH_PIXELS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -127,4 +131,74 @@ public class HomographyMatrixTest {
                 glCoords.equals(glTrueCoords)
         );
     }
+
+    @Test
+    public void multiply_matchesRightMultiplyBy() {
+        float[] a = new float[9];
+        float[] b = new float[9];
+        float[] result = new float[9];
+        A.toArray(a, /* offset = */ 0);
+        B.toArray(b, /* offset = */ 0);
+        HomographyMatrix.multiply(b, a, result);
+        HomographyMatrix BtimesA = new HomographyMatrix(result);
+        assertTrue(
+                "Expected matrix \n" + BA + "\nbut received matrix \n" + BtimesA,
+                BA.equals(BtimesA)
+        );
+
+        // The result may alias one of the inputs
+        HomographyMatrix.multiply(a, b, a);
+        assertTrue(AB.equals(new HomographyMatrix(a)));
+    }
+
+    @Test
+    public void invertInGLBasis_isInverseOfConvertedMatrix() {
+        // A rotation and scale with a small translation and perspective, as found in motion photos
+        HomographyMatrix m = B.rightMultiplyBy(HomographyMatrix.createScaleMatrix(1.1f, 0.9f));
+        m.set(0, 2, 12.0f);
+        m.set(1, 2, -7.0f);
+        m.set(2, 0, 1e-5f);
+        m.set(2, 1, -2e-5f);
+        float[] data = new float[9];
+        m.toArray(data, /* offset = */ 0);
+
+        float[] inverse = new float[12];
+        assertTrue(HomographyMatrix.invertInGLBasis(
+                data,
+                VIDEO_WIDTH_PIXELS,
+                VIDEO_HEIGHT_PIXELS,
+                inverse,
+                /* offset = */ 3,
+                /* scratch = */ new float[9]
+        ));
+
+        // The inverse is stored in column-major order
+        HomographyMatrix glInverse = new HomographyMatrix();
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                glInverse.set(r, c, inverse[3 + 3 * c + r]);
+            }
+        }
+        HomographyMatrix product = m.convertFromImageToGL(VIDEO_WIDTH_PIXELS, VIDEO_HEIGHT_PIXELS)
+                .rightMultiplyBy(glInverse);
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                assertEquals(I.get(r, c), product.get(r, c), 1e-4f);
+            }
+        }
+        assertArrayEquals(new float[3], Arrays.copyOf(inverse, 3), 0.0f);
+    }
+
+    @Test
+    public void invertInGLBasis_singularMatrix_returnsFalse() {
+        float[] singular = {1, 2, 3, 2, 4, 6, 0, 0, 1};
+        assertFalse(HomographyMatrix.invertInGLBasis(
+                singular,
+                VIDEO_WIDTH_PIXELS,
+                VIDEO_HEIGHT_PIXELS,
+                new float[9],
+                /* offset = */ 0,
+                /* scratch = */ new float[9]
+        ));
+    }
 }
@@ -13,6 +13,7 @@ import org.mockito.stubbing.Answer;
 import java.io.File;
 import java.io.IOException;
 
+import static com.google.android.libraries.motionphotoreader.Constants.CAMERA_XMP_NAMESPACE;
 import static com.google.android.libraries.motionphotoreader.Constants.MOTION_PHOTO_V1;
 import static com.google.android.libraries.motionphotoreader.Constants.MOTION_PHOTO_V2;
 import static com.google.android.libraries.motionphotoreader.TestConstants.FILENAME_V1;
@@ -42,6 +43,8 @@ import static org.mockito.Mockito.when;
  */
 public class MotionPhotoInfoTest {
 
+    private static final String PRESENTATION_TIMESTAMP = "MotionPhotoPresentationTimestampUs";
+
     private XMPMeta metaV1;
     private XMPMeta metaV2;
     private MediaFormat videoFormatV1;
@@ -224,4 +227,55 @@ public class MotionPhotoInfoTest {
     public void getVersion_v2_isCorrect() {
         assertEquals(MOTION_PHOTO_V2, motionPhotoInfoV2.getVersion());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void getStillTimestampUs_defaultConstructor_isUnknown() {
+        assertEquals(
+                MotionPhotoInfo.STILL_TIMESTAMP_UNKNOWN,
+                motionPhotoInfoV2.getStillTimestampUs()
+        );
+    }
+
+    @Test
+    public void getStillTimestampUs_fromConstructor_isCorrect() {
+        MotionPhotoInfo motionPhotoInfo = new MotionPhotoInfo(
+                videoFormatV2,
+                VIDEO_OFFSET_V2,
+                MOTION_PHOTO_V2,
+                /* stillTimestampUs = */ 1_000_000L
+        );
+        assertEquals(1_000_000L, motionPhotoInfo.getStillTimestampUs());
+    }
+
+    @Test
+    public void getStillTimestampUs_xmpProperty_isCorrect() throws XMPException {
+        XMPMeta meta = mock(XMPMeta.class);
+        when(meta.doesPropertyExist(eq(CAMERA_XMP_NAMESPACE), eq(PRESENTATION_TIMESTAMP)))
+                .thenReturn(true);
+        when(meta.getPropertyLong(eq(CAMERA_XMP_NAMESPACE), eq(PRESENTATION_TIMESTAMP)))
+                .thenReturn(1_234_567L);
+        assertEquals(1_234_567L, MotionPhotoInfo.getStillTimestampUs(meta));
+    }
+
+    @Test
+    public void getStillTimestampUs_negativeXmpProperty_isUnknown() throws XMPException {
+        XMPMeta meta = mock(XMPMeta.class);
+        when(meta.doesPropertyExist(eq(CAMERA_XMP_NAMESPACE), eq(PRESENTATION_TIMESTAMP)))
+                .thenReturn(true);
+        when(meta.getPropertyLong(eq(CAMERA_XMP_NAMESPACE), eq(PRESENTATION_TIMESTAMP)))
+                .thenReturn(-1L);
+        assertEquals(
+                MotionPhotoInfo.STILL_TIMESTAMP_UNKNOWN,
+                MotionPhotoInfo.getStillTimestampUs(meta)
+        );
+    }
+
+    @Test
+    public void getStillTimestampUs_noXmpProperty_isUnknown() throws XMPException {
+        XMPMeta meta = mock(XMPMeta.class);
+        assertEquals(
+                MotionPhotoInfo.STILL_TIMESTAMP_UNKNOWN,
+                MotionPhotoInfo.getStillTimestampUs(meta)
+        );
+    }
+}
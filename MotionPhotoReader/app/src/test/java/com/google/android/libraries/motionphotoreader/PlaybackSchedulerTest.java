@@ -0,0 +1,232 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Local unit test for the PlaybackScheduler class.
+ */
+public class PlaybackSchedulerTest {
+
+    private static final int NUM_THREADS = 4;
+    private static final int NUM_READERS = 300;
+    private static final int NUM_FRAMES = 45;
+
+    private PlaybackScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new PlaybackScheduler(NUM_THREADS, NUM_THREADS);
+    }
+
+    @Test
+    public void manyReaders_threadCountIsBounded() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(NUM_READERS);
+        Set<String> decodeThreads = ConcurrentHashMap.newKeySet();
+        AtomicInteger maxLiveDecodeThreads = new AtomicInteger(0);
+        List<FakeCodec> codecs = new ArrayList<>();
+
+        for (int i = 0; i < NUM_READERS; i++) {
+            PlaybackScheduler.TaskQueue taskQueue = scheduler.newTaskQueue();
+            FakeCodec codec = new FakeCodec();
+            codecs.add(codec);
+
+            // Each reader plays its frames as a chain of self-scheduling tasks, like the play
+            // process of a MotionPhotoWidget
+            taskQueue.execute(new Runnable() {
+                @Override
+                public void run() {
+                    decodeThreads.add(Thread.currentThread().getName());
+                    maxLiveDecodeThreads.accumulateAndGet(
+                            scheduler.getDecodeThreadCount(), Math::max);
+                    codec.decodeNextFrame();
+                    if (codec.getFrameCount() < NUM_FRAMES) {
+                        taskQueue.execute(this);
+                    } else {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        assertTrue("Readers did not finish playing", done.await(30, TimeUnit.SECONDS));
+        for (FakeCodec codec : codecs) {
+            assertEquals(NUM_FRAMES, codec.getFrameCount());
+        }
+        assertTrue("Too many decode threads: " + decodeThreads,
+                decodeThreads.size() <= NUM_THREADS);
+        assertTrue("Too many live decode threads: " + maxLiveDecodeThreads.get(),
+                maxLiveDecodeThreads.get() <= NUM_THREADS);
+    }
+
+    @Test
+    public void manyRenderHandlers_threadCountIsBoundedAndThreadsQuitWhenReleased() {
+        int numCores = Math.max(1, Runtime.getRuntime().availableProcessors());
+        FakeRenderThreadFactory renderThreadFactory = new FakeRenderThreadFactory();
+        PlaybackScheduler renderScheduler =
+                new PlaybackScheduler(numCores, numCores, renderThreadFactory);
+
+        List<Handler> handlers = new ArrayList<>();
+        Map<Handler, Integer> usersByHandler = new HashMap<>();
+        for (int i = 0; i < NUM_READERS; i++) {
+            Handler handler = renderScheduler.acquireRenderHandler();
+            handlers.add(handler);
+            Integer users = usersByHandler.get(handler);
+            usersByHandler.put(handler, users == null ? 1 : users + 1);
+        }
+
+        assertTrue("Too many render threads: " + usersByHandler.size(),
+                usersByHandler.size() <= numCores);
+        assertEquals(usersByHandler.size(), renderThreadFactory.startedThreads.size());
+        assertEquals(usersByHandler.size(), renderScheduler.getRenderThreadCount());
+        // Readers are spread evenly across the threads
+        for (int users : usersByHandler.values()) {
+            assertTrue(users >= NUM_READERS / numCores);
+        }
+
+        // A render thread keeps running as long as one reader uses it
+        for (Handler handler : handlers) {
+            int users = usersByHandler.get(handler) - 1;
+            usersByHandler.put(handler, users);
+            renderScheduler.releaseRenderHandler(handler);
+            assertEquals(users == 0, renderThreadFactory.quitThreads.contains(handler));
+        }
+
+        assertEquals(renderThreadFactory.startedThreads, renderThreadFactory.quitThreads);
+        assertEquals(0, renderScheduler.getRenderThreadCount());
+
+        // A new reader gets a new thread, since the previous ones have quit
+        Handler handler = renderScheduler.acquireRenderHandler();
+        assertFalse(renderThreadFactory.quitThreads.contains(handler));
+        assertEquals(1, renderScheduler.getRenderThreadCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void releaseRenderHandler_unknownHandler_throws() {
+        PlaybackScheduler renderScheduler =
+                new PlaybackScheduler(NUM_THREADS, NUM_THREADS, new FakeRenderThreadFactory());
+        renderScheduler.acquireRenderHandler();
+
+        renderScheduler.releaseRenderHandler(mock(Handler.class));
+    }
+
+    @Test
+    public void taskQueue_preservesSubmissionOrder() throws InterruptedException {
+        int numQueues = 50;
+        int numTasks = 100;
+        CountDownLatch done = new CountDownLatch(numQueues * numTasks);
+        List<List<Integer>> executionOrders = new ArrayList<>();
+
+        for (int q = 0; q < numQueues; q++) {
+            PlaybackScheduler.TaskQueue taskQueue = scheduler.newTaskQueue();
+            List<Integer> executionOrder = new ArrayList<>();
+            executionOrders.add(executionOrder);
+            for (int t = 0; t < numTasks; t++) {
+                final int taskIndex = t;
+                taskQueue.execute(() -> {
+                    // Tasks of the same queue never run concurrently, so no locking is needed
+                    executionOrder.add(taskIndex);
+                    done.countDown();
+                });
+            }
+        }
+
+        assertTrue("Tasks did not finish", done.await(30, TimeUnit.SECONDS));
+        for (List<Integer> executionOrder : executionOrders) {
+            assertEquals(numTasks, executionOrder.size());
+            for (int t = 0; t < numTasks; t++) {
+                assertEquals(t, (int) executionOrder.get(t));
+            }
+        }
+    }
+
+    @Test
+    public void taskQueue_afterShutdown_dropsTasks() throws InterruptedException {
+        PlaybackScheduler.TaskQueue taskQueue = scheduler.newTaskQueue();
+        AtomicInteger runCount = new AtomicInteger(0);
+        CountDownLatch first = new CountDownLatch(1);
+        taskQueue.execute(() -> {
+            runCount.incrementAndGet();
+            first.countDown();
+        });
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+
+        taskQueue.shutdown();
+        taskQueue.execute(runCount::incrementAndGet);
+
+        // Flush the shared pool with another queue to make sure the dropped task had a chance to
+        // run
+        CountDownLatch flushed = new CountDownLatch(1);
+        scheduler.newTaskQueue().execute(flushed::countDown);
+        assertTrue(flushed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, runCount.get());
+    }
+
+    /**
+     * Stands in for HandlerThreads, and records which render threads were started and stopped.
+     */
+    private static class FakeRenderThreadFactory
+            implements PlaybackScheduler.RenderThreadFactory {
+        final Set<Handler> startedThreads = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Set<Handler> quitThreads = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        @Override
+        public Handler startRenderThread(String name) {
+            Handler handler = mock(Handler.class);
+            startedThreads.add(handler);
+            return handler;
+        }
+
+        @Override
+        public void quitRenderThread(Handler handler) {
+            if (!quitThreads.add(handler)) {
+                throw new IllegalStateException("Render thread quit twice");
+            }
+        }
+    }
+
+    /**
+     * Stands in for a MediaCodec decoder: decoding a frame takes a short amount of time, and
+     * frames must be decoded strictly one at a time.
+     */
+    private static class FakeCodec {
+        private final AtomicInteger activeCalls = new AtomicInteger(0);
+        private int frameCount = 0;
+
+        void decodeNextFrame() {
+            if (activeCalls.incrementAndGet() != 1) {
+                throw new IllegalStateException("Codec used from two threads at once");
+            }
+            try {
+                Thread.sleep(0, 200_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            frameCount++;
+            activeCalls.decrementAndGet();
+        }
+
+        int getFrameCount() {
+            return frameCount;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit test for the PosterLoader class.
+ */
+public class PosterLoaderTest {
+
+    @Test
+    public void computeInSampleSize_targetLargerThanImage_returnsOne() {
+        assertEquals(1, PosterLoader.computeInSampleSize(4032, 3024, 8000, 6000));
+    }
+
+    @Test
+    public void computeInSampleSize_keepsBothDimensionsAboveTarget() {
+        // 4032x3024 / 8 = 504x378 still covers 400x300, but / 16 does not
+        assertEquals(8, PosterLoader.computeInSampleSize(4032, 3024, 400, 300));
+    }
+
+    @Test
+    public void computeInSampleSize_limitedBySmallerRatio() {
+        // The height allows a factor of 16, but the width only allows 2
+        assertEquals(2, PosterLoader.computeInSampleSize(4032, 3024, 2000, 100));
+    }
+}
@@ -0,0 +1,125 @@
+package com.google.android.libraries.motionphotoreader;
+
+import android.graphics.Bitmap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Local unit test for the PosterPool class.
+ */
+public class PosterPoolTest {
+
+    private static final int POSTER_BYTES = 4 * 400 * 300;
+
+    private PosterPool posterPool;
+
+    @Before
+    public void setUp() {
+        posterPool = new PosterPool(/* maxPooledBytes = */ 4L * POSTER_BYTES);
+    }
+
+    @Test
+    public void release_posterHeldTwice_pooledOnlyAfterSecondRelease() {
+        Bitmap poster = newPoster(POSTER_BYTES);
+
+        // Two loads of the same key hand out the same bitmap
+        posterPool.acquire(poster);
+        posterPool.acquire(poster);
+        posterPool.release(poster);
+
+        assertEquals(0, posterPool.getPooledCount());
+        assertNull(posterPool.take(POSTER_BYTES));
+
+        posterPool.release(poster);
+
+        assertEquals(1, posterPool.getPooledCount());
+        assertSame(poster, posterPool.take(POSTER_BYTES));
+    }
+
+    @Test
+    public void release_cachedPoster_pooledOnlyOnceUncached() {
+        Bitmap poster = newPoster(POSTER_BYTES);
+        posterPool.acquire(poster);
+        posterPool.onCached(poster);
+
+        posterPool.release(poster);
+        assertEquals(0, posterPool.getPooledCount());
+
+        posterPool.onUncached(poster);
+        assertEquals(1, posterPool.getPooledCount());
+    }
+
+    @Test
+    public void onUncached_posterStillHeld_notPooled() {
+        Bitmap poster = newPoster(POSTER_BYTES);
+        posterPool.acquire(poster);
+        posterPool.onCached(poster);
+
+        posterPool.onUncached(poster);
+        assertEquals(0, posterPool.getPooledCount());
+
+        posterPool.release(poster);
+        assertEquals(1, posterPool.getPooledCount());
+    }
+
+    @Test
+    public void release_immutablePoster_notPooled() {
+        Bitmap poster = newPoster(POSTER_BYTES);
+        when(poster.isMutable()).thenReturn(false);
+        posterPool.acquire(poster);
+
+        posterPool.release(poster);
+
+        assertEquals(0, posterPool.getPooledCount());
+    }
+
+    @Test
+    public void release_overPoolSize_dropsLeastRecentlyReleased() {
+        Bitmap[] posters = new Bitmap[5];
+        for (int i = 0; i < posters.length; i++) {
+            posters[i] = newPoster(POSTER_BYTES);
+            posterPool.acquire(posters[i]);
+        }
+        for (Bitmap poster : posters) {
+            posterPool.release(poster);
+        }
+
+        assertEquals(4, posterPool.getPooledCount());
+        for (int i = 1; i < posters.length; i++) {
+            assertNotSame(posters[0], posterPool.take(POSTER_BYTES));
+        }
+        assertNull(posterPool.take(POSTER_BYTES));
+    }
+
+    @Test
+    public void take_returnsSmallestPosterWhichFits() {
+        Bitmap small = newPoster(POSTER_BYTES / 4);
+        Bitmap medium = newPoster(POSTER_BYTES / 2);
+        Bitmap large = newPoster(POSTER_BYTES);
+        for (Bitmap poster : new Bitmap[] {large, small, medium}) {
+            posterPool.acquire(poster);
+            posterPool.release(poster);
+        }
+
+        assertSame(medium, posterPool.take(POSTER_BYTES / 3));
+        assertSame(large, posterPool.take(POSTER_BYTES / 3));
+        assertNull(posterPool.take(POSTER_BYTES / 3));
+    }
+
+    private static Bitmap newPoster(int allocationBytes) {
+        Bitmap poster = mock(Bitmap.class);
+        when(poster.getAllocationByteCount()).thenReturn(allocationBytes);
+        when(poster.getConfig()).thenReturn(Bitmap.Config.ARGB_8888);
+        when(poster.isMutable()).thenReturn(true);
+        when(poster.isRecycled()).thenReturn(false);
+        return poster;
+    }
+}
@@ -0,0 +1,75 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Local unit test for the RenderedFrame class.
+ */
+public class RenderedFrameTest {
+
+    private static final int WIDTH = 3;
+    private static final int HEIGHT = 2;
+
+    @Test
+    public void createPool_allocatesFrames() {
+        BlockingQueue<RenderedFrame> pool =
+                RenderedFrame.createPool(WIDTH, HEIGHT, /* frameCount = */ 2);
+        assertEquals(2, pool.size());
+        RenderedFrame frame = pool.poll();
+        assertEquals(WIDTH, frame.getWidth());
+        assertEquals(HEIGHT, frame.getHeight());
+        assertEquals(4 * WIDTH, frame.getRowStride());
+        assertEquals(4 * WIDTH * HEIGHT, frame.getBuffer().capacity());
+    }
+
+    @Test
+    public void set_copiesPixelsAndTimestamp() {
+        RenderedFrame frame = RenderedFrame.createPool(WIDTH, HEIGHT, /* frameCount = */ 1).poll();
+        byte[] pixels = new byte[4 * WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) i;
+        }
+        frame.set(ByteBuffer.wrap(pixels), /* timestampUs = */ 1234L);
+
+        assertEquals(1234L, frame.getTimestampUs());
+        ByteBuffer buffer = frame.getBuffer();
+        assertEquals(0, buffer.position());
+        assertEquals(pixels.length, buffer.remaining());
+        for (int i = 0; i < pixels.length; i++) {
+            assertEquals(pixels[i], buffer.get(i));
+        }
+    }
+
+    @Test
+    public void release_returnsFrameToPool() {
+        BlockingQueue<RenderedFrame> pool =
+                RenderedFrame.createPool(WIDTH, HEIGHT, /* frameCount = */ 1);
+        RenderedFrame frame = pool.poll();
+        frame.setInUse(true);
+        assertNull(pool.poll());
+        frame.release();
+        assertSame(frame, pool.poll());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void release_twice_throws() {
+        BlockingQueue<RenderedFrame> pool =
+                RenderedFrame.createPool(WIDTH, HEIGHT, /* frameCount = */ 1);
+        RenderedFrame frame = pool.poll();
+        frame.setInUse(true);
+        frame.release();
+        frame.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void createPool_invalidFrameCount_throws() {
+        RenderedFrame.createPool(WIDTH, HEIGHT, /* frameCount = */ 0);
+    }
+}
@@ -0,0 +1,205 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for the ReverseWindowPrefetcher class.
+ */
+public class ReverseWindowPrefetcherTest {
+
+    private static final long FRAME_DURATION_US = 33_333L;
+    private static final int SAMPLE_COUNT = 24;
+    private static final int SYNC_INTERVAL = 8;
+    private static final int WINDOW_CAPACITY = 4;
+
+    private SampleIndex sampleIndex;
+    private FakeWindowDecoder windowDecoder;
+    private ReverseWindowPrefetcher prefetcher;
+
+    @Before
+    public void setUp() {
+        SampleIndex.Builder builder = new SampleIndex.Builder();
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            builder.addSample(i * FRAME_DURATION_US, /* size = */ 1000, i % SYNC_INTERVAL == 0);
+        }
+        sampleIndex = builder.build();
+        windowDecoder = new FakeWindowDecoder(/* positionIndex = */ SAMPLE_COUNT);
+        prefetcher = new ReverseWindowPrefetcher(sampleIndex, WINDOW_CAPACITY, windowDecoder);
+    }
+
+    @Test
+    public void prepareFrame_lastFrame_decodesWindowFromSyncSample() {
+        prefetcher.prepareFrame(SAMPLE_COUNT - 1, /* wrapAround = */ false);
+
+        // The window [20, 24) is decoded from the sync sample 16 and presented
+        assertEquals(Arrays.asList(16, 16), windowDecoder.seekIndices);
+        assertEquals(range(16, 24), windowDecoder.decodedIndices);
+        assertEquals(range(20, 24), windowDecoder.capturedIndices);
+        assertEquals(1, windowDecoder.swapCount);
+
+        // The window before it is planned, but not decoded yet
+        assertEquals(2, windowDecoder.windows.size());
+        assertArrayEquals(timestamps(16, 20), windowDecoder.windows.get(1));
+    }
+
+    @Test
+    public void prefetchAfterFrame_spreadsDecodingOverFrontWindow() {
+        prefetcher.prepareFrame(SAMPLE_COUNT - 1, /* wrapAround = */ false);
+        windowDecoder.decodedIndices.clear();
+
+        // The four samples of the next window are spread over the three frames left, rounding up
+        prefetcher.prefetchAfterFrame(22);
+        assertEquals(range(16, 18), windowDecoder.decodedIndices);
+        prefetcher.prefetchAfterFrame(21);
+        assertEquals(range(16, 19), windowDecoder.decodedIndices);
+        prefetcher.prefetchAfterFrame(20);
+        assertEquals(range(16, 20), windowDecoder.decodedIndices);
+        prefetcher.prefetchAfterFrame(19);
+        assertEquals(range(16, 20), windowDecoder.decodedIndices);
+
+        // The next window was decoded in time, so it is swapped in without decoding
+        windowDecoder.decodedIndices.clear();
+        prefetcher.prepareFrame(19, /* wrapAround = */ false);
+        assertTrue(windowDecoder.decodedIndices.isEmpty());
+        assertEquals(2, windowDecoder.swapCount);
+        assertArrayEquals(timestamps(12, 16), windowDecoder.windows.get(2));
+    }
+
+    @Test
+    public void prepareFrame_frameInFrontWindow_doesNothing() {
+        prefetcher.prepareFrame(SAMPLE_COUNT - 1, /* wrapAround = */ false);
+        int decodedCount = windowDecoder.decodedIndices.size();
+
+        prefetcher.prepareFrame(21, /* wrapAround = */ false);
+
+        assertEquals(decodedCount, windowDecoder.decodedIndices.size());
+        assertEquals(1, windowDecoder.swapCount);
+    }
+
+    @Test
+    public void prepareFrame_firstWindow_wrapsAroundOnlyIfAsked() {
+        windowDecoder.positionIndex = 0;
+        prefetcher.prepareFrame(1, /* wrapAround = */ false);
+
+        // Nothing precedes the first window
+        assertEquals(1, windowDecoder.windows.size());
+        assertArrayEquals(timestamps(0, 2), windowDecoder.windows.get(0));
+
+        prefetcher.invalidate();
+        windowDecoder.windows.clear();
+        windowDecoder.positionIndex = 0;
+        prefetcher.prepareFrame(1, /* wrapAround = */ true);
+
+        // The last frames of the video precede the first window of a reversed loop
+        assertEquals(2, windowDecoder.windows.size());
+        assertArrayEquals(timestamps(20, 24), windowDecoder.windows.get(1));
+    }
+
+    @Test
+    public void prepareFrame_decoderFails_abandonsWindow() {
+        windowDecoder.failAfter = 3;
+
+        prefetcher.prepareFrame(SAMPLE_COUNT - 1, /* wrapAround = */ false);
+
+        assertEquals(range(16, 19), windowDecoder.decodedIndices);
+        assertEquals(1, windowDecoder.swapCount);
+    }
+
+    @Test
+    public void release_clearsWindowsOnlyOnce() {
+        prefetcher.release();
+        assertEquals(0, windowDecoder.clearCount);
+
+        prefetcher.prepareFrame(SAMPLE_COUNT - 1, /* wrapAround = */ false);
+        prefetcher.release();
+        prefetcher.release();
+        assertEquals(1, windowDecoder.clearCount);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_windowCapacityTooSmall_throws() {
+        new ReverseWindowPrefetcher(sampleIndex, /* windowCapacity = */ 1, windowDecoder);
+    }
+
+    private static List<Integer> range(int startIndex, int endIndex) {
+        List<Integer> indices = new ArrayList<>();
+        for (int i = startIndex; i < endIndex; i++) {
+            indices.add(i);
+        }
+        return indices;
+    }
+
+    private static long[] timestamps(int startIndex, int endIndex) {
+        long[] timestampsUs = new long[endIndex - startIndex];
+        for (int i = 0; i < timestampsUs.length; i++) {
+            timestampsUs[i] = (startIndex + i) * FRAME_DURATION_US;
+        }
+        return timestampsUs;
+    }
+
+    /**
+     * Keeps track of the position of a decoder and records the samples it decodes.
+     */
+    private static class FakeWindowDecoder implements ReverseWindowPrefetcher.WindowDecoder {
+        private int positionIndex;
+        private int failAfter = Integer.MAX_VALUE;
+        private final List<Integer> seekIndices = new ArrayList<>();
+        private final List<Integer> decodedIndices = new ArrayList<>();
+        private final List<Integer> capturedIndices = new ArrayList<>();
+        private final List<long[]> windows = new ArrayList<>();
+        private int swapCount;
+        private int clearCount;
+
+        private FakeWindowDecoder(int positionIndex) {
+            this.positionIndex = positionIndex;
+        }
+
+        @Override
+        public int getPositionIndex() {
+            return positionIndex;
+        }
+
+        @Override
+        public void seekTo(int index) {
+            seekIndices.add(index);
+            positionIndex = index;
+        }
+
+        @Override
+        public void startWindow(long[] timestampsUs) {
+            windows.add(timestampsUs);
+        }
+
+        @Override
+        public boolean decodeSample(boolean capture) {
+            if (decodedIndices.size() >= failAfter) {
+                return false;
+            }
+            decodedIndices.add(positionIndex);
+            if (capture) {
+                capturedIndices.add(positionIndex);
+            }
+            positionIndex++;
+            return true;
+        }
+
+        @Override
+        public void swapWindows() {
+            swapCount++;
+        }
+
+        @Override
+        public void clearWindows() {
+            clearCount++;
+        }
+    }
+}
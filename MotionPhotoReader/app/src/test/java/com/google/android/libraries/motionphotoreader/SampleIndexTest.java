@@ -0,0 +1,147 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit test for the SampleIndex class.
+ */
+public class SampleIndexTest {
+
+    private static final long FRAME_DURATION_US = 33_000L;
+    private static final long SYNC_SAMPLE_SIZE = 100_000L;
+    private static final long SAMPLE_SIZE = 2_000L;
+
+    @Test
+    public void getFrameIndex_betweenSamples_returnsPrecedingSample() {
+        SampleIndex index = newIndex(/* sampleCount = */ 4, /* syncInterval = */ 4);
+
+        assertEquals(0, index.getFrameIndex(-1L));
+        assertEquals(0, index.getFrameIndex(0L));
+        assertEquals(1, index.getFrameIndex(FRAME_DURATION_US + 1));
+        assertEquals(3, index.getFrameIndex(1_000_000L));
+    }
+
+    @Test
+    public void getFrameIndex_emptyIndex_returnsMinusOne() {
+        SampleIndex index = new SampleIndex.Builder().build();
+
+        assertEquals(0, index.getSampleCount());
+        assertEquals(-1, index.getFrameIndex(0L));
+    }
+
+    @Test
+    public void getDurationUs_addsLastFrameDuration() {
+        SampleIndex index = newIndex(/* sampleCount = */ 4, /* syncInterval = */ 4);
+
+        assertEquals(4 * FRAME_DURATION_US, index.getDurationUs());
+        assertEquals(0L, new SampleIndex.Builder().build().getDurationUs());
+    }
+
+    @Test
+    public void getPositionIndex_endOfStream_returnsSampleCount() {
+        SampleIndex index = newIndex(/* sampleCount = */ 4, /* syncInterval = */ 4);
+
+        assertEquals(2, index.getPositionIndex(2 * FRAME_DURATION_US));
+        assertEquals(4, index.getPositionIndex(-1L));
+        assertEquals(-1, index.getPositionIndex(1L));
+    }
+
+    @Test
+    public void getPreviousSyncIndex_isCorrect() {
+        SampleIndex index = newIndex(/* sampleCount = */ 10, /* syncInterval = */ 4);
+
+        assertEquals(0, index.getPreviousSyncIndex(0));
+        assertEquals(0, index.getPreviousSyncIndex(3));
+        assertEquals(4, index.getPreviousSyncIndex(4));
+        assertEquals(8, index.getPreviousSyncIndex(9));
+    }
+
+    @Test
+    public void getNearestSyncIndex_picksCloserSyncSample() {
+        SampleIndex index = newIndex(/* sampleCount = */ 30, /* syncInterval = */ 10);
+
+        assertEquals(0, index.getNearestSyncIndex(4 * FRAME_DURATION_US));
+        assertEquals(10, index.getNearestSyncIndex(6 * FRAME_DURATION_US));
+        assertEquals(20, index.getNearestSyncIndex(29 * FRAME_DURATION_US));
+
+        // Ties go to the earlier sync sample
+        assertEquals(10, index.getNearestSyncIndex(15 * FRAME_DURATION_US));
+        assertEquals(-1, new SampleIndex.Builder().build().getNearestSyncIndex(0L));
+    }
+
+    @Test
+    public void getDecodeCost_addsSizesAndPerSampleCost() {
+        SampleIndex index = newIndex(/* sampleCount = */ 4, /* syncInterval = */ 4);
+
+        assertEquals(0L, index.getDecodeCost(2, 2));
+        assertEquals(
+                SYNC_SAMPLE_SIZE + SAMPLE_SIZE + 2 * SampleIndex.DECODE_COST_PER_SAMPLE,
+                index.getDecodeCost(0, 2)
+        );
+    }
+
+    @Test
+    public void getDecodeStartIndex_closeAhead_continuesFromCurrentIndex() {
+        SampleIndex index = newIndex(/* sampleCount = */ 30, /* syncInterval = */ 15);
+
+        // Decoding a few small samples is cheaper than decoding the large sync sample again
+        assertEquals(16, index.getDecodeStartIndex(16, 20));
+        assertEquals(10, index.getDecodeStartIndex(10, 14));
+
+        // Decoding on through a sync sample is never cheaper than starting from it
+        assertEquals(15, index.getDecodeStartIndex(10, 20));
+    }
+
+    @Test
+    public void getDecodeStartIndex_farAhead_restartsFromSyncSample() {
+        SampleIndex index = newIndex(/* sampleCount = */ 60, /* syncInterval = */ 15);
+
+        assertEquals(45, index.getDecodeStartIndex(1, 50));
+    }
+
+    @Test
+    public void getDecodeStartIndex_behindOrUnknown_restartsFromSyncSample() {
+        SampleIndex index = newIndex(/* sampleCount = */ 30, /* syncInterval = */ 15);
+
+        assertEquals(15, index.getDecodeStartIndex(25, 20));
+        assertEquals(15, index.getDecodeStartIndex(21, 20));
+        assertEquals(0, index.getDecodeStartIndex(-1, 5));
+    }
+
+    @Test
+    public void getReverseWindowStart_staysWithinGroupOfPictures() {
+        SampleIndex index = newIndex(/* sampleCount = */ 30, /* syncInterval = */ 15);
+
+        assertEquals(22, index.getReverseWindowStart(30, 8));
+        assertEquals(15, index.getReverseWindowStart(22, 8));
+        assertEquals(7, index.getReverseWindowStart(15, 8));
+        assertEquals(0, index.getReverseWindowStart(7, 8));
+        assertEquals(15, index.getReverseWindowStart(16, 8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addSample_outOfOrder_throwsIllegalArgumentException() {
+        SampleIndex.Builder builder = new SampleIndex.Builder();
+        builder.addSample(FRAME_DURATION_US, SAMPLE_SIZE, /* isSync = */ true);
+        builder.addSample(0L, SAMPLE_SIZE, /* isSync = */ false);
+    }
+
+    /**
+     * Builds an index of evenly spaced samples, with a large sync sample every syncInterval
+     * samples (starting with the first one).
+     */
+    private static SampleIndex newIndex(int sampleCount, int syncInterval) {
+        SampleIndex.Builder builder = new SampleIndex.Builder();
+        for (int i = 0; i < sampleCount; i++) {
+            boolean isSync = i % syncInterval == 0;
+            builder.addSample(
+                    i * FRAME_DURATION_US,
+                    isSync ? SYNC_SAMPLE_SIZE : SAMPLE_SIZE,
+                    isSync
+            );
+        }
+        return builder.build();
+    }
+}
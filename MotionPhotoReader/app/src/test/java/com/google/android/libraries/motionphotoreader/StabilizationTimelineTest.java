@@ -0,0 +1,101 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.android.libraries.motionphotoreader.Constants.NUM_OF_STRIPS;
+import static com.google.android.libraries.motionphotoreader.TestConstants.VIDEO_HEIGHT_PIXELS;
+import static com.google.android.libraries.motionphotoreader.TestConstants.VIDEO_WIDTH_PIXELS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Local unit test for the StabilizationTimeline class.
+ */
+public class StabilizationTimelineTest {
+
+    private static final float DELTA = 1e-5f;
+
+    @Test
+    public void getStripMatrices_beforeFirstSample_returnsIdentity() {
+        StabilizationTimeline.Builder builder = newBuilder();
+        builder.addFrame(1000L, translations(0.0f));
+        StabilizationTimeline timeline = builder.build();
+
+        assertSame(
+                StabilizationTimeline.getIdentityStripMatrices(),
+                timeline.getStripMatrices(0L)
+        );
+    }
+
+    @Test
+    public void getStripMatrices_betweenSamples_returnsPrecedingSample() {
+        StabilizationTimeline.Builder builder = newBuilder();
+        builder.addFrame(0L, translations(0.0f));
+        builder.addFrame(33_000L, translations(VIDEO_WIDTH_PIXELS / 2.0f));
+        StabilizationTimeline timeline = builder.build();
+
+        assertEquals(2, timeline.getFrameCount());
+        assertSame(timeline.getStripMatrices(0L), timeline.getStripMatrices(32_999L));
+        assertSame(timeline.getStripMatrices(33_000L), timeline.getStripMatrices(1_000_000L));
+    }
+
+    @Test
+    public void addFrame_accumulatesHomographies() {
+        StabilizationTimeline.Builder builder = newBuilder();
+        builder.addFrame(0L, translations(VIDEO_WIDTH_PIXELS / 4.0f));
+        builder.addFrame(33_000L, translations(VIDEO_WIDTH_PIXELS / 4.0f));
+        StabilizationTimeline timeline = builder.build();
+
+        // A translation by half the video width is a translation by 1 in the OpenGL basis, so the
+        // inverse translates by -1. The translation is the third column in column-major order.
+        float[] matrices = timeline.getStripMatrices(33_000L);
+        for (int i = 0; i < NUM_OF_STRIPS; i++) {
+            assertEquals(-1.0f, matrices[9 * i + 6], DELTA);
+            assertEquals(0.0f, matrices[9 * i + 7], DELTA);
+            assertEquals(1.0f, matrices[9 * i + 8], DELTA);
+        }
+    }
+
+    @Test
+    public void addFrame_emptyList_keepsAccumulatedHomographies() {
+        StabilizationTimeline.Builder builder = newBuilder();
+        builder.addFrame(0L, translations(VIDEO_WIDTH_PIXELS / 4.0f));
+        builder.addFrame(33_000L, Collections.emptyList());
+        StabilizationTimeline timeline = builder.build();
+
+        assertArrayEquals(
+                timeline.getStripMatrices(0L),
+                timeline.getStripMatrices(33_000L),
+                DELTA
+        );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addFrame_outOfOrder_throws() {
+        StabilizationTimeline.Builder builder = newBuilder();
+        builder.addFrame(33_000L, translations(0.0f));
+        builder.addFrame(0L, translations(0.0f));
+    }
+
+    private static StabilizationTimeline.Builder newBuilder() {
+        return new StabilizationTimeline.Builder(VIDEO_WIDTH_PIXELS, VIDEO_HEIGHT_PIXELS);
+    }
+
+    /**
+     * Returns a horizontal translation by the given number of pixels for every strip.
+     */
+    private static List<HomographyMatrix> translations(float dx) {
+        List<HomographyMatrix> homographyList = new ArrayList<>();
+        for (int i = 0; i < NUM_OF_STRIPS; i++) {
+            HomographyMatrix matrix = new HomographyMatrix();
+            matrix.set(0, 2, dx);
+            homographyList.add(matrix);
+        }
+        return homographyList;
+    }
+}
@@ -0,0 +1,66 @@
+package com.google.android.libraries.motionphotoreader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.google.android.libraries.motionphotoreader.Constants.NUM_OF_STRIPS;
+import static com.google.android.libraries.motionphotoreader.StabilizedFrameWarper.FORMAT_I420;
+import static com.google.android.libraries.motionphotoreader.StabilizedFrameWarper.FORMAT_RGBA_8888;
+
+/**
+ * Measures the throughput of the StabilizedFrameWarper on 1080p frames, in megapixels per second
+ * and in megapixels per second per core. This is not run as part of the unit tests; run its main
+ * method directly, optionally with the number of threads as the first argument.
+ */
+public class StabilizedFrameWarperBenchmark {
+
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int MEASURED_ITERATIONS = 100;
+
+    public static void main(String[] args) {
+        int threads = args.length > 0
+                ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        StabilizedFrameWarper warper = new StabilizedFrameWarper(WIDTH, HEIGHT, 90, pool);
+        warper.setCropTransform(1.1f, 0.02f, -0.01f);
+
+        // A slightly different rotation for every strip, as in a stabilized rolling shutter frame
+        StabilizationTimeline.Builder builder = new StabilizationTimeline.Builder(WIDTH, HEIGHT);
+        List<HomographyMatrix> homographyList = new ArrayList<>();
+        for (int i = 0; i < NUM_OF_STRIPS; i++) {
+            HomographyMatrix matrix = HomographyMatrix.createRotationMatrixZ(0.2f * i);
+            matrix.set(0, 2, 8.0f);
+            matrix.set(1, 2, -5.0f);
+            homographyList.add(matrix);
+        }
+        builder.addFrame(/* timestampUs = */ 0L, homographyList);
+        float[] stripMatrices = builder.build().getStripMatrices(0L);
+
+        for (int format : new int[] {FORMAT_RGBA_8888, FORMAT_I420}) {
+            byte[] source = new byte[StabilizedFrameWarper.getFrameSize(format, WIDTH, HEIGHT)];
+            byte[] output = new byte[source.length];
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                warper.warp(format, source, stripMatrices, output, HEIGHT, WIDTH);
+            }
+
+            long startNs = System.nanoTime();
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                warper.warp(format, source, stripMatrices, output, HEIGHT, WIDTH);
+            }
+            double seconds = (System.nanoTime() - startNs) / 1e9;
+            double megapixelsPerSecond = MEASURED_ITERATIONS * WIDTH * HEIGHT / 1e6 / seconds;
+            System.out.printf(
+                    "%s: %.1f MP/s, %.1f MP/s per core (%d threads)%n",
+                    format == FORMAT_RGBA_8888 ? "RGBA_8888" : "I420",
+                    megapixelsPerSecond,
+                    megapixelsPerSecond / threads,
+                    threads
+            );
+        }
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,136 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.google.android.libraries.motionphotoreader.Constants.NUM_OF_STRIPS;
+import static com.google.android.libraries.motionphotoreader.StabilizedFrameWarper.FORMAT_I420;
+import static com.google.android.libraries.motionphotoreader.StabilizedFrameWarper.FORMAT_RGBA_8888;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit test for the StabilizedFrameWarper class.
+ */
+public class StabilizedFrameWarperTest {
+
+    private static final int WIDTH = 48;
+    private static final int HEIGHT = 36;
+
+    private final ForkJoinPool pool = new ForkJoinPool(/* parallelism = */ 2);
+    private byte[] rgbaFrame;
+    private byte[] i420Frame;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(/* seed = */ 0);
+        rgbaFrame = new byte[StabilizedFrameWarper.getFrameSize(FORMAT_RGBA_8888, WIDTH, HEIGHT)];
+        random.nextBytes(rgbaFrame);
+        i420Frame = new byte[StabilizedFrameWarper.getFrameSize(FORMAT_I420, WIDTH, HEIGHT)];
+        random.nextBytes(i420Frame);
+    }
+
+    @Test
+    public void warp_identity_copiesFrame() {
+        StabilizedFrameWarper warper = new StabilizedFrameWarper(WIDTH, HEIGHT, 0, pool);
+        float[] identity = StabilizationTimeline.getIdentityStripMatrices();
+
+        byte[] rgbaOutput = new byte[rgbaFrame.length];
+        warper.warp(FORMAT_RGBA_8888, rgbaFrame, identity, rgbaOutput, WIDTH, HEIGHT);
+        assertArrayEquals(rgbaFrame, rgbaOutput);
+
+        byte[] i420Output = new byte[i420Frame.length];
+        warper.warp(FORMAT_I420, i420Frame, identity, i420Output, WIDTH, HEIGHT);
+        assertArrayEquals(i420Frame, i420Output);
+    }
+
+    @Test
+    public void warp_translation_shiftsFrameAndFillsBlack() {
+        int shift = 2;
+        StabilizationTimeline.Builder builder = new StabilizationTimeline.Builder(WIDTH, HEIGHT);
+        builder.addFrame(/* timestampUs = */ 0L, translations(shift));
+        float[] stripMatrices = builder.build().getStripMatrices(0L);
+
+        StabilizedFrameWarper warper = new StabilizedFrameWarper(WIDTH, HEIGHT, 0, pool);
+        byte[] output = new byte[rgbaFrame.length];
+        warper.warp(FORMAT_RGBA_8888, rgbaFrame, stripMatrices, output, WIDTH, HEIGHT);
+
+        // The stabilization undoes the motion of the camera, so the frame moves to the left
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                for (int c = 0; c < 4; c++) {
+                    int expected = x + shift < WIDTH
+                            ? rgbaFrame[4 * (y * WIDTH + x + shift) + c]
+                            : (c == 3 ? (byte) 255 : 0);
+                    assertEquals(
+                            "Pixel (" + x + ", " + y + ")",
+                            expected,
+                            output[4 * (y * WIDTH + x) + c]
+                    );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void warp_rotation_rotatesFrameClockwise() {
+        StabilizedFrameWarper warper = new StabilizedFrameWarper(WIDTH, HEIGHT, 90, pool);
+        int outputWidth = warper.getOutputWidth();
+        int outputHeight = warper.getOutputHeight();
+        assertEquals(HEIGHT, outputWidth);
+        assertEquals(WIDTH, outputHeight);
+
+        byte[] output = new byte[rgbaFrame.length];
+        warper.warp(
+                FORMAT_RGBA_8888,
+                rgbaFrame,
+                StabilizationTimeline.getIdentityStripMatrices(),
+                output,
+                outputWidth,
+                outputHeight
+        );
+        for (int y = 0; y < outputHeight; y++) {
+            for (int x = 0; x < outputWidth; x++) {
+                int sourceX = y;
+                int sourceY = HEIGHT - 1 - x;
+                for (int c = 0; c < 4; c++) {
+                    assertEquals(
+                            rgbaFrame[4 * (sourceY * WIDTH + sourceX) + c],
+                            output[4 * (y * outputWidth + x) + c]
+                    );
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void warp_outputTooSmall_throws() {
+        StabilizedFrameWarper warper = new StabilizedFrameWarper(WIDTH, HEIGHT, 0, pool);
+        warper.warp(
+                FORMAT_RGBA_8888,
+                rgbaFrame,
+                StabilizationTimeline.getIdentityStripMatrices(),
+                new byte[rgbaFrame.length - 1],
+                WIDTH,
+                HEIGHT
+        );
+    }
+
+    /**
+     * Returns a horizontal translation by the given number of pixels for every strip.
+     */
+    private static List<HomographyMatrix> translations(float dx) {
+        List<HomographyMatrix> homographyList = new ArrayList<>();
+        for (int i = 0; i < NUM_OF_STRIPS; i++) {
+            HomographyMatrix matrix = new HomographyMatrix();
+            matrix.set(0, 2, dx);
+            homographyList.add(matrix);
+        }
+        return homographyList;
+    }
+}
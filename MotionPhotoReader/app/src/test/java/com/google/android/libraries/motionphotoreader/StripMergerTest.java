@@ -0,0 +1,170 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Test;
+
+import static com.google.android.libraries.motionphotoreader.Constants.NUM_OF_STRIPS;
+import static com.google.android.libraries.motionphotoreader.Constants.STRIP_VERTEX_SIZE;
+import static com.google.android.libraries.motionphotoreader.Constants.VERTICES_PER_STRIP;
+import static com.google.android.libraries.motionphotoreader.TestConstants.VIDEO_HEIGHT_PIXELS;
+import static com.google.android.libraries.motionphotoreader.TestConstants.VIDEO_WIDTH_PIXELS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for the StripMerger class.
+ */
+public class StripMergerTest {
+
+    private static final float DELTA = 1E-6f;
+    private static final float TOLERANCE_PIXELS = 0.5f;
+
+    private final int[] regionStarts = new int[NUM_OF_STRIPS];
+    private final float[] regionMatrices = new float[StabilizationTimeline.FRAME_DATA_SIZE];
+
+    @Test
+    public void mergeStrips_identicalStrips_drawsSingleRegion() {
+        float[] stripMatrices = StabilizationTimeline.getIdentityStripMatrices();
+        assertEquals(1, merge(stripMatrices, /* tolerancePixels = */ 0.0f));
+        assertEquals(0, regionStarts[0]);
+        assertArrayEquals(
+                new float[] {1.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f, 1.0f},
+                copyMatrix(regionMatrices, 0),
+                DELTA
+        );
+    }
+
+    @Test
+    public void mergeStrips_subPixelDifferences_mergesNeighbours() {
+        // Shift every strip by 0.2 pixels more than the previous one, so that each region holds
+        // three strips (within 0.4 pixels of the first strip of the region)
+        float[] stripMatrices = createTranslations(0.2f);
+        int regionCount = merge(stripMatrices, TOLERANCE_PIXELS);
+        assertEquals(NUM_OF_STRIPS / 3, regionCount);
+        for (int i = 0; i < regionCount; i++) {
+            assertEquals(3 * i, regionStarts[i]);
+            assertArrayEquals(
+                    copyMatrix(stripMatrices, 3 * i),
+                    copyMatrix(regionMatrices, i),
+                    DELTA
+            );
+        }
+    }
+
+    @Test
+    public void mergeStrips_distinctStrips_drawsEveryStrip() {
+        assertEquals(NUM_OF_STRIPS, merge(createTranslations(2.0f), TOLERANCE_PIXELS));
+        for (int i = 0; i < NUM_OF_STRIPS; i++) {
+            assertEquals(i, regionStarts[i]);
+        }
+    }
+
+    @Test
+    public void mergeStrips_twoHalves_drawsTwoRegions() {
+        float[] stripMatrices = createTranslations(0.0f);
+        for (int i = NUM_OF_STRIPS / 2; i < NUM_OF_STRIPS; i++) {
+            setTranslation(stripMatrices, i, 10.0f);
+        }
+        assertEquals(2, merge(stripMatrices, TOLERANCE_PIXELS));
+        assertEquals(0, regionStarts[0]);
+        assertEquals(NUM_OF_STRIPS / 2, regionStarts[1]);
+    }
+
+    @Test
+    public void createRegionVertices_allStrips_coversFrameWithTwoTrianglesPerStrip() {
+        int[] starts = new int[NUM_OF_STRIPS];
+        for (int i = 0; i < NUM_OF_STRIPS; i++) {
+            starts[i] = i;
+        }
+        float[] vertices = new float[StripMerger.getMaxVertexDataSize()];
+        int vertexCount = StripMerger.createRegionVertices(starts, NUM_OF_STRIPS, vertices);
+        assertEquals(NUM_OF_STRIPS * VERTICES_PER_STRIP, vertexCount);
+
+        float coveredArea = 0.0f;
+        for (int triangle = 0; triangle < vertexCount / 3; triangle++) {
+            int offset = 3 * STRIP_VERTEX_SIZE * triangle;
+            int stripIndex = triangle / 2;
+            float[] xs = new float[3];
+            float[] ys = new float[3];
+            for (int v = 0; v < 3; v++) {
+                int vertex = offset + STRIP_VERTEX_SIZE * v;
+                xs[v] = vertices[vertex];
+                ys[v] = vertices[vertex + 1];
+                assertEquals(1.0f, vertices[vertex + 2], DELTA);
+                assertEquals(stripIndex, vertices[vertex + 3], DELTA);
+
+                // Every vertex lies on the boundary of its strip
+                float bottom = -1.0f + 2.0f * stripIndex / NUM_OF_STRIPS;
+                float top = -1.0f + 2.0f * (stripIndex + 1.0f) / NUM_OF_STRIPS;
+                assertEquals(1.0f, Math.abs(xs[v]), DELTA);
+                assertTrue(Math.abs(ys[v] - bottom) < DELTA || Math.abs(ys[v] - top) < DELTA);
+            }
+            coveredArea += Math.abs((xs[1] - xs[0]) * (ys[2] - ys[0])
+                    - (xs[2] - xs[0]) * (ys[1] - ys[0])) / 2.0f;
+        }
+
+        // The strips cover the whole [-1, 1] x [-1, 1] frame without overlapping
+        assertEquals(4.0f, coveredArea, 1E-4f);
+    }
+
+    @Test
+    public void createRegionVertices_mergedRegions_coverFrame() {
+        int[] starts = {0, 5};
+        float[] vertices = new float[StripMerger.getMaxVertexDataSize()];
+        int vertexCount = StripMerger.createRegionVertices(starts, starts.length, vertices);
+        assertEquals(2 * VERTICES_PER_STRIP, vertexCount);
+
+        float coveredArea = 0.0f;
+        for (int triangle = 0; triangle < vertexCount / 3; triangle++) {
+            int offset = 3 * STRIP_VERTEX_SIZE * triangle;
+            float[] xs = new float[3];
+            float[] ys = new float[3];
+            for (int v = 0; v < 3; v++) {
+                xs[v] = vertices[offset + STRIP_VERTEX_SIZE * v];
+                ys[v] = vertices[offset + STRIP_VERTEX_SIZE * v + 1];
+                assertEquals(triangle / 2, vertices[offset + STRIP_VERTEX_SIZE * v + 3], DELTA);
+            }
+            coveredArea += Math.abs((xs[1] - xs[0]) * (ys[2] - ys[0])
+                    - (xs[2] - xs[0]) * (ys[1] - ys[0])) / 2.0f;
+        }
+        assertEquals(4.0f, coveredArea, 1E-4f);
+
+        // The first region ends where the sixth strip starts
+        float boundary = -1.0f + 2.0f * 5 / NUM_OF_STRIPS;
+        assertEquals(boundary, vertices[2 * STRIP_VERTEX_SIZE + 1], DELTA);
+    }
+
+    private int merge(float[] stripMatrices, float tolerancePixels) {
+        return StripMerger.mergeStrips(
+                stripMatrices,
+                VIDEO_WIDTH_PIXELS,
+                VIDEO_HEIGHT_PIXELS,
+                tolerancePixels,
+                regionStarts,
+                regionMatrices
+        );
+    }
+
+    /**
+     * Creates strip matrices where each strip is shifted horizontally by the given number of
+     * pixels more than the previous strip.
+     */
+    private static float[] createTranslations(float stepPixels) {
+        float[] stripMatrices = StabilizationTimeline.getIdentityStripMatrices().clone();
+        for (int i = 0; i < NUM_OF_STRIPS; i++) {
+            setTranslation(stripMatrices, i, i * stepPixels);
+        }
+        return stripMatrices;
+    }
+
+    private static void setTranslation(float[] stripMatrices, int stripIndex, float dxPixels) {
+        // Column-major, so the x translation is the first entry of the third column
+        stripMatrices[9 * stripIndex + 6] = 2.0f * dxPixels / VIDEO_WIDTH_PIXELS;
+    }
+
+    private static float[] copyMatrix(float[] matrices, int index) {
+        float[] matrix = new float[9];
+        System.arraycopy(matrices, 9 * index, matrix, 0, 9);
+        return matrix;
+    }
+}
@@ -0,0 +1,63 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit test for the TilePyramid class.
+ */
+public class TilePyramidTest {
+
+    private static final int TILE_SIZE = 512;
+
+    /** A 12 MP image: 4032x3024 pixels. */
+    private final TilePyramid pyramid = new TilePyramid(4032, 3024, TILE_SIZE);
+
+    @Test
+    public void getLevelCount_lastLevelFitsInOneTile() {
+        // 4032 / 8 = 504 fits in a tile, 4032 / 4 does not
+        assertEquals(4, pyramid.getLevelCount());
+        int lastLevel = pyramid.getLevelCount() - 1;
+        assertEquals(1, pyramid.getColumnCount(lastLevel));
+        assertEquals(1, pyramid.getRowCount(lastLevel));
+    }
+
+    @Test
+    public void getColumnAndRowCount_roundUp() {
+        assertEquals(8, pyramid.getColumnCount(0));
+        assertEquals(6, pyramid.getRowCount(0));
+        assertEquals(4, pyramid.getColumnCount(1));
+        assertEquals(3, pyramid.getRowCount(1));
+    }
+
+    @Test
+    public void getTileBounds_lastTileIsCroppedToImage() {
+        assertArrayEquals(new int[] {1024, 1024, 2048, 2048}, pyramid.getTileBounds(1, 1, 1));
+        assertArrayEquals(new int[] {3584, 2560, 4032, 3024}, pyramid.getTileBounds(0, 7, 5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getTileBounds_outsideImage_throwsIllegalArgumentException() {
+        pyramid.getTileBounds(0, 8, 0);
+    }
+
+    @Test
+    public void getLevelForScale_picksLowestResolutionCoveringDisplay() {
+        assertEquals(0, pyramid.getLevelForScale(2f));
+        assertEquals(0, pyramid.getLevelForScale(0.6f));
+        assertEquals(1, pyramid.getLevelForScale(0.5f));
+        assertEquals(2, pyramid.getLevelForScale(0.2f));
+        // Clamped to the last level
+        assertEquals(3, pyramid.getLevelForScale(0.01f));
+    }
+
+    @Test
+    public void getColumnAndRowAt_clampedToLevel() {
+        assertEquals(0, pyramid.getColumnAt(0, -10));
+        assertEquals(1, pyramid.getColumnAt(0, 512));
+        assertEquals(7, pyramid.getColumnAt(0, 5000));
+        assertEquals(2, pyramid.getRowAt(1, 2500));
+    }
+}
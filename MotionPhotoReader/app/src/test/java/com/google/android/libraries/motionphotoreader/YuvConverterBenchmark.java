@@ -0,0 +1,67 @@
+package com.google.android.libraries.motionphotoreader;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures the throughput of the YuvConverter on 1080p and 4K frames, at full size and downscaled
+ * by 4, in source megapixels per second and in megapixels per second per core. This is not run as
+ * part of the unit tests; run its main method directly, optionally with the number of threads as
+ * the first argument.
+ */
+public class YuvConverterBenchmark {
+
+    private static final int[][] SIZES = {{1920, 1080}, {3840, 2160}};
+    private static final int[] DOWNSCALES = {1, 4};
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int MEASURED_ITERATIONS = 100;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0
+                ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        YuvConverter converter = new YuvConverter(pool);
+        Random random = new Random(/* seed = */ 0);
+
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            FramePool framePool = new FramePool(width, height, /* frameCount = */ 1);
+            DecodedFrame frame = framePool.acquire(/* timeoutMs = */ 0L);
+            byte[] noise = new byte[width * height];
+            random.nextBytes(noise);
+            for (int plane = DecodedFrame.PLANE_Y; plane <= DecodedFrame.PLANE_V; plane++) {
+                ByteBuffer buffer = frame.getPlane(plane);
+                buffer.put(noise, 0, buffer.remaining()).clear();
+            }
+
+            for (int downscale : DOWNSCALES) {
+                int[] output = new int[YuvConverter.getOutputSize(width, downscale)
+                        * YuvConverter.getOutputSize(height, downscale)];
+                for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                    converter.convert(frame, output, downscale);
+                }
+
+                long startNs = System.nanoTime();
+                for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                    converter.convert(frame, output, downscale);
+                }
+                double seconds = (System.nanoTime() - startNs) / 1e9;
+                double megapixelsPerSecond = MEASURED_ITERATIONS * width * height / 1e6 / seconds;
+                System.out.printf(
+                        "%dx%d, downscale %d: %.1f MP/s, %.1f MP/s per core (%d threads)%n",
+                        width,
+                        height,
+                        downscale,
+                        megapixelsPerSecond,
+                        megapixelsPerSecond / threads,
+                        threads
+                );
+            }
+            frame.release();
+        }
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,173 @@
+package com.google.android.libraries.motionphotoreader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for the YuvConverter class.
+ */
+public class YuvConverterTest {
+
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 10;
+    private static final int CHROMA_WIDTH = WIDTH / 2;
+    private static final int CHROMA_HEIGHT = HEIGHT / 2;
+
+    private YuvConverter converter;
+    private byte[] y;
+    private byte[] u;
+    private byte[] v;
+
+    @Before
+    public void setUp() {
+        converter = new YuvConverter(new ForkJoinPool(/* parallelism = */ 3));
+        Random random = new Random(/* seed = */ 0);
+        y = new byte[WIDTH * HEIGHT];
+        u = new byte[CHROMA_WIDTH * CHROMA_HEIGHT];
+        v = new byte[CHROMA_WIDTH * CHROMA_HEIGHT];
+        random.nextBytes(y);
+        random.nextBytes(u);
+        random.nextBytes(v);
+    }
+
+    @Test
+    public void toArgb_blackAndWhite() {
+        assertEquals(0xFF000000, YuvConverter.toArgb(16, 128, 128));
+        assertEquals(0xFFFFFFFF, YuvConverter.toArgb(235, 128, 128));
+    }
+
+    @Test
+    public void toArgb_matchesFloatingPointConversion() {
+        Random random = new Random(/* seed = */ 1);
+        for (int i = 0; i < 1000; i++) {
+            int yValue = random.nextInt(256);
+            int uValue = random.nextInt(256);
+            int vValue = random.nextInt(256);
+            float luma = 1.164f * Math.max(0, yValue - 16);
+            float r = luma + 1.596f * (vValue - 128);
+            float g = luma - 0.813f * (vValue - 128) - 0.391f * (uValue - 128);
+            float b = luma + 2.018f * (uValue - 128);
+
+            int argb = YuvConverter.toArgb(yValue, uValue, vValue);
+            assertChannelEquals(r, (argb >> 16) & 0xFF);
+            assertChannelEquals(g, (argb >> 8) & 0xFF);
+            assertChannelEquals(b, argb & 0xFF);
+        }
+    }
+
+    @Test
+    public void convert_semiPlanar_matchesPlanar() {
+        int[] planarOutput = new int[WIDTH * HEIGHT];
+        converter.convert(
+                ByteBuffer.wrap(y), WIDTH,
+                ByteBuffer.wrap(u), ByteBuffer.wrap(v), CHROMA_WIDTH, /* uvPixelStride = */ 1,
+                WIDTH, HEIGHT, planarOutput, /* downscale = */ 1
+        );
+
+        // Interleave the chroma planes (NV12), and read them through offset buffers
+        byte[] uv = new byte[2 * u.length];
+        for (int i = 0; i < u.length; i++) {
+            uv[2 * i] = u[i];
+            uv[2 * i + 1] = v[i];
+        }
+        ByteBuffer uBuffer = ByteBuffer.wrap(uv);
+        ByteBuffer vBuffer = ByteBuffer.wrap(uv);
+        vBuffer.position(1);
+        int[] semiPlanarOutput = new int[WIDTH * HEIGHT];
+        converter.convert(
+                ByteBuffer.wrap(y), WIDTH,
+                uBuffer, vBuffer, 2 * CHROMA_WIDTH, /* uvPixelStride = */ 2,
+                WIDTH, HEIGHT, semiPlanarOutput, /* downscale = */ 1
+        );
+
+        assertArrayEquals(planarOutput, semiPlanarOutput);
+        assertEquals(1, vBuffer.position());
+    }
+
+    @Test
+    public void convert_downscale_averagesBlocks() {
+        // Fill each 4x4 block with a single color
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int column = 0; column < WIDTH; column++) {
+                y[row * WIDTH + column] = (byte) (16 + 10 * (row / 4) + 40 * (column / 4));
+            }
+        }
+        for (int i = 0; i < u.length; i++) {
+            u[i] = (byte) 100;
+            v[i] = (byte) 150;
+        }
+
+        int downscale = 4;
+        int outputWidth = YuvConverter.getOutputSize(WIDTH, downscale);
+        int outputHeight = YuvConverter.getOutputSize(HEIGHT, downscale);
+        assertEquals(4, outputWidth);
+        assertEquals(2, outputHeight);
+
+        int[] output = new int[outputWidth * outputHeight];
+        converter.convert(
+                ByteBuffer.wrap(y), WIDTH,
+                ByteBuffer.wrap(u), ByteBuffer.wrap(v), CHROMA_WIDTH, /* uvPixelStride = */ 1,
+                WIDTH, HEIGHT, output, downscale
+        );
+        for (int row = 0; row < outputHeight; row++) {
+            for (int column = 0; column < outputWidth; column++) {
+                int expected = YuvConverter.toArgb(16 + 10 * row + 40 * column, 100, 150);
+                assertEquals(expected, output[row * outputWidth + column]);
+            }
+        }
+    }
+
+    @Test
+    public void convert_byteBuffer_matchesIntArray() {
+        FramePool pool = new FramePool(WIDTH, HEIGHT, /* frameCount = */ 1);
+        DecodedFrame frame;
+        try {
+            frame = pool.acquire(/* timeoutMs = */ 0L);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        frame.getPlane(DecodedFrame.PLANE_Y).put(y).clear();
+        frame.getPlane(DecodedFrame.PLANE_U).put(u).clear();
+        frame.getPlane(DecodedFrame.PLANE_V).put(v).clear();
+
+        int[] intOutput = new int[WIDTH * HEIGHT / 4];
+        converter.convert(frame, intOutput, /* downscale = */ 2);
+        ByteBuffer byteOutput = ByteBuffer.allocateDirect(4 + 4 * intOutput.length);
+        byteOutput.position(4);
+        converter.convert(frame, byteOutput, /* downscale = */ 2);
+
+        assertEquals(4, byteOutput.position());
+        for (int i = 0; i < intOutput.length; i++) {
+            int argb = intOutput[i];
+            assertEquals((byte) (argb >> 16), byteOutput.get(4 + 4 * i));
+            assertEquals((byte) (argb >> 8), byteOutput.get(4 + 4 * i + 1));
+            assertEquals((byte) argb, byteOutput.get(4 + 4 * i + 2));
+            assertEquals((byte) 0xFF, byteOutput.get(4 + 4 * i + 3));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void convert_unsupportedDownscale_throws() {
+        converter.convert(
+                ByteBuffer.wrap(y), WIDTH,
+                ByteBuffer.wrap(u), ByteBuffer.wrap(v), CHROMA_WIDTH, /* uvPixelStride = */ 1,
+                WIDTH, HEIGHT, new int[WIDTH * HEIGHT], /* downscale = */ 3
+        );
+    }
+
+    private static void assertChannelEquals(float expected, int actual) {
+        float clamped = Math.max(0.0f, Math.min(255.0f, expected));
+        assertTrue(
+                "Expected " + clamped + " but was " + actual,
+                Math.abs(clamped - actual) <= 1.0f
+        );
+    }
+}